@@ -18,13 +18,13 @@ if [[ $TRAVIS_PULL_REQUEST == "false" ]]; then
     tar -xvf jdk-9-ea+131_linux-x64_bin.tar.gz
     sudo mv jdk-9 java-9-openjdk-amd64
     sudo mv java-9-openjdk-amd64 /usr/lib/jvm
-    env MAVEN_SKIP_RC="true" JAVA_HOME="/usr/lib/jvm/java-9-openjdk-amd64" JRE_HOME="/usr/lib/jvm/java-9-openjdk-amd64" mvn package -Pjdk9 -Djacoco.skip=true
-    mvn clean
+    env MAVEN_SKIP_RC="true" JAVA_HOME="/usr/lib/jvm/java-9-openjdk-amd64" JRE_HOME="/usr/lib/jvm/java-9-openjdk-amd64" mvn -f deploy/pom.xml package -Pjdk9 -Djacoco.skip=true
+    mvn -f deploy/pom.xml clean
     fi
 
     if [[ $JAVA_VERSION == "openjdk8" ]]; then
     # deploy to maven binary repo
-    mvn package --settings $BASE_DIR/deploy/settings.xml -DperformRelease=true -Dmaven.javadoc.skip=true -Dgpg.skip=true
+    mvn -f deploy/pom.xml package --settings $BASE_DIR/deploy/settings.xml -DperformRelease=true -Dmaven.javadoc.skip=true -Dgpg.skip=true
     fi
 
 #    PROJECT_VERSION="`mvn org.apache.maven.plugins:maven-help-plugin:2.1.1:evaluate -Dexpression=project.version 2> /dev/null |grep -Ev '(^\[|Download\w+:)'`"
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Generate implementation class for every interface annotated with
+ * {@code com.biqasoft.microservice.communicator.interfaceimpl.annotation.Microservice}
+ * <p>
+ * Generated class extends {@code GeneratedMicroserviceClient} and has a direct method body for every interface method,
+ * so runtime does not need to create CGLIB proxy. Class name is interface binary name with {@code _MicroserviceImpl} suffix
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+public class MicroserviceClientProcessor extends AbstractProcessor {
+
+    static final String MICROSERVICE_ANNOTATION = "com.biqasoft.microservice.communicator.interfaceimpl.annotation.Microservice";
+    static final String MICRO_MAPPING_ANNOTATION = "com.biqasoft.microservice.communicator.interfaceimpl.annotation.MicroMapping";
+    static final String GENERATED_CLIENT_CLASS = "com.biqasoft.microservice.communicator.interfaceimpl.GeneratedMicroserviceClient";
+    static final String GENERATED_CLASS_SUFFIX = "_MicroserviceImpl";
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(MICROSERVICE_ANNOTATION);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.INTERFACE) {
+                    continue;
+                }
+
+                TypeElement interfaceElement = (TypeElement) element;
+                try {
+                    generateImplementation(interfaceElement);
+                } catch (IOException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                            "Can not generate microservice implementation: " + e.getMessage(), interfaceElement);
+                }
+            }
+        }
+        return false;
+    }
+
+    private void generateImplementation(TypeElement interfaceElement) throws IOException {
+        String packageName = processingEnv.getElementUtils().getPackageOf(interfaceElement).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(interfaceElement).toString();
+        String simpleName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)) + GENERATED_CLASS_SUFFIX;
+        String interfaceName = interfaceElement.getQualifiedName().toString();
+
+        List<ExecutableElement> methods = getImplementedMethods(interfaceElement);
+
+        StringBuilder source = new StringBuilder();
+        source.append("// Generated by ").append(MicroserviceClientProcessor.class.getName()).append(". Do not edit\n");
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+
+        source.append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+        source.append("public final class ").append(simpleName).append(" extends ").append(GENERATED_CLIENT_CLASS)
+                .append(" implements ").append(interfaceName).append(" {\n\n");
+
+        source.append("    private static final java.lang.reflect.Method[] METHODS = {\n");
+        for (int i = 0; i < methods.size(); i++) {
+            ExecutableElement method = methods.get(i);
+            source.append("            method(").append(interfaceName).append(".class, \"").append(method.getSimpleName()).append('"');
+            for (VariableElement parameter : method.getParameters()) {
+                source.append(", ").append(processingEnv.getTypeUtils().erasure(parameter.asType())).append(".class");
+            }
+            source.append(i + 1 == methods.size() ? ")\n" : "),\n");
+        }
+        source.append("    };\n\n");
+
+        source.append("    public ").append(simpleName).append("() {\n");
+        source.append("        super(").append(interfaceName).append(".class, METHODS);\n");
+        source.append("    }\n");
+
+        for (int i = 0; i < methods.size(); i++) {
+            appendMethod(source, methods.get(i), i);
+        }
+
+        source.append("\n}\n");
+
+        JavaFileObject sourceFile = processingEnv.getFiler().createSourceFile(packageName.isEmpty() ? simpleName : packageName + "." + simpleName, interfaceElement);
+        try (Writer writer = sourceFile.openWriter()) {
+            writer.write(source.toString());
+        }
+    }
+
+    /**
+     * @return abstract interface methods and java 8 default methods with request mapping;
+     * default methods without mapping are not overridden
+     */
+    private List<ExecutableElement> getImplementedMethods(TypeElement interfaceElement) {
+        List<ExecutableElement> methods = new ArrayList<>();
+
+        for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(interfaceElement))) {
+            if (method.getEnclosingElement().getKind() != ElementKind.INTERFACE || method.getModifiers().contains(Modifier.STATIC)) {
+                continue;
+            }
+
+            if (method.getModifiers().contains(Modifier.DEFAULT) && !hasMicroMapping(method)) {
+                continue;
+            }
+            methods.add(method);
+        }
+        return methods;
+    }
+
+    private boolean hasMicroMapping(ExecutableElement method) {
+        for (AnnotationMirror annotationMirror : method.getAnnotationMirrors()) {
+            if (((TypeElement) annotationMirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(MICRO_MAPPING_ANNOTATION)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void appendMethod(StringBuilder source, ExecutableElement method, int methodIndex) {
+        source.append("\n    @Override\n    public ");
+
+        List<? extends TypeParameterElement> typeParameters = method.getTypeParameters();
+        if (!typeParameters.isEmpty()) {
+            source.append('<');
+            for (int i = 0; i < typeParameters.size(); i++) {
+                TypeParameterElement typeParameter = typeParameters.get(i);
+                if (i > 0) {
+                    source.append(", ");
+                }
+                source.append(typeParameter.getSimpleName());
+
+                List<? extends TypeMirror> bounds = typeParameter.getBounds();
+                boolean objectBound = bounds.size() == 1 && bounds.get(0).toString().equals("java.lang.Object");
+                if (!bounds.isEmpty() && !objectBound) {
+                    source.append(" extends ");
+                    for (int j = 0; j < bounds.size(); j++) {
+                        source.append(j > 0 ? " & " : "").append(bounds.get(j));
+                    }
+                }
+            }
+            source.append("> ");
+        }
+
+        TypeMirror returnType = method.getReturnType();
+        source.append(returnType).append(' ').append(method.getSimpleName()).append('(');
+
+        List<? extends VariableElement> parameters = method.getParameters();
+        for (int i = 0; i < parameters.size(); i++) {
+            VariableElement parameter = parameters.get(i);
+            if (i > 0) {
+                source.append(", ");
+            }
+
+            String type = parameter.asType().toString();
+            if (method.isVarArgs() && i + 1 == parameters.size() && type.endsWith("[]")) {
+                type = type.substring(0, type.length() - 2) + "...";
+            }
+            source.append("final ").append(type).append(' ').append(parameter.getSimpleName());
+        }
+        source.append(')');
+
+        List<? extends TypeMirror> thrownTypes = method.getThrownTypes();
+        for (int i = 0; i < thrownTypes.size(); i++) {
+            source.append(i == 0 ? " throws " : ", ").append(thrownTypes.get(i));
+        }
+        source.append(" {\n        ");
+
+        if (returnType.getKind() != TypeKind.VOID) {
+            source.append("return (").append(returnType).append(") ");
+        }
+
+        source.append("invoke(").append(methodIndex);
+        if (!parameters.isEmpty()) {
+            // always pass array explicitly - single array argument must not be spread as varargs
+            source.append(", new Object[]{");
+            for (int i = 0; i < parameters.size(); i++) {
+                source.append(i > 0 ? ", " : "").append(parameters.get(i).getSimpleName());
+            }
+            source.append('}');
+        }
+        source.append(");\n    }\n");
+    }
+
+}
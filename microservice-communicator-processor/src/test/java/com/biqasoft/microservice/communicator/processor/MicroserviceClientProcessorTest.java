@@ -0,0 +1,94 @@
+package com.biqasoft.microservice.communicator.processor;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Compile sample {@code @Microservice} interface with processor and check generated implementations
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationProcessor")
+public class MicroserviceClientProcessorTest {
+
+    private static final String SAMPLE_SOURCE = "sample/SampleMicroservice.java";
+
+    @Test
+    public void testGeneratedImplementationCompiles() throws Exception {
+        Path directory = Files.createTempDirectory("microservice-processor");
+        Path sources = Files.createDirectories(directory.resolve("sources"));
+        Path generated = Files.createDirectories(directory.resolve("generated"));
+        Path classes = Files.createDirectories(directory.resolve("classes"));
+
+        Path sample = Files.createDirectories(sources.resolve("sample")).resolve("SampleMicroservice.java");
+        try (InputStream inputStream = getClass().getClassLoader().getResourceAsStream(SAMPLE_SOURCE)) {
+            Files.copy(inputStream, sample, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Assert.assertNotNull(compiler, "tests must be run with JDK");
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8)) {
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+                    Arrays.asList("-classpath", System.getProperty("java.class.path"),
+                            "-d", classes.toString(), "-s", generated.toString()),
+                    null, fileManager.getJavaFileObjectsFromFiles(Collections.singletonList(sample.toFile())));
+            task.setProcessors(Collections.singletonList(new MicroserviceClientProcessor()));
+
+            boolean success = task.call();
+            StringBuilder errors = new StringBuilder();
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                    errors.append(diagnostic).append('\n');
+                }
+            }
+            Assert.assertTrue(success, errors.toString());
+        }
+
+        Assert.assertTrue(Files.exists(generated.resolve("sample/SampleMicroservice_MicroserviceImpl.java")));
+        Assert.assertTrue(Files.exists(generated.resolve("sample/SampleMicroservice$NestedMicroservice_MicroserviceImpl.java")));
+        // not annotated interface
+        Assert.assertFalse(Files.exists(generated.resolve("sample/SampleMicroservice$Nested_MicroserviceImpl.java")));
+
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[]{classes.toUri().toURL()}, getClass().getClassLoader())) {
+            Class<?> microserviceInterface = classLoader.loadClass("sample.SampleMicroservice");
+            Class<?> implementation = classLoader.loadClass("sample.SampleMicroservice" + MicroserviceClientProcessor.GENERATED_CLASS_SUFFIX);
+
+            Assert.assertTrue(microserviceInterface.isAssignableFrom(implementation));
+            Assert.assertEquals(implementation.getSuperclass().getName(), MicroserviceClientProcessor.GENERATED_CLIENT_CLASS);
+            Assert.assertTrue(Modifier.isFinal(implementation.getModifiers()));
+
+            for (Method method : microserviceInterface.getMethods()) {
+                Method implemented = implementation.getMethod(method.getName(), method.getParameterTypes());
+                if (method.isDefault()) {
+                    // default method without mapping is inherited
+                    Assert.assertEquals(implemented.getDeclaringClass(), microserviceInterface, method.getName());
+                } else {
+                    Assert.assertEquals(implemented.getDeclaringClass(), implementation, method.getName());
+                    Assert.assertEquals(implemented.isVarArgs(), method.isVarArgs(), method.getName());
+                }
+            }
+        }
+    }
+
+}
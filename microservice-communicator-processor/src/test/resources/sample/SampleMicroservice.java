@@ -0,0 +1,52 @@
+package sample;
+
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.MicroMapping;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.MicroPathVar;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.MicroPayloadVar;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.Microservice;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+@Microservice("sample-microservice")
+public interface SampleMicroservice {
+
+    @MicroMapping("/users/{id}")
+    Map<String, Object> getUser(@MicroPathVar("id") String id);
+
+    @MicroMapping(path = "/users", method = HttpMethod.POST)
+    void createUser(@MicroPayloadVar("name") String name, @MicroPayloadVar("age") int age) throws IOException;
+
+    @MicroMapping("/users")
+    ResponseEntity<List<Map<String, Object>>> getUsers();
+
+    @MicroMapping("/users/{id}")
+    <T extends Number> CompletableFuture<T> getUserAsync(@MicroPathVar("id") T id);
+
+    @MicroMapping("/users/batch")
+    List<Object> getUsers(@MicroPayloadVar("ids") String... ids);
+
+    @MicroMapping("/users/array")
+    byte[] getBytes(@MicroPayloadVar("ids") long[] ids);
+
+    // not a request - is not overridden
+    default String getName() {
+        return "sample";
+    }
+
+    interface Nested {
+    }
+
+    @Microservice("nested-microservice")
+    interface NestedMicroservice extends Nested {
+
+        @MicroMapping("/nested")
+        String getNested();
+
+    }
+
+}
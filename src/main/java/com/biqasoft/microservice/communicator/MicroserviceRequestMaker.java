@@ -1,28 +1,61 @@
 package com.biqasoft.microservice.communicator;
 
+import com.biqasoft.microservice.communicator.exceptions.BulkheadFullException;
 import com.biqasoft.microservice.communicator.exceptions.CannotResolveHostException;
+import com.biqasoft.microservice.communicator.exceptions.CircuitBreakerOpenException;
+import com.biqasoft.microservice.communicator.exceptions.DeadlineExceededException;
 import com.biqasoft.microservice.communicator.exceptions.InternalSeverErrorProcessingRequestException;
 import com.biqasoft.microservice.communicator.exceptions.InvalidRequestException;
+import com.biqasoft.microservice.communicator.exceptions.InvalidStateException;
+import com.biqasoft.microservice.communicator.exceptions.RetryBudgetExhaustedException;
+import com.biqasoft.microservice.communicator.http.ByteBufferResource;
+import com.biqasoft.microservice.communicator.http.MicroserviceAsyncRequestExecutor;
+import com.biqasoft.microservice.communicator.http.MicroserviceBulkhead;
+import com.biqasoft.microservice.communicator.http.MicroserviceBulkheads;
+import com.biqasoft.microservice.communicator.http.MicroserviceCallContext;
+import com.biqasoft.microservice.communicator.http.MicroserviceFanOut;
+import com.biqasoft.microservice.communicator.http.MicroserviceReactiveRequestExecutor;
+import com.biqasoft.microservice.communicator.http.MicroserviceResponseIterator;
 import com.biqasoft.microservice.communicator.http.MicroserviceRestTemplate;
+import com.biqasoft.microservice.communicator.http.ResponseBodyKind;
 import com.biqasoft.microservice.communicator.interfaceimpl.MicroserviceRequestInterceptor;
 import com.biqasoft.microservice.communicator.internal.DefaultReturnValueService;
+import com.biqasoft.microservice.communicator.internal.ReactiveClientCondition;
+import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.PathResource;
+import org.springframework.core.io.Resource;
 import org.springframework.http.*;
 import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.stereotype.Component;
 import org.springframework.util.ReflectionUtils;
 import org.springframework.util.StringUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Created by Nikita on 21.08.2016.
@@ -47,6 +80,13 @@ public class MicroserviceRequestMaker {
 
     private static List<MicroserviceRequestInterceptor> microserviceRequestInterceptors = null;
 
+    // decode JSON straight from response stream if no interceptor needs response as byte[]
+    private static boolean STREAMING_RESPONSE_ENABLED = true;
+    private static boolean streamingResponse = true;
+    private static final ConcurrentMap<JavaType, ObjectReader> responseReaders = new ConcurrentHashMap<>();
+
+    private static final boolean REACTIVE_CLIENT_PRESENT = ReactiveClientCondition.isReactiveClientPresent(MicroserviceRequestMaker.class.getClassLoader());
+
     static {
         try {
             body = HttpEntity.class.getDeclaredField("body");
@@ -60,22 +100,41 @@ public class MicroserviceRequestMaker {
     public MicroserviceRequestMaker(@Qualifier("defaultObjectMapperConfiguration") ObjectMapper objectMapper,
                                     @Value("${biqa.microservice.communicator.error.printstacktrace:false}") boolean printStacktraceOnFailed,
                                     @Value("${biqa.microservice.communicator.response.empty.null:true}") boolean nullOnEmptyResponseBody,
+                                    @Value("${biqa.microservice.communicator.response.streaming:true}") boolean streamingResponseEnabled,
                                     DefaultReturnValueService defaultReturnValueService) {
         MicroserviceRequestMaker.objectMapper = objectMapper;
         MicroserviceRequestMaker.printStacktraceOnFailed = printStacktraceOnFailed;
         MicroserviceRequestMaker.defaultReturnValueService = defaultReturnValueService;
         MicroserviceRequestMaker.RETURN_NULL_ON_EMPTY_RESPONSE_BODY = nullOnEmptyResponseBody;
+        MicroserviceRequestMaker.STREAMING_RESPONSE_ENABLED = streamingResponseEnabled;
+        MicroserviceRequestMaker.streamingResponse = streamingResponseEnabled && !requiresRawResponseBody(microserviceRequestInterceptors);
+        responseReaders.clear();
     }
 
     @Autowired(required = false)
     public void setMicroserviceRequestInterceptors(List<MicroserviceRequestInterceptor> microserviceRequestInterceptors) {
         MicroserviceRequestMaker.microserviceRequestInterceptors = microserviceRequestInterceptors;
+        MicroserviceRequestMaker.streamingResponse = STREAMING_RESPONSE_ENABLED && !requiresRawResponseBody(microserviceRequestInterceptors);
     }
 
-    public static void beforeProcessRequest(MicroserviceRestTemplate restTemplate, HttpHeaders httpHeaders) {
+    private static boolean requiresRawResponseBody(List<MicroserviceRequestInterceptor> microserviceRequestInterceptors) {
+        if (microserviceRequestInterceptors == null) {
+            return false;
+        }
+
+        for (MicroserviceRequestInterceptor microserviceRequestInterceptor : microserviceRequestInterceptors) {
+            if (microserviceRequestInterceptor.requiresRawResponseBody()) {
+                logger.info("Response JSON is buffered as byte[] because {} requires raw response body", microserviceRequestInterceptor.getClass().getName());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void beforeProcessRequest(MicroserviceCallContext context, HttpHeaders httpHeaders) {
         if (microserviceRequestInterceptors != null) {
             microserviceRequestInterceptors.forEach(x -> {
-                x.beforeProcessRequest(restTemplate, httpHeaders);
+                x.beforeProcessRequest(context, httpHeaders);
             });
         }
     }
@@ -86,13 +145,13 @@ public class MicroserviceRequestMaker {
      * @param returnObjectOriginal original(default) object from internal request processing
      * @param payload              request payload
      * @param returnType           return type in interface
-     * @param restTemplate         request microserviceRestTemplate
+     * @param context              state of request
      * @param returnGenericType    return types generic info
      * @param params               additional params
      * @return object that we want to return. object that interface will return
      */
     private static Object onBeforeReturnResultProcessor(Object returnObjectOriginal, Object payload, Class returnType,
-                                                        MicroserviceRestTemplate restTemplate, Class[] returnGenericType, Map<String, Object> params) {
+                                                        MicroserviceCallContext context, Class[] returnGenericType, Map<String, Object> params) {
         if (microserviceRequestInterceptors == null) {
             return returnObjectOriginal;
         }
@@ -100,13 +159,13 @@ public class MicroserviceRequestMaker {
         Object returnObject = returnObjectOriginal;
         for (MicroserviceRequestInterceptor microserviceRequestInterceptor : microserviceRequestInterceptors) {
             returnObject = microserviceRequestInterceptor.onBeforeReturnResult(returnObject, returnObjectOriginal,
-                    payload, returnType, restTemplate, returnGenericType, params);
+                    payload, returnType, context, returnGenericType, params);
         }
         return returnObject;
     }
 
     /**
-     * @param requestTemplate   rest template
+     * @param requestContext    state of request with shared rest template
      * @param payload           object that will be send in HTTP POST and PUT methods
      * @param returnType        java return type in interface. If generic - collection
      * @param returnGenericType null if return type is not generic
@@ -114,126 +173,478 @@ public class MicroserviceRequestMaker {
      * @param httpHeaders       http headers
      * @return response from server depend on interface return method or null if remote server has not response body
      */
-    public static Object makeRequestToMicroservice(Object payload, Class returnType, MicroserviceRestTemplate requestTemplate,
+    public static Object makeRequestToMicroservice(Object payload, Class returnType, MicroserviceCallContext requestContext,
                                                    Class[] returnGenericType, Map<String, Object> params,
                                                    HttpHeaders httpHeaders) {
-        HttpMethod httpMethod = requestTemplate.getMethod();
+        try {
+            HttpEntity<Object> request = createHttpEntity(payload, returnType, requestContext, returnGenericType, httpHeaders);
+            return exchange(request, payload, returnType, requestContext, returnGenericType, params);
+        } catch (Throwable e) {
+            return processError(e, requestContext, params);
+        }
+    }
+
+    /**
+     * Blocking request and response processing without error processing
+     */
+    private static Object exchange(HttpEntity<Object> request, Object payload, Class returnType, MicroserviceCallContext requestContext,
+                                   Class[] returnGenericType, Map<String, Object> params) throws IOException {
+        JavaType responseBodyType = streamingResponse ? requestContext.getResponseBodyType() : null;
 
+        ResponseEntity<byte[]> responseEntity;
         try {
-            // if payload not byte[] - use JSON as payload type
-            if (!(payload instanceof byte[]) && StringUtils.isEmpty(httpHeaders.get("Content-Type"))) {
-                httpHeaders.setContentType(MediaType.APPLICATION_JSON);
+            if (streamingResponse && returnType.equals(InputStream.class)) {
+                return processDecodedResponse(request, requestContext.getRestTemplate().exchangeForStream(requestContext, request),
+                        payload, returnType, requestContext, returnGenericType, params);
             }
 
-            if (microserviceRequestInterceptors != null) {
-                microserviceRequestInterceptors.forEach(x -> {
-                    x.beforeCreateHttpEntity(requestTemplate, returnType, returnGenericType, httpHeaders);
-                });
+            if (streamingResponse && returnType.equals(Path.class)) {
+                return processDecodedResponse(request, requestContext.getRestTemplate().exchangeForFile(requestContext, request),
+                        payload, returnType, requestContext, returnGenericType, params);
             }
 
-            HttpEntity<Object> request;
-            if (payload == null) {
-                request = new HttpEntity<>(httpHeaders);
-            } else {
-                request = new HttpEntity<>(payload, httpHeaders);
+            if (responseBodyType != null) {
+                // deserialize JSON while response is read
+                ResponseEntity<Object> decodedResponseEntity = requestContext.getRestTemplate().exchange(requestContext, request, getResponseReader(responseBodyType));
+                return processDecodedResponse(request, decodedResponseEntity, payload, returnType, requestContext, returnGenericType, params);
             }
 
-            ResponseEntity<byte[]> responseEntity;
+            // get all responses as byte[] and if we request object - deserialize then
+            responseEntity = requestContext.getRestTemplate().exchange(requestContext, request, byte[].class);
+        } catch (InvalidRequestException e) {
+            ResponseEntity<?> invalidResponseEntity = processInvalidRequest(e, returnType);
+            if (invalidResponseEntity != null) {
+                return invalidResponseEntity;
+            }
+            throw e;
+        }
+
+        return processResponse(request, responseEntity, payload, returnType, requestContext, returnGenericType, params);
+    }
+
+    /**
+     * Non-blocking request for interfaces methods which return {@link CompletableFuture}.
+     * Response is processed same as in {@link #makeRequestToMicroservice(Object, Class, MicroserviceCallContext, Class[], Map, HttpHeaders)}
+     * and future is completed in worker thread of {@link MicroserviceAsyncRequestExecutor}; cancel of future aborts request. Concurrent requests to microservice are limited by {@link MicroserviceBulkhead};
+     * if it is full, future is completed with {@link BulkheadFullException} or with result of java 8 default method.
+     * If virtual threads are enabled (see {@link MicroserviceFanOut}) - blocking request is executed in new virtual thread.
+     * If async executor is not initialized (no Spring context) - blocking request is executed in {@link CompletableFuture#supplyAsync}
+     *
+     * @param requestContext    state of request with shared rest template
+     * @param payload           object that will be send in HTTP POST and PUT methods
+     * @param returnType        java return type in interface
+     * @param returnGenericType generic type of future
+     * @param params custom params
+     * @param httpHeaders       http headers
+     * @return future with response from server depend on interface return method
+     */
+    public static CompletableFuture<Object> makeAsyncRequestToMicroservice(Object payload, Class returnType, MicroserviceCallContext requestContext,
+                                                                           Class[] returnGenericType, Map<String, Object> params,
+                                                                           HttpHeaders httpHeaders) {
+        MicroserviceAsyncRequestExecutor asyncRequestExecutor = MicroserviceAsyncRequestExecutor.getInstanceStaticInternal();
+        if (asyncRequestExecutor == null) {
+            return CompletableFuture.supplyAsync(() -> makeRequestToMicroservice(payload, returnType, requestContext, returnGenericType, params, httpHeaders));
+        }
+
+        CompletableFuture<Object> result = new CompletableFuture<>();
+
+        HttpEntity<Object> request;
+        try {
+            request = createHttpEntity(payload, returnType, requestContext, returnGenericType, httpHeaders);
+        } catch (Throwable e) {
+            completeWithError(result, e, requestContext, params);
+            return result;
+        }
+
+        MicroserviceBulkhead bulkhead = MicroserviceBulkheads.getBulkheadStaticInternal(requestContext.getMicroserviceName());
+        ExecutorService virtualThreadExecutor = MicroserviceFanOut.getVirtualThreadExecutorStaticInternal();
+
+        Runnable exchange = virtualThreadExecutor != null
+                ? () -> exchangeInVirtualThread(virtualThreadExecutor, result, request, payload, returnType, requestContext, returnGenericType, params, bulkhead)
+                : () -> exchangeAsync(asyncRequestExecutor, result, request, payload, returnType, requestContext, returnGenericType, params, bulkhead);
+
+        if (bulkhead == null) {
+            exchange.run();
+            return result;
+        }
+
+        try {
+            bulkhead.execute(exchange);
+        } catch (BulkheadFullException e) {
+            completeWithError(result, e, requestContext, params);
+        }
+        return result;
+    }
+
+    /**
+     * @param bulkhead slot of bulkhead is released when response is processed; null if there is no bulkhead
+     */
+    private static void exchangeInVirtualThread(ExecutorService virtualThreadExecutor, CompletableFuture<Object> result, HttpEntity<Object> request,
+                                                Object payload, Class returnType, MicroserviceCallContext requestContext,
+                                                Class[] returnGenericType, Map<String, Object> params, MicroserviceBulkhead bulkhead) {
+        Runnable task = () -> {
             try {
-                // get all responses as byte[] and if we request object - deserialize then
-                responseEntity = requestTemplate.exchange(null, requestTemplate.getMethod(), request, byte[].class);
-            } catch (InvalidRequestException e) {
-
-                if (returnType.equals(ResponseEntity.class)) {
-                    if (e.getClientHttpResponse() != null) {
-                        ClientHttpResponse clientHttpResponse = e.getClientHttpResponse();
-
-                        if (clientHttpResponse.getBody() != null) {
-                            String body;
-                            Scanner s = new Scanner(clientHttpResponse.getBody()).useDelimiter("\\A");
-                            body = s.hasNext() ? s.next() : "";
-
-                            if (body == null) {
-                                return ResponseEntity.status(clientHttpResponse.getRawStatusCode()).headers(clientHttpResponse.getHeaders());
-                            } else {
-                                return ResponseEntity.status(clientHttpResponse.getRawStatusCode()).headers(clientHttpResponse.getHeaders()).body(body);
-                            }
-                        }
-                    }
+                // cancelled while request was queued
+                if (!result.isDone()) {
+                    result.complete(exchange(request, payload, returnType, requestContext, returnGenericType, params));
+                }
+            } catch (Throwable e) {
+                completeWithError(result, e, requestContext, params);
+            } finally {
+                if (bulkhead != null) {
+                    bulkhead.release();
                 }
-                throw e;
             }
+        };
 
-            if (microserviceRequestInterceptors != null) {
-                microserviceRequestInterceptors.forEach(x -> {
-                    x.afterRequest(requestTemplate, request, responseEntity, returnType, returnGenericType);
-                });
+        try {
+            virtualThreadExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (bulkhead != null) {
+                bulkhead.release();
             }
+            completeWithError(result, e, requestContext, params);
+        }
+    }
 
-            logger.debug("Request to microservice {}", requestTemplate.getLastURI().toString());
+    /**
+     * @param bulkhead slot of bulkhead is released when response is received; null if there is no bulkhead
+     */
+    private static void exchangeAsync(MicroserviceAsyncRequestExecutor asyncRequestExecutor, CompletableFuture<Object> result, HttpEntity<Object> request,
+                                      Object payload, Class returnType, MicroserviceCallContext requestContext,
+                                      Class[] returnGenericType, Map<String, Object> params, MicroserviceBulkhead bulkhead) {
+        // cancelled while request was queued
+        if (result.isDone()) {
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+            return;
+        }
 
-            // if we have void in interface as return - return void
-            if (returnType.equals(Void.TYPE)) {
-                return Void.TYPE;
+        CompletableFuture<ResponseEntity<byte[]>> response;
+        try {
+            response = asyncRequestExecutor.exchange(requestContext, request);
+        } catch (Throwable e) {
+            if (bulkhead != null) {
+                bulkhead.release();
             }
+            completeWithError(result, e, requestContext, params);
+            return;
+        }
 
-            // if we request byte[] return immediately
-            if (returnType.equals(byte[].class)) {
-                return responseEntity.getBody();
+        // cancel of returned future aborts HTTP request and scheduled retries
+        result.whenComplete((value, throwable) -> {
+            if (result.isCancelled()) {
+                response.cancel(false);
             }
+        });
 
-            // return ResponseEntity<>
-            if (returnType.equals(ResponseEntity.class)) {
-                if (!responseEntity.hasBody()) {
-                    return responseEntity;
-                }
+        response.whenComplete((responseEntity, throwable) -> {
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+            // cancelled
+            if (result.isDone()) {
+                return;
+            }
 
-                if (returnGenericType == null || returnGenericType[0] == null || returnGenericType[0].equals(byte[].class)) {
-                    return responseEntity;
+            try {
+                if (throwable == null) {
+                    result.complete(processResponse(request, responseEntity, payload, returnType, requestContext, returnGenericType, params));
+                    return;
                 }
 
-                // try to replace response[] with generic response body
-                ReflectionUtils.setField(body, responseEntity, objectMapper.readValue(responseEntity.getBody(), returnGenericType[0]));
-                return responseEntity;
+                Throwable e = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                if (e instanceof InvalidRequestException) {
+                    ResponseEntity<?> invalidResponseEntity = processInvalidRequest((InvalidRequestException) e, returnType);
+                    if (invalidResponseEntity != null) {
+                        result.complete(invalidResponseEntity);
+                        return;
+                    }
+                }
+                completeWithError(result, e, requestContext, params);
+            } catch (Throwable e) {
+                completeWithError(result, e, requestContext, params);
             }
+        });
+    }
 
+    /**
+     * Request for interfaces methods which return Reactor Mono or Flux.
+     * Request is sent on subscribe; response body is decoded by
+     * {@link com.biqasoft.microservice.communicator.adaptors.ReactiveAdapter}
+     *
+     * @param requestContext    state of request with shared rest template
+     * @param payload           object that will be send in HTTP POST and PUT methods
+     * @param returnType        Mono or Flux
+     * @param returnGenericType generic type of Mono or Flux
+     * @param params custom params
+     * @param httpHeaders       http headers
+     * @return Mono or Flux with response from server
+     * @throws InvalidStateException if spring-webflux or reactor-netty is not in classpath
+     */
+    public static Object makeReactiveRequestToMicroservice(Object payload, Class returnType, MicroserviceCallContext requestContext,
+                                                           Class[] returnGenericType, Map<String, Object> params,
+                                                           HttpHeaders httpHeaders) {
+        // do not load reactive executor class if there is no WebClient
+        MicroserviceReactiveRequestExecutor reactiveRequestExecutor = REACTIVE_CLIENT_PRESENT ? MicroserviceReactiveRequestExecutor.getInstanceStaticInternal() : null;
+        if (reactiveRequestExecutor == null) {
+            throw new InvalidStateException("Can not return " + returnType.getName() + " - add spring-webflux and reactor-netty to classpath");
+        }
 
-            Object o = MicroserviceRequestMaker.onBeforeReturnResultProcessor(responseEntity.getBody(), payload, returnType, requestTemplate, returnGenericType, params);
+        HttpEntity<Object> request = createHttpEntity(payload, returnType, requestContext, returnGenericType, httpHeaders);
+        return onBeforeReturnResultProcessor(reactiveRequestExecutor.exchange(requestContext, request), payload, returnType,
+                requestContext, returnGenericType, params);
+    }
 
-            if (o == null & !responseEntity.hasBody() && RETURN_NULL_ON_EMPTY_RESPONSE_BODY && !returnType.equals(ResponseEntity.class)) {
-                return null;
+    private static void completeWithError(CompletableFuture<Object> result, Throwable e, MicroserviceCallContext requestContext, Map<String, Object> params) {
+        try {
+            Object defaultValue = processError(e, requestContext, params);
+
+            // java 8 default interface method also returns future
+            if (defaultValue instanceof CompletionStage) {
+                ((CompletionStage<?>) defaultValue).whenComplete((value, throwable) -> {
+                    if (throwable == null) {
+                        result.complete(value);
+                    } else {
+                        result.completeExceptionally(throwable);
+                    }
+                });
+                return;
             }
+            result.complete(defaultValue);
+        } catch (Throwable processed) {
+            result.completeExceptionally(processed);
+        }
+    }
 
-            return o;
+    private static HttpEntity<Object> createHttpEntity(Object payload, Class returnType, MicroserviceCallContext requestContext,
+                                                       Class[] returnGenericType, HttpHeaders httpHeaders) {
+        Resource streamingPayload = toStreamingPayload(payload);
+        if (streamingPayload != null) {
+            payload = streamingPayload;
+            if (StringUtils.isEmpty(httpHeaders.get("Content-Type"))) {
+                httpHeaders.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+            }
 
-        } catch (Throwable e) {
-            if (params != null) {
-                Object defaultValue = params.get("HAVE_DEFAULT_VALUE");
-                if (defaultValue == Boolean.TRUE) {
-                    return defaultReturnValueService.getDefaultValue(params);
+            // input stream can be read only once
+            requestContext.setStreamingRequestBody(!streamingPayload.isOpen());
+        } else if (!(payload instanceof byte[]) && StringUtils.isEmpty(httpHeaders.get("Content-Type"))) {
+            // if payload not byte[] - use JSON as payload type
+            httpHeaders.setContentType(MediaType.APPLICATION_JSON);
+        }
+
+        if (microserviceRequestInterceptors != null) {
+            microserviceRequestInterceptors.forEach(x -> {
+                x.beforeCreateHttpEntity(requestContext, returnType, returnGenericType, httpHeaders);
+            });
+        }
+
+        if (payload == null) {
+            return new HttpEntity<>(httpHeaders);
+        } else {
+            return new HttpEntity<>(payload, httpHeaders);
+        }
+    }
+
+    /**
+     * @return payload which is written to connection while request is sent, Content-Length is set if it is known;
+     * null if payload is not binary stream
+     */
+    private static Resource toStreamingPayload(Object payload) {
+        if (payload instanceof Resource) {
+            return (Resource) payload;
+        }
+        if (payload instanceof InputStream) {
+            return new InputStreamResource((InputStream) payload);
+        }
+        if (payload instanceof Path) {
+            return new PathResource((Path) payload);
+        }
+        if (payload instanceof ByteBuffer) {
+            return new ByteBufferResource((ByteBuffer) payload);
+        }
+        return null;
+    }
+
+    /**
+     * @return response entity with error response body if interface method return {@link ResponseEntity}; otherwise null
+     */
+    private static ResponseEntity<?> processInvalidRequest(InvalidRequestException e, Class returnType) {
+        if (returnType.equals(ResponseEntity.class)) {
+            if (e.getClientHttpResponse() != null) {
+                ClientHttpResponse clientHttpResponse = e.getClientHttpResponse();
+
+                try {
+                    if (clientHttpResponse.getBody() != null) {
+                        String body;
+                        Scanner s = new Scanner(clientHttpResponse.getBody()).useDelimiter("\\A");
+                        body = s.hasNext() ? s.next() : "";
+
+                        return ResponseEntity.status(clientHttpResponse.getRawStatusCode()).headers(clientHttpResponse.getHeaders()).body(body);
+                    }
+                } catch (IOException ignored) {
                 }
             }
+        }
+        return null;
+    }
+
+    private static Object processResponse(HttpEntity<Object> request, ResponseEntity<byte[]> responseEntity, Object payload, Class returnType,
+                                          MicroserviceCallContext requestContext, Class[] returnGenericType, Map<String, Object> params) throws IOException {
+        if (microserviceRequestInterceptors != null) {
+            microserviceRequestInterceptors.forEach(x -> {
+                x.afterRequest(requestContext, request, responseEntity, returnType, returnGenericType);
+            });
+        }
+
+        logger.debug("Request to microservice {}", requestContext.getLastURI().toString());
+
+        // if we have void in interface as return - return void
+        if (returnType.equals(Void.TYPE)) {
+            return Void.TYPE;
+        }
+
+        // if we request byte[] return immediately
+        if (returnType.equals(byte[].class)) {
+            return responseEntity.getBody();
+        }
 
-            if (e instanceof InvalidRequestException) {
-                throw (InvalidRequestException) e;
+        // interceptor needs raw response, so binary response is buffered
+        if (returnType.equals(InputStream.class)) {
+            return new ByteArrayInputStream(responseEntity.hasBody() ? responseEntity.getBody() : new byte[0]);
+        }
+
+        if (returnType.equals(Path.class)) {
+            return MicroserviceRestTemplate.writeToTempFile(responseEntity.hasBody() ? new ByteArrayInputStream(responseEntity.getBody()) : null);
+        }
+
+        // return ResponseEntity<>
+        if (returnType.equals(ResponseEntity.class)) {
+            if (!responseEntity.hasBody()) {
+                return responseEntity;
             }
 
-            if (e instanceof CannotResolveHostException) {
-                if (printStacktraceOnFailed) {
-                    logger.error(e.getMessage(), e);
-                } else {
-                    logger.error(e.getMessage());
-                }
+            if (returnGenericType == null || returnGenericType[0] == null || returnGenericType[0].equals(byte[].class)) {
+                return responseEntity;
+            }
+
+            // try to replace response[] with generic response body
+            ReflectionUtils.setField(body, responseEntity, objectMapper.readValue(responseEntity.getBody(), returnGenericType[0]));
+            return responseEntity;
+        }
 
+
+        Object responseBody = responseEntity.getBody();
+
+        // response is buffered because interceptor needs it; elements are still decoded while they are consumed
+        JavaType responseBodyType = requestContext.getResponseBodyType();
+        if (responseBodyType != null && requestContext.getResponseBodyKind().isLazy()) {
+            responseBody = wrapDecodedBody(MicroserviceRestTemplate.readBodyLazy(getResponseReader(responseBodyType), responseEntity.getBody()),
+                    requestContext.getResponseBodyKind());
+        }
+
+        Object o = MicroserviceRequestMaker.onBeforeReturnResultProcessor(responseBody, payload, returnType, requestContext, returnGenericType, params);
+
+        if (o == null & !responseEntity.hasBody() && RETURN_NULL_ON_EMPTY_RESPONSE_BODY && !returnType.equals(ResponseEntity.class)) {
+            return null;
+        }
+
+        return o;
+    }
+
+    /**
+     * Process response which body is already decoded from stream. Interceptors get {@link MicroserviceRequestInterceptor#afterRequest}
+     * with response entity without body and {@link MicroserviceRequestInterceptor#onBeforeReturnResult} with decoded object
+     */
+    private static Object processDecodedResponse(HttpEntity<Object> request, ResponseEntity<?> decodedResponseEntity, Object payload, Class returnType,
+                                                 MicroserviceCallContext requestContext, Class[] returnGenericType, Map<String, Object> params) {
+        if (microserviceRequestInterceptors != null) {
+            ResponseEntity<byte[]> responseEntity = new ResponseEntity<>(decodedResponseEntity.getHeaders(), decodedResponseEntity.getStatusCode());
+            microserviceRequestInterceptors.forEach(x -> {
+                x.afterRequest(requestContext, request, responseEntity, returnType, returnGenericType);
+            });
+        }
+
+        logger.debug("Request to microservice {}", requestContext.getLastURI().toString());
+
+        Object body = wrapDecodedBody(decodedResponseEntity.getBody(), requestContext.getResponseBodyKind());
+        return MicroserviceRequestMaker.onBeforeReturnResultProcessor(body, payload, returnType, requestContext, returnGenericType, params);
+    }
+
+    private static Object wrapDecodedBody(Object body, ResponseBodyKind responseBodyKind) {
+        switch (responseBodyKind) {
+            case OPTIONAL:
+                return Optional.ofNullable(body);
+            case STREAM:
+                return ((MicroserviceResponseIterator<?>) body).stream();
+            default:
+                return body;
+        }
+    }
+
+    private static ObjectReader getResponseReader(JavaType responseBodyType) {
+        ObjectReader reader = responseReaders.get(responseBodyType);
+        if (reader != null) {
+            return reader;
+        }
+        return responseReaders.computeIfAbsent(responseBodyType, type -> objectMapper.readerFor(type));
+    }
+
+    /**
+     * @return default value of interface method if it is present
+     * @throws InvalidRequestException if request is invalid
+     * @throws InternalSeverErrorProcessingRequestException on any other error
+     */
+    private static Object processError(Throwable e, MicroserviceCallContext requestContext, Map<String, Object> params) {
+        HttpMethod httpMethod = requestContext.getMethod();
+
+        if (params != null) {
+            Object defaultValue = params.get("HAVE_DEFAULT_VALUE");
+            if (defaultValue == Boolean.TRUE) {
+                return defaultReturnValueService.getDefaultValue(params);
             }
+        }
 
+        if (e instanceof InvalidRequestException) {
+            throw (InvalidRequestException) e;
+        }
+
+        if (e instanceof BulkheadFullException) {
+            logger.warn(e.getMessage());
+            throw (BulkheadFullException) e;
+        }
+
+        if (e instanceof CircuitBreakerOpenException) {
+            logger.warn(e.getMessage());
+            throw (CircuitBreakerOpenException) e;
+        }
+
+        if (e instanceof DeadlineExceededException) {
+            logger.error(e.getMessage());
+            throw (DeadlineExceededException) e;
+        }
+
+        if (e instanceof RetryBudgetExhaustedException) {
+            logger.error(e.getMessage());
+            throw (RetryBudgetExhaustedException) e;
+        }
+
+        if (e instanceof CannotResolveHostException) {
             if (printStacktraceOnFailed) {
-                logger.error("Can not get bytes from microservice {} {}", httpMethod.toString(), requestTemplate.getLastURI() == null ? "NULL_URL" : requestTemplate.getLastURI().toString(), e);
+                logger.error(e.getMessage(), e);
             } else {
-                logger.error("Can not get bytes from microservice {} {}", httpMethod.toString(), requestTemplate.getLastURI() == null ? "NULL_URL" : requestTemplate.getLastURI().toString());
+                logger.error(e.getMessage());
             }
-            throw new InternalSeverErrorProcessingRequestException("Internal error processing. Retry later");
+
+        }
+
+        if (printStacktraceOnFailed) {
+            logger.error("Can not get bytes from microservice {} {}", httpMethod.toString(), requestContext.getLastURI() == null ? "NULL_URL" : requestContext.getLastURI().toString(), e);
+        } else {
+            logger.error("Can not get bytes from microservice {} {}", httpMethod.toString(), requestContext.getLastURI() == null ? "NULL_URL" : requestContext.getLastURI().toString());
         }
+        throw new InternalSeverErrorProcessingRequestException("Internal error processing. Retry later");
     }
 
 
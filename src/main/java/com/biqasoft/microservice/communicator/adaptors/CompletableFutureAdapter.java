@@ -31,6 +31,11 @@ public class CompletableFutureAdapter implements MicroserviceRequestInterceptor
         this.objectMapper = objectMapper;
     }
 
+    @Override
+    public boolean requiresRawResponseBody() {
+        return false;
+    }
+
     @Override
     public Object onBeforeReturnResult(Object modifiedObject, Object originalObject, Object payload, Class returnType, MicroserviceRestTemplate restTemplate, Class[] returnGenericType, Map<String, Object> params) {
         if (originalObject instanceof byte[]){
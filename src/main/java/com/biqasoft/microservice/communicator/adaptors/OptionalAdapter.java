@@ -21,6 +21,11 @@ public class OptionalAdapter implements MicroserviceRequestInterceptor {
 
     private static final ObjectMapper objectMapper = new ObjectMapper();
 
+    @Override
+    public boolean requiresRawResponseBody() {
+        return false;
+    }
+
     @Override
     public Object onBeforeReturnResult(Object modifiedObject, Object originalObject, Object payload, Class returnType, MicroserviceRestTemplate restTemplate, Class[] returnGenericType, Map<String, Object> params) {
         if (returnType.equals(Optional.class)) {
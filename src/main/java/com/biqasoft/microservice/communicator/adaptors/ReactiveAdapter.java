@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.adaptors;
+
+import com.biqasoft.microservice.communicator.http.MicroserviceCallContext;
+import com.biqasoft.microservice.communicator.interfaceimpl.MicroserviceRequestInterceptor;
+import com.biqasoft.microservice.communicator.internal.DefaultReturnValueService;
+import com.biqasoft.microservice.communicator.internal.ReactiveClientCondition;
+import org.reactivestreams.Publisher;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Conditional;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.core.ResolvableType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.BodyExtractors;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Decode response to Mono or Flux from
+ * {@link com.biqasoft.microservice.communicator.http.MicroserviceReactiveRequestExecutor} response.
+ * Flux elements are emitted while JSON array is read
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Component
+@Conditional(ReactiveClientCondition.class)
+public class ReactiveAdapter implements MicroserviceRequestInterceptor {
+
+    private final DefaultReturnValueService defaultReturnValueService;
+
+    @Autowired
+    public ReactiveAdapter(DefaultReturnValueService defaultReturnValueService) {
+        this.defaultReturnValueService = defaultReturnValueService;
+    }
+
+    @Override
+    public boolean requiresRawResponseBody() {
+        // reactive response is not buffered
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object onBeforeReturnResult(Object modifiedObject, Object originalObject, Object payload, Class returnType, MicroserviceCallContext context, Class[] returnGenericType, Map<String, Object> params) {
+        if (!(originalObject instanceof Mono) || !(returnType.equals(Mono.class) || returnType.equals(Flux.class))) {
+            return modifiedObject;
+        }
+
+        Mono<ClientResponse> response = (Mono<ClientResponse>) originalObject;
+        ParameterizedTypeReference<Object> elementType = ParameterizedTypeReference.forType(getElementType(returnGenericType).getType());
+
+        if (returnType.equals(Flux.class)) {
+            Flux<Object> flux = response.flatMapMany(clientResponse -> clientResponse.body(BodyExtractors.toFlux(elementType)));
+            if (hasDefaultValue(params)) {
+                return flux.onErrorResume(e -> Flux.defer(() -> (Publisher<Object>) defaultReturnValueService.getDefaultValue(params)));
+            }
+            return flux;
+        }
+
+        Mono<Object> mono = response.flatMap(clientResponse -> clientResponse.body(BodyExtractors.toMono(elementType)));
+        if (hasDefaultValue(params)) {
+            return mono.onErrorResume(e -> Mono.defer(() -> Mono.from((Publisher<Object>) defaultReturnValueService.getDefaultValue(params))));
+        }
+        return mono;
+    }
+
+    private static boolean hasDefaultValue(Map<String, Object> params) {
+        return params != null && params.get("HAVE_DEFAULT_VALUE") == Boolean.TRUE;
+    }
+
+    private static ResolvableType getElementType(Class[] returnGenericType) {
+        if (returnGenericType == null || returnGenericType.length == 0) {
+            return ResolvableType.forClass(Void.class);
+        }
+
+        if (returnGenericType.length > 1 && Collection.class.isAssignableFrom(returnGenericType[0])) {
+            return ResolvableType.forClassWithGenerics(returnGenericType[0], returnGenericType[1]);
+        }
+        return ResolvableType.forClass(returnGenericType[0]);
+    }
+
+}
@@ -14,6 +14,11 @@ import java.util.Map;
 @Component
 public class StringAdapter implements MicroserviceRequestInterceptor {
 
+    @Override
+    public boolean requiresRawResponseBody() {
+        return false;
+    }
+
     @Override
     public Object onBeforeReturnResult(Object modifiedObject, Object originalObject, Object payload, Class returnType, MicroserviceRestTemplate restTemplate, Class[] returnGenericType, Map<String, Object> params) {
         if (originalObject instanceof String) {
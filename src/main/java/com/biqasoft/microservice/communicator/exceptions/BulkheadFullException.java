@@ -0,0 +1,20 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.exceptions;
+
+/**
+ * Request is rejected without sending because microservice already has maximum number of running and queued requests
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@SuppressWarnings("serial")
+public class BulkheadFullException extends RuntimeException {
+
+    public BulkheadFullException(String message) {
+        super(message);
+    }
+
+}
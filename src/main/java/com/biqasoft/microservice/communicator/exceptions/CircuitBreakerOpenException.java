@@ -0,0 +1,20 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.exceptions;
+
+/**
+ * Request is rejected without sending because circuit breaker of microservice or of all its instances is open
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@SuppressWarnings("serial")
+public class CircuitBreakerOpenException extends RuntimeException {
+
+    public CircuitBreakerOpenException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,20 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.exceptions;
+
+/**
+ * Call to microservice, including all retries and waits for instance, was not finished before its deadline
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@SuppressWarnings("serial")
+public class DeadlineExceededException extends InternalSeverErrorProcessingRequestException {
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,20 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.exceptions;
+
+/**
+ * Failed request to microservice was not retried because retries to this microservice exceeded its retry budget
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@SuppressWarnings("serial")
+public class RetryBudgetExhaustedException extends InternalSeverErrorProcessingRequestException {
+
+    public RetryBudgetExhaustedException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+
+/**
+ * Request to which {@link org.springframework.web.client.RestTemplate} message converters write headers and body in memory,
+ * so request can be sent with non-blocking HTTP client
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+class BufferedClientHttpRequest implements ClientHttpRequest {
+
+    private final HttpMethod method;
+    private final HttpHeaders headers = new HttpHeaders();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+
+    // null if body is not compressed
+    private byte[] compressedBody;
+
+    BufferedClientHttpRequest(HttpMethod method) {
+        this.method = method;
+    }
+
+    @Override
+    public ClientHttpResponse execute() {
+        throw new UnsupportedOperationException("Buffered request can not be executed");
+    }
+
+    @Override
+    public OutputStream getBody() {
+        return body;
+    }
+
+    @Override
+    public HttpMethod getMethod() {
+        return method;
+    }
+
+    @Override
+    public String getMethodValue() {
+        return method.name();
+    }
+
+    @Override
+    public URI getURI() {
+        return null;
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Compress written body and set Content-Encoding header
+     *
+     * @param contentEncoding gzip or deflate
+     * @param threshold       body smaller than threshold is not compressed
+     */
+    void compress(String contentEncoding, int threshold) {
+        if (body.size() == 0 || body.size() < threshold || headers.containsKey(HttpHeaders.CONTENT_ENCODING)) {
+            return;
+        }
+
+        compressedBody = ContentCompression.compress(contentEncoding, body.toByteArray());
+        headers.set(HttpHeaders.CONTENT_ENCODING, contentEncoding);
+        headers.remove(HttpHeaders.CONTENT_LENGTH);
+    }
+
+    byte[] getBodyBytes() {
+        return compressedBody != null ? compressedBody : body.toByteArray();
+    }
+
+}
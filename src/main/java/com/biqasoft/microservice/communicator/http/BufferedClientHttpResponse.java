@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RestClientException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Response of non-blocking HTTP client, already read to memory
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+class BufferedClientHttpResponse implements ClientHttpResponse {
+
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    private final int statusCode;
+    private final String statusText;
+    private final HttpHeaders headers;
+    private final byte[] body;
+
+    private BufferedClientHttpResponse(int statusCode, String statusText, HttpHeaders headers, byte[] body) {
+        this.statusCode = statusCode;
+        this.statusText = statusText;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    /**
+     * @param response response with entity buffered by async client
+     * @return buffered response with decompressed body
+     * @throws IOException if can not read or decompress entity
+     */
+    static BufferedClientHttpResponse of(HttpResponse response) throws IOException {
+        HttpHeaders headers = new HttpHeaders();
+        for (Header header : response.getAllHeaders()) {
+            headers.add(header.getName(), header.getValue());
+        }
+
+        HttpEntity entity = response.getEntity();
+        byte[] body = entity == null ? null : EntityUtils.toByteArray(entity);
+
+        String contentEncoding = headers.getFirst(HttpHeaders.CONTENT_ENCODING);
+        if (body != null && ContentCompression.isSupported(contentEncoding)) {
+            body = ContentCompression.decompress(contentEncoding, body);
+            headers.remove(HttpHeaders.CONTENT_ENCODING);
+            headers.remove(HttpHeaders.CONTENT_LENGTH);
+        }
+        return new BufferedClientHttpResponse(response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase(),
+                headers, body == null ? EMPTY_BODY : body);
+    }
+
+    /**
+     * @param statusCode HTTP status
+     * @param statusText reason phrase
+     * @param headers    response headers
+     * @param body       response body; null if there is no body
+     * @return buffered response
+     */
+    static BufferedClientHttpResponse of(int statusCode, String statusText, HttpHeaders headers, byte[] body) {
+        return new BufferedClientHttpResponse(statusCode, statusText, headers, body == null ? EMPTY_BODY : body);
+    }
+
+    /**
+     * Same exceptions as {@link ResponseErrorHandler} throws
+     *
+     * @return exception for error status code
+     */
+    RestClientException toErrorException() {
+        if (statusCode >= 500) {
+            try {
+                return new HttpServerErrorException(getStatusCode(), statusText, headers, body, null);
+            } catch (IllegalArgumentException ignored) {
+                // unknown status code
+            }
+        }
+        return new RestClientException("Unknown status code [" + statusCode + "]");
+    }
+
+    /**
+     * @return body or null if response has no body
+     */
+    byte[] getBodyBytes() {
+        return body.length == 0 ? null : body;
+    }
+
+    @Override
+    public HttpStatus getStatusCode() {
+        return HttpStatus.valueOf(statusCode);
+    }
+
+    @Override
+    public int getRawStatusCode() {
+        return statusCode;
+    }
+
+    @Override
+    public String getStatusText() {
+        return statusText;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public InputStream getBody() {
+        return new ByteArrayInputStream(body);
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+}
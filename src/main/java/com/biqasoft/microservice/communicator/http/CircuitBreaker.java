@@ -0,0 +1,249 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker of microservice or of one its instance.
+ * <p>
+ * Closed breaker records outcome of last {@code windowSize} attempts. When at least {@code minimumCalls} are recorded
+ * and failure rate (connect and I/O errors, timeouts, 5xx responses) or rate of slow attempts reaches threshold, breaker opens
+ * and attempts are rejected. After {@code waitInOpenState} breaker is half-open and lets {@code halfOpenCalls} trial attempts;
+ * it closes if they are below thresholds and opens again otherwise. Thread safe
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+public final class CircuitBreaker {
+
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final byte FAILURE = 1;
+    private static final byte SLOW = 2;
+
+    private final String name;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final long slowCallDuration;
+    private final int slowCallRateThreshold;
+    private final long waitInOpenState;
+    private final int halfOpenCalls;
+
+    // outcomes of last attempts in closed state
+    private final byte[] window;
+    private int windowIndex;
+    private int windowSize;
+    private int windowFailures;
+    private int windowSlowCalls;
+
+    // attempts in half-open state
+    private int halfOpenStarted;
+    private int halfOpenFinished;
+    private int halfOpenFailures;
+    private int halfOpenSlowCalls;
+
+    private volatile State state = State.CLOSED;
+    // System.nanoTime() of last change of state
+    private long stateTime;
+    private final AtomicLong rejectedCalls = new AtomicLong();
+
+    /**
+     * @param name                  microservice name, or microservice name with instance host and port, for log messages
+     * @param windowSize            number of last attempts to compute failure and slow attempts rates
+     * @param minimumCalls          breaker is not opened until this number of attempts is recorded
+     * @param failureRateThreshold  percent of failed attempts which opens breaker
+     * @param slowCallDuration      attempt longer than this millis is slow; 0 or less to not count slow attempts
+     * @param slowCallRateThreshold percent of slow attempts which opens breaker
+     * @param waitInOpenState       millis after which open breaker lets trial attempts
+     * @param halfOpenCalls         number of trial attempts in half-open state
+     */
+    public CircuitBreaker(String name, int windowSize, int minimumCalls, int failureRateThreshold, long slowCallDuration,
+                          int slowCallRateThreshold, long waitInOpenState, int halfOpenCalls) {
+        this.name = name;
+        this.window = new byte[Math.max(1, windowSize)];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, window.length));
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallDuration = slowCallDuration > 0 ? TimeUnit.MILLISECONDS.toNanos(slowCallDuration) : 0;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.waitInOpenState = TimeUnit.MILLISECONDS.toNanos(waitInOpenState);
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+    }
+
+    /**
+     * Check without taking trial attempt of half-open breaker, e.g. to choose instance
+     *
+     * @return true if attempt can be made now
+     */
+    public boolean isCallPermitted() {
+        State current = state;
+        if (current == State.CLOSED) {
+            return true;
+        }
+
+        synchronized (this) {
+            return isCallPermitted(System.nanoTime());
+        }
+    }
+
+    /**
+     * Check and take trial attempt of half-open breaker atomically, so concurrent attempts can not take more than
+     * {@code halfOpenCalls} trial attempts
+     *
+     * @return true if attempt can be made now; false if breaker is open or half-open breaker has no trial attempt left
+     */
+    boolean tryAcquirePermission() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (!isCallPermitted(now)) {
+                rejectedCalls.incrementAndGet();
+                return false;
+            }
+            startTrialCall(now);
+            return true;
+        }
+    }
+
+    /**
+     * @param failure  true if attempt failed
+     * @param duration attempt duration in nanos
+     */
+    synchronized void onResult(boolean failure, long duration) {
+        byte outcome = (byte) ((failure ? FAILURE : 0) | (slowCallDuration > 0 && duration > slowCallDuration ? SLOW : 0));
+
+        switch (state) {
+            case CLOSED:
+                if (windowSize == window.length) {
+                    byte removed = window[windowIndex];
+                    windowFailures -= removed & FAILURE;
+                    windowSlowCalls -= (removed & SLOW) >> 1;
+                } else {
+                    windowSize++;
+                }
+                window[windowIndex] = outcome;
+                windowIndex = (windowIndex + 1) % window.length;
+                windowFailures += outcome & FAILURE;
+                windowSlowCalls += (outcome & SLOW) >> 1;
+
+                if (windowSize >= minimumCalls && isAboveThreshold(windowFailures, windowSlowCalls, windowSize)) {
+                    logger.warn("Circuit breaker {} is open, failure rate {}%, slow calls rate {}%", name,
+                            windowFailures * 100 / windowSize, windowSlowCalls * 100 / windowSize);
+                    changeState(State.OPEN, System.nanoTime());
+                }
+                break;
+
+            case HALF_OPEN:
+                halfOpenFinished++;
+                halfOpenFailures += outcome & FAILURE;
+                halfOpenSlowCalls += (outcome & SLOW) >> 1;
+
+                if (isAboveThreshold(halfOpenFailures, halfOpenSlowCalls, halfOpenCalls)) {
+                    logger.warn("Circuit breaker {} is open again", name);
+                    changeState(State.OPEN, System.nanoTime());
+                } else if (halfOpenFinished >= halfOpenCalls) {
+                    logger.info("Circuit breaker {} is closed", name);
+                    changeState(State.CLOSED, System.nanoTime());
+                }
+                break;
+
+            default:
+                // attempt was started before breaker is opened
+                break;
+        }
+    }
+
+    private boolean isCallPermitted(long now) {
+        switch (state) {
+            case OPEN:
+                return now - stateTime >= waitInOpenState;
+            case HALF_OPEN:
+                // trial attempts which never finished, e.g. cancelled, do not keep breaker half-open forever
+                return halfOpenStarted < halfOpenCalls || now - stateTime >= waitInOpenState;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Call with lock held, after {@link #isCallPermitted(long)} returned true
+     */
+    private void startTrialCall(long now) {
+        if (state == State.OPEN && now - stateTime >= waitInOpenState) {
+            changeState(State.HALF_OPEN, now);
+        } else if (state == State.HALF_OPEN && halfOpenStarted >= halfOpenCalls && now - stateTime >= waitInOpenState) {
+            changeState(State.HALF_OPEN, now);
+        }
+
+        if (state == State.HALF_OPEN) {
+            halfOpenStarted++;
+        }
+    }
+
+    private boolean isAboveThreshold(int failures, int slowCalls, int calls) {
+        return failures * 100 >= failureRateThreshold * calls
+                || (slowCallDuration > 0 && slowCalls * 100 >= slowCallRateThreshold * calls);
+    }
+
+    private void changeState(State newState, long now) {
+        state = newState;
+        stateTime = now;
+        windowIndex = 0;
+        windowSize = 0;
+        windowFailures = 0;
+        windowSlowCalls = 0;
+        halfOpenStarted = 0;
+        halfOpenFinished = 0;
+        halfOpenFailures = 0;
+        halfOpenSlowCalls = 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return percent of failed attempts in closed state; -1 if less than minimum number of attempts are recorded
+     */
+    public synchronized int getFailureRate() {
+        return windowSize < minimumCalls ? -1 : windowFailures * 100 / windowSize;
+    }
+
+    /**
+     * @return percent of slow attempts in closed state; -1 if less than minimum number of attempts are recorded
+     */
+    public synchronized int getSlowCallRate() {
+        return windowSize < minimumCalls ? -1 : windowSlowCalls * 100 / windowSize;
+    }
+
+    /**
+     * @return number of calls rejected because breaker was open
+     */
+    public long getRejectedCalls() {
+        return rejectedCalls.get();
+    }
+
+    @Override
+    public String toString() {
+        return "[" + state + "; failure rate: " + getFailureRate() + "; slow call rate: " + getSlowCallRate()
+                + "; rejected: " + rejectedCalls.get() + "]";
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+
+/**
+ * Compress request body if it is not smaller than threshold and decode compressed response.
+ * <p>
+ * Body is kept in small buffer until threshold is reached, then it is compressed while it is written
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+class ContentCodingClientHttpRequest implements ClientHttpRequest {
+
+    private final ClientHttpRequest request;
+    // null if body is not compressed
+    private final String requestEncoding;
+    private final int requestThreshold;
+    private final boolean decodeResponse;
+
+    private ThresholdCompressingOutputStream body;
+
+    ContentCodingClientHttpRequest(ClientHttpRequest request, String requestEncoding, int requestThreshold, boolean decodeResponse) {
+        this.request = request;
+        this.requestEncoding = requestEncoding;
+        this.requestThreshold = requestThreshold;
+        this.decodeResponse = decodeResponse;
+    }
+
+    @Override
+    public OutputStream getBody() throws IOException {
+        if (requestEncoding == null || request.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)) {
+            return request.getBody();
+        }
+
+        if (body == null) {
+            body = new ThresholdCompressingOutputStream();
+        }
+        return body;
+    }
+
+    @Override
+    public ClientHttpResponse execute() throws IOException {
+        if (body != null) {
+            body.finish();
+        }
+
+        ClientHttpResponse response = request.execute();
+        return decodeResponse ? DecompressingClientHttpResponse.of(response) : response;
+    }
+
+    /**
+     * Release compression of body which is not sent, e.g. if body serialization failed
+     */
+    void discardBody() {
+        if (body != null) {
+            body.discard();
+        }
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        return request.getHeaders();
+    }
+
+    @Override
+    public HttpMethod getMethod() {
+        return request.getMethod();
+    }
+
+    @Override
+    public String getMethodValue() {
+        return request.getMethodValue();
+    }
+
+    @Override
+    public URI getURI() {
+        return request.getURI();
+    }
+
+    private class ThresholdCompressingOutputStream extends OutputStream {
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.min(Math.max(requestThreshold, 16), 8192));
+        private OutputStream compressingStream;
+        private boolean finished = false;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (compressingStream != null) {
+                compressingStream.write(b, off, len);
+                return;
+            }
+
+            if (buffer.size() + len < requestThreshold) {
+                buffer.write(b, off, len);
+                return;
+            }
+
+            HttpHeaders headers = request.getHeaders();
+            headers.set(HttpHeaders.CONTENT_ENCODING, requestEncoding);
+            headers.remove(HttpHeaders.CONTENT_LENGTH);
+
+            compressingStream = ContentCompression.compressingStream(requestEncoding, StreamUtils.nonClosing(request.getBody()));
+            buffer.writeTo(compressingStream);
+            compressingStream.write(b, off, len);
+        }
+
+        void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+
+            if (compressingStream != null) {
+                // write gzip trailer and return deflater to pool
+                compressingStream.close();
+            } else if (buffer.size() > 0) {
+                buffer.writeTo(request.getBody());
+            }
+        }
+
+        void discard() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+
+            if (compressingStream != null) {
+                ContentCompression.discard(compressingStream);
+            }
+        }
+    }
+
+}
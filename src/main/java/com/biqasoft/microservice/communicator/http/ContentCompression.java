@@ -0,0 +1,376 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * gzip and deflate content coding with pooled {@link Deflater} and {@link Inflater}.
+ * <p>
+ * Native zlib buffers of deflater and inflater are reused between requests instead of being allocated
+ * and released by finalizer for every request
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+final class ContentCompression {
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    static final String ACCEPT_ENCODING = GZIP + ", " + DEFLATE;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors() * 4;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final byte[] GZIP_HEADER = {(byte) GZIP_MAGIC, (byte) (GZIP_MAGIC >> 8), Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    // raw deflate for gzip, zlib wrapped for deflate
+    private static final BlockingQueue<Deflater> rawDeflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final BlockingQueue<Deflater> zlibDeflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final BlockingQueue<Inflater> rawInflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final BlockingQueue<Inflater> zlibInflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private ContentCompression() {
+    }
+
+    /**
+     * @param contentEncoding value of Content-Encoding header; can be null
+     * @return true if content coding can be decoded
+     */
+    static boolean isSupported(String contentEncoding) {
+        return contentEncoding != null && (GZIP.equalsIgnoreCase(contentEncoding.trim()) || DEFLATE.equalsIgnoreCase(contentEncoding.trim()));
+    }
+
+    /**
+     * @param contentEncoding gzip or deflate
+     * @param out             stream to which compressed content is written
+     * @return stream which compresses content; closing it closes out
+     */
+    static OutputStream compressingStream(String contentEncoding, OutputStream out) throws IOException {
+        boolean gzip = GZIP.equalsIgnoreCase(contentEncoding);
+        return new PooledDeflaterOutputStream(out, gzip);
+    }
+
+    /**
+     * Return deflater of stream to pool if stream is not closed because body was not written, e.g. serialization failed.
+     * Stream can not be used after that
+     *
+     * @param compressingStream stream of {@link #compressingStream(String, OutputStream)}
+     */
+    static void discard(OutputStream compressingStream) {
+        ((PooledDeflaterOutputStream) compressingStream).release();
+    }
+
+    /**
+     * @param contentEncoding gzip or deflate
+     * @param body            content to compress
+     * @return compressed content
+     */
+    static byte[] compress(String contentEncoding, byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+        try (OutputStream compressingStream = compressingStream(contentEncoding, out)) {
+            compressingStream.write(body);
+        } catch (IOException e) {
+            // never thrown by byte array stream
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param contentEncoding value of Content-Encoding header
+     * @param in              compressed stream
+     * @return stream which decompresses content; inflater is returned to pool when stream is read or closed
+     * @throws IOException if gzip header is not valid
+     */
+    static InputStream decompressingStream(String contentEncoding, InputStream in) throws IOException {
+        PushbackInputStream pushbackInputStream = new PushbackInputStream(in, 2);
+        int b0 = pushbackInputStream.read();
+
+        // e.g. HEAD or 204 response with Content-Encoding header
+        if (b0 < 0) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        if (GZIP.equalsIgnoreCase(contentEncoding.trim())) {
+            pushbackInputStream.unread(b0);
+            readGzipHeader(pushbackInputStream);
+            return new PooledInflaterInputStream(pushbackInputStream, true, true);
+        }
+
+        // servers send zlib wrapped deflate as RFC requires, or raw deflate
+        int b1 = pushbackInputStream.read();
+        if (b1 >= 0) {
+            pushbackInputStream.unread(b1);
+        }
+        pushbackInputStream.unread(b0);
+
+        boolean zlib = b1 >= 0 && (b0 & 0x0F) == Deflater.DEFLATED && ((b0 << 8) | b1) % 31 == 0;
+        return new PooledInflaterInputStream(pushbackInputStream, !zlib, false);
+    }
+
+    /**
+     * @param contentEncoding value of Content-Encoding header
+     * @param body            compressed content
+     * @return decompressed content
+     * @throws IOException if content is not valid
+     */
+    static byte[] decompress(String contentEncoding, byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, body.length * 4));
+        try (InputStream in = decompressingStream(contentEncoding, new ByteArrayInputStream(body))) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void readGzipHeader(InputStream in) throws IOException {
+        if (readUnsignedShort(in) != GZIP_MAGIC) {
+            throw new ZipException("Not in GZIP format");
+        }
+        if (readUnsignedByte(in) != Deflater.DEFLATED) {
+            throw new ZipException("Unsupported compression method");
+        }
+
+        int flags = readUnsignedByte(in);
+        // modification time, extra flags, OS
+        skipBytes(in, 6);
+
+        if ((flags & FEXTRA) == FEXTRA) {
+            skipBytes(in, readUnsignedShort(in));
+        }
+        if ((flags & FNAME) == FNAME) {
+            while (readUnsignedByte(in) != 0) ;
+        }
+        if ((flags & FCOMMENT) == FCOMMENT) {
+            while (readUnsignedByte(in) != 0) ;
+        }
+        if ((flags & FHCRC) == FHCRC) {
+            skipBytes(in, 2);
+        }
+    }
+
+    private static int readUnsignedByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of GZIP stream");
+        }
+        return b;
+    }
+
+    private static int readUnsignedShort(InputStream in) throws IOException {
+        return readUnsignedByte(in) | (readUnsignedByte(in) << 8);
+    }
+
+    private static long readUnsignedInt(InputStream in) throws IOException {
+        return (readUnsignedShort(in) & 0xFFFFL) | ((long) readUnsignedShort(in) << 16);
+    }
+
+    private static void skipBytes(InputStream in, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            readUnsignedByte(in);
+        }
+    }
+
+    private static Deflater borrowDeflater(boolean nowrap) {
+        Deflater deflater = (nowrap ? rawDeflaters : zlibDeflaters).poll();
+        return deflater != null ? deflater : new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+    }
+
+    private static void releaseDeflater(Deflater deflater, boolean nowrap) {
+        deflater.reset();
+        if (!(nowrap ? rawDeflaters : zlibDeflaters).offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    private static Inflater borrowInflater(boolean nowrap) {
+        Inflater inflater = (nowrap ? rawInflaters : zlibInflaters).poll();
+        return inflater != null ? inflater : new Inflater(nowrap);
+    }
+
+    private static void releaseInflater(Inflater inflater, boolean nowrap) {
+        inflater.reset();
+        if (!(nowrap ? rawInflaters : zlibInflaters).offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Deflate or gzip output with pooled deflater
+     */
+    private static class PooledDeflaterOutputStream extends DeflaterOutputStream {
+
+        private final boolean gzip;
+        private final CRC32 crc;
+        private boolean released = false;
+
+        PooledDeflaterOutputStream(OutputStream out, boolean gzip) throws IOException {
+            super(out, borrowDeflater(gzip), BUFFER_SIZE);
+            this.gzip = gzip;
+            this.crc = gzip ? new CRC32() : null;
+            if (gzip) {
+                try {
+                    out.write(GZIP_HEADER);
+                } catch (IOException | RuntimeException e) {
+                    release();
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            if (gzip) {
+                crc.update(b, off, len);
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (def.finished()) {
+                return;
+            }
+
+            super.finish();
+            if (gzip) {
+                writeInt((int) crc.getValue());
+                writeInt((int) def.getBytesRead());
+            }
+        }
+
+        private void writeInt(int i) throws IOException {
+            out.write(i & 0xFF);
+            out.write((i >> 8) & 0xFF);
+            out.write((i >> 16) & 0xFF);
+            out.write((i >> 24) & 0xFF);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (released) {
+                return;
+            }
+            try {
+                super.close();
+            } finally {
+                release();
+            }
+        }
+
+        private void release() {
+            if (!released) {
+                released = true;
+                releaseDeflater(def, gzip);
+            }
+        }
+    }
+
+    /**
+     * Inflate raw deflate (gzip members) or zlib input with pooled inflater. gzip trailer is verified
+     */
+    private static class PooledInflaterInputStream extends InflaterInputStream {
+
+        private final boolean nowrap;
+        private final boolean gzip;
+        private final CRC32 crc;
+        private boolean released = false;
+        private boolean eof = false;
+
+        PooledInflaterInputStream(InputStream in, boolean nowrap, boolean gzip) {
+            super(in, borrowInflater(nowrap), BUFFER_SIZE);
+            this.nowrap = nowrap;
+            this.gzip = gzip;
+            this.crc = gzip ? new CRC32() : null;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eof) {
+                return -1;
+            }
+
+            int read = super.read(b, off, len);
+            if (read < 0) {
+                eof = true;
+                if (gzip) {
+                    readTrailer();
+                }
+                release();
+                drain();
+                return -1;
+            }
+
+            if (gzip) {
+                crc.update(b, off, read);
+            }
+            return read;
+        }
+
+        private void readTrailer() throws IOException {
+            // part of trailer can be already read to inflater input buffer
+            int remaining = inf.getRemaining();
+            InputStream trailer = remaining > 0
+                    ? new SequenceInputStream(new ByteArrayInputStream(buf, len - remaining, remaining), in)
+                    : in;
+
+            long expectedCrc = readUnsignedInt(trailer);
+            long expectedSize = readUnsignedInt(trailer);
+            if (expectedCrc != crc.getValue() || expectedSize != (inf.getBytesWritten() & 0xFFFFFFFFL)) {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+        }
+
+        /**
+         * Read compressed stream to the end, so HTTP client can reuse connection
+         */
+        private void drain() throws IOException {
+            while (in.read(buf, 0, buf.length) >= 0) ;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                release();
+            }
+        }
+
+        private void release() {
+            if (!released) {
+                released = true;
+                releaseInflater(inf, nowrap);
+            }
+        }
+    }
+
+}
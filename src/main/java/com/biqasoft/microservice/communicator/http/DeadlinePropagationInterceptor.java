@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.interfaceimpl.MicroserviceRequestInterceptor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+/**
+ * Limit call to microservice by deadline of request processed by current thread, see {@link MicroserviceDeadline},
+ * and send millis left to deadline of call in header, so called microservice does not work after caller gave up.
+ * <p>
+ * Disabled with {@code biqa.microservice.communicator.deadline.propagation=false};
+ * header name is {@code biqa.microservice.communicator.deadline.header}
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Component
+public class DeadlinePropagationInterceptor implements MicroserviceRequestInterceptor {
+
+    private static DeadlinePropagationInterceptor instance;
+
+    private final boolean enabled;
+    private final String header;
+
+    public DeadlinePropagationInterceptor(@Value("${biqa.microservice.communicator.deadline.propagation:true}") boolean enabled,
+                                          @Value("${biqa.microservice.communicator.deadline.header:" + MicroserviceDeadline.DEFAULT_HEADER + "}") String header) {
+        this.enabled = enabled;
+        this.header = header;
+        DeadlinePropagationInterceptor.instance = this;
+    }
+
+    @Override
+    public void beforeCreateHttpEntity(MicroserviceCallContext context, Class returnType, Class[] returnGenericType, HttpHeaders httpHeaders) {
+        if (!enabled) {
+            return;
+        }
+
+        long inboundDeadlineTime = MicroserviceDeadline.getDeadlineTime();
+        if (inboundDeadlineTime != 0) {
+            context.limitDeadlineTime(inboundDeadlineTime);
+        }
+    }
+
+    /**
+     * Set millis left to deadline of call in header of every attempt, so retry sends time which is left after previous attempts
+     *
+     * @param context state of current call
+     * @param headers headers of request of attempt
+     */
+    static void setDeadlineHeaderStaticInternal(MicroserviceCallContext context, HttpHeaders headers) {
+        DeadlinePropagationInterceptor interceptor = instance;
+        if (interceptor != null && interceptor.enabled && context.hasDeadline()) {
+            headers.set(interceptor.header, String.valueOf(Math.max(0, context.getRemainingTime())));
+        }
+    }
+
+    @Override
+    public boolean requiresRawResponseBody() {
+        return false;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (instance == this) {
+            instance = null;
+        }
+    }
+
+}
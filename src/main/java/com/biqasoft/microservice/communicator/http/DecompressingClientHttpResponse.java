@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Response with gzip or deflate body, decompressed while it is read.
+ * Content-Encoding and Content-Length headers are removed
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+class DecompressingClientHttpResponse implements ClientHttpResponse {
+
+    private final ClientHttpResponse response;
+    private final String contentEncoding;
+    private final HttpHeaders headers;
+
+    private InputStream body;
+
+    private DecompressingClientHttpResponse(ClientHttpResponse response, String contentEncoding) {
+        this.response = response;
+        this.contentEncoding = contentEncoding;
+
+        this.headers = new HttpHeaders();
+        this.headers.putAll(response.getHeaders());
+        this.headers.remove(HttpHeaders.CONTENT_ENCODING);
+        this.headers.remove(HttpHeaders.CONTENT_LENGTH);
+    }
+
+    /**
+     * @param response response from server
+     * @return decompressing response or the same response if it is not compressed
+     */
+    static ClientHttpResponse of(ClientHttpResponse response) {
+        String contentEncoding = response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+        return ContentCompression.isSupported(contentEncoding) ? new DecompressingClientHttpResponse(response, contentEncoding) : response;
+    }
+
+    @Override
+    public InputStream getBody() throws IOException {
+        if (body == null) {
+            body = ContentCompression.decompressingStream(contentEncoding, response.getBody());
+        }
+        return body;
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public HttpStatus getStatusCode() throws IOException {
+        return response.getStatusCode();
+    }
+
+    @Override
+    public int getRawStatusCode() throws IOException {
+        return response.getRawStatusCode();
+    }
+
+    @Override
+    public String getStatusText() throws IOException {
+        return response.getStatusText();
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (body != null) {
+                // return inflater to pool
+                body.close();
+            }
+        } catch (IOException ignored) {
+        } finally {
+            response.close();
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.servicediscovery.MicroserviceLoadBalancer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
+
+import java.util.Collections;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One call of hedged GET method. Primary request with retries is executed by caller thread; if it is not finished
+ * within delay of {@link HedgingPolicy}, the same request is sent to other instance on executor of {@link MicroserviceHedging}.
+ * First successful response is returned, request which lost is cancelled and its connection (HTTP/2 stream) is aborted.
+ * If hedged request wins, time which primary request was waiting is recorded as its response time, so slow responses
+ * which were not received still raise percentile of {@link HedgingPolicy}
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+final class HedgedRequest<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(HedgedRequest.class);
+
+    private final MicroserviceRestTemplate restTemplate;
+    private final MicroserviceCallContext context;
+    private final RequestCallback requestCallback;
+    private final ResponseExtractor<T> responseExtractor;
+    private final MicroserviceHedging hedging;
+    private final ExecutorService executor;
+
+    // true when result is chosen: first successful response or failure of primary request before hedged request is sent
+    private final AtomicBoolean decided = new AtomicBoolean();
+    // completed by hedged request
+    private final CompletableFuture<T> hedgeResult = new CompletableFuture<>();
+    // null until hedged request is sent
+    private volatile MicroserviceCallContext hedgeContext;
+    private ScheduledFuture<?> timer;
+    // nanos, start of primary request
+    private long startTime;
+
+    HedgedRequest(MicroserviceRestTemplate restTemplate, MicroserviceCallContext context, RequestCallback requestCallback,
+                  ResponseExtractor<T> responseExtractor, MicroserviceHedging hedging) {
+        this.restTemplate = restTemplate;
+        this.context = context;
+        this.requestCallback = requestCallback;
+        this.responseExtractor = responseExtractor;
+        this.hedging = hedging;
+        this.executor = hedging.getExecutor();
+    }
+
+    T execute() {
+        hedging.onCall(context.getMicroserviceName());
+        context.enableCancellation();
+
+        // instance of primary request is known before request, so hedged request is sent to other instance
+        ServiceInstance primaryInstance = restTemplate.chooseInstance(context, context.isTryToReconnect());
+        long delay = context.getHedgingPolicy().getDelay();
+        startTime = System.nanoTime();
+        if (primaryInstance != null) {
+            context.setNextInstance(primaryInstance);
+            if (delay >= 0) {
+                timer = hedging.schedule(() -> sendHedge(primaryInstance), delay);
+            }
+        }
+
+        T result;
+        try {
+            result = restTemplate.doExecute(context, requestCallback, responseExtractor);
+        } catch (RuntimeException e) {
+            return onPrimaryFailure(e);
+        }
+        return onPrimarySuccess(result);
+    }
+
+    private T onPrimarySuccess(T result) {
+        cancelTimer();
+        context.getHedgingPolicy().recordLatency(context.getLastAttemptDuration());
+
+        if (decided.compareAndSet(false, true)) {
+            MicroserviceCallContext hedge = hedgeContext;
+            if (hedge != null) {
+                hedge.cancel();
+            }
+            return result;
+        }
+
+        // hedged request won while response of primary request was read
+        return hedgeResult.join();
+    }
+
+    private T onPrimaryFailure(RuntimeException e) {
+        cancelTimer();
+        if (hedgeContext == null && decided.compareAndSet(false, true)) {
+            throw e;
+        }
+
+        try {
+            return hedgeResult.join();
+        } catch (CompletionException | CancellationException hedgeException) {
+            throw e;
+        }
+    }
+
+    private void cancelTimer() {
+        if (timer != null) {
+            timer.cancel(false);
+        }
+    }
+
+    /**
+     * Executed by timer when primary request is slow
+     */
+    private void sendHedge(ServiceInstance primaryInstance) {
+        if (decided.get() || !hedging.tryAcquire(context.getMicroserviceName())) {
+            return;
+        }
+
+        ServiceInstance instance;
+        try {
+            MicroserviceLoadBalancer loadBalancer = SpringContextAware.getMicroserviceLoadBalancer();
+            instance = loadBalancer.chooseOtherInstance(context.getMicroserviceName(), Collections.singletonList(primaryInstance),
+                    context.getLoadBalancing());
+        } catch (RuntimeException e) {
+            logger.debug("Can not choose instance for hedged request {}", context.getPathToApiResource(), e);
+            return;
+        }
+        if (instance == null) {
+            // the same instance can be paused, hedged request to it does not help
+            return;
+        }
+
+        logger.debug("Send hedged request {} to {}:{}", context.getPathToApiResource(), instance.getHost(), instance.getPort());
+        MicroserviceCallContext hedge = context.createHedgeContext(instance);
+        hedgeContext = hedge;
+        try {
+            executor.execute(() -> executeHedge(hedge));
+        } catch (RejectedExecutionException e) {
+            hedgeResult.completeExceptionally(e);
+        }
+    }
+
+    private void executeHedge(MicroserviceCallContext hedge) {
+        if (decided.get()) {
+            hedgeResult.cancel(false);
+            return;
+        }
+
+        try {
+            T result = restTemplate.doExecute(hedge, requestCallback, responseExtractor);
+            context.getHedgingPolicy().recordLatency(hedge.getLastAttemptDuration());
+            if (decided.compareAndSet(false, true)) {
+                context.cancel();
+                // response of primary request is at least that slow
+                context.getHedgingPolicy().recordLatency(System.nanoTime() - startTime);
+            }
+            hedgeResult.complete(result);
+        } catch (RuntimeException e) {
+            hedgeResult.completeExceptionally(e);
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hedging settings of one interface method: delay before hedged request is sent, fixed or
+ * 95th percentile of recent response times of method. One policy is shared by all calls of method.
+ * Thread safe
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+public final class HedgingPolicy {
+
+    // recent response times which percentile is computed from
+    private static final int SAMPLES = 128;
+    // percentile is not known before this number of responses
+    private static final int MIN_SAMPLES = 32;
+    // percentile is recomputed after every this number of responses
+    private static final int RECOMPUTE_INTERVAL = 16;
+
+    private final int fixedDelay;
+
+    // nanos, ring buffer
+    private final AtomicLongArray samples;
+    private final AtomicLong count = new AtomicLong();
+    // millis; -1 if not enough responses
+    private volatile long percentileDelay = -1;
+
+    /**
+     * @param fixedDelay millis to wait for response before hedged request is sent; -1 for observed 95th percentile of response time
+     */
+    public HedgingPolicy(int fixedDelay) {
+        this.fixedDelay = fixedDelay;
+        this.samples = fixedDelay < 0 ? new AtomicLongArray(SAMPLES) : null;
+    }
+
+    /**
+     * @return millis to wait for response before hedged request is sent; -1 if response time of method is not known yet
+     */
+    public long getDelay() {
+        return fixedDelay >= 0 ? fixedDelay : percentileDelay;
+    }
+
+    /**
+     * @param nanos duration of successful request
+     */
+    void recordLatency(long nanos) {
+        if (samples == null) {
+            return;
+        }
+
+        long n = count.getAndIncrement();
+        samples.set((int) (n % SAMPLES), nanos);
+
+        long recorded = n + 1;
+        if (recorded >= MIN_SAMPLES && recorded % RECOMPUTE_INTERVAL == 0) {
+            int size = (int) Math.min(recorded, SAMPLES);
+            long[] sorted = new long[size];
+            for (int i = 0; i < size; i++) {
+                sorted[i] = samples.get(i);
+            }
+            Arrays.sort(sorted);
+            long percentile = sorted[(int) Math.ceil(size * 0.95) - 1];
+            percentileDelay = Math.max(1, TimeUnit.NANOSECONDS.toMillis(percentile));
+        }
+    }
+
+}
@@ -8,7 +8,8 @@ import org.springframework.http.HttpMethod;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.web.client.RestTemplate;
 
-import java.net.URISyntaxException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Created by Nikita Bakaev, ya@nbakaev.ru on 5/24/2016.
@@ -16,6 +17,21 @@ import java.net.URISyntaxException;
  */
 public class HttpClientsHelpers {
 
+    private static final ConcurrentMap<String, MicroserviceRestTemplate> restTemplates = new ConcurrentHashMap<>();
+
+    /**
+     * @param microserviceName microservice name
+     * @return shared thread safe template of microservice
+     */
+    public static MicroserviceRestTemplate getRestTemplate(String microserviceName) {
+        String key = microserviceName == null ? "" : microserviceName;
+        MicroserviceRestTemplate restTemplate = restTemplates.get(key);
+        if (restTemplate != null) {
+            return restTemplate;
+        }
+        return restTemplates.computeIfAbsent(key, MicroserviceRestTemplate::new);
+    }
+
     /**
      * @param tryToReconnect         true if try to retry failed request to microsrevice
      * @param tryToReconnectTimes    number of times to try to reconnect
@@ -25,16 +41,31 @@ public class HttpClientsHelpers {
      * @param sleepTimeBetweenTrying sleep in millias to try to reconnect between failed requests
      * @param https    use http or https
      *
-     * RestTemplate client can be not thread safe (depend on class implementation)
-     * So, in secured to create a new instance to control result of each request
+     * RestTemplate is shared per microservice, so only lightweight state of request is created per call.
+     * Call has default deadline of microservice, see {@link MicroserviceTimeouts}, and its retry policy, see {@link MicroserviceRetries}
      *
-     * @return new default spring HTTP restTemplate
-     * @throws URISyntaxException exception
+     * @return new state of one request with shared microservice template
      */
-    public static MicroserviceRestTemplate getRestTemplate(boolean tryToReconnect, int tryToReconnectTimes, int sleepTimeBetweenTrying,
-                                                           String microserviceName, String pathToApiResource,
-                                                           HttpMethod httpMethod, boolean https) throws URISyntaxException {
-        return new MicroserviceRestTemplate(tryToReconnect, tryToReconnectTimes, sleepTimeBetweenTrying, microserviceName, pathToApiResource, httpMethod, https);
+    public static MicroserviceCallContext createCallContext(boolean tryToReconnect, int tryToReconnectTimes, int sleepTimeBetweenTrying,
+                                                            String microserviceName, String pathToApiResource,
+                                                            HttpMethod httpMethod, boolean https) {
+        MicroserviceCallContext context = new MicroserviceCallContext(getRestTemplate(microserviceName), tryToReconnect, tryToReconnectTimes, sleepTimeBetweenTrying,
+                microserviceName, pathToApiResource, httpMethod, https);
+
+        RetryPolicy retryPolicy = MicroserviceRetries.getRetryPolicyStaticInternal(microserviceName);
+        retryPolicy.onCall();
+        context.setRetryPolicy(retryPolicy);
+
+        MicroserviceCircuitBreakers circuitBreakers = MicroserviceCircuitBreakers.getCircuitBreakersStaticInternal();
+        if (circuitBreakers != null) {
+            context.setCircuitBreaker(circuitBreakers.getCircuitBreaker(microserviceName));
+        }
+
+        long deadline = MicroserviceTimeouts.getDeadlineStaticInternal(microserviceName);
+        if (deadline > 0) {
+            context.setDeadline(deadline);
+        }
+        return context;
     }
 
     public static RestTemplate getRestTemplate() {
@@ -0,0 +1,611 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.MicroserviceRequestMaker;
+import com.biqasoft.microservice.communicator.exceptions.CircuitBreakerOpenException;
+import com.biqasoft.microservice.communicator.exceptions.DeadlineExceededException;
+import com.biqasoft.microservice.communicator.exceptions.InternalSeverErrorProcessingRequestException;
+import com.biqasoft.microservice.communicator.exceptions.InvalidRequestException;
+import com.biqasoft.microservice.communicator.exceptions.RetryBudgetExhaustedException;
+import com.biqasoft.microservice.communicator.interfaceimpl.MicroserviceRequestInterceptor;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.Configurable;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientException;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Non-blocking requests to microservices for interface methods which return {@link CompletableFuture}.
+ * <p>
+ * Requests are sent with NIO HTTP client, so no thread waits for response. Responses are decoded and future is completed
+ * by pool of {@code biqa.microservice.communicator.async.worker-threads} threads, never by I/O dispatcher threads.
+ * Retries after pause are scheduled on timer instead of {@link Thread#sleep(long)}. Cancel of future aborts HTTP request and scheduled retry.
+ * <p>
+ * Connection pool settings of microservice ({@code biqa.microservice.communicator.services.<microservice name>.pool.*}) are applied:
+ * no more than {@code max-total} requests to microservice are in flight, others wait up to {@code connection-request-timeout};
+ * {@code max-per-route} limits connections to every instance; {@code keep-alive} and timeouts are set per microservice.
+ * Retry, timeout and error semantics are the same as in {@link MicroserviceRestTemplate}
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Component
+public class MicroserviceAsyncRequestExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(MicroserviceAsyncRequestExecutor.class);
+
+    private static MicroserviceAsyncRequestExecutor instance;
+
+    private final MicroserviceConnectionPools connectionPools;
+    private final PoolingNHttpClientConnectionManager connectionManager;
+    private final CloseableHttpAsyncClient httpClient;
+    private final ScheduledExecutorService scheduler;
+    // decodes responses and completes futures
+    private final ExecutorService workerExecutor;
+    private final ConcurrentMap<String, AsyncPool> pools = new ConcurrentHashMap<>();
+
+    @Autowired
+    public MicroserviceAsyncRequestExecutor(MicroserviceConnectionPools connectionPools,
+                                            @Value("${biqa.microservice.communicator.async.io-threads:0}") int ioThreads,
+                                            @Value("${biqa.microservice.communicator.async.worker-threads:0}") int workerThreads) throws IOReactorException {
+        this.connectionPools = connectionPools;
+        MicroserviceConnectionPools.PoolSettings settings = connectionPools.getDefaultSettings();
+
+        IOReactorConfig reactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(ioThreads > 0 ? ioThreads : Runtime.getRuntime().availableProcessors())
+                .setConnectTimeout(settings.connectTimeout)
+                // socket timeouts are checked once per select interval
+                .setSelectInterval(100)
+                .setSoKeepAlive(true)
+                .build();
+
+        connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactorConfig));
+        connectionManager.setMaxTotal(settings.maxTotal);
+        connectionManager.setDefaultMaxPerRoute(settings.maxPerRoute);
+
+        ConnectionKeepAliveStrategy defaultKeepAliveStrategy = MicroserviceConnectionPools.keepAliveStrategy(settings.keepAlive);
+        httpClient = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy((response, httpContext) -> {
+                    AsyncPool pool = (AsyncPool) httpContext.getAttribute(AsyncPool.class.getName());
+                    return (pool == null ? defaultKeepAliveStrategy : pool.keepAliveStrategy).getKeepAliveDuration(response, httpContext);
+                })
+                .build();
+        httpClient.start();
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        workerExecutor = Executors.newFixedThreadPool(workerThreads > 0 ? workerThreads : Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(r, "microservice-async-worker-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "microservice-async-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long evictionInterval = connectionPools.getEvictionInterval();
+        scheduler.scheduleWithFixedDelay(() -> {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(settings.idleTimeout, TimeUnit.MILLISECONDS);
+        }, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+
+        MicroserviceAsyncRequestExecutor.instance = this;
+    }
+
+    /**
+     * @return executor or null if Spring context is not initialized
+     */
+    public static MicroserviceAsyncRequestExecutor getInstanceStaticInternal() {
+        return instance;
+    }
+
+    /**
+     * Execute request to microservice, retry on error
+     *
+     * @param context       state of current call
+     * @param requestEntity request body and headers
+     * @return future with response; completed exceptionally with {@link InvalidRequestException}
+     * or {@link InternalSeverErrorProcessingRequestException} on error
+     */
+    public CompletableFuture<ResponseEntity<byte[]>> exchange(MicroserviceCallContext context, HttpEntity<?> requestEntity) {
+        CompletableFuture<ResponseEntity<byte[]>> future = new CompletableFuture<>();
+
+        BufferedClientHttpRequest request;
+        try {
+            context.acquireCircuitBreaker();
+            request = context.getRestTemplate().bufferRequest(context, requestEntity, byte[].class);
+        } catch (CircuitBreakerOpenException e) {
+            future.completeExceptionally(e);
+            return future;
+        } catch (IOException | RuntimeException e) {
+            context.onCallResult(e);
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        context.enableCancellation();
+        future.whenComplete((response, e) -> {
+            if (future.isCancelled()) {
+                // abort current attempt or scheduled retry; cancelled call is not outcome of microservice
+                context.cancel();
+            } else {
+                context.onCallResult(e);
+            }
+        });
+
+        execute(context, request, future);
+        return future;
+    }
+
+    private void execute(MicroserviceCallContext context, BufferedClientHttpRequest request, CompletableFuture<ResponseEntity<byte[]>> future) {
+        // do not retry if result is not needed anymore
+        if (future.isDone()) {
+            return;
+        }
+
+        AsyncPool pool;
+        HttpUriRequest httpRequest;
+        try {
+            RequestTimeouts timeouts = RequestTimeouts.of(context);
+
+            // never sleep waiting for instance - fail this attempt and schedule retry
+            context.getRestTemplate().startAttempt(context, false);
+            URI uri = context.getLastURI();
+
+            for (MicroserviceRequestInterceptor x : getRequestInterceptors()) {
+                x.beforeRequest(context, uri);
+            }
+
+            pool = getPool(context.getMicroserviceName());
+            pool.configureRoute(uri);
+            httpRequest = createHttpRequest(context, pool, request, uri, timeouts);
+        } catch (InvalidRequestException | DeadlineExceededException | CircuitBreakerOpenException e) {
+            context.onAttemptEnd();
+            future.completeExceptionally(e);
+            return;
+        } catch (RuntimeException e) {
+            // request is not sent, e.g. interceptor failed
+            context.onAttemptEnd();
+            onFailure(context, request, future, e);
+            return;
+        }
+
+        if (pool.tryAcquire()) {
+            send(context, pool, request, httpRequest, future);
+            return;
+        }
+
+        // wait for request to microservice to finish as for connection of pool
+        Runnable send = () -> send(context, pool, request, httpRequest, future);
+        context.setAbortAttempt(() -> {
+            if (pool.removeWaiting(send)) {
+                onWorker(context::onAttemptEnd);
+            }
+        });
+        if (!pool.addWaiting(send)) {
+            return;
+        }
+
+        long waitTimeout = ((Configurable) httpRequest).getConfig().getConnectionRequestTimeout();
+        if (waitTimeout > 0) {
+            pool.setWaitTimeout(send, scheduler.schedule(() -> {
+                if (pool.removeWaiting(send)) {
+                    onWorker(() -> {
+                        context.onAttemptEnd();
+                        onFailure(context, request, future, new ConnectionPoolTimeoutException("Timeout waiting for request to microservice "
+                                + context.getMicroserviceName() + ", " + pool.maxTotal + " requests are in flight"));
+                    });
+                }
+            }, waitTimeout, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Send request which holds slot of microservice pool; slot is released when response is received
+     */
+    private void send(MicroserviceCallContext context, AsyncPool pool, BufferedClientHttpRequest request, HttpUriRequest httpRequest,
+                      CompletableFuture<ResponseEntity<byte[]>> future) {
+        HttpClientContext httpContext = HttpClientContext.create();
+        httpContext.setAttribute(AsyncPool.class.getName(), pool);
+
+        // set before request is sent, response callback can start next attempt
+        AtomicReference<Future<HttpResponse>> httpFuture = new AtomicReference<>();
+        context.setAbortAttempt(() -> {
+            Future<HttpResponse> sent = httpFuture.get();
+            if (sent != null) {
+                sent.cancel(true);
+            }
+        });
+
+        try {
+            context.onRequestSent();
+            httpFuture.set(httpClient.execute(httpRequest, httpContext, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse httpResponse) {
+                    onWorker(() -> {
+                        pool.release();
+                        context.onAttemptEnd();
+                        onResponse(context, request, future, httpResponse);
+                    });
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    onWorker(() -> {
+                        pool.release();
+                        context.onAttemptEnd();
+                        onFailure(context, request, future, e);
+                    });
+                }
+
+                @Override
+                public void cancelled() {
+                    onWorker(() -> {
+                        pool.release();
+                        context.onAttemptEnd();
+                        future.completeExceptionally(new CancellationException("Request to microservice is cancelled"));
+                    });
+                }
+            }));
+        } catch (RuntimeException e) {
+            // client is closed
+            onWorker(() -> {
+                pool.release();
+                context.onAttemptEnd();
+                future.completeExceptionally(e);
+            });
+            return;
+        }
+        // cancelled while request was sent
+        if (context.isCancelled()) {
+            httpFuture.get().cancel(true);
+        }
+    }
+
+    /**
+     * Run callback of I/O dispatcher thread on worker thread, so response decoding and continuations of future do not block I/O
+     */
+    private void onWorker(Runnable task) {
+        try {
+            workerExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // executor is shut down
+            task.run();
+        }
+    }
+
+    /**
+     * @param timeouts timeouts of this attempt; null to use pool settings
+     */
+    private HttpUriRequest createHttpRequest(MicroserviceCallContext context, AsyncPool pool, BufferedClientHttpRequest request, URI uri,
+                                             RequestTimeouts timeouts) {
+        RequestConfig requestConfig = pool.requestConfig;
+        if (timeouts != null) {
+            requestConfig = RequestConfig.copy(requestConfig)
+                    .setConnectTimeout(timeouts.getConnectTimeout(requestConfig.getConnectTimeout()))
+                    .setSocketTimeout(timeouts.getResponseTimeout(requestConfig.getSocketTimeout()))
+                    .setConnectionRequestTimeout((int) timeouts.getWaitTimeout(requestConfig.getConnectionRequestTimeout()))
+                    .build();
+        }
+
+        RequestBuilder builder = RequestBuilder.create(context.getMethod().name())
+                .setUri(uri)
+                .setConfig(requestConfig);
+
+        if (MicroserviceCompression.resolveStaticInternal(context).acceptCompressedResponse) {
+            builder.addHeader(HttpHeaders.ACCEPT_ENCODING, ContentCompression.ACCEPT_ENCODING);
+        }
+
+        for (Map.Entry<String, List<String>> header : request.getHeaders().entrySet()) {
+            // set by client from entity
+            if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(header.getKey())) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                builder.addHeader(header.getKey(), value);
+            }
+        }
+
+        HttpHeaders attemptHeaders = new HttpHeaders();
+        DeadlinePropagationInterceptor.setDeadlineHeaderStaticInternal(context, attemptHeaders);
+        for (Map.Entry<String, List<String>> header : attemptHeaders.entrySet()) {
+            builder.setHeader(header.getKey(), header.getValue().get(0));
+        }
+
+        byte[] body = request.getBodyBytes();
+        if (body.length > 0) {
+            builder.setEntity(new ByteArrayEntity(body));
+        }
+        return builder.build();
+    }
+
+    private void onResponse(MicroserviceCallContext context, BufferedClientHttpRequest request,
+                            CompletableFuture<ResponseEntity<byte[]>> future, HttpResponse httpResponse) {
+        BufferedClientHttpResponse response;
+        try {
+            response = BufferedClientHttpResponse.of(httpResponse);
+        } catch (IOException e) {
+            onFailure(context, request, future, e);
+            return;
+        }
+
+        int statusCode = response.getRawStatusCode();
+        context.onAttemptResult(statusCode);
+        if (MicroserviceRestTemplate.isInvalidRequestStatusCode(statusCode)) {
+            future.completeExceptionally(new InvalidRequestException(response));
+            return;
+        }
+
+        if (statusCode >= 400) {
+            onFailure(context, request, future, response.toErrorException());
+            return;
+        }
+
+        try {
+            future.complete(new ResponseEntity<>(response.getBodyBytes(), response.getHeaders(), response.getStatusCode()));
+        } catch (IllegalArgumentException e) {
+            // unknown status code
+            onFailure(context, request, future, new RestClientException("Unknown status code [" + statusCode + "]"));
+        }
+    }
+
+    private void onFailure(MicroserviceCallContext context, BufferedClientHttpRequest request,
+                           CompletableFuture<ResponseEntity<byte[]>> future, Exception e) {
+        context.onAttemptResult(0);
+        try {
+            for (MicroserviceRequestInterceptor x : getRequestInterceptors()) {
+                x.onException(context, context.getLastURI(), e);
+            }
+        } catch (RuntimeException interceptorException) {
+            future.completeExceptionally(interceptorException);
+            return;
+        }
+
+        // the same attempts as in synchronous template: first retry is immediate, then backoff between retries
+        int triedTimes = context.incrementTriedTimes();
+        boolean tryToReconnect = context.isTryToReconnect();
+        if ((tryToReconnect && triedTimes > context.getTryToReconnectTimes()) || (!tryToReconnect && triedTimes > 1)) {
+            logger.error("Failed request {} {} tried={}", context.getMethod(), context.getLastURI(), triedTimes);
+            future.completeExceptionally(new InternalSeverErrorProcessingRequestException("Failed request, tried=" + triedTimes));
+            return;
+        }
+        if (!context.getRetryPolicy().tryRetry()) {
+            logger.error("Failed request {} {} tried={}, retry budget is exhausted", context.getMethod(), context.getLastURI(), triedTimes);
+            future.completeExceptionally(new RetryBudgetExhaustedException("Failed request to microservice "
+                    + context.getMicroserviceName() + ", retry budget is exhausted, tried=" + triedTimes));
+            return;
+        }
+
+        logger.info("Can not make http request {} {} {} times={}", context.getMethod(), context.getLastURI(), e.getMessage(), triedTimes);
+        if (triedTimes == 1) {
+            execute(context, request, future);
+            return;
+        }
+
+        long backoff = context.getRetryBackoff(triedTimes - 1);
+        if (context.getRemainingTime() <= backoff) {
+            // retry can not be finished before deadline
+            logger.error("Failed request {} {} tried={}, deadline exceeded", context.getMethod(), context.getLastURI(), triedTimes);
+            future.completeExceptionally(new DeadlineExceededException("Deadline of request to microservice "
+                    + context.getMicroserviceName() + " exceeded, tried=" + triedTimes));
+        } else {
+            AtomicReference<ScheduledFuture<?>> retry = new AtomicReference<>();
+            context.setAbortAttempt(() -> {
+                ScheduledFuture<?> scheduled = retry.get();
+                if (scheduled != null) {
+                    scheduled.cancel(false);
+                }
+            });
+            retry.set(scheduler.schedule(() -> onWorker(() -> execute(context, request, future)), backoff, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private AsyncPool getPool(String microserviceName) {
+        String key = microserviceName == null ? "" : microserviceName;
+        AsyncPool pool = pools.get(key);
+        if (pool != null) {
+            return pool;
+        }
+        return pools.computeIfAbsent(key, name -> new AsyncPool(connectionManager, connectionPools.resolveSettings(name)));
+    }
+
+    private static List<MicroserviceRequestInterceptor> getRequestInterceptors() {
+        return MicroserviceRequestMaker.getMicroserviceRequestInterceptorsStaticInternal();
+    }
+
+    /**
+     * @return stats of connection pool of non-blocking client
+     */
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        workerExecutor.shutdownNow();
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            logger.warn("Can not close async http client", e);
+        }
+
+        if (instance == this) {
+            instance = null;
+        }
+    }
+
+    /**
+     * Settings of microservice pool in shared non-blocking client; limits requests in flight to microservice.
+     * Thread safe
+     */
+    private static final class AsyncPool {
+
+        private final PoolingNHttpClientConnectionManager connectionManager;
+        private final RequestConfig requestConfig;
+        private final ConnectionKeepAliveStrategy keepAliveStrategy;
+        private final int maxTotal;
+        private final int maxPerRoute;
+        // routes to instances with max-per-route of microservice
+        private final Set<HttpRoute> routes = ConcurrentHashMap.newKeySet();
+
+        private int inFlight;
+        // requests waiting for slot and timeouts of their wait
+        private final Map<Runnable, ScheduledFuture<?>> waitTimeouts = new ConcurrentHashMap<>();
+        private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+
+        private AsyncPool(PoolingNHttpClientConnectionManager connectionManager, MicroserviceConnectionPools.PoolSettings settings) {
+            this.connectionManager = connectionManager;
+            this.requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(settings.connectTimeout)
+                    .setConnectionRequestTimeout(settings.connectionRequestTimeout)
+                    .setSocketTimeout(settings.socketTimeout)
+                    .build();
+            this.keepAliveStrategy = MicroserviceConnectionPools.keepAliveStrategy(settings.keepAlive);
+            this.maxTotal = Math.max(1, settings.maxTotal);
+            this.maxPerRoute = settings.maxPerRoute;
+        }
+
+        /**
+         * Apply max-per-route of microservice to instance of request
+         */
+        void configureRoute(URI uri) {
+            String scheme = uri.getScheme() == null ? "http" : uri.getScheme();
+            boolean secure = "https".equalsIgnoreCase(scheme);
+            int port = uri.getPort() > 0 ? uri.getPort() : (secure ? 443 : 80);
+            HttpRoute route = new HttpRoute(new HttpHost(uri.getHost(), port, scheme), null, secure);
+            if (routes.add(route)) {
+                connectionManager.setMaxPerRoute(route, maxPerRoute);
+            }
+        }
+
+        /**
+         * @return true if request can be sent now; call {@link #release()} when it is finished
+         */
+        synchronized boolean tryAcquire() {
+            if (inFlight < maxTotal) {
+                inFlight++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return true if request waits for slot; false if it is sent now
+         */
+        boolean addWaiting(Runnable send) {
+            synchronized (this) {
+                // request is finished after tryAcquire
+                if (inFlight >= maxTotal) {
+                    waiting.add(send);
+                    return true;
+                }
+                inFlight++;
+            }
+            send.run();
+            return false;
+        }
+
+        void setWaitTimeout(Runnable send, ScheduledFuture<?> timeout) {
+            waitTimeouts.put(send, timeout);
+            // request got slot before timeout is saved
+            synchronized (this) {
+                if (waiting.contains(send)) {
+                    return;
+                }
+            }
+            if (waitTimeouts.remove(send) != null) {
+                timeout.cancel(false);
+            }
+        }
+
+        /**
+         * @return true if request was waiting and is removed, e.g. on timeout or cancel
+         */
+        boolean removeWaiting(Runnable send) {
+            boolean removed;
+            synchronized (this) {
+                removed = waiting.remove(send);
+            }
+            if (removed) {
+                ScheduledFuture<?> timeout = waitTimeouts.remove(send);
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+            }
+            return removed;
+        }
+
+        /**
+         * Finish request; slot is passed to next waiting request
+         */
+        void release() {
+            Runnable next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    inFlight--;
+                    return;
+                }
+            }
+            ScheduledFuture<?> timeout = waitTimeouts.remove(next);
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            // does not block, request is sent by I/O dispatcher
+            next.run();
+        }
+
+    }
+
+}
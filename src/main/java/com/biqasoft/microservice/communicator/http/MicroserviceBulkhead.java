@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.exceptions.BulkheadFullException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limit of concurrent non-blocking requests to one microservice.
+ * <p>
+ * No thread waits for free slot: request over limit is queued and started by thread which finished previous request,
+ * so queued request must not block; if queue is full request is rejected with {@link BulkheadFullException}. Thread safe
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+public class MicroserviceBulkhead {
+
+    private static final Logger logger = LoggerFactory.getLogger(MicroserviceBulkhead.class);
+
+    private final String microserviceName;
+    private final int maxConcurrent;
+    private final int maxQueue;
+
+    private final Queue<Runnable> queue = new ArrayDeque<>();
+    private int active = 0;
+    // finished requests which slots are not passed yet
+    private int releases = 0;
+    private boolean draining = false;
+    private final AtomicLong rejected = new AtomicLong();
+
+    MicroserviceBulkhead(String microserviceName, int maxConcurrent, int maxQueue) {
+        this.microserviceName = microserviceName;
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueue = maxQueue;
+    }
+
+    /**
+     * Run request now if there is free slot, otherwise queue it. Request must call {@link #release()} when it is finished
+     *
+     * @param request starts request
+     * @throws BulkheadFullException if queue is full
+     */
+    public void execute(Runnable request) {
+        synchronized (this) {
+            if (active >= maxConcurrent) {
+                if (queue.size() >= maxQueue) {
+                    rejected.incrementAndGet();
+                    throw new BulkheadFullException("Too many requests to microservice " + microserviceName
+                            + ", active=" + active + " queued=" + queue.size());
+                }
+                queue.add(request);
+                return;
+            }
+            active++;
+        }
+        request.run();
+    }
+
+    /**
+     * Free slot of finished request and start next queued request.
+     * Queued requests are started in loop, so request which finishes while it is started does not start next one recursively
+     */
+    public void release() {
+        synchronized (this) {
+            releases++;
+            // thread which starts queued requests passes this slot too
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                if (releases == 0) {
+                    draining = false;
+                    return;
+                }
+                releases--;
+
+                next = queue.poll();
+                if (next == null) {
+                    active--;
+                    continue;
+                }
+            }
+
+            // slot is passed to next request
+            try {
+                next.run();
+            } catch (RuntimeException e) {
+                logger.error("Can not start queued request to microservice {}", microserviceName, e);
+            }
+        }
+    }
+
+    public String getMicroserviceName() {
+        return microserviceName;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public int getMaxQueue() {
+        return maxQueue;
+    }
+
+    /**
+     * @return number of started and not finished requests
+     */
+    public synchronized int getActiveCount() {
+        return active;
+    }
+
+    /**
+     * @return number of requests which wait for free slot
+     */
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * @return number of requests rejected since application start
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return "[active: " + getActiveCount() + "; queued: " + getQueuedCount() + "; rejected: " + getRejectedCount()
+                + "; max: " + maxConcurrent + "; max queue: " + maxQueue + "]";
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link MicroserviceBulkhead} per microservice for interface methods which return {@link java.util.concurrent.CompletableFuture},
+ * so slow microservice can not take all connections and memory needed by other microservices.
+ * <p>
+ * Disabled by default, enable with {@code biqa.microservice.communicator.bulkhead.enabled}.
+ * Limits are set with {@code biqa.microservice.communicator.bulkhead.max-concurrent} and {@code biqa.microservice.communicator.bulkhead.max-queue}
+ * or per microservice with {@code biqa.microservice.communicator.services.<microservice name>.bulkhead.*}
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Component
+public class MicroserviceBulkheads {
+
+    private static MicroserviceBulkheads instance;
+
+    private final Environment environment;
+    private final boolean enabled;
+    private final int maxConcurrent;
+    private final int maxQueue;
+    private final ConcurrentMap<String, MicroserviceBulkhead> bulkheads = new ConcurrentHashMap<>();
+
+    @Autowired
+    public MicroserviceBulkheads(Environment environment,
+                                 @Value("${biqa.microservice.communicator.bulkhead.enabled:false}") boolean enabled,
+                                 @Value("${biqa.microservice.communicator.bulkhead.max-concurrent:200}") int maxConcurrent,
+                                 @Value("${biqa.microservice.communicator.bulkhead.max-queue:1000}") int maxQueue) {
+        this.environment = environment;
+        this.enabled = enabled;
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueue = maxQueue;
+        MicroserviceBulkheads.instance = this;
+    }
+
+    /**
+     * @param microserviceName microservice name, or URL if microservice is not in service discovery
+     * @return bulkhead of microservice; null if Spring context is not initialized or bulkhead is disabled
+     */
+    public static MicroserviceBulkhead getBulkheadStaticInternal(String microserviceName) {
+        MicroserviceBulkheads microserviceBulkheads = instance;
+        if (microserviceBulkheads == null) {
+            return null;
+        }
+        return microserviceBulkheads.getBulkhead(microserviceName);
+    }
+
+    /**
+     * @param microserviceName microservice name, or URL if microservice is not in service discovery
+     * @return bulkhead of microservice; null if bulkhead is disabled
+     */
+    public MicroserviceBulkhead getBulkhead(String microserviceName) {
+        String key = microserviceName == null ? "" : microserviceName;
+        MicroserviceBulkhead bulkhead = bulkheads.get(key);
+        if (bulkhead != null) {
+            return bulkhead;
+        }
+
+        String prefix = MicroserviceConnectionPools.SERVICE_PREFIX + key + ".bulkhead.";
+        if (!environment.getProperty(prefix + "enabled", Boolean.class, enabled)) {
+            return null;
+        }
+
+        return bulkheads.computeIfAbsent(key, name -> new MicroserviceBulkhead(name,
+                environment.getProperty(prefix + "max-concurrent", Integer.class, maxConcurrent),
+                environment.getProperty(prefix + "max-queue", Integer.class, maxQueue)));
+    }
+
+    /**
+     * @return every created bulkhead by microservice name
+     */
+    public Map<String, MicroserviceBulkhead> getBulkheads() {
+        return Collections.unmodifiableMap(new HashMap<>(bulkheads));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (instance == this) {
+            instance = null;
+        }
+    }
+
+}
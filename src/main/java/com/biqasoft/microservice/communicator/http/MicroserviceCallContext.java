@@ -0,0 +1,678 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.exceptions.CircuitBreakerOpenException;
+import com.biqasoft.microservice.communicator.exceptions.InvalidRequestException;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.LoadBalancing;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.RequestCompression;
+import com.biqasoft.microservice.communicator.servicediscovery.MicroserviceInstance;
+import com.biqasoft.microservice.communicator.servicediscovery.MicroserviceOutlierDetection;
+import com.fasterxml.jackson.databind.JavaType;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.http.HttpMethod;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * State of one microservice interface method call: request target, retry settings, attempts and timings.
+ * Create this object per every request; {@link MicroserviceRestTemplate} is shared by all requests to microservice.
+ * Not thread safe, except cancellation of hedged requests
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+public class MicroserviceCallContext {
+
+    private final MicroserviceRestTemplate restTemplate;
+
+    private final String microserviceName;
+    private final String pathToApiResource;
+    // path parsed on first attempt and reused by retries and hedged requests
+    private volatile URI pathToApiResourceURI;
+    private final HttpMethod method;
+    private final boolean https;
+
+    private final boolean tryToReconnect;
+    // number of times to reconnect
+    private final int tryToReconnectTimes;
+    private final int sleepTimeBetweenTrying;
+
+    private final long startTime = System.nanoTime();
+
+    // type to which response is decoded from stream; null if response body is buffered as byte[]
+    private JavaType responseBodyType;
+    private ResponseBodyKind responseBodyKind = ResponseBodyKind.VALUE;
+
+    // request payload is written to connection while request is sent, not buffered
+    private boolean streamingRequestBody = false;
+    private boolean repeatableRequestBody = true;
+
+    // send request with HTTP/2 transport
+    private boolean http2 = false;
+
+    // annotation settings; DEFAULT and -1 to use properties
+    private RequestCompression requestCompression = RequestCompression.DEFAULT;
+    private int requestCompressionThreshold = -1;
+
+    // millis per attempt; -1 to use pool settings
+    private int connectTimeout = -1;
+    private int responseTimeout = -1;
+    // System.nanoTime() after which no attempt is started; 0 if call has no deadline
+    private long deadlineTime = 0;
+    // millis from call creation and System.nanoTime() of deadline of caller, to recompute deadline of new subscription; 0 if not set
+    private long deadline = 0;
+    private long deadlineLimitTime = 0;
+
+    // how instance of every attempt is chosen; DEFAULT to use properties
+    private LoadBalancing loadBalancing = LoadBalancing.DEFAULT;
+
+    // backoff and budget of retries
+    private RetryPolicy retryPolicy = RetryPolicy.FIXED_DELAY;
+
+    // breaker of microservice, it records outcome of calls with all retries; null if circuit breaker is disabled
+    private CircuitBreaker circuitBreaker;
+    // breaker of instance of current attempt, it records outcome of every attempt; null if circuit breaker is disabled or microservice is called by URL
+    private CircuitBreaker instanceCircuitBreaker;
+    // true until outcome of current attempt is recorded
+    private boolean attemptInProgress;
+    // true until current attempt is ended
+    private boolean attemptRunning;
+    // instance of current attempt until response is received
+    private MicroserviceInstance inFlightInstance;
+
+    // settings of hedged GET requests; null if requests are not hedged
+    private HedgingPolicy hedgingPolicy;
+    // instance of next attempt chosen in advance; null to choose by load balancer
+    private ServiceInstance nextInstance;
+    // counted down when request is cancelled by other thread; null if request can not be cancelled
+    private CountDownLatch cancellation;
+    // aborts HTTP request of current attempt
+    private volatile Runnable abortAttempt;
+
+    private int triedTimes = 0;
+    private int attempts = 0;
+    private URI lastURI = null;
+    private ServiceInstance serviceInstance = null;
+    // instances to which attempts were sent, retry is sent to other instance; null until first attempt to instance
+    private List<ServiceInstance> triedInstances;
+    // instances which circuit breaker did not permit attempt after load balancer chose them; null until first such instance
+    private List<ServiceInstance> rejectedInstances;
+    private long lastAttemptStartTime;
+    private long lastAttemptDuration;
+
+    /**
+     * @param restTemplate           shared template of microservice
+     * @param tryToReconnect         true if try to retry failed request to microsrevice
+     * @param tryToReconnectTimes    number of times to try to reconnect
+     * @param sleepTimeBetweenTrying sleep in millias to try to reconnect between failed requests
+     * @param microserviceName       microservice name
+     * @param pathToApiResource      pathToApiResource
+     * @param httpMethod             http method
+     * @param https                  use http or https
+     */
+    public MicroserviceCallContext(MicroserviceRestTemplate restTemplate, boolean tryToReconnect, int tryToReconnectTimes, int sleepTimeBetweenTrying,
+                                   String microserviceName, String pathToApiResource, HttpMethod httpMethod, boolean https) {
+        this.restTemplate = restTemplate;
+        this.tryToReconnect = tryToReconnect;
+        this.tryToReconnectTimes = tryToReconnectTimes;
+        this.sleepTimeBetweenTrying = sleepTimeBetweenTrying;
+        this.microserviceName = microserviceName;
+        this.pathToApiResource = pathToApiResource;
+        this.method = httpMethod;
+        this.https = https;
+    }
+
+    /**
+     * @throws CircuitBreakerOpenException if breaker of instance is open or it has no trial attempt left, e.g. other
+     *                                     thread took last one after load balancer chose instance, and there is no other instance
+     */
+    void onAttemptStart(URI uri, ServiceInstance serviceInstance) {
+        MicroserviceCircuitBreakers circuitBreakers = MicroserviceCircuitBreakers.getCircuitBreakersStaticInternal();
+        CircuitBreaker attemptCircuitBreaker = serviceInstance == null || circuitBreakers == null ? null : circuitBreakers.getCircuitBreaker(microserviceName, serviceInstance);
+        while (attemptCircuitBreaker != null && !attemptCircuitBreaker.tryAcquirePermission()) {
+            // other thread took last trial attempt after load balancer chose instance - choose other one
+            if (rejectedInstances == null) {
+                rejectedInstances = new ArrayList<>(2);
+            }
+            rejectedInstances.add(serviceInstance);
+            ServiceInstance other = restTemplate.chooseOtherInstance(this, rejectedInstances);
+            if (other == null) {
+                throw new CircuitBreakerOpenException("Circuit breaker of instance " + serviceInstance.getHost() + ":" + serviceInstance.getPort()
+                        + " of microservice " + microserviceName + " is open");
+            }
+            serviceInstance = other;
+            uri = restTemplate.getURI(this, other);
+            attemptCircuitBreaker = circuitBreakers.getCircuitBreaker(microserviceName, other);
+        }
+        instanceCircuitBreaker = attemptCircuitBreaker;
+
+        this.attempts++;
+        this.lastURI = uri;
+        this.serviceInstance = serviceInstance;
+        this.lastAttemptStartTime = System.nanoTime();
+
+        this.attemptInProgress = true;
+        this.attemptRunning = true;
+
+        if (inFlightInstance != null) {
+            inFlightInstance.onRequestEnd();
+        }
+        inFlightInstance = serviceInstance instanceof MicroserviceInstance ? (MicroserviceInstance) serviceInstance : null;
+        if (inFlightInstance != null) {
+            inFlightInstance.onRequestStart();
+        }
+
+        if (serviceInstance != null) {
+            if (triedInstances == null) {
+                triedInstances = new ArrayList<>(2);
+            }
+            triedInstances.add(serviceInstance);
+        }
+    }
+
+    /**
+     * Record outcome of current attempt in circuit breaker of instance, outlier detection and latency of instance,
+     * only first outcome of attempt is recorded.
+     * Call after {@link #onAttemptEnd()}
+     *
+     * @param statusCode HTTP status code of response; 0 if response is not received
+     */
+    void onAttemptResult(int statusCode) {
+        if (!attemptInProgress) {
+            return;
+        }
+        attemptInProgress = false;
+
+        boolean failure = statusCode == 0 || statusCode >= 500;
+        if (serviceInstance instanceof MicroserviceInstance) {
+            MicroserviceInstance instance = (MicroserviceInstance) serviceInstance;
+            instance.onLatency(lastAttemptDuration, failure);
+
+            MicroserviceOutlierDetection outlierDetection = MicroserviceOutlierDetection.getOutlierDetectionStaticInternal();
+            if (outlierDetection != null) {
+                outlierDetection.onAttemptResult(microserviceName, instance, failure);
+            }
+        }
+
+        if (instanceCircuitBreaker != null) {
+            instanceCircuitBreaker.onResult(failure, lastAttemptDuration);
+        }
+    }
+
+    /**
+     * Call before first attempt
+     *
+     * @throws CircuitBreakerOpenException if circuit breaker of microservice is open
+     */
+    void acquireCircuitBreaker() {
+        if (circuitBreaker != null && !circuitBreaker.tryAcquirePermission()) {
+            throw new CircuitBreakerOpenException("Circuit breaker of microservice " + microserviceName + " is open");
+        }
+    }
+
+    /**
+     * Record outcome of call with all retries in circuit breaker of microservice
+     *
+     * @param e exception of failed call; null if call is successful
+     */
+    void onCallResult(Throwable e) {
+        if (circuitBreaker != null) {
+            circuitBreaker.onResult(e != null && !(e instanceof InvalidRequestException), System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Call right before request of current attempt is sent, so duration of attempt does not include choosing instance,
+     * interceptors, serialization of request body and waiting for connection
+     */
+    void onRequestSent() {
+        this.lastAttemptStartTime = System.nanoTime();
+    }
+
+    /**
+     * End current attempt when response is received or attempt failed, cancelled or was not sent at all.
+     * Only first call ends attempt, so it can also be called in {@code finally}
+     */
+    void onAttemptEnd() {
+        if (!attemptRunning) {
+            return;
+        }
+        attemptRunning = false;
+        this.lastAttemptDuration = System.nanoTime() - lastAttemptStartTime;
+
+        if (inFlightInstance != null) {
+            inFlightInstance.onRequestEnd();
+            inFlightInstance = null;
+        }
+    }
+
+    int incrementTriedTimes() {
+        return ++triedTimes;
+    }
+
+    /**
+     * Decode response JSON straight from response stream
+     *
+     * @param responseBodyType type of response body or of JSON array element for lazy kinds; null to buffer response as byte[]
+     * @param responseBodyKind how decoded body is returned
+     */
+    public void setResponseBodyType(JavaType responseBodyType, ResponseBodyKind responseBodyKind) {
+        this.responseBodyType = responseBodyType;
+        this.responseBodyKind = responseBodyKind;
+    }
+
+    /**
+     * @return type to which response is decoded from stream; null if response is buffered as byte[]
+     */
+    public JavaType getResponseBodyType() {
+        return responseBodyType;
+    }
+
+    public ResponseBodyKind getResponseBodyKind() {
+        return responseBodyKind;
+    }
+
+    /**
+     * Write request payload straight to connection instead of buffering it in memory
+     *
+     * @param repeatable false if payload can be read only once, such request is not retried
+     */
+    public void setStreamingRequestBody(boolean repeatable) {
+        this.streamingRequestBody = true;
+        this.repeatableRequestBody = repeatable;
+    }
+
+    public boolean isStreamingRequestBody() {
+        return streamingRequestBody;
+    }
+
+    /**
+     * @return false if request can not be retried because payload can be read only once
+     */
+    public boolean isRepeatableRequestBody() {
+        return repeatableRequestBody;
+    }
+
+    /**
+     * Send request with HTTP/2 transport instead of HTTP/1.1 connection pool
+     */
+    public void setHttp2(boolean http2) {
+        this.http2 = http2;
+    }
+
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    /**
+     * @param requestCompression          content coding of request body; {@link RequestCompression#DEFAULT} to use properties
+     * @param requestCompressionThreshold minimal body size in bytes to compress; -1 to use properties
+     */
+    public void setRequestCompression(RequestCompression requestCompression, int requestCompressionThreshold) {
+        this.requestCompression = requestCompression;
+        this.requestCompressionThreshold = requestCompressionThreshold;
+    }
+
+    public RequestCompression getRequestCompression() {
+        return requestCompression;
+    }
+
+    public int getRequestCompressionThreshold() {
+        return requestCompressionThreshold;
+    }
+
+    /**
+     * @param loadBalancing how instance of every attempt is chosen; {@link LoadBalancing#DEFAULT} to use properties
+     */
+    public void setLoadBalancing(LoadBalancing loadBalancing) {
+        this.loadBalancing = loadBalancing;
+    }
+
+    public LoadBalancing getLoadBalancing() {
+        return loadBalancing;
+    }
+
+    /**
+     * @param connectTimeout  millis to establish connection; -1 to use pool settings
+     * @param responseTimeout millis to wait for response data; -1 to use pool settings
+     */
+    public void setTimeouts(int connectTimeout, int responseTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.responseTimeout = responseTimeout;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getResponseTimeout() {
+        return responseTimeout;
+    }
+
+    /**
+     * Limit time of whole call, including all retries, pauses between them and waits for microservice instance.
+     * Timeouts of every request are reduced to time left to deadline
+     *
+     * @param deadline millis from call creation; 0 for no deadline
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = Math.max(0, deadline);
+        this.deadlineTime = deadline > 0 ? startTime + TimeUnit.MILLISECONDS.toNanos(deadline) : 0;
+    }
+
+    /**
+     * Set deadline if call has no deadline or given deadline is earlier, e.g. deadline of request which is processed by current thread
+     *
+     * @param deadlineTime {@link System#nanoTime()} of deadline
+     */
+    public void limitDeadlineTime(long deadlineTime) {
+        if (this.deadlineLimitTime == 0 || deadlineTime - this.deadlineLimitTime < 0) {
+            this.deadlineLimitTime = deadlineTime;
+        }
+        if (this.deadlineTime == 0 || deadlineTime - this.deadlineTime < 0) {
+            this.deadlineTime = deadlineTime;
+        }
+    }
+
+    /**
+     * @return {@link System#nanoTime()} of deadline; 0 if call has no deadline
+     */
+    public long getDeadlineTime() {
+        return deadlineTime;
+    }
+
+    public boolean hasDeadline() {
+        return deadlineTime != 0;
+    }
+
+    /**
+     * @return millis left to deadline, 0 or less if deadline is passed; {@link Long#MAX_VALUE} if call has no deadline
+     */
+    public long getRemainingTime() {
+        if (deadlineTime == 0) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(deadlineTime - System.nanoTime());
+    }
+
+    /**
+     * @param retryPolicy backoff and budget of retries of microservice
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @param pause number of pause between retries, 1 for pause before second retry
+     * @return millis to pause
+     */
+    long getRetryBackoff(int pause) {
+        return retryPolicy.getBackoff(sleepTimeBetweenTrying, pause);
+    }
+
+    /**
+     * Send hedged request to other instance if response is slow, for GET requests only
+     *
+     * @param hedgingPolicy hedging settings of method; null to disable hedging
+     */
+    public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+    }
+
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    void setNextInstance(ServiceInstance nextInstance) {
+        this.nextInstance = nextInstance;
+    }
+
+    /**
+     * @param circuitBreaker breaker of microservice; null to not check it
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return instance chosen in advance for next attempt; null to choose by load balancer
+     */
+    ServiceInstance pollNextInstance() {
+        ServiceInstance instance = nextInstance;
+        nextInstance = null;
+        return instance;
+    }
+
+    /**
+     * Allow other thread to cancel this request with {@link #cancel()}; call before request is started
+     */
+    void enableCancellation() {
+        if (cancellation == null) {
+            cancellation = new CountDownLatch(1);
+        }
+    }
+
+    boolean isCancellable() {
+        return cancellation != null;
+    }
+
+    /**
+     * @return true if request is cancelled, e.g. because other hedged request won
+     */
+    boolean isCancelled() {
+        return cancellation != null && cancellation.getCount() == 0;
+    }
+
+    /**
+     * Stop retries and abort HTTP request of current attempt. Can be called by any thread
+     */
+    void cancel() {
+        if (cancellation == null) {
+            return;
+        }
+        cancellation.countDown();
+
+        Runnable abort = abortAttempt;
+        if (abort != null) {
+            abort.run();
+        }
+    }
+
+    /**
+     * @param abortAttempt aborts HTTP request of current attempt; called at once if request is already cancelled
+     */
+    void setAbortAttempt(Runnable abortAttempt) {
+        this.abortAttempt = abortAttempt;
+        if (isCancelled()) {
+            abortAttempt.run();
+        }
+    }
+
+    /**
+     * Sleep between attempts
+     *
+     * @param millis time to sleep
+     * @return true if request is cancelled while sleeping
+     */
+    boolean sleepUnlessCancelled(long millis) throws InterruptedException {
+        if (cancellation == null) {
+            Thread.sleep(millis);
+            return false;
+        }
+        return cancellation.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param instance instance of hedged request
+     * @return context of single hedged request with the same settings and deadline
+     */
+    MicroserviceCallContext createHedgeContext(ServiceInstance instance) {
+        MicroserviceCallContext hedge = new MicroserviceCallContext(restTemplate, false, 0, sleepTimeBetweenTrying,
+                microserviceName, pathToApiResource, method, https);
+        hedge.responseBodyType = responseBodyType;
+        hedge.responseBodyKind = responseBodyKind;
+        hedge.streamingRequestBody = streamingRequestBody;
+        hedge.repeatableRequestBody = repeatableRequestBody;
+        hedge.http2 = http2;
+        hedge.requestCompression = requestCompression;
+        hedge.requestCompressionThreshold = requestCompressionThreshold;
+        hedge.connectTimeout = connectTimeout;
+        hedge.responseTimeout = responseTimeout;
+        hedge.deadlineTime = deadlineTime;
+        hedge.loadBalancing = loadBalancing;
+        hedge.retryPolicy = retryPolicy;
+        hedge.nextInstance = instance;
+        hedge.enableCancellation();
+        return hedge;
+    }
+
+    /**
+     * New call with the same settings, for every subscription to Mono or Flux after first one, so resubscribe or
+     * {@code retry()} start with no attempts and with new deadline
+     *
+     * @return context which is not started yet
+     */
+    MicroserviceCallContext createSubscriptionContext() {
+        MicroserviceCallContext call = new MicroserviceCallContext(restTemplate, tryToReconnect, tryToReconnectTimes, sleepTimeBetweenTrying,
+                microserviceName, pathToApiResource, method, https);
+        call.responseBodyType = responseBodyType;
+        call.responseBodyKind = responseBodyKind;
+        call.streamingRequestBody = streamingRequestBody;
+        call.repeatableRequestBody = repeatableRequestBody;
+        call.http2 = http2;
+        call.requestCompression = requestCompression;
+        call.requestCompressionThreshold = requestCompressionThreshold;
+        call.connectTimeout = connectTimeout;
+        call.responseTimeout = responseTimeout;
+        call.loadBalancing = loadBalancing;
+        call.retryPolicy = retryPolicy;
+        call.retryPolicy.onCall();
+        call.circuitBreaker = circuitBreaker;
+        call.hedgingPolicy = hedgingPolicy;
+        if (deadline > 0) {
+            call.setDeadline(deadline);
+        }
+        if (deadlineLimitTime != 0) {
+            call.limitDeadlineTime(deadlineLimitTime);
+        }
+        return call;
+    }
+
+    public MicroserviceRestTemplate getRestTemplate() {
+        return restTemplate;
+    }
+
+    public String getMicroserviceName() {
+        return microserviceName;
+    }
+
+    public String getPathToApiResource() {
+        return pathToApiResource;
+    }
+
+    /**
+     * @return path of request parsed once per call, so every attempt only resolves it against URI of instance
+     */
+    public URI getPathToApiResourceURI() {
+        URI uri = pathToApiResourceURI;
+        if (uri == null) {
+            uri = URI.create(pathToApiResource);
+            pathToApiResourceURI = uri;
+        }
+        return uri;
+    }
+
+    public HttpMethod getMethod() {
+        return method;
+    }
+
+    public boolean isHttps() {
+        return https;
+    }
+
+    public boolean isTryToReconnect() {
+        return tryToReconnect;
+    }
+
+    public int getTryToReconnectTimes() {
+        return tryToReconnectTimes;
+    }
+
+    public int getSleepTimeBetweenTrying() {
+        return sleepTimeBetweenTrying;
+    }
+
+    /**
+     * @return number of failed attempts after first request
+     */
+    public int getTriedTimes() {
+        return triedTimes;
+    }
+
+    /**
+     * @return number of started HTTP requests
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return null if no request was be done
+     */
+    public URI getLastURI() {
+        return lastURI;
+    }
+
+    /**
+     * @return instance chosen by load balancer for last request;
+     * null if no request was be done or microservice is called by URL
+     */
+    public ServiceInstance getServiceInstance() {
+        return serviceInstance;
+    }
+
+    /**
+     * @return instances chosen by load balancer for every attempt, in order of attempts
+     */
+    public List<ServiceInstance> getTriedInstances() {
+        return triedInstances == null ? Collections.emptyList() : Collections.unmodifiableList(triedInstances);
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when call was created
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return nanos from call creation
+     */
+    public long getElapsedTime() {
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * @return duration of last finished HTTP request in nanos
+     */
+    public long getLastAttemptDuration() {
+        return lastAttemptDuration;
+    }
+
+}
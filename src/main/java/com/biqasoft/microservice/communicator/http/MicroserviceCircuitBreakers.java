@@ -0,0 +1,216 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.servicediscovery.MicroserviceInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link CircuitBreaker} of every microservice and of every its instance. When breaker of microservice is open, calls fail
+ * with {@link com.biqasoft.microservice.communicator.exceptions.CircuitBreakerOpenException} or return result of java 8 default method
+ * without sending request; instances which breaker is open are skipped by load balancer.
+ * <p>
+ * Disabled by default, enable with {@code biqa.microservice.communicator.circuit-breaker.enabled=true}.
+ * Set with {@code biqa.microservice.communicator.circuit-breaker.*} or per microservice with
+ * {@code biqa.microservice.communicator.services.<microservice name>.circuit-breaker.*}.
+ * Breakers of instances which left service discovery are removed, see {@link #retainInstances(String, Collection)}
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Component
+public class MicroserviceCircuitBreakers {
+
+    private static MicroserviceCircuitBreakers instance;
+
+    private final Environment environment;
+    private final boolean enabled;
+    private final int windowSize;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final long slowCallDuration;
+    private final int slowCallRateThreshold;
+    private final long waitInOpenState;
+    private final int halfOpenCalls;
+
+    private final ConcurrentMap<String, Settings> settings = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
+    @Autowired
+    public MicroserviceCircuitBreakers(Environment environment,
+                                       @Value("${biqa.microservice.communicator.circuit-breaker.enabled:false}") boolean enabled,
+                                       @Value("${biqa.microservice.communicator.circuit-breaker.window-size:50}") int windowSize,
+                                       @Value("${biqa.microservice.communicator.circuit-breaker.minimum-calls:20}") int minimumCalls,
+                                       @Value("${biqa.microservice.communicator.circuit-breaker.failure-rate-threshold:50}") int failureRateThreshold,
+                                       @Value("${biqa.microservice.communicator.circuit-breaker.slow-call-duration:5000}") long slowCallDuration,
+                                       @Value("${biqa.microservice.communicator.circuit-breaker.slow-call-rate-threshold:100}") int slowCallRateThreshold,
+                                       @Value("${biqa.microservice.communicator.circuit-breaker.wait-in-open-state:10000}") long waitInOpenState,
+                                       @Value("${biqa.microservice.communicator.circuit-breaker.half-open-calls:5}") int halfOpenCalls) {
+        this.environment = environment;
+        this.enabled = enabled;
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallDuration = slowCallDuration;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.waitInOpenState = waitInOpenState;
+        this.halfOpenCalls = halfOpenCalls;
+        MicroserviceCircuitBreakers.instance = this;
+    }
+
+    /**
+     * @return circuit breakers; null if Spring context is not initialized
+     */
+    public static MicroserviceCircuitBreakers getCircuitBreakersStaticInternal() {
+        return instance;
+    }
+
+    /**
+     * @param microserviceName microservice name, or URL if microservice is not in service discovery
+     * @return breaker of microservice; null if circuit breaker is disabled
+     */
+    public CircuitBreaker getCircuitBreaker(String microserviceName) {
+        String key = microserviceName == null ? "" : microserviceName;
+        CircuitBreaker circuitBreaker = circuitBreakers.get(key);
+        if (circuitBreaker != null) {
+            return circuitBreaker;
+        }
+
+        Settings serviceSettings = getSettings(key);
+        if (!serviceSettings.enabled) {
+            return null;
+        }
+        return circuitBreakers.computeIfAbsent(key, serviceSettings::create);
+    }
+
+    /**
+     * @param microserviceName registered service name
+     * @param serviceInstance  instance of microservice
+     * @return breaker of instance; null if circuit breaker is disabled
+     */
+    public CircuitBreaker getCircuitBreaker(String microserviceName, ServiceInstance serviceInstance) {
+        String key = getInstanceKey(microserviceName, serviceInstance);
+        CircuitBreaker circuitBreaker = circuitBreakers.get(key);
+        if (circuitBreaker != null) {
+            return circuitBreaker;
+        }
+
+        Settings serviceSettings = getSettings(microserviceName);
+        if (!serviceSettings.enabled) {
+            return null;
+        }
+        return circuitBreakers.computeIfAbsent(key, serviceSettings::create);
+    }
+
+    /**
+     * @param microserviceName registered service name
+     * @param serviceInstance  instance of microservice
+     * @return false if breaker of instance is open
+     */
+    public boolean isCallPermitted(String microserviceName, ServiceInstance serviceInstance) {
+        CircuitBreaker circuitBreaker = getCircuitBreaker(microserviceName, serviceInstance);
+        return circuitBreaker == null || circuitBreaker.isCallPermitted();
+    }
+
+    /**
+     * Remove breakers of instances which are not registered in service discovery anymore, so breakers of
+     * instances which were replaced (e.g. on deploy) do not accumulate
+     *
+     * @param microserviceName registered service name
+     * @param instances        instances of microservice which are registered now
+     */
+    public void retainInstances(String microserviceName, Collection<? extends ServiceInstance> instances) {
+        String prefix = microserviceName + " ";
+        Set<String> registered = new HashSet<>();
+        for (ServiceInstance serviceInstance : instances) {
+            registered.add(getInstanceKey(microserviceName, serviceInstance));
+        }
+        circuitBreakers.keySet().removeIf(key -> key.startsWith(prefix) && !registered.contains(key));
+    }
+
+    private static String getInstanceKey(String microserviceName, ServiceInstance serviceInstance) {
+        return serviceInstance instanceof MicroserviceInstance ? ((MicroserviceInstance) serviceInstance).getKey()
+                : microserviceName + " " + serviceInstance.getHost() + ":" + serviceInstance.getPort();
+    }
+
+    private Settings getSettings(String microserviceName) {
+        Settings serviceSettings = settings.get(microserviceName);
+        if (serviceSettings != null) {
+            return serviceSettings;
+        }
+        return settings.computeIfAbsent(microserviceName, this::createSettings);
+    }
+
+    private Settings createSettings(String microserviceName) {
+        String prefix = MicroserviceConnectionPools.SERVICE_PREFIX + microserviceName + ".circuit-breaker.";
+        return new Settings(environment.getProperty(prefix + "enabled", Boolean.class, enabled),
+                environment.getProperty(prefix + "window-size", Integer.class, windowSize),
+                environment.getProperty(prefix + "minimum-calls", Integer.class, minimumCalls),
+                environment.getProperty(prefix + "failure-rate-threshold", Integer.class, failureRateThreshold),
+                environment.getProperty(prefix + "slow-call-duration", Long.class, slowCallDuration),
+                environment.getProperty(prefix + "slow-call-rate-threshold", Integer.class, slowCallRateThreshold),
+                environment.getProperty(prefix + "wait-in-open-state", Long.class, waitInOpenState),
+                environment.getProperty(prefix + "half-open-calls", Integer.class, halfOpenCalls));
+    }
+
+    /**
+     * @return every created breaker by microservice name, breakers of instances by microservice name with instance host and port
+     */
+    public Map<String, CircuitBreaker> getCircuitBreakers() {
+        return Collections.unmodifiableMap(new HashMap<>(circuitBreakers));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (instance == this) {
+            instance = null;
+        }
+    }
+
+    private static final class Settings {
+
+        private final boolean enabled;
+        private final int windowSize;
+        private final int minimumCalls;
+        private final int failureRateThreshold;
+        private final long slowCallDuration;
+        private final int slowCallRateThreshold;
+        private final long waitInOpenState;
+        private final int halfOpenCalls;
+
+        private Settings(boolean enabled, int windowSize, int minimumCalls, int failureRateThreshold, long slowCallDuration,
+                         int slowCallRateThreshold, long waitInOpenState, int halfOpenCalls) {
+            this.enabled = enabled;
+            this.windowSize = windowSize;
+            this.minimumCalls = minimumCalls;
+            this.failureRateThreshold = failureRateThreshold;
+            this.slowCallDuration = slowCallDuration;
+            this.slowCallRateThreshold = slowCallRateThreshold;
+            this.waitInOpenState = waitInOpenState;
+            this.halfOpenCalls = halfOpenCalls;
+        }
+
+        private CircuitBreaker create(String name) {
+            return new CircuitBreaker(name, windowSize, minimumCalls, failureRateThreshold, slowCallDuration,
+                    slowCallRateThreshold, waitInOpenState, halfOpenCalls);
+        }
+
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.exceptions.InvalidStateException;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.RequestCompression;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compression settings of requests to microservices.
+ * <p>
+ * Request body is compressed with {@code biqa.microservice.communicator.compression.request.encoding} (none, gzip or deflate)
+ * if it is not smaller than {@code biqa.microservice.communicator.compression.request.threshold} bytes.
+ * Compressed responses are accepted if {@code biqa.microservice.communicator.compression.response} is true.
+ * Every setting can be overridden per microservice with {@code biqa.microservice.communicator.services.<microservice name>.compression.*}
+ * and per interface or method with annotation
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Component
+public class MicroserviceCompression {
+
+    private static final CompressionSettings NO_CONTEXT_SETTINGS = new CompressionSettings(null, 2048, true);
+
+    private static MicroserviceCompression instance;
+
+    private final Environment environment;
+    private final CompressionSettings defaultSettings;
+    private final ConcurrentMap<String, CompressionSettings> settings = new ConcurrentHashMap<>();
+
+    @Autowired
+    public MicroserviceCompression(Environment environment,
+                                   @Value("${biqa.microservice.communicator.compression.request.encoding:none}") String requestEncoding,
+                                   @Value("${biqa.microservice.communicator.compression.request.threshold:2048}") int requestThreshold,
+                                   @Value("${biqa.microservice.communicator.compression.response:true}") boolean acceptCompressedResponse) {
+        this.environment = environment;
+        this.defaultSettings = new CompressionSettings(parseEncoding(requestEncoding), requestThreshold, acceptCompressedResponse);
+        MicroserviceCompression.instance = this;
+    }
+
+    /**
+     * @param context state of current call with annotation settings
+     * @return compression settings of request
+     */
+    static CompressionSettings resolveStaticInternal(MicroserviceCallContext context) {
+        MicroserviceCompression compression = instance;
+        CompressionSettings settings = compression == null ? NO_CONTEXT_SETTINGS : compression.getSettings(context.getMicroserviceName());
+
+        RequestCompression requestCompression = context.getRequestCompression();
+        int requestCompressionThreshold = context.getRequestCompressionThreshold();
+        if (requestCompression == RequestCompression.DEFAULT && requestCompressionThreshold < 0) {
+            return settings;
+        }
+
+        return new CompressionSettings(
+                requestCompression == RequestCompression.DEFAULT ? settings.requestEncoding : requestCompression.getContentEncoding(),
+                requestCompressionThreshold < 0 ? settings.requestThreshold : requestCompressionThreshold,
+                settings.acceptCompressedResponse);
+    }
+
+    /**
+     * @param microserviceName microservice name
+     * @return settings with per microservice overrides
+     */
+    CompressionSettings getSettings(String microserviceName) {
+        String key = microserviceName == null ? "" : microserviceName;
+        CompressionSettings compressionSettings = settings.get(key);
+        if (compressionSettings != null) {
+            return compressionSettings;
+        }
+
+        return settings.computeIfAbsent(key, name -> {
+            String prefix = MicroserviceConnectionPools.SERVICE_PREFIX + name + ".compression.";
+            String requestEncoding = environment.getProperty(prefix + "request.encoding");
+            return new CompressionSettings(
+                    requestEncoding == null ? defaultSettings.requestEncoding : parseEncoding(requestEncoding),
+                    environment.getProperty(prefix + "request.threshold", Integer.class, defaultSettings.requestThreshold),
+                    environment.getProperty(prefix + "response", Boolean.class, defaultSettings.acceptCompressedResponse));
+        });
+    }
+
+    CompressionSettings getDefaultSettings() {
+        return defaultSettings;
+    }
+
+    private static String parseEncoding(String encoding) {
+        try {
+            RequestCompression requestCompression = RequestCompression.valueOf(encoding.trim().toUpperCase());
+            return requestCompression.getContentEncoding();
+        } catch (IllegalArgumentException e) {
+            throw new InvalidStateException("Unsupported request compression " + encoding + ", use none, gzip or deflate");
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (instance == this) {
+            instance = null;
+        }
+    }
+
+    static class CompressionSettings {
+        // null if request body is not compressed
+        final String requestEncoding;
+        final int requestThreshold;
+        final boolean acceptCompressedResponse;
+
+        CompressionSettings(String requestEncoding, int requestThreshold, boolean acceptCompressedResponse) {
+            this.requestEncoding = requestEncoding;
+            this.requestThreshold = requestThreshold;
+            this.acceptCompressedResponse = acceptCompressedResponse;
+        }
+    }
+
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.internal.VirtualThreads;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pooled HTTP connections, one pool per target microservice.
+ * <p>
+ * Every setting can be set globally with {@code biqa.microservice.communicator.pool.*} property
+ * or per microservice with {@code biqa.microservice.communicator.services.<microservice name>.pool.*}.
+ * Expired and idle connections of all pools are closed by one background thread.
+ * <p>
+ * If calls run on virtual threads, requests wait for free connection on {@link java.util.concurrent.Semaphore}
+ * before they enter pool, see {@link RouteLimitedClientHttpRequestFactory}
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Component
+public class MicroserviceConnectionPools {
+
+    private static final Logger logger = LoggerFactory.getLogger(MicroserviceConnectionPools.class);
+
+    static final String GLOBAL_PREFIX = "biqa.microservice.communicator.pool.";
+    public static final String SERVICE_PREFIX = "biqa.microservice.communicator.services.";
+
+    private static MicroserviceConnectionPools instance;
+
+    private final Environment environment;
+    private final PoolSettings defaultSettings;
+    private final ConcurrentMap<String, MicroserviceConnectionPool> pools = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictionExecutor;
+    private final long evictionInterval;
+    private final boolean virtualThreads;
+
+    @Autowired
+    public MicroserviceConnectionPools(Environment environment,
+                                       @Value("${biqa.microservice.communicator.pool.max-total:200}") int maxTotal,
+                                       @Value("${biqa.microservice.communicator.pool.max-per-route:50}") int maxPerRoute,
+                                       @Value("${biqa.microservice.communicator.pool.keep-alive:30000}") long keepAlive,
+                                       @Value("${biqa.microservice.communicator.pool.validate-after-inactivity:2000}") int validateAfterInactivity,
+                                       @Value("${biqa.microservice.communicator.pool.idle-timeout:60000}") long idleTimeout,
+                                       @Value("${biqa.microservice.communicator.pool.connect-timeout:5000}") int connectTimeout,
+                                       @Value("${biqa.microservice.communicator.pool.connection-request-timeout:5000}") int connectionRequestTimeout,
+                                       @Value("${biqa.microservice.communicator.pool.socket-timeout:60000}") int socketTimeout,
+                                       @Value("${biqa.microservice.communicator.pool.eviction-interval:5000}") long evictionInterval,
+                                       @Value("${biqa.microservice.communicator.virtual-threads.enabled:false}") boolean virtualThreads) {
+        this.environment = environment;
+        this.defaultSettings = new PoolSettings(maxTotal, maxPerRoute, keepAlive, validateAfterInactivity, idleTimeout,
+                connectTimeout, connectionRequestTimeout, socketTimeout);
+
+        this.evictionInterval = evictionInterval;
+        this.virtualThreads = virtualThreads && VirtualThreads.isSupported();
+        this.evictionExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "microservice-connection-eviction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.evictionExecutor.scheduleWithFixedDelay(this::evictConnections, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+
+        MicroserviceConnectionPools.instance = this;
+    }
+
+    /**
+     * @param microserviceName microservice name, or URL if microservice is not in service discovery
+     * @return request factory with connection pool of microservice;
+     * null if Spring context is not initialized
+     */
+    static ClientHttpRequestFactory getRequestFactoryStaticInternal(String microserviceName) {
+        MicroserviceConnectionPools pools = instance;
+        if (pools == null) {
+            return null;
+        }
+        return pools.getRequestFactory(microserviceName);
+    }
+
+    /**
+     * @param microserviceName microservice name, or URL if microservice is not in service discovery
+     * @return request factory which does not buffer request body, with connection pool of microservice;
+     * null if Spring context is not initialized
+     */
+    static ClientHttpRequestFactory getStreamingRequestFactoryStaticInternal(String microserviceName) {
+        MicroserviceConnectionPools pools = instance;
+        if (pools == null) {
+            return null;
+        }
+        return pools.getStreamingRequestFactory(microserviceName);
+    }
+
+    /**
+     * @param microserviceName microservice name, or URL if microservice is not in service discovery
+     * @return request factory with connection pool of microservice
+     */
+    public ClientHttpRequestFactory getRequestFactory(String microserviceName) {
+        return getPool(microserviceName == null ? "" : microserviceName).requestFactory;
+    }
+
+    /**
+     * @param microserviceName microservice name, or URL if microservice is not in service discovery
+     * @return request factory which writes request body straight to connection, with connection pool of microservice
+     */
+    public ClientHttpRequestFactory getStreamingRequestFactory(String microserviceName) {
+        return getPool(microserviceName == null ? "" : microserviceName).streamingRequestFactory;
+    }
+
+    private MicroserviceConnectionPool getPool(String microserviceName) {
+        MicroserviceConnectionPool pool = pools.get(microserviceName);
+        if (pool != null) {
+            return pool;
+        }
+        return pools.computeIfAbsent(microserviceName, name -> new MicroserviceConnectionPool(name, resolveSettings(name), virtualThreads));
+    }
+
+    /**
+     * @param microserviceName microservice name
+     * @return pool settings with per microservice overrides
+     */
+    PoolSettings resolveSettings(String microserviceName) {
+        String prefix = SERVICE_PREFIX + microserviceName + ".pool.";
+        return new PoolSettings(
+                environment.getProperty(prefix + "max-total", Integer.class, defaultSettings.maxTotal),
+                environment.getProperty(prefix + "max-per-route", Integer.class, defaultSettings.maxPerRoute),
+                environment.getProperty(prefix + "keep-alive", Long.class, defaultSettings.keepAlive),
+                environment.getProperty(prefix + "validate-after-inactivity", Integer.class, defaultSettings.validateAfterInactivity),
+                environment.getProperty(prefix + "idle-timeout", Long.class, defaultSettings.idleTimeout),
+                environment.getProperty(prefix + "connect-timeout", Integer.class, defaultSettings.connectTimeout),
+                environment.getProperty(prefix + "connection-request-timeout", Integer.class, defaultSettings.connectionRequestTimeout),
+                environment.getProperty(prefix + "socket-timeout", Integer.class, defaultSettings.socketTimeout));
+    }
+
+    PoolSettings getDefaultSettings() {
+        return defaultSettings;
+    }
+
+    long getEvictionInterval() {
+        return evictionInterval;
+    }
+
+    /**
+     * @param microserviceName microservice name
+     * @return total stats of microservice pool; null if there were no requests to microservice
+     */
+    public PoolStats getPoolStats(String microserviceName) {
+        MicroserviceConnectionPool pool = pools.get(microserviceName);
+        return pool == null ? null : pool.connectionManager.getTotalStats();
+    }
+
+    /**
+     * @return total stats of every created pool by microservice name
+     */
+    public Map<String, PoolStats> getPoolStats() {
+        Map<String, PoolStats> stats = new HashMap<>();
+        pools.forEach((name, pool) -> stats.put(name, pool.connectionManager.getTotalStats()));
+        return Collections.unmodifiableMap(stats);
+    }
+
+    private void evictConnections() {
+        for (MicroserviceConnectionPool pool : pools.values()) {
+            try {
+                pool.connectionManager.closeExpiredConnections();
+                pool.connectionManager.closeIdleConnections(pool.settings.idleTimeout, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                logger.warn("Can not evict connections of microservice {}", pool.microserviceName, e);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        evictionExecutor.shutdownNow();
+        for (MicroserviceConnectionPool pool : pools.values()) {
+            try {
+                pool.httpClient.close();
+            } catch (IOException e) {
+                logger.warn("Can not close connection pool of microservice {}", pool.microserviceName, e);
+            }
+        }
+        pools.clear();
+
+        if (instance == this) {
+            instance = null;
+        }
+    }
+
+    /**
+     * Use timeout from server Keep-Alive header; if there is no such header - use default keep alive
+     */
+    static ConnectionKeepAliveStrategy keepAliveStrategy(long defaultKeepAlive) {
+        return (response, context) -> {
+            HeaderElementIterator iterator = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (iterator.hasNext()) {
+                HeaderElement element = iterator.nextElement();
+                if (element.getValue() != null && "timeout".equalsIgnoreCase(element.getName())) {
+                    try {
+                        return Long.parseLong(element.getValue()) * 1000;
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+            return defaultKeepAlive;
+        };
+    }
+
+    static class PoolSettings {
+        final int maxTotal;
+        final int maxPerRoute;
+        // used if server does not send Keep-Alive header
+        final long keepAlive;
+        final int validateAfterInactivity;
+        final long idleTimeout;
+        final int connectTimeout;
+        final int connectionRequestTimeout;
+        final int socketTimeout;
+
+        PoolSettings(int maxTotal, int maxPerRoute, long keepAlive, int validateAfterInactivity, long idleTimeout,
+                     int connectTimeout, int connectionRequestTimeout, int socketTimeout) {
+            this.maxTotal = maxTotal;
+            this.maxPerRoute = maxPerRoute;
+            this.keepAlive = keepAlive;
+            this.validateAfterInactivity = validateAfterInactivity;
+            this.idleTimeout = idleTimeout;
+            this.connectTimeout = connectTimeout;
+            this.connectionRequestTimeout = connectionRequestTimeout;
+            this.socketTimeout = socketTimeout;
+        }
+    }
+
+    private static class MicroserviceConnectionPool {
+        final String microserviceName;
+        final PoolSettings settings;
+        final PoolingHttpClientConnectionManager connectionManager;
+        final CloseableHttpClient httpClient;
+        final ClientHttpRequestFactory requestFactory;
+        final ClientHttpRequestFactory streamingRequestFactory;
+
+        /**
+         * @param virtualThreads true to wait for connection before request enters pool
+         */
+        MicroserviceConnectionPool(String microserviceName, PoolSettings settings, boolean virtualThreads) {
+            this.microserviceName = microserviceName;
+            this.settings = settings;
+
+            connectionManager = new PoolingHttpClientConnectionManager();
+            connectionManager.setMaxTotal(settings.maxTotal);
+            connectionManager.setDefaultMaxPerRoute(settings.maxPerRoute);
+            connectionManager.setValidateAfterInactivity(settings.validateAfterInactivity);
+
+            RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(settings.connectTimeout)
+                    .setConnectionRequestTimeout(settings.connectionRequestTimeout)
+                    .setSocketTimeout(settings.socketTimeout)
+                    .build();
+
+            httpClient = HttpClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setKeepAliveStrategy(keepAliveStrategy(settings.keepAlive))
+                    .setDefaultRequestConfig(requestConfig)
+                    // responses are decoded by MicroserviceRestTemplate with pooled inflaters
+                    .disableContentCompression()
+                    .build();
+
+            MicroserviceHttpComponentsClientHttpRequestFactory requestFactory = createRequestFactory(httpClient, settings);
+
+            // shares connection pool
+            MicroserviceHttpComponentsClientHttpRequestFactory streamingRequestFactory = createRequestFactory(httpClient, settings);
+            streamingRequestFactory.setBufferRequestBody(false);
+
+            if (virtualThreads) {
+                // HttpClient waits for free connection holding monitor, so waiting virtual thread would pin carrier thread
+                RouteLimitedClientHttpRequestFactory.RouteLimiter routeLimiter = new RouteLimitedClientHttpRequestFactory.RouteLimiter(
+                        "pooled connection", settings.maxPerRoute, settings.maxTotal, settings.connectionRequestTimeout);
+                this.requestFactory = new RouteLimitedClientHttpRequestFactory(requestFactory, routeLimiter);
+                this.streamingRequestFactory = new RouteLimitedClientHttpRequestFactory(streamingRequestFactory, routeLimiter);
+            } else {
+                this.requestFactory = requestFactory;
+                this.streamingRequestFactory = streamingRequestFactory;
+            }
+        }
+
+        private static MicroserviceHttpComponentsClientHttpRequestFactory createRequestFactory(CloseableHttpClient httpClient, PoolSettings settings) {
+            MicroserviceHttpComponentsClientHttpRequestFactory requestFactory = new MicroserviceHttpComponentsClientHttpRequestFactory(httpClient);
+            requestFactory.setConnectTimeout(settings.connectTimeout);
+            requestFactory.setConnectionRequestTimeout(settings.connectionRequestTimeout);
+            requestFactory.setReadTimeout(settings.socketTimeout);
+            return requestFactory;
+        }
+    }
+
+}
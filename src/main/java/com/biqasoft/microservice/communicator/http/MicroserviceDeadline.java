@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Deadline of request which is processed by current thread, e.g. received from caller microservice in
+ * {@link #DEFAULT_HEADER} header by {@link MicroserviceDeadlineFilter}.
+ * <p>
+ * Calls to microservices made while request is processed finish before this deadline, see {@link DeadlinePropagationInterceptor}
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+public final class MicroserviceDeadline {
+
+    /**
+     * Header with millis left to deadline of caller
+     */
+    public static final String DEFAULT_HEADER = "X-Deadline-Remaining-Ms";
+
+    // System.nanoTime() of deadline
+    private static final ThreadLocal<Long> deadlineTime = new ThreadLocal<>();
+
+    private MicroserviceDeadline() {
+    }
+
+    /**
+     * @return {@link System#nanoTime()} of deadline of current thread; 0 if there is no deadline
+     */
+    public static long getDeadlineTime() {
+        Long time = deadlineTime.get();
+        return time == null ? 0 : time;
+    }
+
+    /**
+     * @param time {@link System#nanoTime()} of deadline; 0 to remove deadline
+     * @return previous deadline of current thread; 0 if there was no deadline
+     */
+    public static long setDeadlineTime(long time) {
+        long previous = getDeadlineTime();
+        if (time == 0) {
+            deadlineTime.remove();
+        } else {
+            deadlineTime.set(time);
+        }
+        return previous;
+    }
+
+    /**
+     * @param remaining millis from now
+     * @return previous deadline of current thread; 0 if there was no deadline
+     */
+    public static long setRemainingTime(long remaining) {
+        return setDeadlineTime(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remaining));
+    }
+
+    /**
+     * @return millis left to deadline of current thread, 0 or less if deadline is passed; {@link Long#MAX_VALUE} if there is no deadline
+     */
+    public static long getRemainingTime() {
+        long time = getDeadlineTime();
+        if (time == 0) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(time - System.nanoTime());
+    }
+
+    /**
+     * @return true if current thread has deadline and it is passed
+     */
+    public static boolean isExpired() {
+        long time = getDeadlineTime();
+        return time != 0 && time - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @param supplier task which is run in other thread
+     * @return task which runs with deadline of current thread
+     */
+    public static <T> Supplier<T> wrap(Supplier<T> supplier) {
+        long time = getDeadlineTime();
+        if (time == 0) {
+            return supplier;
+        }
+
+        return () -> {
+            long previous = setDeadlineTime(time);
+            try {
+                return supplier.get();
+            } finally {
+                setDeadlineTime(previous);
+            }
+        };
+    }
+
+}
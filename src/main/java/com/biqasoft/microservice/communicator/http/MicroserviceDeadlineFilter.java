@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.internal.ServletCondition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Conditional;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Read deadline of caller microservice from request header and set it as {@link MicroserviceDeadline} of thread
+ * which processes request, so calls to other microservices made while processing request inherit it.
+ * <p>
+ * Request which deadline is already passed is rejected with 504 if {@code biqa.microservice.communicator.deadline.reject-expired} is true.
+ * Registered automatically by spring boot; add it with {@link org.springframework.web.filter.DelegatingFilterProxy} otherwise
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Component
+@Conditional(ServletCondition.class)
+public class MicroserviceDeadlineFilter extends OncePerRequestFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(MicroserviceDeadlineFilter.class);
+
+    private final boolean enabled;
+    private final String header;
+    private final boolean rejectExpired;
+
+    public MicroserviceDeadlineFilter(@Value("${biqa.microservice.communicator.deadline.propagation:true}") boolean enabled,
+                                      @Value("${biqa.microservice.communicator.deadline.header:" + MicroserviceDeadline.DEFAULT_HEADER + "}") String header,
+                                      @Value("${biqa.microservice.communicator.deadline.reject-expired:true}") boolean rejectExpired) {
+        this.enabled = enabled;
+        this.header = header;
+        this.rejectExpired = rejectExpired;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        long remaining = enabled ? parseRemainingTime(request.getHeader(header)) : -1;
+        if (remaining < 0) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        if (remaining == 0 && rejectExpired) {
+            response.sendError(HttpStatus.GATEWAY_TIMEOUT.value(), "Deadline of caller is exceeded");
+            return;
+        }
+
+        long previous = MicroserviceDeadline.setRemainingTime(remaining);
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            MicroserviceDeadline.setDeadlineTime(previous);
+        }
+    }
+
+    /**
+     * @return millis left to deadline; -1 if header is not set or not valid
+     */
+    private long parseRemainingTime(String value) {
+        if (value == null) {
+            return -1;
+        }
+
+        try {
+            long remaining = Long.parseLong(value.trim());
+            return remaining < 0 ? 0 : remaining;
+        } catch (NumberFormatException e) {
+            logger.debug("Invalid {} header {}", header, value);
+            return -1;
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.internal.VirtualThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Run blocking microservice calls concurrently, e.g. call many microservices to build one response.
+ * <p>
+ * If {@code biqa.microservice.communicator.virtual-threads.enabled} is true and JDK supports virtual threads,
+ * every call runs on new virtual thread, as well as interface methods which return {@link CompletableFuture}.
+ * Otherwise calls run on pool of {@code biqa.microservice.communicator.fan-out.threads} platform threads.
+ * Calls inherit {@link MicroserviceDeadline} of caller thread
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Component
+public class MicroserviceFanOut {
+
+    private static final Logger logger = LoggerFactory.getLogger(MicroserviceFanOut.class);
+
+    private static MicroserviceFanOut instance;
+
+    // null if virtual threads are disabled
+    private final ExecutorService virtualThreadExecutor;
+    private final ExecutorService executor;
+
+    public MicroserviceFanOut(@Value("${biqa.microservice.communicator.virtual-threads.enabled:false}") boolean virtualThreads,
+                              @Value("${biqa.microservice.communicator.fan-out.threads:64}") int threads) {
+        ExecutorService virtualThreadExecutor = null;
+        if (virtualThreads) {
+            virtualThreadExecutor = VirtualThreads.newVirtualThreadPerTaskExecutor("microservice-call-");
+            if (virtualThreadExecutor == null) {
+                logger.warn("Virtual threads are not supported by JDK {}, platform threads are used", System.getProperty("java.version"));
+            }
+        }
+        this.virtualThreadExecutor = virtualThreadExecutor;
+
+        if (virtualThreadExecutor != null) {
+            this.executor = virtualThreadExecutor;
+        } else {
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "microservice-fan-out-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        MicroserviceFanOut.instance = this;
+    }
+
+    /**
+     * @return executor which starts virtual thread per task;
+     * null if Spring context is not initialized or virtual threads are disabled
+     */
+    public static ExecutorService getVirtualThreadExecutorStaticInternal() {
+        MicroserviceFanOut fanOut = instance;
+        return fanOut == null ? null : fanOut.virtualThreadExecutor;
+    }
+
+    /**
+     * @return true if calls run on virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreadExecutor != null;
+    }
+
+    /**
+     * @param call blocking call, e.g. method of microservice interface
+     * @return future completed with result of call
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> call) {
+        return CompletableFuture.supplyAsync(MicroserviceDeadline.wrap(call), executor);
+    }
+
+    /**
+     * Run all calls concurrently and wait for all results
+     *
+     * @param calls blocking calls, e.g. methods of microservice interfaces
+     * @return results in order of calls
+     * @throws RuntimeException first in order exception thrown by call, after all calls are finished
+     */
+    public <T> List<T> invokeAll(List<? extends Supplier<? extends T>> calls) {
+        List<CompletableFuture<? extends T>> futures = new ArrayList<>(calls.size());
+        for (Supplier<? extends T> call : calls) {
+            futures.add(CompletableFuture.supplyAsync(MicroserviceDeadline.wrap(call), executor));
+        }
+
+        List<T> results = new ArrayList<>(calls.size());
+        RuntimeException exception = null;
+        for (CompletableFuture<? extends T> future : futures) {
+            try {
+                results.add(future.join());
+            } catch (CompletionException e) {
+                if (exception == null) {
+                    exception = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                }
+            }
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+        return results;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+
+        if (instance == this) {
+            instance = null;
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedge budget of microservices and timer of hedged requests, see {@link com.biqasoft.microservice.communicator.interfaceimpl.annotation.MicroMapping#hedge()}.
+ * <p>
+ * Every call of hedged method adds {@code biqa.microservice.communicator.hedge.budget} percent of one hedged request to budget
+ * of microservice, so hedged requests can not multiply load of slow microservice. Budget can be overridden with
+ * {@code biqa.microservice.communicator.services.<microservice name>.hedge.budget}
+ * <p>
+ * Hedged requests run on own executor, not on {@link MicroserviceFanOut} executor: caller of hedged method can be a fan-out thread
+ * which waits for hedged request, so hedged request queued behind it on fixed pool could never start
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Component
+public class MicroserviceHedging {
+
+    // max number of hedged requests which can be saved in budget
+    private static final long MAX_HEDGES = 10;
+    private static final long HEDGE_COST = 100;
+
+    private static MicroserviceHedging instance;
+
+    private final Environment environment;
+    private final int budget;
+    private final ConcurrentMap<String, HedgeBudget> budgets = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    // threads are not limited by pool, number of hedged requests is limited by budget
+    private final ExecutorService executor;
+
+    @Autowired
+    public MicroserviceHedging(Environment environment,
+                               @Value("${biqa.microservice.communicator.hedge.budget:10}") int budget) {
+        this.environment = environment;
+        this.budget = budget;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "microservice-hedge-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "microservice-hedge-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        MicroserviceHedging.instance = this;
+    }
+
+    /**
+     * @return null if Spring context is not initialized
+     */
+    static MicroserviceHedging getHedgingStaticInternal() {
+        return instance;
+    }
+
+    /**
+     * @param microserviceName microservice name, or URL if microservice is not in service discovery
+     * @return percent of calls of hedged methods which can send hedged request
+     */
+    public int getBudget(String microserviceName) {
+        return getHedgeBudget(microserviceName).percent;
+    }
+
+    private HedgeBudget getHedgeBudget(String microserviceName) {
+        String key = microserviceName == null ? "" : microserviceName;
+        HedgeBudget hedgeBudget = budgets.get(key);
+        if (hedgeBudget != null) {
+            return hedgeBudget;
+        }
+        return budgets.computeIfAbsent(key, x -> new HedgeBudget(environment.getProperty(
+                MicroserviceConnectionPools.SERVICE_PREFIX + x + ".hedge.budget", Integer.class, budget)));
+    }
+
+    /**
+     * Add share of hedged request to budget on call of hedged method
+     */
+    void onCall(String microserviceName) {
+        HedgeBudget hedgeBudget = getHedgeBudget(microserviceName);
+        long max = MAX_HEDGES * HEDGE_COST;
+        long tokens = hedgeBudget.tokens.get();
+        while (tokens < max && !hedgeBudget.tokens.compareAndSet(tokens, Math.min(max, tokens + hedgeBudget.percent))) {
+            tokens = hedgeBudget.tokens.get();
+        }
+    }
+
+    /**
+     * @return true if hedged request can be sent
+     */
+    boolean tryAcquire(String microserviceName) {
+        AtomicLong tokens = getHedgeBudget(microserviceName).tokens;
+        long current = tokens.get();
+        while (current >= HEDGE_COST) {
+            if (tokens.compareAndSet(current, current - HEDGE_COST)) {
+                return true;
+            }
+            current = tokens.get();
+        }
+        return false;
+    }
+
+    /**
+     * @return null if timer is shut down
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        try {
+            return timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return executor of hedged requests
+     */
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+        executor.shutdownNow();
+
+        if (instance == this) {
+            instance = null;
+        }
+    }
+
+    private static class HedgeBudget {
+        final int percent;
+        // hundredths of hedged request
+        final AtomicLong tokens = new AtomicLong();
+
+        HedgeBudget(int percent) {
+            this.percent = percent;
+        }
+    }
+
+}
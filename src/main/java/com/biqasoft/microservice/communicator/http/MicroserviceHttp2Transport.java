@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.internal.Http2ClientCondition;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Conditional;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.OkHttp3ClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP/2 transport for microservices annotated with {@code @Microservice(http2 = true)}.
+ * <p>
+ * Concurrent requests to one instance are multiplexed as streams over few connections, instead of one connection per request.
+ * Plain text microservices are called with h2c with prior knowledge, https microservices - with h2 negotiated with ALPN.
+ * Number of concurrent streams to one instance is limited by {@code biqa.microservice.communicator.http2.max-concurrent-streams}
+ * (can be set per microservice with {@code biqa.microservice.communicator.services.<microservice name>.http2.max-concurrent-streams});
+ * request waits for free stream up to pool {@code connection-request-timeout}.
+ * <p>
+ * If {@code biqa.microservice.communicator.http2.coalescing} is true (default) all microservices share one connection pool,
+ * so connection to instance is reused by every microservice name which is resolved to it, and https connection is reused
+ * for other host names of the same IP address if certificate is valid for them
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Component
+@Conditional(Http2ClientCondition.class)
+public class MicroserviceHttp2Transport {
+
+    private static MicroserviceHttp2Transport instance;
+
+    private final Environment environment;
+    private final MicroserviceConnectionPools connectionPools;
+    private final int maxConcurrentStreams;
+    private final int maxIdleConnections;
+    private final boolean coalescing;
+
+    private final OkHttpClient rootClient;
+    private final ConcurrentMap<String, MicroserviceHttp2Client> clients = new ConcurrentHashMap<>();
+
+    @Autowired
+    public MicroserviceHttp2Transport(Environment environment, MicroserviceConnectionPools connectionPools,
+                                      @Value("${biqa.microservice.communicator.http2.max-concurrent-streams:100}") int maxConcurrentStreams,
+                                      @Value("${biqa.microservice.communicator.http2.max-idle-connections:5}") int maxIdleConnections,
+                                      @Value("${biqa.microservice.communicator.http2.coalescing:true}") boolean coalescing) {
+        this.environment = environment;
+        this.connectionPools = connectionPools;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.maxIdleConnections = maxIdleConnections;
+        this.coalescing = coalescing;
+
+        this.rootClient = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(maxIdleConnections, connectionPools.getDefaultSettings().keepAlive, TimeUnit.MILLISECONDS))
+                // failed requests are retried by MicroserviceRestTemplate on another instance
+                .retryOnConnectionFailure(false)
+                .build();
+
+        MicroserviceHttp2Transport.instance = this;
+    }
+
+    /**
+     * @param microserviceName microservice name, or URL if microservice is not in service discovery
+     * @return HTTP/2 request factory of microservice; null if Spring context is not initialized or okhttp is not in classpath
+     */
+    static ClientHttpRequestFactory getRequestFactoryStaticInternal(String microserviceName) {
+        MicroserviceHttp2Transport transport = instance;
+        if (transport == null) {
+            return null;
+        }
+        return transport.getRequestFactory(microserviceName);
+    }
+
+    /**
+     * @param microserviceName microservice name, or URL if microservice is not in service discovery
+     * @return HTTP/2 request factory of microservice
+     */
+    public ClientHttpRequestFactory getRequestFactory(String microserviceName) {
+        return getClient(microserviceName == null ? "" : microserviceName).requestFactory;
+    }
+
+    /**
+     * @param microserviceName microservice name
+     * @return number of open HTTP/2 connections which microservice can use; 0 if there were no requests to microservice
+     */
+    public int getConnectionCount(String microserviceName) {
+        MicroserviceHttp2Client client = clients.get(microserviceName);
+        return client == null ? 0 : client.h2c.connectionPool().connectionCount();
+    }
+
+    private MicroserviceHttp2Client getClient(String microserviceName) {
+        MicroserviceHttp2Client client = clients.get(microserviceName);
+        if (client != null) {
+            return client;
+        }
+        return clients.computeIfAbsent(microserviceName, this::createClient);
+    }
+
+    private MicroserviceHttp2Client createClient(String microserviceName) {
+        MicroserviceConnectionPools.PoolSettings settings = connectionPools.resolveSettings(microserviceName);
+
+        // derived client shares dispatcher and, if coalescing is enabled, connection pool
+        OkHttpClient.Builder builder = rootClient.newBuilder()
+                .connectTimeout(settings.connectTimeout, TimeUnit.MILLISECONDS)
+                .readTimeout(settings.socketTimeout, TimeUnit.MILLISECONDS)
+                .writeTimeout(settings.socketTimeout, TimeUnit.MILLISECONDS);
+        if (!coalescing) {
+            builder.connectionPool(new ConnectionPool(maxIdleConnections, settings.keepAlive, TimeUnit.MILLISECONDS));
+        }
+
+        OkHttpClient h2c = builder.protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE)).build();
+        OkHttpClient h2 = builder.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)).build();
+
+        int streams = environment.getProperty(MicroserviceConnectionPools.SERVICE_PREFIX + microserviceName + ".http2.max-concurrent-streams",
+                Integer.class, maxConcurrentStreams);
+
+        // limit number of concurrent streams to one instance
+        return new MicroserviceHttp2Client(h2c, new RouteLimitedClientHttpRequestFactory(new Http2ClientHttpRequestFactory(h2c, h2),
+                new RouteLimitedClientHttpRequestFactory.RouteLimiter("HTTP/2 stream", streams, 0, settings.connectionRequestTimeout)));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        rootClient.dispatcher().executorService().shutdown();
+        rootClient.connectionPool().evictAll();
+        for (MicroserviceHttp2Client client : clients.values()) {
+            client.h2c.connectionPool().evictAll();
+        }
+        clients.clear();
+
+        if (instance == this) {
+            instance = null;
+        }
+    }
+
+    /**
+     * Choose h2c or h2 client by URL scheme
+     */
+    private static class Http2ClientHttpRequestFactory implements TimeoutClientHttpRequestFactory {
+        private final OkHttpClient h2c;
+        private final OkHttpClient h2;
+        private final ClientHttpRequestFactory h2cRequestFactory;
+        private final ClientHttpRequestFactory h2RequestFactory;
+
+        Http2ClientHttpRequestFactory(OkHttpClient h2c, OkHttpClient h2) {
+            this.h2c = h2c;
+            this.h2 = h2;
+            this.h2cRequestFactory = new OkHttp3ClientHttpRequestFactory(h2c);
+            this.h2RequestFactory = new OkHttp3ClientHttpRequestFactory(h2);
+        }
+
+        @Override
+        public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+            boolean https = "https".equalsIgnoreCase(uri.getScheme());
+            if (MicroserviceHttpComponentsClientHttpRequestFactory.getCancellableCall() != null) {
+                OkHttpClient client = https ? h2 : h2c;
+                return new OkHttp3ClientHttpRequestFactory(abortable(client.newBuilder()).build()).createRequest(uri, httpMethod);
+            }
+            return (https ? h2RequestFactory : h2cRequestFactory).createRequest(uri, httpMethod);
+        }
+
+        @Override
+        public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod, RequestTimeouts timeouts) throws IOException {
+            OkHttpClient client = "https".equalsIgnoreCase(uri.getScheme()) ? h2 : h2c;
+
+            // derived client shares connections and dispatcher
+            int responseTimeout = timeouts.getResponseTimeout(client.readTimeoutMillis());
+            OkHttpClient.Builder builder = client.newBuilder()
+                    .connectTimeout(timeouts.getConnectTimeout(client.connectTimeoutMillis()), TimeUnit.MILLISECONDS)
+                    .readTimeout(responseTimeout, TimeUnit.MILLISECONDS)
+                    .writeTimeout(responseTimeout, TimeUnit.MILLISECONDS);
+            return new OkHttp3ClientHttpRequestFactory(abortable(builder).build()).createRequest(uri, httpMethod);
+        }
+
+        /**
+         * OkHttp call is created when request is executed, so interceptor passes it to call which can cancel request,
+         * e.g. hedged request which lost. Cancel resets HTTP/2 stream, connection is kept
+         */
+        private static OkHttpClient.Builder abortable(OkHttpClient.Builder builder) {
+            MicroserviceCallContext context = MicroserviceHttpComponentsClientHttpRequestFactory.getCancellableCall();
+            if (context != null) {
+                builder.addInterceptor(chain -> {
+                    context.setAbortAttempt(chain.call()::cancel);
+                    return chain.proceed(chain.request());
+                });
+            }
+            return builder;
+        }
+    }
+
+    private static class MicroserviceHttp2Client {
+        final OkHttpClient h2c;
+        final ClientHttpRequestFactory requestFactory;
+
+        MicroserviceHttp2Client(OkHttpClient h2c, ClientHttpRequestFactory requestFactory) {
+            this.h2c = h2c;
+            this.requestFactory = requestFactory;
+        }
+    }
+
+}
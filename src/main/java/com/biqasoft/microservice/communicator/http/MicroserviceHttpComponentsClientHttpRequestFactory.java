@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.protocol.HttpContext;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * {@link HttpComponentsClientHttpRequestFactory} with timeouts per request and abort of cancelled requests
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+class MicroserviceHttpComponentsClientHttpRequestFactory extends HttpComponentsClientHttpRequestFactory implements TimeoutClientHttpRequestFactory {
+
+    // config of request which is created now by this thread; request keeps its context after creation
+    private final ThreadLocal<RequestConfig> requestConfig = new ThreadLocal<>();
+
+    // call which can abort request created now by this thread
+    private static final ThreadLocal<MicroserviceCallContext> cancellableCall = new ThreadLocal<>();
+
+    MicroserviceHttpComponentsClientHttpRequestFactory() {
+    }
+
+    MicroserviceHttpComponentsClientHttpRequestFactory(HttpClient httpClient) {
+        super(httpClient);
+    }
+
+    @Override
+    public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod, RequestTimeouts timeouts) throws IOException {
+        RequestConfig defaultConfig = createRequestConfig(getHttpClient());
+        if (defaultConfig == null) {
+            defaultConfig = RequestConfig.DEFAULT;
+        }
+
+        requestConfig.set(RequestConfig.copy(defaultConfig)
+                .setConnectTimeout(timeouts.getConnectTimeout(defaultConfig.getConnectTimeout()))
+                .setSocketTimeout(timeouts.getResponseTimeout(defaultConfig.getSocketTimeout()))
+                .setConnectionRequestTimeout((int) timeouts.getWaitTimeout(defaultConfig.getConnectionRequestTimeout()))
+                .build());
+        try {
+            return createRequest(uri, httpMethod);
+        } finally {
+            requestConfig.remove();
+        }
+    }
+
+    /**
+     * Let call abort requests which are created by current thread, until {@link #clearCancellableCall()}
+     */
+    static void setCancellableCall(MicroserviceCallContext context) {
+        cancellableCall.set(context);
+    }
+
+    static void clearCancellableCall() {
+        cancellableCall.remove();
+    }
+
+    /**
+     * @return call which can abort request created now by this thread; null if request can not be cancelled
+     */
+    static MicroserviceCallContext getCancellableCall() {
+        return cancellableCall.get();
+    }
+
+    @Override
+    protected HttpUriRequest createHttpUriRequest(HttpMethod httpMethod, URI uri) {
+        HttpUriRequest request = super.createHttpUriRequest(httpMethod, uri);
+        MicroserviceCallContext context = cancellableCall.get();
+        if (context != null) {
+            context.setAbortAttempt(request::abort);
+        }
+        return request;
+    }
+
+    @Override
+    protected HttpContext createHttpContext(HttpMethod httpMethod, URI uri) {
+        RequestConfig config = requestConfig.get();
+        if (config == null) {
+            return null;
+        }
+
+        HttpClientContext context = HttpClientContext.create();
+        context.setRequestConfig(config);
+        return context;
+    }
+
+}
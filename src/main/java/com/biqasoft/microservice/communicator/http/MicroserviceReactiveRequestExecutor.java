@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.MicroserviceRequestMaker;
+import com.biqasoft.microservice.communicator.exceptions.CircuitBreakerOpenException;
+import com.biqasoft.microservice.communicator.exceptions.DeadlineExceededException;
+import com.biqasoft.microservice.communicator.exceptions.InternalSeverErrorProcessingRequestException;
+import com.biqasoft.microservice.communicator.exceptions.InvalidRequestException;
+import com.biqasoft.microservice.communicator.exceptions.RetryBudgetExhaustedException;
+import com.biqasoft.microservice.communicator.interfaceimpl.MicroserviceRequestInterceptor;
+import com.biqasoft.microservice.communicator.internal.ReactiveClientCondition;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.channel.ChannelOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Conditional;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeStrategies;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Requests to microservices for interface methods which return Reactor Mono or Flux.
+ * <p>
+ * Requests are sent with non-blocking {@link WebClient}; response body is decoded by caller, so Flux elements
+ * are emitted while JSON array is read. Retry and error semantics are the same as in {@link MicroserviceRestTemplate},
+ * pause between retries does not block thread
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Component
+@Conditional(ReactiveClientCondition.class)
+public class MicroserviceReactiveRequestExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(MicroserviceReactiveRequestExecutor.class);
+
+    private static MicroserviceReactiveRequestExecutor instance;
+
+    private final WebClient webClient;
+
+    @Autowired
+    public MicroserviceReactiveRequestExecutor(@Qualifier("defaultObjectMapperConfiguration") ObjectMapper objectMapper,
+                                               MicroserviceConnectionPools connectionPools,
+                                               MicroserviceCompression compression) {
+        // connector is shared by all microservices, so only global setting is used for responses
+        this(objectMapper, connectionPools.getDefaultSettings().connectTimeout, compression.getDefaultSettings().acceptCompressedResponse);
+        MicroserviceReactiveRequestExecutor.instance = this;
+    }
+
+    /**
+     * @param connectTimeout           millis to establish connection
+     * @param acceptCompressedResponse request gzip response
+     */
+    MicroserviceReactiveRequestExecutor(ObjectMapper objectMapper, int connectTimeout, boolean acceptCompressedResponse) {
+        ExchangeStrategies strategies = ExchangeStrategies.builder()
+                .codecs(configurer -> {
+                    configurer.defaultCodecs().jackson2JsonDecoder(new Jackson2JsonDecoder(objectMapper));
+                    configurer.defaultCodecs().jackson2JsonEncoder(new Jackson2JsonEncoder(objectMapper));
+                })
+                .build();
+
+        this.webClient = WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(options -> options
+                        .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout)
+                        .compression(acceptCompressedResponse)))
+                .exchangeStrategies(strategies)
+                .build();
+    }
+
+    /**
+     * @return executor or null if Spring context is not initialized or reactive client is not in classpath
+     */
+    public static MicroserviceReactiveRequestExecutor getInstanceStaticInternal() {
+        return instance;
+    }
+
+    /**
+     * Execute request to microservice, retry on error. Request is sent on subscribe; every subscription after first one,
+     * e.g. resubscribe or {@code retry()}, is new call with its own attempts and deadline
+     *
+     * @param callContext   state of current call
+     * @param requestEntity request body and headers
+     * @return successful response with not consumed body; error {@link InvalidRequestException}
+     * or {@link InternalSeverErrorProcessingRequestException} if request failed
+     */
+    public Mono<ClientResponse> exchange(MicroserviceCallContext callContext, HttpEntity<?> requestEntity) {
+        AtomicBoolean subscribed = new AtomicBoolean();
+        return Mono.defer(() -> {
+            MicroserviceCallContext context = subscribed.compareAndSet(false, true) ? callContext : callContext.createSubscriptionContext();
+            context.acquireCircuitBreaker();
+
+            BufferedClientHttpRequest request;
+            try {
+                request = context.getRestTemplate().bufferRequest(context, requestEntity, byte[].class);
+            } catch (IOException e) {
+                context.onCallResult(e);
+                return Mono.error(e);
+            }
+            return execute(context, request)
+                    .doOnSuccess(response -> context.onCallResult(null))
+                    .doOnError(context::onCallResult);
+        });
+    }
+
+    private Mono<ClientResponse> execute(MicroserviceCallContext context, BufferedClientHttpRequest request) {
+        return attempt(context, request)
+                .onErrorResume(e -> !(e instanceof InvalidRequestException) && !(e instanceof DeadlineExceededException)
+                        && !(e instanceof CircuitBreakerOpenException), e -> onFailure(context, request, e));
+    }
+
+    private Mono<ClientResponse> attempt(MicroserviceCallContext context, BufferedClientHttpRequest request) {
+        return Mono.defer(() -> {
+            RequestTimeouts timeouts = RequestTimeouts.of(context);
+
+            // never sleep waiting for instance - fail this attempt and retry later
+            context.getRestTemplate().startAttempt(context, false);
+            URI uri = context.getLastURI();
+
+            for (MicroserviceRequestInterceptor x : getRequestInterceptors()) {
+                x.beforeRequest(context, uri);
+            }
+
+            WebClient.RequestBodySpec requestSpec = webClient.method(context.getMethod())
+                    .uri(uri)
+                    .headers(headers -> {
+                        for (Map.Entry<String, List<String>> header : request.getHeaders().entrySet()) {
+                            if (!HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(header.getKey())) {
+                                headers.put(header.getKey(), header.getValue());
+                            }
+                        }
+                        DeadlinePropagationInterceptor.setDeadlineHeaderStaticInternal(context, headers);
+                    });
+
+            byte[] body = request.getBodyBytes();
+            Mono<ClientResponse> response = (body.length > 0 ? requestSpec.syncBody(body).exchange() : requestSpec.exchange())
+                    .doOnSubscribe(subscription -> context.onRequestSent());
+
+            // time to response headers; connector has no read timeout
+            int responseTimeout = timeouts == null ? 0 : timeouts.getResponseTimeout(0);
+            return responseTimeout > 0 ? response.timeout(Duration.ofMillis(responseTimeout)) : response;
+        })
+                .doOnTerminate(context::onAttemptEnd)
+                // doOnTerminate is not called when call is cancelled; doFinally is not used as it runs after
+                // immediate retry of failed attempt is already started
+                .doOnCancel(context::onAttemptEnd)
+                .doOnNext(response -> context.onAttemptResult(response.statusCode().value()))
+                .flatMap(MicroserviceReactiveRequestExecutor::checkStatus);
+    }
+
+    /**
+     * Error response body is read and connection is released
+     */
+    private static Mono<ClientResponse> checkStatus(ClientResponse response) {
+        int statusCode = response.statusCode().value();
+        if (statusCode < 400) {
+            return Mono.just(response);
+        }
+
+        return response.bodyToMono(byte[].class)
+                .map(body -> BufferedClientHttpResponse.of(statusCode, response.statusCode().getReasonPhrase(), response.headers().asHttpHeaders(), body))
+                .defaultIfEmpty(BufferedClientHttpResponse.of(statusCode, response.statusCode().getReasonPhrase(), response.headers().asHttpHeaders(), null))
+                .flatMap(bufferedResponse -> {
+                    if (MicroserviceRestTemplate.isInvalidRequestStatusCode(statusCode)) {
+                        return Mono.error(new InvalidRequestException(bufferedResponse));
+                    }
+                    return Mono.error(bufferedResponse.toErrorException());
+                });
+    }
+
+    private Mono<ClientResponse> onFailure(MicroserviceCallContext context, BufferedClientHttpRequest request, Throwable e) {
+        context.onAttemptResult(0);
+        Exception exception = e instanceof Exception ? (Exception) e : new RuntimeException(e);
+        for (MicroserviceRequestInterceptor x : getRequestInterceptors()) {
+            x.onException(context, context.getLastURI(), exception);
+        }
+
+        // the same attempts as in synchronous template: first retry is immediate, then backoff between retries
+        int triedTimes = context.incrementTriedTimes();
+        boolean tryToReconnect = context.isTryToReconnect();
+        if ((tryToReconnect && triedTimes > context.getTryToReconnectTimes()) || (!tryToReconnect && triedTimes > 1)) {
+            logger.error("Failed request {} {} tried={}", context.getMethod(), context.getLastURI(), triedTimes);
+            return Mono.error(new InternalSeverErrorProcessingRequestException("Failed request, tried=" + triedTimes));
+        }
+        if (!context.getRetryPolicy().tryRetry()) {
+            logger.error("Failed request {} {} tried={}, retry budget is exhausted", context.getMethod(), context.getLastURI(), triedTimes);
+            return Mono.error(new RetryBudgetExhaustedException("Failed request to microservice "
+                    + context.getMicroserviceName() + ", retry budget is exhausted, tried=" + triedTimes));
+        }
+
+        logger.info("Can not make http request {} {} {} times={}", context.getMethod(), context.getLastURI(), e.getMessage(), triedTimes);
+        if (triedTimes == 1) {
+            return execute(context, request);
+        }
+        long backoff = context.getRetryBackoff(triedTimes - 1);
+        if (context.getRemainingTime() <= backoff) {
+            // retry can not be finished before deadline
+            logger.error("Failed request {} {} tried={}, deadline exceeded", context.getMethod(), context.getLastURI(), triedTimes);
+            return Mono.error(new DeadlineExceededException("Deadline of request to microservice "
+                    + context.getMicroserviceName() + " exceeded, tried=" + triedTimes));
+        }
+        return Mono.delay(Duration.ofMillis(backoff))
+                .then(Mono.defer(() -> execute(context, request)));
+    }
+
+    private static List<MicroserviceRequestInterceptor> getRequestInterceptors() {
+        return MicroserviceRequestMaker.getMicroserviceRequestInterceptorsStaticInternal();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (instance == this) {
+            instance = null;
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Elements of JSON array response, decoded one by one while iterator is consumed.
+ * <p>
+ * HTTP connection is released when last element is read or iterator is closed;
+ * close iterator (or returned {@link Stream}) if you do not read all elements
+ *
+ * @param <T> element type
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+public class MicroserviceResponseIterator<T> implements Iterator<T>, Closeable {
+
+    private final MappingIterator<T> iterator;
+    private final Closeable response;
+    private boolean closed = false;
+
+    /**
+     * @param iterator decoder of response body
+     * @param response response to close after body is read; can be null
+     */
+    MicroserviceResponseIterator(MappingIterator<T> iterator, Closeable response) {
+        this.iterator = iterator;
+        this.response = response;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+
+        boolean hasNext;
+        try {
+            hasNext = iterator.hasNext();
+        } catch (RuntimeException e) {
+            closeQuietly();
+            throw e;
+        }
+
+        if (!hasNext) {
+            closeQuietly();
+        }
+        return hasNext;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        try {
+            return iterator.next();
+        } catch (RuntimeException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    /**
+     * @return sequential stream of elements; closing stream closes this iterator
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false)
+                .onClose(() -> {
+                    try {
+                        close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            iterator.close();
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ignored) {
+        }
+    }
+
+}
@@ -5,20 +5,35 @@
 package com.biqasoft.microservice.communicator.http;
 
 import com.biqasoft.microservice.communicator.MicroserviceRequestMaker;
+import com.biqasoft.microservice.communicator.exceptions.DeadlineExceededException;
 import com.biqasoft.microservice.communicator.exceptions.InternalSeverErrorProcessingRequestException;
 import com.biqasoft.microservice.communicator.exceptions.InvalidRequestException;
+import com.biqasoft.microservice.communicator.exceptions.InvalidStateException;
+import com.biqasoft.microservice.communicator.exceptions.RetryBudgetExhaustedException;
 import com.biqasoft.microservice.communicator.interfaceimpl.MicroserviceRequestInterceptor;
+import com.biqasoft.microservice.communicator.internal.Http2ClientCondition;
+import com.biqasoft.microservice.communicator.servicediscovery.MicroserviceLoadBalancer;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
 import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.http.client.ClientHttpResponse;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.http.converter.ByteArrayHttpMessageConverter;
 import org.springframework.http.converter.FormHttpMessageConverter;
 import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.ResourceHttpMessageConverter;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.util.Assert;
+import org.springframework.util.StreamUtils;
 import org.springframework.util.StringUtils;
 import org.springframework.web.client.RequestCallback;
 import org.springframework.web.client.ResponseExtractor;
@@ -26,17 +41,25 @@ import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
-import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 /**
- * This is template which retry request on error
- * Create this object per every request.
- * Not thread safe
+ * This is template which retry request on error.
+ * One template is shared by all requests to microservice, state of every request is in {@link MicroserviceCallContext}.
+ * Thread safe
+ * <p>
+ * Inherited {@link RestTemplate} methods ({@code getForObject}, {@code exchange} etc.) with URL relative to microservice,
+ * for example {@code "/users/{id}"}, are sent to instance chosen by load balancer and retried as {@link com.biqasoft.microservice.communicator.interfaceimpl.annotation.MicroMapping} defaults;
+ * absolute URL is requested as is, without load balancer and retries
  *
  * @author Nikita Bakaev, ya@nbakaev.ru
  *         Date: 6/5/2016
@@ -44,27 +67,22 @@ import java.util.Set;
  */
 public class MicroserviceRestTemplate extends RestTemplate {
 
-    private URI lastURI = null;
-
-    private final HttpMethod method;
     private static final Logger logger = LoggerFactory.getLogger(MicroserviceRestTemplate.class);
 
-    private final boolean tryToReconnect;
-    private int triedTimes = 0;
-
-    private final boolean https;
-
-    // number of times to reconnect
-    private final int tryToReconnectTimes;
-    private final int sleepTimeBetweenTrying;
+    // HTTP/2 transport is loaded only if okhttp is in classpath
+    private static final boolean HTTP2_CLIENT_PRESENT = Http2ClientCondition.isHttp2ClientPresent(MicroserviceRestTemplate.class.getClassLoader());
 
     private final String microserviceName;
-    private final String pathToApiResource;
 
     private final static Set<Integer> defaultInvalidRequestStatusCode;
 
+    // defaults of MicroMapping for requests of inherited RestTemplate methods
+    private static final int DEFAULT_TRY_TO_RECONNECT_TIMES = 2;
+    private static final int DEFAULT_SLEEP_TIME_BETWEEN_TRYING = 1100;
+
     private static List<HttpMessageConverter<?>> messageConverters;
-    private static HttpComponentsClientHttpRequestFactory httpComponentsClientHttpRequestFactory;
+    private static MicroserviceHttpComponentsClientHttpRequestFactory httpComponentsClientHttpRequestFactory;
+    private static MicroserviceHttpComponentsClientHttpRequestFactory streamingHttpComponentsClientHttpRequestFactory;
     static {
         // init default bad response codes
         defaultInvalidRequestStatusCode = new HashSet<>();
@@ -73,86 +91,429 @@ public class MicroserviceRestTemplate extends RestTemplate {
         defaultInvalidRequestStatusCode.add(403); // access denied
 
         // default converters
-        httpComponentsClientHttpRequestFactory = new HttpComponentsClientHttpRequestFactory();
+        httpComponentsClientHttpRequestFactory = new MicroserviceHttpComponentsClientHttpRequestFactory();
+        streamingHttpComponentsClientHttpRequestFactory = new MicroserviceHttpComponentsClientHttpRequestFactory();
+        streamingHttpComponentsClientHttpRequestFactory.setBufferRequestBody(false);
         messageConverters = new ArrayList<>();
         messageConverters.add(new ByteArrayHttpMessageConverter());
+        messageConverters.add(new ResourceHttpMessageConverter());
         messageConverters.add(new MappingJackson2HttpMessageConverter());
         messageConverters.add(new FormHttpMessageConverter());
     }
 
     private static ResponseErrorHandler responseErrorHandler = new ResponseErrorHandler();
 
+    // last call of current thread, for deprecated getters
+    private final ThreadLocal<MicroserviceCallContext> lastCallContext = new ThreadLocal<>();
+
     /**
      * {@link RestTemplate} that tried to reconnect or error
      *
-     * @param tryToReconnect         true if try to retry failed request to microsrevice
-     * @param tryToReconnectTimes    number of times to try to reconnect
      * @param microserviceName microservice name
-     * @param pathToApiResource pathToApiResource
-     * @param httpMethod http method
-     * @param sleepTimeBetweenTrying sleep in millias to try to reconnect between failed requests
-     * @param https    use http or https
-     * @throws URISyntaxException exception
      */
-    public MicroserviceRestTemplate(boolean tryToReconnect, int tryToReconnectTimes, int sleepTimeBetweenTrying, String microserviceName, String pathToApiResource, HttpMethod httpMethod, boolean https) throws URISyntaxException {
+    public MicroserviceRestTemplate(String microserviceName) {
         super(messageConverters);
-        Assert.notNull(httpMethod, "'method' must not be null");
-        this.setRequestFactory(httpComponentsClientHttpRequestFactory);
-        this.tryToReconnect = tryToReconnect;
-        this.tryToReconnectTimes = tryToReconnectTimes;
-        this.sleepTimeBetweenTrying = sleepTimeBetweenTrying;
         this.microserviceName = microserviceName;
-        this.pathToApiResource = pathToApiResource;
-        this.method = httpMethod;
-        this.https = https;
+        this.setRequestFactory(httpComponentsClientHttpRequestFactory);
         this.setErrorHandler(responseErrorHandler);
-        microserviceRequestInterceptors = MicroserviceRequestMaker.getMicroserviceRequestInterceptorsStaticInternal();
     }
 
-    private URI getLoadBalanceUrlForMe() {
+    /**
+     * @return pooled request factory of microservice or default factory if pools are not initialized in Spring context
+     */
+    @Override
+    public ClientHttpRequestFactory getRequestFactory() {
+        ClientHttpRequestFactory requestFactory = MicroserviceConnectionPools.getRequestFactoryStaticInternal(microserviceName);
+        return requestFactory == null ? super.getRequestFactory() : requestFactory;
+    }
+
+    /**
+     * @return request factory which writes request body straight to connection
+     */
+    public ClientHttpRequestFactory getStreamingRequestFactory() {
+        ClientHttpRequestFactory requestFactory = MicroserviceConnectionPools.getStreamingRequestFactoryStaticInternal(microserviceName);
+        return requestFactory == null ? streamingHttpComponentsClientHttpRequestFactory : requestFactory;
+    }
+
+    /**
+     * @return HTTP/2 request factory of microservice; null if Spring context is not initialized or okhttp is not in classpath
+     */
+    public ClientHttpRequestFactory getHttp2RequestFactory() {
+        return HTTP2_CLIENT_PRESENT ? MicroserviceHttp2Transport.getRequestFactoryStaticInternal(microserviceName) : null;
+    }
+
+    private ClientHttpRequest createRequest(MicroserviceCallContext context, URI uri) throws IOException {
+        ClientHttpRequestFactory requestFactory;
+        if (context.isHttp2()) {
+            // HTTP/2 request body is buffered
+            requestFactory = getHttp2RequestFactory();
+            if (requestFactory == null) {
+                throw new InvalidStateException("HTTP/2 transport is not initialized, add okhttp to classpath");
+            }
+        } else {
+            requestFactory = context.isStreamingRequestBody() ? getStreamingRequestFactory() : getRequestFactory();
+        }
+        RequestTimeouts timeouts = RequestTimeouts.of(context);
+        ClientHttpRequest request;
+        if (context.isCancellable()) {
+            MicroserviceHttpComponentsClientHttpRequestFactory.setCancellableCall(context);
+        }
+        try {
+            request = timeouts != null && requestFactory instanceof TimeoutClientHttpRequestFactory
+                    ? ((TimeoutClientHttpRequestFactory) requestFactory).createRequest(uri, context.getMethod(), timeouts)
+                    : requestFactory.createRequest(uri, context.getMethod());
+        } finally {
+            if (context.isCancellable()) {
+                MicroserviceHttpComponentsClientHttpRequestFactory.clearCancellableCall();
+            }
+        }
+
+        DeadlinePropagationInterceptor.setDeadlineHeaderStaticInternal(context, request.getHeaders());
+
+        // streaming payload is written by StreamingHttpOutputMessage
+        if (context.isStreamingRequestBody() && !context.isHttp2()) {
+            return request;
+        }
+
+        MicroserviceCompression.CompressionSettings compression = MicroserviceCompression.resolveStaticInternal(context);
+        if (compression.acceptCompressedResponse) {
+            request.getHeaders().set(HttpHeaders.ACCEPT_ENCODING, ContentCompression.ACCEPT_ENCODING);
+        }
+
+        // binary payload is usually already compressed (files, archives)
+        String requestEncoding = context.isStreamingRequestBody() ? null : compression.requestEncoding;
+        if (requestEncoding != null || compression.acceptCompressedResponse) {
+            return new ContentCodingClientHttpRequest(request, requestEncoding, compression.requestThreshold, compression.acceptCompressedResponse);
+        }
+        return request;
+    }
+
+    /**
+     * Execute request to microservice, retry on error
+     *
+     * @param context       state of current call
+     * @param requestEntity request body and headers
+     * @param responseType  response body type
+     * @param <T>           response body type
+     * @return response entity
+     * @throws RestClientException if request failed
+     */
+    public <T> ResponseEntity<T> exchange(MicroserviceCallContext context, HttpEntity<?> requestEntity, Class<T> responseType) throws RestClientException {
+        RequestCallback requestCallback = httpEntityCallback(requestEntity, responseType);
+        ResponseExtractor<ResponseEntity<T>> bodyExtractor = responseEntityExtractor(responseType);
+        ResponseExtractor<ResponseEntity<T>> responseExtractor = response -> {
+            try {
+                return bodyExtractor.extractData(response);
+            } finally {
+                // body is read to memory; release connection or HTTP/2 stream
+                response.close();
+            }
+        };
+        return executeCall(context, requestCallback, responseExtractor, true);
+    }
+
+    /**
+     * Execute request to microservice, retry on error. Response JSON is decoded straight from response stream,
+     * without copying body to byte[]. Response is closed after body is read; for lazy {@link MicroserviceCallContext#getResponseBodyKind()}
+     * response stays open and is closed by returned {@link MicroserviceResponseIterator}
+     *
+     * @param context       state of current call
+     * @param requestEntity request body and headers
+     * @param reader        reader of response body type
+     * @return response entity with decoded body or {@link MicroserviceResponseIterator}; body is null if response is empty
+     * @throws RestClientException             if request failed
+     * @throws HttpMessageNotReadableException if response is not valid JSON of expected type; such request is not retried
+     */
+    public ResponseEntity<Object> exchange(MicroserviceCallContext context, HttpEntity<?> requestEntity, ObjectReader reader) throws RestClientException {
+        // the same Accept header as for byte[] response
+        RequestCallback requestCallback = httpEntityCallback(requestEntity, byte[].class);
+        boolean lazy = context.getResponseBodyKind().isLazy();
+
+        ResponseExtractor<ResponseEntity<Object>> responseExtractor = response -> {
+            boolean keepOpen = false;
+            try {
+                Object body;
+                if (lazy) {
+                    body = readBodyLazy(response, reader);
+                    keepOpen = true;
+                } else {
+                    body = readBody(response, reader);
+                }
+                return new ResponseEntity<>(body, response.getHeaders(), response.getStatusCode());
+            } finally {
+                // release connection even if parser has not read whole stream
+                if (!keepOpen) {
+                    response.close();
+                }
+            }
+        };
+        // lazy response is read after request is finished, it can not be hedged
+        return executeCall(context, requestCallback, responseExtractor, !lazy);
+    }
+
+    private static Object readBody(ClientHttpResponse response, ObjectReader reader) throws IOException {
+        try (JsonParser parser = reader.getFactory().createParser(response.getBody())) {
+            if (parser.nextToken() == null) {
+                // empty body
+                return null;
+            }
+            return reader.readValue(parser);
+        } catch (JsonProcessingException e) {
+            throw new HttpMessageNotReadableException("Can not read response JSON: " + e.getOriginalMessage(), e);
+        }
+    }
+
+    private static MicroserviceResponseIterator<Object> readBodyLazy(ClientHttpResponse response, ObjectReader reader) throws IOException {
+        try {
+            // top level JSON array is unwrapped by iterator
+            return new MicroserviceResponseIterator<>(reader.readValues(response.getBody()), response);
+        } catch (JsonProcessingException e) {
+            throw new HttpMessageNotReadableException("Can not read response JSON: " + e.getOriginalMessage(), e);
+        }
+    }
+
+    /**
+     * Execute request to microservice, retry on error. Response body is not read
+     *
+     * @param context       state of current call
+     * @param requestEntity request body and headers
+     * @return response entity with body stream; closing stream releases HTTP connection
+     * @throws RestClientException if request failed
+     */
+    public ResponseEntity<InputStream> exchangeForStream(MicroserviceCallContext context, HttpEntity<?> requestEntity) throws RestClientException {
+        RequestCallback requestCallback = httpEntityCallback(requestEntity, byte[].class);
+        ResponseExtractor<ResponseEntity<InputStream>> responseExtractor = response ->
+                new ResponseEntity<>(new ResponseBodyInputStream(response), response.getHeaders(), response.getStatusCode());
+        return executeCall(context, requestCallback, responseExtractor, false);
+    }
+
+    /**
+     * Execute request to microservice, retry on error. Response body is streamed to temp file
+     *
+     * @param context       state of current call
+     * @param requestEntity request body and headers
+     * @return response entity with temp file; delete file when it is not needed
+     * @throws RestClientException if request failed
+     */
+    public ResponseEntity<Path> exchangeForFile(MicroserviceCallContext context, HttpEntity<?> requestEntity) throws RestClientException {
+        RequestCallback requestCallback = httpEntityCallback(requestEntity, byte[].class);
+        ResponseExtractor<ResponseEntity<Path>> responseExtractor = response -> {
+            try {
+                return new ResponseEntity<>(writeToTempFile(response.getBody()), response.getHeaders(), response.getStatusCode());
+            } finally {
+                response.close();
+            }
+        };
+        return executeCall(context, requestCallback, responseExtractor, false);
+    }
+
+    /**
+     * @param body stream to copy; can be null
+     * @return new temp file with stream content
+     * @throws IOException if can not write file
+     */
+    public static Path writeToTempFile(InputStream body) throws IOException {
+        Path file = Files.createTempFile("microservice-response-", ".tmp");
+        try {
+            if (body != null) {
+                Files.copy(body, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return file;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Decode elements of JSON array from already read response body
+     *
+     * @param reader reader of element type
+     * @param body   response body; can be null
+     * @return iterator over elements
+     * @throws HttpMessageNotReadableException if response is not valid JSON
+     */
+    public static MicroserviceResponseIterator<Object> readBodyLazy(ObjectReader reader, byte[] body) {
+        try {
+            return new MicroserviceResponseIterator<>(reader.readValues(body == null ? new byte[0] : body), null);
+        } catch (IOException e) {
+            throw new HttpMessageNotReadableException("Can not read response JSON: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Write request headers and body with message converters of this template to memory
+     *
+     * @param context       state of current call
+     * @param requestEntity request body and headers
+     * @param responseType  response body type, used to set Accept header
+     * @return request with headers and body, compressed if body is not smaller than compression threshold
+     * @throws IOException if can not serialize body
+     */
+    BufferedClientHttpRequest bufferRequest(MicroserviceCallContext context, HttpEntity<?> requestEntity, Class<?> responseType) throws IOException {
+        BufferedClientHttpRequest request = new BufferedClientHttpRequest(context.getMethod());
+        httpEntityCallback(requestEntity, responseType).doWithRequest(request);
+
+        MicroserviceCompression.CompressionSettings compression = MicroserviceCompression.resolveStaticInternal(context);
+        if (compression.requestEncoding != null) {
+            request.compress(compression.requestEncoding, compression.requestThreshold);
+        }
+        return request;
+    }
+
+    /**
+     * @param statusCode HTTP response status
+     * @return true if request must not be retried and {@link InvalidRequestException} should be thrown
+     */
+    static boolean isInvalidRequestStatusCode(int statusCode) {
+        return defaultInvalidRequestStatusCode.contains(statusCode);
+    }
+
+    private void startAttempt(MicroserviceCallContext context) {
+        startAttempt(context, context.isTryToReconnect());
+    }
+
+    /**
+     * Choose URL for next request and save it to context
+     *
+     * @param waitForInstance sleep and try again if load balancer has no instance
+     */
+    void startAttempt(MicroserviceCallContext context, boolean waitForInstance) {
+        String pathToApiResource = context.getPathToApiResource();
+
         // allow to use just as http rest client
         if (microserviceName.startsWith("http://") || microserviceName.startsWith("https://")){
-            return URI.create(microserviceName + pathToApiResource);
+            context.onAttemptStart(URI.create(microserviceName + pathToApiResource), null);
+            return;
         }
 
         // use pathToApiResource as full url
         if (StringUtils.isEmpty(microserviceName) && (pathToApiResource.startsWith("http://") || pathToApiResource.startsWith("https://"))){
-            return URI.create(pathToApiResource);
+            context.onAttemptStart(context.getPathToApiResourceURI(), null);
+            return;
         }
 
         // use load-balancer
-        return SpringContextAware.getMicroserviceLoadBalancer().getLoadBalancedURIByMicroservice(microserviceName, pathToApiResource, sleepTimeBetweenTrying, tryToReconnect, https);
+        ServiceInstance instance = context.pollNextInstance();
+        if (instance == null) {
+            instance = chooseInstance(context, waitForInstance);
+        }
+        context.onAttemptStart(getURI(context, instance), instance);
     }
 
-    private static List<MicroserviceRequestInterceptor> microserviceRequestInterceptors = null;
+    /**
+     * @return URL of request of call to instance
+     */
+    URI getURI(MicroserviceCallContext context, ServiceInstance instance) {
+        return SpringContextAware.getMicroserviceLoadBalancer().getURI(instance, context.getPathToApiResourceURI(), context.isHttps());
+    }
 
-    private static void onException(MicroserviceRestTemplate restTemplate, URI uri, Exception httpHeaders){
-        if (microserviceRequestInterceptors != null) {
-            microserviceRequestInterceptors.forEach(x -> {
-                x.onException(restTemplate,uri, httpHeaders);
-            });
+    /**
+     * @param rejected instances which must not be chosen, e.g. their circuit breaker did not permit attempt
+     * @return instance other than rejected ones, not tried in previous attempts if possible; null if there is no such instance
+     */
+    ServiceInstance chooseOtherInstance(MicroserviceCallContext context, Collection<ServiceInstance> rejected) {
+        MicroserviceLoadBalancer loadBalancer = SpringContextAware.getMicroserviceLoadBalancer();
+        List<ServiceInstance> excluded = new ArrayList<>(context.getTriedInstances());
+        excluded.addAll(rejected);
+        ServiceInstance instance = loadBalancer.chooseOtherInstance(microserviceName, excluded, context.getLoadBalancing());
+        if (instance == null && !context.getTriedInstances().isEmpty()) {
+            instance = loadBalancer.chooseOtherInstance(microserviceName, rejected, context.getLoadBalancing());
         }
+        return instance;
     }
 
-    @Override
-    protected <T> T doExecute(URI urlFake, HttpMethod method, RequestCallback requestCallback, ResponseExtractor<T> responseExtractor) throws RestClientException {
-        lastURI = getLoadBalanceUrlForMe();
-        Assert.notNull(lastURI, "'url' must not be null");
+    /**
+     * @param waitForInstance sleep and try again if load balancer has no instance
+     * @return instance chosen by load balancer, other than instances of previous attempts if possible;
+     * null if microservice is called by URL
+     */
+    ServiceInstance chooseInstance(MicroserviceCallContext context, boolean waitForInstance) {
+        String pathToApiResource = context.getPathToApiResource();
+        if (microserviceName.startsWith("http://") || microserviceName.startsWith("https://")
+                || (StringUtils.isEmpty(microserviceName) && (pathToApiResource.startsWith("http://") || pathToApiResource.startsWith("https://")))) {
+            return null;
+        }
 
-        if (microserviceRequestInterceptors != null) {
-            microserviceRequestInterceptors.forEach(x -> {
-                x.beforeRequest(this, lastURI);
-            });
+        MicroserviceLoadBalancer loadBalancer = SpringContextAware.getMicroserviceLoadBalancer();
+        return loadBalancer.chooseInstance(microserviceName, context.getSleepTimeBetweenTrying(), waitForInstance, context.getDeadlineTime(),
+                context.getTriedInstances(), context.getLoadBalancing());
+    }
+
+    private static List<MicroserviceRequestInterceptor> getRequestInterceptors() {
+        return MicroserviceRequestMaker.getMicroserviceRequestInterceptorsStaticInternal();
+    }
+
+    private static void onException(MicroserviceCallContext context, URI uri, Exception httpHeaders){
+        for (MicroserviceRequestInterceptor x : getRequestInterceptors()) {
+            x.onException(context, uri, httpHeaders);
         }
+    }
+
+    /**
+     * Execute call if circuit breaker of microservice is not open and record its outcome
+     *
+     * @param hedge true if request of hedged GET method can be also sent to other instance
+     */
+    private <T> T executeCall(MicroserviceCallContext context, RequestCallback requestCallback, ResponseExtractor<T> responseExtractor,
+                              boolean hedge) throws RestClientException {
+        lastCallContext.set(context);
+        context.acquireCircuitBreaker();
+
+        T result;
+        try {
+            result = hedge ? doExecuteHedged(context, requestCallback, responseExtractor) : doExecute(context, requestCallback, responseExtractor);
+        } catch (RuntimeException e) {
+            context.onCallResult(e);
+            throw e;
+        }
+        context.onCallResult(null);
+        return result;
+    }
+
+    /**
+     * Execute request, retry on error. Request of hedged GET method is also sent to other instance if response is slow
+     */
+    private <T> T doExecuteHedged(MicroserviceCallContext context, RequestCallback requestCallback, ResponseExtractor<T> responseExtractor) throws RestClientException {
+        if (context.getHedgingPolicy() == null || context.getMethod() != HttpMethod.GET) {
+            return doExecute(context, requestCallback, responseExtractor);
+        }
+
+        MicroserviceHedging hedging = MicroserviceHedging.getHedgingStaticInternal();
+        if (hedging == null) {
+            return doExecute(context, requestCallback, responseExtractor);
+        }
+        return new HedgedRequest<>(this, context, requestCallback, responseExtractor, hedging).execute();
+    }
+
+    <T> T doExecute(MicroserviceCallContext context, RequestCallback requestCallback, ResponseExtractor<T> responseExtractor) throws RestClientException {
+        HttpMethod method = context.getMethod();
+        RequestTimeouts.checkDeadline(context);
+        startAttempt(context);
+        URI lastURI = context.getLastURI();
+        Assert.notNull(lastURI, "'url' must not be null");
 
         ClientHttpResponse response = null;
         try {
-            ClientHttpRequest request = createRequest(lastURI, method);
+            for (MicroserviceRequestInterceptor x : getRequestInterceptors()) {
+                x.beforeRequest(context, lastURI);
+            }
+
+            ClientHttpRequest request = createRequest(context, lastURI);
             if (requestCallback != null) {
-                requestCallback.doWithRequest(request);
+                try {
+                    requestCallback.doWithRequest(request);
+                } catch (IOException | RuntimeException e) {
+                    // request is not executed, so compressed body is not finished
+                    discardBody(request);
+                    throw e;
+                }
             }
+            context.onRequestSent();
             response = request.execute();
+            context.onAttemptEnd();
             handleResponse(lastURI, method, response);
+            context.onAttemptResult(response.getRawStatusCode());
             if (responseExtractor != null) {
                 return responseExtractor.extractData(response);
             } else {
@@ -160,41 +521,65 @@ public class MicroserviceRestTemplate extends RestTemplate {
             }
             // note that we can have IOException and HttpServerErrorException
         } catch (IOException | RestClientException ex) {
+            context.onAttemptEnd();
+            if (context.isCancelled()) {
+                closeCancelled(response);
+                throw cancelled(context);
+            }
+            context.onAttemptResult(getStatusCode(response));
             try {
-                onException(this, lastURI, ex);
+                onException(context, lastURI, ex);
                 processInvalidRequest(response);
             } catch (IOException e) {
                 logger.error("I/O error on {} request for {} {}", method.name(), lastURI.toString(), ex.getMessage(), ex.getCause());
-
-//                TODO: we should close stream after or leak but we want somewhere in catch exception
+            } finally {
+                // error response is not returned, so connection and permit of concurrency limit are released before retry
                 if (response != null) {
                     response.close();
                 }
             }
-            return doExecuteOnError(method, requestCallback, responseExtractor);
-        } finally {
 
+            if (!context.isRepeatableRequestBody()) {
+                logger.error("Failed request {} {}, request body can not be sent again", method.name(), lastURI.toString());
+                throw new InternalSeverErrorProcessingRequestException("Failed request, request body can not be sent again");
+            }
+            return doExecuteOnError(context, requestCallback, responseExtractor);
+        } finally {
+            // attempt failed with other exception, e.g. of interceptor or of request body serialization
+            context.onAttemptEnd();
         }
     }
 
+    /**
+     * Error response is buffered and closed, so connection and permit of concurrency limit are released before exception is thrown
+     */
     private void processInvalidRequest(ClientHttpResponse response) throws IOException {
         if (response != null && response.getStatusCode() != null) {
-            if (defaultInvalidRequestStatusCode.contains(response.getRawStatusCode())) {
-                throw new InvalidRequestException(response);
+            if (isInvalidRequestStatusCode(response.getRawStatusCode())) {
+                try {
+                    InputStream body = response.getBody();
+                    throw new InvalidRequestException(BufferedClientHttpResponse.of(response.getRawStatusCode(), response.getStatusText(),
+                            response.getHeaders(), body == null ? null : StreamUtils.copyToByteArray(body)));
+                } finally {
+                    response.close();
+                }
             }
         }
     }
 
     /**
-     * Try to execute more HTTP request if {@link #doExecute(URI, HttpMethod, RequestCallback, ResponseExtractor)} request is failed with exception
+     * Try to execute more HTTP request if {@link #doExecute(MicroserviceCallContext, RequestCallback, ResponseExtractor)} request is failed with exception
      */
-    private <T> T doExecuteOnError(HttpMethod method, RequestCallback requestCallback, ResponseExtractor<T> responseExtractor) throws RestClientException {
+    private <T> T doExecuteOnError(MicroserviceCallContext context, RequestCallback requestCallback, ResponseExtractor<T> responseExtractor) throws RestClientException {
+        HttpMethod method = context.getMethod();
+        boolean tryToReconnect = context.isTryToReconnect();
         boolean exitLoop = false;
-        ClientHttpResponse response = null;
-        ClientHttpRequest request = null;
 
         while (!exitLoop) {
-            triedTimes++;
+            int triedTimes = context.incrementTriedTimes();
+            // every attempt has own request and response, so failure before response is not recorded with status of previous attempt
+            ClientHttpResponse response = null;
+            ClientHttpRequest request = null;
 
             // flag to exit from loop
             if (!tryToReconnect) {
@@ -202,30 +587,44 @@ public class MicroserviceRestTemplate extends RestTemplate {
             }
 
             // retry times limit
-            if ((triedTimes > tryToReconnectTimes) && tryToReconnect) {
-                logger.error("Failed request {} {} tried={}", method.toString(), this.lastURI.toString(), triedTimes);
+            if ((triedTimes > context.getTryToReconnectTimes()) && tryToReconnect) {
+                logger.error("Failed request {} {} tried={}", method.toString(), context.getLastURI().toString(), triedTimes);
                 throw new InternalSeverErrorProcessingRequestException("Failed request, tried=" + triedTimes);
             }
 
+            if (!context.getRetryPolicy().tryRetry()) {
+                logger.error("Failed request {} {} tried={}, retry budget is exhausted", method.toString(), context.getLastURI(), triedTimes);
+                throw new RetryBudgetExhaustedException("Failed request to microservice " + microserviceName + ", retry budget is exhausted, tried=" + triedTimes);
+            }
+
             try {
                 // try to make request to another another microservice
-                lastURI = getLoadBalanceUrlForMe();
+                RequestTimeouts.checkDeadline(context);
+                startAttempt(context);
+                URI lastURI = context.getLastURI();
                 Assert.notNull(lastURI, "'url' must not be null");
-                request = createRequest(lastURI, method);
+                request = createRequest(context, lastURI);
 
-                if (microserviceRequestInterceptors != null) {
-                    for (MicroserviceRequestInterceptor x : microserviceRequestInterceptors){
-                        x.beforeRequest(this, lastURI);
-                    }
+                for (MicroserviceRequestInterceptor x : getRequestInterceptors()) {
+                    x.beforeRequest(context, lastURI);
                 }
 
                 if (requestCallback != null) {
-                    requestCallback.doWithRequest(request);
+                    try {
+                        requestCallback.doWithRequest(request);
+                    } catch (IOException | RuntimeException e) {
+                        // request is not executed, so compressed body is not finished
+                        discardBody(request);
+                        throw e;
+                    }
                 }
+                context.onRequestSent();
                 response = request.execute();
+                context.onAttemptEnd();
                 processInvalidRequest(response);
 
                 handleResponse(lastURI, method, response);
+                context.onAttemptResult(response.getRawStatusCode());
                 if (responseExtractor != null) {
                     return responseExtractor.extractData(response); // success result
                 } else {
@@ -233,7 +632,13 @@ public class MicroserviceRestTemplate extends RestTemplate {
                 }
 
             } catch (IOException | RestClientException e) {
-                onException(this, lastURI, e);
+                context.onAttemptEnd();
+                if (context.isCancelled()) {
+                    closeCancelled(response);
+                    throw cancelled(context);
+                }
+                context.onAttemptResult(getStatusCode(response));
+                onException(context, context.getLastURI(), e);
                 try {
                     logger.info("Can not make http request {} {} {} times={}", request.getMethod().toString(), request.getURI().toString(), response.getStatusText(), triedTimes);
                 } catch (Exception e1) {
@@ -242,10 +647,26 @@ public class MicroserviceRestTemplate extends RestTemplate {
                         response.close();
                     }
                 }
+            } finally {
+                context.onAttemptEnd();
+            }
+
+            // no more attempts, do not sleep
+            if (exitLoop) {
+                break;
+            }
+
+            // do not start attempt which can not be finished before deadline
+            long backoff = context.getRetryBackoff(triedTimes);
+            if (context.getRemainingTime() <= backoff) {
+                logger.error("Failed request {} {} tried={}, deadline exceeded", method.toString(), context.getLastURI(), triedTimes);
+                throw new DeadlineExceededException("Deadline of request to microservice " + microserviceName + " exceeded, tried=" + triedTimes);
             }
 
             try {
-                Thread.sleep(sleepTimeBetweenTrying);
+                if (context.sleepUnlessCancelled(backoff)) {
+                    throw cancelled(context);
+                }
             } catch (InterruptedException e) {
                 exitLoop = true;
             }
@@ -253,23 +674,90 @@ public class MicroserviceRestTemplate extends RestTemplate {
         throw new InternalSeverErrorProcessingRequestException("Failed request");
     }
 
+    private static void discardBody(ClientHttpRequest request) {
+        if (request instanceof ContentCodingClientHttpRequest) {
+            ((ContentCodingClientHttpRequest) request).discardBody();
+        }
+    }
+
     /**
-     * @return null if no request was be done
+     * @return status code of response; 0 if response is not received
      */
-    public HttpMethod getMethod() {
-        return method;
+    private static int getStatusCode(ClientHttpResponse response) {
+        if (response == null) {
+            return 0;
+        }
+        try {
+            return response.getRawStatusCode();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void closeCancelled(ClientHttpResponse response) {
+        if (response != null) {
+            response.close();
+        }
+    }
+
+    private static InternalSeverErrorProcessingRequestException cancelled(MicroserviceCallContext context) {
+        return new InternalSeverErrorProcessingRequestException("Request to microservice " + context.getMicroserviceName() + " is cancelled, other hedged request won");
+    }
+
+    /**
+     * Request of inherited {@link RestTemplate} method. URL relative to microservice is sent to instance chosen by load balancer
+     */
+    @Override
+    protected <T> T doExecute(URI url, HttpMethod method, RequestCallback requestCallback, ResponseExtractor<T> responseExtractor) throws RestClientException {
+        if (url.isAbsolute() || StringUtils.isEmpty(microserviceName)) {
+            return super.doExecute(url, method, requestCallback, responseExtractor);
+        }
+        Assert.notNull(method, "'method' must not be null");
+
+        MicroserviceCallContext context = HttpClientsHelpers.createCallContext(true, DEFAULT_TRY_TO_RECONNECT_TIMES, DEFAULT_SLEEP_TIME_BETWEEN_TRYING,
+                microserviceName, url.toString(), method, false);
+        ResponseExtractor<T> closingResponseExtractor = response -> {
+            try {
+                return responseExtractor == null ? null : responseExtractor.extractData(response);
+            } finally {
+                response.close();
+            }
+        };
+        return executeCall(context, requestCallback, closingResponseExtractor, false);
     }
 
     public String getMicroserviceName() {
         return microserviceName;
     }
 
+    /**
+     * @return method of last call made by current thread; null if no request was be done
+     * @deprecated template is shared by all requests to microservice, use {@link MicroserviceCallContext#getMethod()}
+     */
+    @Deprecated
+    public HttpMethod getMethod() {
+        MicroserviceCallContext context = lastCallContext.get();
+        return context == null ? null : context.getMethod();
+    }
+
+    /**
+     * @return path of last call made by current thread; null if no request was be done
+     * @deprecated template is shared by all requests to microservice, use {@link MicroserviceCallContext#getPathToApiResource()}
+     */
+    @Deprecated
     public String getPathToApiResource() {
-        return pathToApiResource;
+        MicroserviceCallContext context = lastCallContext.get();
+        return context == null ? null : context.getPathToApiResource();
     }
 
+    /**
+     * @return URI of last attempt of last call made by current thread; null if no request was be done
+     * @deprecated template is shared by all requests to microservice, use {@link MicroserviceCallContext#getLastURI()}
+     */
+    @Deprecated
     public URI getLastURI() {
-        return lastURI;
+        MicroserviceCallContext context = lastCallContext.get();
+        return context == null ? null : context.getLastURI();
     }
 
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link RetryPolicy} of every microservice.
+ * <p>
+ * Set with {@code biqa.microservice.communicator.retry.*} or per microservice with
+ * {@code biqa.microservice.communicator.services.<microservice name>.retry.*}. By default pause between retries is fixed
+ * {@code sleepTimeBetweenTrying} and retries are not limited by budget; exponential backoff, jitter and budget are enabled
+ * by properties
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Component
+public class MicroserviceRetries {
+
+    private static MicroserviceRetries instance;
+
+    private final Environment environment;
+    private final double multiplier;
+    private final long maxBackoff;
+    private final boolean jitter;
+    private final int budget;
+    private final int budgetMaxRetries;
+    private final ConcurrentMap<String, RetryPolicy> retryPolicies = new ConcurrentHashMap<>();
+
+    @Autowired
+    public MicroserviceRetries(Environment environment,
+                               @Value("${biqa.microservice.communicator.retry.multiplier:1}") double multiplier,
+                               @Value("${biqa.microservice.communicator.retry.max-backoff:10000}") long maxBackoff,
+                               @Value("${biqa.microservice.communicator.retry.jitter:false}") boolean jitter,
+                               @Value("${biqa.microservice.communicator.retry.budget:0}") int budget,
+                               @Value("${biqa.microservice.communicator.retry.budget-max-retries:10}") int budgetMaxRetries) {
+        this.environment = environment;
+        this.multiplier = multiplier;
+        this.maxBackoff = maxBackoff;
+        this.jitter = jitter;
+        this.budget = budget;
+        this.budgetMaxRetries = budgetMaxRetries;
+        MicroserviceRetries.instance = this;
+    }
+
+    /**
+     * @param microserviceName microservice name, or URL if microservice is not in service discovery
+     * @return retry policy of microservice; fixed pause without budget if Spring context is not initialized
+     */
+    static RetryPolicy getRetryPolicyStaticInternal(String microserviceName) {
+        MicroserviceRetries retries = instance;
+        return retries == null ? RetryPolicy.FIXED_DELAY : retries.getRetryPolicy(microserviceName);
+    }
+
+    /**
+     * @param microserviceName microservice name, or URL if microservice is not in service discovery
+     * @return retry policy of microservice
+     */
+    public RetryPolicy getRetryPolicy(String microserviceName) {
+        String key = microserviceName == null ? "" : microserviceName;
+        RetryPolicy retryPolicy = retryPolicies.get(key);
+        if (retryPolicy != null) {
+            return retryPolicy;
+        }
+        return retryPolicies.computeIfAbsent(key, this::createRetryPolicy);
+    }
+
+    private RetryPolicy createRetryPolicy(String microserviceName) {
+        String prefix = MicroserviceConnectionPools.SERVICE_PREFIX + microserviceName + ".retry.";
+        return new RetryPolicy(microserviceName,
+                environment.getProperty(prefix + "multiplier", Double.class, multiplier),
+                environment.getProperty(prefix + "max-backoff", Long.class, maxBackoff),
+                environment.getProperty(prefix + "jitter", Boolean.class, jitter),
+                environment.getProperty(prefix + "budget", Integer.class, budget),
+                environment.getProperty(prefix + "budget-max-retries", Integer.class, budgetMaxRetries));
+    }
+
+    /**
+     * @return retry policy of every called microservice by microservice name, see {@link RetryPolicy#getRejectedRetries()}
+     */
+    public Map<String, RetryPolicy> getRetryPolicies() {
+        return Collections.unmodifiableMap(new HashMap<>(retryPolicies));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (instance == this) {
+            instance = null;
+        }
+    }
+
+}
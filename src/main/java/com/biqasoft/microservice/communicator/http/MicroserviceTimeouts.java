@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Default deadline of call to microservice: max millis for all attempts, pauses between them and waits for instance.
+ * <p>
+ * Set with {@code biqa.microservice.communicator.timeout.deadline} or per microservice with
+ * {@code biqa.microservice.communicator.services.<microservice name>.timeout.deadline}; 0 for no deadline.
+ * Connect and response timeouts of every attempt are pool settings, see {@link MicroserviceConnectionPools}.
+ * All can be overridden per interface or method with annotation
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Component
+public class MicroserviceTimeouts {
+
+    private static MicroserviceTimeouts instance;
+
+    private final Environment environment;
+    private final long deadline;
+    private final ConcurrentMap<String, Long> deadlines = new ConcurrentHashMap<>();
+
+    @Autowired
+    public MicroserviceTimeouts(Environment environment,
+                                @Value("${biqa.microservice.communicator.timeout.deadline:0}") long deadline) {
+        this.environment = environment;
+        this.deadline = deadline;
+        MicroserviceTimeouts.instance = this;
+    }
+
+    /**
+     * @param microserviceName microservice name, or URL if microservice is not in service discovery
+     * @return default deadline of call in millis; 0 if there is no deadline or Spring context is not initialized
+     */
+    static long getDeadlineStaticInternal(String microserviceName) {
+        MicroserviceTimeouts timeouts = instance;
+        return timeouts == null ? 0 : timeouts.getDeadline(microserviceName);
+    }
+
+    /**
+     * @param microserviceName microservice name, or URL if microservice is not in service discovery
+     * @return default deadline of call in millis with per microservice override; 0 if there is no deadline
+     */
+    public long getDeadline(String microserviceName) {
+        String key = microserviceName == null ? "" : microserviceName;
+        Long microserviceDeadline = deadlines.get(key);
+        if (microserviceDeadline != null) {
+            return microserviceDeadline;
+        }
+
+        return deadlines.computeIfAbsent(key, name -> environment.getProperty(
+                MicroserviceConnectionPools.SERVICE_PREFIX + name + ".timeout.deadline", Long.class, deadline));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (instance == this) {
+            instance = null;
+        }
+    }
+
+}
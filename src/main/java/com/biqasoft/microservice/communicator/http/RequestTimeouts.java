@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.exceptions.DeadlineExceededException;
+
+/**
+ * Timeouts of one HTTP request: per method connect and response timeouts, limited by time left to call deadline.
+ * Timeouts which are not set are taken from request factory (pool settings)
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+final class RequestTimeouts {
+
+    // millis; -1 to use timeout of request factory
+    private final int connectTimeout;
+    private final int responseTimeout;
+    // millis to call deadline; -1 if call has no deadline
+    private final long remainingTime;
+
+    private RequestTimeouts(int connectTimeout, int responseTimeout, long remainingTime) {
+        this.connectTimeout = connectTimeout;
+        this.responseTimeout = responseTimeout;
+        this.remainingTime = remainingTime;
+    }
+
+    /**
+     * @param context state of current call
+     * @return timeouts of next request; null if request factory timeouts are used
+     * @throws DeadlineExceededException if there is no time left to call deadline
+     */
+    static RequestTimeouts of(MicroserviceCallContext context) {
+        long remainingTime = checkDeadline(context);
+
+        if (remainingTime < 0 && context.getConnectTimeout() < 0 && context.getResponseTimeout() < 0) {
+            return null;
+        }
+        return new RequestTimeouts(context.getConnectTimeout(), context.getResponseTimeout(), remainingTime);
+    }
+
+    /**
+     * Check deadline before attempt is started, so no instance is chosen for attempt which can not be sent
+     *
+     * @param context state of current call
+     * @return millis to call deadline; -1 if call has no deadline
+     * @throws DeadlineExceededException if there is no time left to call deadline
+     */
+    static long checkDeadline(MicroserviceCallContext context) {
+        if (!context.hasDeadline()) {
+            return -1;
+        }
+
+        long remainingTime = context.getRemainingTime();
+        if (remainingTime <= 0) {
+            throw new DeadlineExceededException("Deadline of request to microservice " + context.getMicroserviceName() + " exceeded, tried=" + context.getTriedTimes());
+        }
+        return remainingTime;
+    }
+
+    /**
+     * @param defaultTimeout timeout of request factory, 0 or less for infinite
+     */
+    int getConnectTimeout(int defaultTimeout) {
+        return (int) limit(connectTimeout >= 0 ? connectTimeout : defaultTimeout);
+    }
+
+    /**
+     * @param defaultTimeout timeout of request factory, 0 or less for infinite
+     * @return max millis between response packets
+     */
+    int getResponseTimeout(int defaultTimeout) {
+        return (int) limit(responseTimeout >= 0 ? responseTimeout : defaultTimeout);
+    }
+
+    /**
+     * @param defaultTimeout timeout of request factory, 0 or less for infinite
+     * @return max millis to wait for pooled connection or stream
+     */
+    long getWaitTimeout(long defaultTimeout) {
+        return limit(defaultTimeout);
+    }
+
+    private long limit(long timeout) {
+        if (remainingTime < 0) {
+            return timeout;
+        }
+        long remaining = Math.min(remainingTime, Integer.MAX_VALUE);
+        return timeout <= 0 ? remaining : Math.min(timeout, remaining);
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+
+/**
+ * Body of not buffered response. Closing stream releases HTTP connection
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+class ResponseBodyInputStream extends FilterInputStream {
+
+    private final ClientHttpResponse response;
+    private boolean closed = false;
+
+    ResponseBodyInputStream(ClientHttpResponse response) throws IOException {
+        super(response.getBody());
+        this.response = response;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            super.close();
+        } finally {
+            response.close();
+        }
+    }
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+/**
+ * How response body decoded from stream is returned from interface method
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+public enum ResponseBodyKind {
+
+    // decoded object
+    VALUE,
+
+    // decoded object wrapped to java.util.Optional
+    OPTIONAL,
+
+    // elements of JSON array are decoded while iterator is consumed
+    ITERATOR,
+
+    // the same as ITERATOR, wrapped to java.util.stream.Stream
+    STREAM;
+
+    /**
+     * @return true if response stays open after interface method returns
+     */
+    public boolean isLazy() {
+        return this == ITERATOR || this == STREAM;
+    }
+
+}
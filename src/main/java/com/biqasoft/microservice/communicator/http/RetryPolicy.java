@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retry settings of one microservice: pause between retries and retry budget.
+ * <p>
+ * Pause before n-th retry is {@code min(max backoff, sleepTimeBetweenTrying * multiplier^(n-2))}, fixed if multiplier is 1;
+ * with jitter it is random in {@code [0, pause]}. First retry is immediate. Every call adds {@code budget} percent of retry
+ * to token bucket of microservice and every retry takes one, so when microservice fails retries are stopped instead of multiplying its load.
+ * One policy is shared by all calls to microservice. Thread safe
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+public final class RetryPolicy {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetryPolicy.class);
+
+    /**
+     * Fixed pause between retries, retries are not limited
+     */
+    public static final RetryPolicy FIXED_DELAY = new RetryPolicy("", 1, 0, false, 0, 0);
+
+    private static final long RETRY_COST = 100;
+
+    private final String microserviceName;
+    private final double multiplier;
+    private final long maxBackoff;
+    private final boolean jitter;
+    private final int budget;
+    private final long maxTokens;
+
+    // hundredths of retry
+    private final AtomicLong tokens;
+    private final AtomicLong rejectedRetries = new AtomicLong();
+    private volatile boolean exhausted = false;
+
+    /**
+     * @param microserviceName microservice name for log messages
+     * @param multiplier       pause between retries is multiplied by it after every retry; 1 for fixed pause
+     * @param maxBackoff       max pause between retries in millis; 0 or less for no limit
+     * @param jitter           true to randomize pause between 0 and backoff
+     * @param budget           percent of calls which can be retried; 0 for unlimited retries
+     * @param maxRetries       max number of retries saved in budget, also initial number
+     */
+    public RetryPolicy(String microserviceName, double multiplier, long maxBackoff, boolean jitter, int budget, int maxRetries) {
+        this.microserviceName = microserviceName;
+        this.multiplier = Math.max(1, multiplier);
+        this.maxBackoff = maxBackoff;
+        this.jitter = jitter;
+        this.budget = budget;
+        this.maxTokens = maxRetries * RETRY_COST;
+        this.tokens = new AtomicLong(maxTokens);
+    }
+
+    /**
+     * @param sleepTimeBetweenTrying pause before second retry in millis
+     * @param pause                  number of pause between retries, 1 for pause before second retry
+     * @return pause in millis
+     */
+    public long getBackoff(int sleepTimeBetweenTrying, int pause) {
+        double backoff = sleepTimeBetweenTrying * Math.pow(multiplier, Math.max(0, pause - 1));
+        long limit = maxBackoff > 0 ? Math.min(maxBackoff, (long) Math.min(backoff, Long.MAX_VALUE)) : (long) Math.min(backoff, Long.MAX_VALUE);
+        if (!jitter || limit <= 0) {
+            return limit;
+        }
+        return ThreadLocalRandom.current().nextLong(limit + 1);
+    }
+
+    /**
+     * Add share of retry to budget on every call
+     */
+    void onCall() {
+        if (budget <= 0) {
+            return;
+        }
+
+        long current = tokens.get();
+        while (current < maxTokens && !tokens.compareAndSet(current, Math.min(maxTokens, current + budget))) {
+            current = tokens.get();
+        }
+    }
+
+    /**
+     * @return true if retry can be made; false if retry budget is exhausted
+     */
+    boolean tryRetry() {
+        if (budget <= 0) {
+            return true;
+        }
+
+        long current = tokens.get();
+        while (current >= RETRY_COST) {
+            if (tokens.compareAndSet(current, current - RETRY_COST)) {
+                if (exhausted) {
+                    exhausted = false;
+                    logger.info("Retry budget of microservice {} is available again", microserviceName);
+                }
+                return true;
+            }
+            current = tokens.get();
+        }
+
+        rejectedRetries.incrementAndGet();
+        if (!exhausted) {
+            exhausted = true;
+            logger.warn("Retry budget of microservice {} is exhausted, failed requests are not retried", microserviceName);
+        }
+        return false;
+    }
+
+    /**
+     * @return number of retries which can be made now; {@link Long#MAX_VALUE} if retries are not limited
+     */
+    public long getAvailableRetries() {
+        return budget <= 0 ? Long.MAX_VALUE : tokens.get() / RETRY_COST;
+    }
+
+    /**
+     * @return number of retries which were not made because budget was exhausted
+     */
+    public long getRejectedRetries() {
+        return rejectedRetries.get();
+    }
+
+    /**
+     * @return true if last retry was rejected because budget was exhausted
+     */
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.StreamingHttpOutputMessage;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limit number of concurrent requests to one instance (host:port) and, optionally, to all instances.
+ * Permit is taken when request is executed and returned when response is closed; if there is no permit
+ * during wait timeout - request fails with {@link IOException}.
+ * <p>
+ * Used for HTTP/2 streams and, when calls run on virtual threads, in front of HTTP/1.1 connection pool:
+ * waiting for {@link Semaphore} unmounts virtual thread, but waiting for pooled connection inside HttpClient
+ * is done holding monitor and pins carrier thread. Several factories can share one limiter
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+class RouteLimitedClientHttpRequestFactory implements TimeoutClientHttpRequestFactory {
+
+    private final ClientHttpRequestFactory requestFactory;
+    private final RouteLimiter routeLimiter;
+
+    RouteLimitedClientHttpRequestFactory(ClientHttpRequestFactory requestFactory, RouteLimiter routeLimiter) {
+        this.requestFactory = requestFactory;
+        this.routeLimiter = routeLimiter;
+    }
+
+    @Override
+    public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+        return limit(requestFactory.createRequest(uri, httpMethod), uri, routeLimiter.waitTimeout);
+    }
+
+    @Override
+    public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod, RequestTimeouts timeouts) throws IOException {
+        ClientHttpRequest request = requestFactory instanceof TimeoutClientHttpRequestFactory
+                ? ((TimeoutClientHttpRequestFactory) requestFactory).createRequest(uri, httpMethod, timeouts)
+                : requestFactory.createRequest(uri, httpMethod);
+        return limit(request, uri, timeouts.getWaitTimeout(routeLimiter.waitTimeout));
+    }
+
+    private ClientHttpRequest limit(ClientHttpRequest request, URI uri, long waitTimeout) {
+        boolean https = "https".equalsIgnoreCase(uri.getScheme());
+        String authority = uri.getHost() + ":" + (uri.getPort() >= 0 ? uri.getPort() : (https ? 443 : 80));
+
+        // do not hide streaming body from rest template
+        if (request instanceof StreamingHttpOutputMessage) {
+            return new StreamingRouteLimitedClientHttpRequest(request, authority, waitTimeout);
+        }
+        return new RouteLimitedClientHttpRequest(request, authority, waitTimeout);
+    }
+
+    /**
+     * Permits of one microservice; shared by request factories with the same connections
+     */
+    static class RouteLimiter {
+
+        private final String resourceName;
+        private final int maxPerRoute;
+        private final int maxTotal;
+        private final long waitTimeout;
+        // null if only routes are limited
+        private final Semaphore total;
+
+        // by host:port of instance
+        private final ConcurrentMap<String, Semaphore> routes = new ConcurrentHashMap<>();
+
+        /**
+         * @param resourceName name of limited resource for error message, e.g. HTTP/2 stream
+         * @param maxPerRoute  max concurrent requests to one instance
+         * @param maxTotal     max concurrent requests to all instances; 0 for no limit
+         * @param waitTimeout  millis to wait for permit
+         */
+        RouteLimiter(String resourceName, int maxPerRoute, int maxTotal, long waitTimeout) {
+            this.resourceName = resourceName;
+            this.maxPerRoute = maxPerRoute;
+            this.maxTotal = maxTotal;
+            this.waitTimeout = waitTimeout;
+            this.total = maxTotal > 0 ? new Semaphore(maxTotal) : null;
+        }
+
+        /**
+         * @param authority host:port of instance
+         * @return number of requests which can be started to instance now
+         */
+        int getAvailablePermits(String authority) {
+            Semaphore route = routes.get(authority);
+            return route == null ? maxPerRoute : route.availablePermits();
+        }
+
+        private Semaphore getRoute(String authority) {
+            Semaphore route = routes.get(authority);
+            if (route != null) {
+                return route;
+            }
+            return routes.computeIfAbsent(authority, x -> new Semaphore(maxPerRoute));
+        }
+
+        private void acquire(String authority, long waitTimeout) throws IOException {
+            Semaphore route = getRoute(authority);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTimeout);
+            try {
+                if (!route.tryAcquire(waitTimeout, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("No free " + resourceName + " to " + authority + ", max per instance " + maxPerRoute);
+                }
+                if (total != null && !total.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    route.release();
+                    throw new IOException("No free " + resourceName + " to " + authority + ", max total " + maxTotal);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " + resourceName + " to " + authority);
+            }
+        }
+
+        private void release(String authority) {
+            if (total != null) {
+                total.release();
+            }
+            getRoute(authority).release();
+        }
+    }
+
+    private class RouteLimitedClientHttpRequest implements ClientHttpRequest {
+
+        final ClientHttpRequest request;
+        private final String authority;
+        private final long waitTimeout;
+
+        RouteLimitedClientHttpRequest(ClientHttpRequest request, String authority, long waitTimeout) {
+            this.request = request;
+            this.authority = authority;
+            this.waitTimeout = waitTimeout;
+        }
+
+        @Override
+        public ClientHttpResponse execute() throws IOException {
+            routeLimiter.acquire(authority, waitTimeout);
+            try {
+                return new PermitReleasingClientHttpResponse(request.execute(), routeLimiter, authority);
+            } catch (IOException | RuntimeException e) {
+                routeLimiter.release(authority);
+                throw e;
+            }
+        }
+
+        @Override
+        public OutputStream getBody() throws IOException {
+            return request.getBody();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return request.getHeaders();
+        }
+
+        @Override
+        public HttpMethod getMethod() {
+            return request.getMethod();
+        }
+
+        @Override
+        public String getMethodValue() {
+            return request.getMethodValue();
+        }
+
+        @Override
+        public URI getURI() {
+            return request.getURI();
+        }
+    }
+
+    private class StreamingRouteLimitedClientHttpRequest extends RouteLimitedClientHttpRequest implements StreamingHttpOutputMessage {
+
+        StreamingRouteLimitedClientHttpRequest(ClientHttpRequest request, String authority, long waitTimeout) {
+            super(request, authority, waitTimeout);
+        }
+
+        @Override
+        public void setBody(Body body) {
+            ((StreamingHttpOutputMessage) request).setBody(body);
+        }
+    }
+
+    private static class PermitReleasingClientHttpResponse implements ClientHttpResponse {
+
+        private final ClientHttpResponse response;
+        private final RouteLimiter routeLimiter;
+        private final String authority;
+        private boolean released = false;
+
+        PermitReleasingClientHttpResponse(ClientHttpResponse response, RouteLimiter routeLimiter, String authority) {
+            this.response = response;
+            this.routeLimiter = routeLimiter;
+            this.authority = authority;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return response.getBody();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return response.getHeaders();
+        }
+
+        @Override
+        public HttpStatus getStatusCode() throws IOException {
+            return response.getStatusCode();
+        }
+
+        @Override
+        public int getRawStatusCode() throws IOException {
+            return response.getRawStatusCode();
+        }
+
+        @Override
+        public String getStatusText() throws IOException {
+            return response.getStatusText();
+        }
+
+        @Override
+        public void close() {
+            try {
+                response.close();
+            } finally {
+                if (!released) {
+                    released = true;
+                    routeLimiter.release(authority);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.http;
+
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Request factory which can override its timeouts for one request
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+interface TimeoutClientHttpRequestFactory extends ClientHttpRequestFactory {
+
+    /**
+     * @param timeouts timeouts of this request
+     */
+    ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod, RequestTimeouts timeouts) throws IOException;
+
+}
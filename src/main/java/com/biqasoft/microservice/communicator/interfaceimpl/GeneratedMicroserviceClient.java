@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.interfaceimpl;
+
+import com.biqasoft.microservice.communicator.exceptions.InvalidStateException;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.Microservice;
+
+import java.lang.reflect.Method;
+
+/**
+ * Superclass for build-time generated implementations of {@link Microservice} interfaces.
+ * Generated class has a direct method body for every interface method, which calls {@link #invoke(int, Object...)}
+ * with method index, so there is no proxy and no method lookup on call
+ *
+ * Classes are generated by microservice-communicator-processor annotation processor
+ * and preferred by {@link MicroserviceInterfaceImplBeanDefinition} to runtime proxy {@link MicroserviceInterface#create(Class)}
+ */
+public abstract class GeneratedMicroserviceClient extends UserMicroserviceRequestSuperService {
+
+    /**
+     * Generated class name is interface binary name with this suffix
+     */
+    public static final String GENERATED_CLASS_SUFFIX = "_MicroserviceImpl";
+
+    private final Class<?> interfaceToExtend;
+    private final Method[] methods;
+    private final MicroserviceInterface.CachedMicroserviceCall[] microserviceCalls;
+
+    /**
+     * @param interfaceToExtend implemented interface, annotated {@link Microservice}
+     * @param methods           implemented interface methods; index in array is used in {@link #invoke(int, Object...)}
+     */
+    protected GeneratedMicroserviceClient(Class<?> interfaceToExtend, Method[] methods) {
+        this.interfaceToExtend = interfaceToExtend;
+        this.methods = methods;
+        this.microserviceCalls = new MicroserviceInterface.CachedMicroserviceCall[methods.length];
+
+        for (int i = 0; i < methods.length; i++) {
+            microserviceCalls[i] = MicroserviceCachedParsedAnnotationInterface.processMicroserviceSignature(methods[i], interfaceToExtend);
+        }
+    }
+
+    /**
+     * Make request to microservice
+     *
+     * @param methodIndex index of method in array passed to constructor
+     * @param arguments   method arguments
+     * @return result of microservice request
+     */
+    protected final Object invoke(int methodIndex, Object... arguments) {
+        try {
+            return MicroserviceInterface.invoke(microserviceCalls[methodIndex], interfaceToExtend, methods[methodIndex], arguments);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new InvalidStateException("Can not invoke microservice method " + methods[methodIndex].getName(), e);
+        }
+    }
+
+    /**
+     * Used by generated classes to get interface methods once, on class initialization
+     *
+     * @param interfaceToExtend interface
+     * @param name              method name
+     * @param parameterTypes    method parameter types
+     * @return interface method
+     */
+    protected static Method method(Class<?> interfaceToExtend, String name, Class<?>... parameterTypes) {
+        try {
+            return interfaceToExtend.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            throw new InvalidStateException("Generated microservice implementation is out of date with " + interfaceToExtend.getName(), e);
+        }
+    }
+
+    /**
+     * @param interfaceToExtend interface, annotated {@link Microservice}
+     * @return class name which annotation processor generates for interface
+     */
+    public static String getGeneratedClassName(Class<?> interfaceToExtend) {
+        return interfaceToExtend.getName() + GENERATED_CLASS_SUFFIX;
+    }
+}
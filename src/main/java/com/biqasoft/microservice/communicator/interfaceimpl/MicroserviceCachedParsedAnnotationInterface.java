@@ -4,19 +4,43 @@
 
 package com.biqasoft.microservice.communicator.interfaceimpl;
 
+import com.biqasoft.microservice.communicator.exceptions.InvalidStateException;
+import com.biqasoft.microservice.communicator.http.HedgingPolicy;
+import com.biqasoft.microservice.communicator.http.MicroserviceResponseIterator;
+import com.biqasoft.microservice.communicator.http.ResponseBodyKind;
+import com.biqasoft.microservice.communicator.internal.Http2ClientCondition;
+import com.biqasoft.microservice.communicator.internal.ReactiveClientCondition;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.LoadBalancing;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.MicroHeader;
 import com.biqasoft.microservice.communicator.interfaceimpl.annotation.MicroMapping;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.MicroPathVar;
 import com.biqasoft.microservice.communicator.interfaceimpl.annotation.MicroPayloadVar;
 import com.biqasoft.microservice.communicator.interfaceimpl.annotation.Microservice;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.RequestCompression;
+import com.biqasoft.microservice.communicator.internal.JsonObjectFromParametersService;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.type.TypeFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.ResolvableType;
 import org.springframework.core.annotation.AnnotationUtils;
-import org.springframework.util.ClassUtils;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.StringUtils;
 
+import java.io.InputStream;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 /**
  * @author Nikita Bakaev, ya@nbakaev.ru
@@ -27,29 +51,17 @@ public class MicroserviceCachedParsedAnnotationInterface {
 
     private static final Logger logger = LoggerFactory.getLogger(MicroserviceCachedParsedAnnotationInterface.class);
 
-    // key - method#hashCode
-    private final static Map<Integer, MicroserviceInterface.CachedMicroserviceCall> cachedMicroserviceCallMap = new ConcurrentHashMap<>();
-
     /**
-     * Get cached microservice information about REST endpoint
-     * Used to avoid use a lot of reflection every method call
-     */
-    static MicroserviceInterface.CachedMicroserviceCall processMicroserviceSignature(Method method, Object o) {
-        MicroserviceInterface.CachedMicroserviceCall cachedMicroserviceCall = cachedMicroserviceCallMap.get(method.hashCode());
-
-        if (cachedMicroserviceCall != null) {
-            return cachedMicroserviceCall;
-        }
-
-        return computeMicroserviceSignature(method, o);
-    }
-
-
-    /**
-     * We have not cached info about this method (REST endpoint)
-     * So, calculate
+     * Parse microservice information about REST endpoint.
+     * Executed once per interface method when implementation is created, so every invalid mapping fails on startup
+     * and we do not use a lot of reflection every method call
+     *
+     * @param method            interface method
+     * @param interfaceToExtend interface, annotated {@link Microservice}
+     * @return method invocation plan
+     * @throws InvalidStateException if method can not be mapped to REST endpoint
      */
-    private synchronized static MicroserviceInterface.CachedMicroserviceCall computeMicroserviceSignature(Method method, Object o) {
+    static MicroserviceInterface.CachedMicroserviceCall processMicroserviceSignature(Method method, Class<?> interfaceToExtend) {
         logger.debug("Create microservice impl of method {}", method.getName());
 
         MicroserviceInterface.CachedMicroserviceCall cachedMicroserviceCall = new MicroserviceInterface.CachedMicroserviceCall();
@@ -62,19 +74,24 @@ public class MicroserviceCachedParsedAnnotationInterface {
         String basePath;
         boolean https;
 
-        Annotation declaredAnnotation = null;
-
-        Class<?>[] allInterfaces = ClassUtils.getAllInterfaces(o);
-        for (Class c : allInterfaces) {
-            declaredAnnotation = AnnotationUtils.findAnnotation(c, Microservice.class);
-            if (declaredAnnotation != null) {
-                break;
-            }
+        Annotation declaredAnnotation = AnnotationUtils.findAnnotation(interfaceToExtend, Microservice.class);
+        if (declaredAnnotation == null) {
+            throw new InvalidStateException(interfaceToExtend.getName() + " must be annotated with " + Microservice.class.getName());
         }
 
         microserviceName = (String) AnnotationUtils.getValue(declaredAnnotation, "microservice");
         basePath = (String) AnnotationUtils.getValue(declaredAnnotation, "basePath");
         https = (boolean) AnnotationUtils.getValue(declaredAnnotation, "https");
+        cachedMicroserviceCall.http2 = (boolean) AnnotationUtils.getValue(declaredAnnotation, "http2");
+        if (cachedMicroserviceCall.http2 && !Http2ClientCondition.isHttp2ClientPresent(interfaceToExtend.getClassLoader())) {
+            throw new InvalidStateException(interfaceToExtend.getName() + " uses HTTP/2, add okhttp to classpath");
+        }
+        cachedMicroserviceCall.requestCompression = (RequestCompression) AnnotationUtils.getValue(declaredAnnotation, "requestCompression");
+        cachedMicroserviceCall.requestCompressionThreshold = (int) AnnotationUtils.getValue(declaredAnnotation, "requestCompressionThreshold");
+        cachedMicroserviceCall.connectTimeout = (int) AnnotationUtils.getValue(declaredAnnotation, "connectTimeout");
+        cachedMicroserviceCall.responseTimeout = (int) AnnotationUtils.getValue(declaredAnnotation, "responseTimeout");
+        cachedMicroserviceCall.deadline = (long) AnnotationUtils.getValue(declaredAnnotation, "deadline");
+        cachedMicroserviceCall.loadBalancing = (LoadBalancing) AnnotationUtils.getValue(declaredAnnotation, "loadBalancing");
         microserviceReturnType = method.getReturnType();
 
         // get generic type...
@@ -86,28 +103,44 @@ public class MicroserviceCachedParsedAnnotationInterface {
         }
 
         if (specialLanguage == null) {
+            if (microMapping == null) {
+                throw new InvalidStateException("Method " + method + " must be annotated with " + MicroMapping.class.getName());
+            }
+
             cachedMicroserviceCall.annotatedPath = microMapping.path();
             cachedMicroserviceCall.httpMethod = microMapping.method();
             cachedMicroserviceCall.tryToReconnect = microMapping.tryToReconnect();
             cachedMicroserviceCall.tryToReconnectTimes = microMapping.tryToReconnectTimes();
             cachedMicroserviceCall.sleepTimeBetweenTrying = microMapping.sleepTimeBetweenTrying();
             cachedMicroserviceCall.convertResponseToMap = microMapping.convertResponseToMap();
-            cachedMicroserviceCall.returnExpression = microMapping.returnExpression();
-
-            // we have [][]
-            if (method.getParameterAnnotations().length > 0) {
-                for (Annotation[] annotations : method.getParameterAnnotations()) {
-                    for (Annotation annotation : annotations) {
-                        if (annotation.annotationType().equals(MicroPayloadVar.class)) {
-                            cachedMicroserviceCall.mergePayloadToObject = true;
-                            break;
-                        }
-                    }
+            // method settings override interface settings
+            if (microMapping.requestCompression() != RequestCompression.DEFAULT) {
+                cachedMicroserviceCall.requestCompression = microMapping.requestCompression();
+            }
+            if (microMapping.requestCompressionThreshold() >= 0) {
+                cachedMicroserviceCall.requestCompressionThreshold = microMapping.requestCompressionThreshold();
+            }
+            if (microMapping.connectTimeout() >= 0) {
+                cachedMicroserviceCall.connectTimeout = microMapping.connectTimeout();
+            }
+            if (microMapping.responseTimeout() >= 0) {
+                cachedMicroserviceCall.responseTimeout = microMapping.responseTimeout();
+            }
+            if (microMapping.deadline() >= 0) {
+                cachedMicroserviceCall.deadline = microMapping.deadline();
+            }
+            if (microMapping.hedge()) {
+                // request can be sent twice only if it has no side effects
+                if (!HttpMethod.GET.equals(microMapping.method())) {
+                    throw new InvalidStateException("Only GET requests can be hedged " + method);
                 }
+                cachedMicroserviceCall.hedgingPolicy = new HedgingPolicy(microMapping.hedgeDelay());
+            }
+            if (!StringUtils.isEmpty(microMapping.returnExpression())) {
+                cachedMicroserviceCall.returnExpression = microMapping.returnExpression();
             }
-
         } else {
-            SpecialLanguageNotation.processSpecialLanguageNotation(cachedMicroserviceCall, method, o, specialLanguage);
+            SpecialLanguageNotation.processSpecialLanguageNotation(cachedMicroserviceCall, method, specialLanguage);
         }
 
         cachedMicroserviceCall.https = https;
@@ -115,11 +148,124 @@ public class MicroserviceCachedParsedAnnotationInterface {
         cachedMicroserviceCall.microserviceReturnType = microserviceReturnType;
         cachedMicroserviceCall.returnGenericType = returnGenericType;
         cachedMicroserviceCall.basePath = basePath;
+        cachedMicroserviceCall.haveDefaultValue = method.isDefault();
+        cachedMicroserviceCall.completableFuture = microserviceReturnType.equals(CompletableFuture.class);
+        cachedMicroserviceCall.reactive = ReactiveClientCondition.isReactiveType(microserviceReturnType);
 
-        cachedMicroserviceCallMap.put(method.hashCode(), cachedMicroserviceCall);
+        if (!StringUtils.isEmpty(basePath)) {
+            cachedMicroserviceCall.annotatedPath = basePath + cachedMicroserviceCall.annotatedPath;
+        }
+
+        processArgumentBindings(cachedMicroserviceCall, method);
+        processResponseBodyType(cachedMicroserviceCall, method);
         return cachedMicroserviceCall;
     }
 
+    /**
+     * Resolve once how every method argument is bound to HTTP request - header, path variable or payload
+     *
+     * @param cachedMicroserviceCall invocation plan to fill
+     * @param method                 interface method
+     */
+    private static void processArgumentBindings(MicroserviceInterface.CachedMicroserviceCall cachedMicroserviceCall, Method method) {
+        Parameter[] parameters = method.getParameters();
+        List<MicroserviceInterface.ArgumentBinding> headerBindings = new ArrayList<>();
+        List<MicroserviceInterface.ArgumentBinding> pathVariableBindings = new ArrayList<>();
+        List<Integer> payloadArgumentIndexes = new ArrayList<>();
+        List<String[]> payloadJsonPaths = new ArrayList<>();
+
+        // number of params in interface for bound to URL
+        int paramsForMappingUrl = 0;
+
+        for (int i = 0; i < parameters.length; i++) {
+            Parameter parameter = parameters[i];
+
+            MicroHeader paramHeader = AnnotationUtils.findAnnotation(parameter, MicroHeader.class);
+            if (paramHeader != null && parameter.getType().equals(String.class) && !StringUtils.isEmpty(paramHeader.value())) {
+                headerBindings.add(new MicroserviceInterface.ArgumentBinding(MicroserviceInterface.ArgumentBindingKind.HEADER, i, paramHeader.value(), false));
+                paramsForMappingUrl++;
+            }
+
+            MicroPathVar pathVar = AnnotationUtils.findAnnotation(parameter, MicroPathVar.class);
+            if (pathVar != null && !StringUtils.isEmpty(pathVar.param())) {
+                pathVariableBindings.add(new MicroserviceInterface.ArgumentBinding(MicroserviceInterface.ArgumentBindingKind.PATH_VAR, i, pathVar.param(), pathVar.encode()));
+                paramsForMappingUrl++;
+            }
+
+            MicroPayloadVar payloadVar = AnnotationUtils.findAnnotation(parameter, MicroPayloadVar.class);
+            if (payloadVar != null) {
+                cachedMicroserviceCall.mergePayloadToObject = true;
+                payloadArgumentIndexes.add(i);
+                payloadJsonPaths.add(JsonObjectFromParametersService.resolveJsonPath(parameter, payloadVar));
+            }
+        }
+
+        cachedMicroserviceCall.headerBindings = headerBindings.toArray(new MicroserviceInterface.ArgumentBinding[headerBindings.size()]);
+        cachedMicroserviceCall.pathTemplate = MicroservicePathTemplate.compile(cachedMicroserviceCall.annotatedPath, pathVariableBindings, method.getParameterTypes());
+        cachedMicroserviceCall.payloadArgumentIndexes = payloadArgumentIndexes.stream().mapToInt(Integer::intValue).toArray();
+        cachedMicroserviceCall.payloadJsonPaths = payloadJsonPaths.toArray(new String[payloadJsonPaths.size()][]);
+
+        // only POST and PUT can have payload
+        HttpMethod httpMethod = cachedMicroserviceCall.httpMethod;
+        if (!cachedMicroserviceCall.mergePayloadToObject && (HttpMethod.POST.equals(httpMethod) || HttpMethod.PUT.equals(httpMethod))) {
+            if (parameters.length >= 1) {
+                // +1 - this is payload param
+                if ((paramsForMappingUrl + 1) != parameters.length) {
+                    throw new InvalidStateException("You must pass EXACTLY ONE payload to POST or PUT method " + method);
+                }
+            } else {
+                // zero params
+                throw new InvalidStateException("You must pass EXACTLY ONE payload to POST or PUT method, have 0 " + method);
+            }
+            cachedMicroserviceCall.payloadArgumentIndex = 0;
+        }
+    }
+
+    /**
+     * Resolve type to which response JSON can be decoded straight from response stream.
+     * Types which are processed from raw response (byte[], String, {@link ResponseEntity}, return expression,
+     * map conversion, async and reactive types) are left buffered
+     *
+     * @param cachedMicroserviceCall invocation plan to fill
+     * @param method                 interface method
+     */
+    private static void processResponseBodyType(MicroserviceInterface.CachedMicroserviceCall cachedMicroserviceCall, Method method) {
+        if (cachedMicroserviceCall.returnExpression != null || cachedMicroserviceCall.convertResponseToMap
+                || cachedMicroserviceCall.completableFuture || cachedMicroserviceCall.reactive) {
+            return;
+        }
+
+        Class<?> returnType = method.getReturnType();
+        Type genericReturnType = method.getGenericReturnType();
+        ResponseBodyKind responseBodyKind = ResponseBodyKind.VALUE;
+
+        if (returnType.equals(Optional.class)) {
+            if (!(genericReturnType instanceof ParameterizedType)) {
+                return;
+            }
+            genericReturnType = ((ParameterizedType) genericReturnType).getActualTypeArguments()[0];
+            responseBodyKind = ResponseBodyKind.OPTIONAL;
+        } else if (returnType.equals(Stream.class) || returnType.equals(Iterator.class) || returnType.equals(MicroserviceResponseIterator.class)) {
+            // JSON array element
+            genericReturnType = genericReturnType instanceof ParameterizedType ? ((ParameterizedType) genericReturnType).getActualTypeArguments()[0] : Object.class;
+            responseBodyKind = returnType.equals(Stream.class) ? ResponseBodyKind.STREAM : ResponseBodyKind.ITERATOR;
+        } else if (returnType.equals(Void.TYPE) || returnType.equals(Void.class) || returnType.equals(byte[].class)
+                || returnType.equals(String.class) || returnType.equals(ResponseEntity.class)
+                || returnType.equals(InputStream.class) || returnType.equals(Path.class)) {
+            return;
+        }
+
+        JavaType responseBodyType = TypeFactory.defaultInstance().constructType(genericReturnType);
+
+        // generic types other than collections are returned as is
+        if (responseBodyKind == ResponseBodyKind.VALUE && responseBodyType.containedTypeCount() > 0 && !responseBodyType.isCollectionLikeType()) {
+            return;
+        }
+
+        cachedMicroserviceCall.responseBodyType = responseBodyType;
+        cachedMicroserviceCall.responseBodyKind = responseBodyKind;
+    }
+
     /**
      *
      * @param method method from which get generics
@@ -6,17 +6,21 @@ package com.biqasoft.microservice.communicator.interfaceimpl;
 
 import com.biqasoft.microservice.communicator.MicroserviceRequestMaker;
 import com.biqasoft.microservice.communicator.exceptions.InvalidStateException;
+import com.biqasoft.microservice.communicator.http.HedgingPolicy;
 import com.biqasoft.microservice.communicator.http.HttpClientsHelpers;
-import com.biqasoft.microservice.communicator.http.MicroserviceRestTemplate;
-import com.biqasoft.microservice.communicator.interfaceimpl.annotation.MicroHeader;
-import com.biqasoft.microservice.communicator.interfaceimpl.annotation.MicroPathVar;
+import com.biqasoft.microservice.communicator.http.MicroserviceCallContext;
+import com.biqasoft.microservice.communicator.http.ResponseBodyKind;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.LoadBalancing;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.MicroMapping;
 import com.biqasoft.microservice.communicator.interfaceimpl.annotation.Microservice;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.RequestCompression;
+import com.biqasoft.microservice.communicator.internal.DefaultReturnValueService;
 import com.biqasoft.microservice.communicator.internal.JsonObjectFromParametersService;
+import com.fasterxml.jackson.databind.JavaType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cglib.proxy.Enhancer;
-import org.springframework.cglib.proxy.MethodInterceptor;
+import org.springframework.cglib.proxy.*;
 import org.springframework.core.annotation.AnnotationUtils;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
@@ -25,10 +29,12 @@ import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
 import java.lang.annotation.Annotation;
-import java.lang.reflect.Parameter;
-import java.net.URLEncoder;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Implement REST methods logic interface {@link Microservice} microservice requests
@@ -44,17 +50,40 @@ public class MicroserviceInterface {
 
     private static JsonObjectFromParametersService jsonObjectFromParametersService;
 
+    // registered service names of created interfaces and whether any of them calls microservice over https
+    private static final ConcurrentMap<String, Boolean> microserviceNames = new ConcurrentHashMap<>();
+
     @Autowired
     public MicroserviceInterface(JsonObjectFromParametersService jsonObjectFromParametersService) {
         MicroserviceInterface.jsonObjectFromParametersService = jsonObjectFromParametersService;
     }
 
+    /**
+     * @return service names of all created interfaces, except interfaces which call microservice by URL
+     */
+    public static Set<String> getMicroserviceNames() {
+        return Collections.unmodifiableSet(microserviceNames.keySet());
+    }
+
+    /**
+     * @param microserviceName service name of created interface
+     * @return true if some interface of microservice is {@link Microservice#https()}; null if there is no such interface
+     */
+    public static Boolean isHttps(String microserviceName) {
+        return microserviceNames.get(microserviceName);
+    }
+
     /**
      * Create microservice implementation
      *
+     * All interface methods are parsed here, so invalid mapping fails on startup.
+     * Every interface method has own callback with precompiled {@link CachedMicroserviceCall},
+     * so there is no lookup on method call
+     *
      * @param <T> interface type to implement
      * @param interfaceToExtend interface, annotated {@link Microservice}
      * @return object implemented interface
+     * @throws InvalidStateException if some interface method can not be mapped to REST endpoint
      */
     @SuppressWarnings("unchecked") // Single-interface proxy creation guarded by parameter safety.
     public static <T> T create(final Class<T> interfaceToExtend) {
@@ -62,168 +91,290 @@ public class MicroserviceInterface {
             Annotation declaredAnnotation = interfaceToExtend.getDeclaredAnnotation(Microservice.class);
             Assert.notNull(declaredAnnotation, interfaceToExtend.toString() + " must be annotated with " + Microservice.class.toString() + " annotation");
 
+            Microservice microservice = AnnotationUtils.findAnnotation(interfaceToExtend, Microservice.class);
+            String microserviceName = microservice.microservice();
+            if (!StringUtils.isEmpty(microserviceName) && !microserviceName.startsWith("http://") && !microserviceName.startsWith("https://")) {
+                microserviceNames.merge(microserviceName, microservice.https(), Boolean::logicalOr);
+            }
+
             List<Class<?>> extendInterfaces = new ArrayList<>();
             extendInterfaces.add(interfaceToExtend); // new microservice class - will implement microservice interface
             extendInterfaces.addAll(Arrays.asList(interfaceToExtend.getInterfaces())); // implement interface that current interface class implement
 
-            // this method will be executed on every interface method call
-            return (T) Enhancer.create(UserMicroserviceRequestSuperService.class, extendInterfaces.toArray(new Class[extendInterfaces.size()]),
-                    (MethodInterceptor) (o, method, objects, methodProxy) -> {
+            // callback with index 0 - toString, hashCode, equals etc... - invoke super class methods
+            List<Callback> callbacks = new ArrayList<>();
+            callbacks.add(NoOp.INSTANCE);
+            Map<String, Integer> callbackIndexes = new HashMap<>();
 
-                // do not proxy toString and hashCode - invoke super class methods
-                if (method.getName().equals("toString") || method.getName().equals("hashCode") || method.getName().equals("equals")) {
-                    return methodProxy.invokeSuper(o, objects);
+            for (Class<?> extendInterface : extendInterfaces) {
+                for (Method method : extendInterface.getMethods()) {
+                    String signature = getMethodSignature(method);
+                    if (Modifier.isStatic(method.getModifiers()) || method.isBridge() || callbackIndexes.containsKey(signature)) {
+                        continue;
+                    }
+
+                    callbackIndexes.put(signature, callbacks.size());
+                    callbacks.add(createMethodCallback(interfaceToExtend, method));
                 }
-                logger.debug("Start microservice method {} in {}", method.getName(), o.toString());
+            }
+
+            Enhancer enhancer = new Enhancer();
+            enhancer.setSuperclass(UserMicroserviceRequestSuperService.class);
+            enhancer.setInterfaces(extendInterfaces.toArray(new Class[extendInterfaces.size()]));
+            enhancer.setCallbackFilter(new MicroserviceCallbackFilter(interfaceToExtend, callbackIndexes));
+            enhancer.setCallbacks(callbacks.toArray(new Callback[callbacks.size()]));
+            return (T) enhancer.create();
+        } else {
+            logger.error("Interface expected {}", interfaceToExtend.getName());
+        }
+        return null;
+    }
 
-                CachedMicroserviceCall microserviceCall = MicroserviceCachedParsedAnnotationInterface.processMicroserviceSignature(method, o);
+    private static Callback createMethodCallback(Class<?> interfaceToExtend, Method method) {
+        // java 8 default method without mapping - just execute it
+        if (method.isDefault() && AnnotationUtils.findAnnotation(method, MicroMapping.class) == null) {
+            return new DefaultMethodInterceptor(method);
+        }
 
-                // init some settings for processing request
-                String annotatedPath = microserviceCall.annotatedPath;
-                HttpMethod httpMethod = microserviceCall.httpMethod;
-                Class[] returnGenericType = microserviceCall.returnGenericType;
-                Class<?> microserviceReturnType = microserviceCall.microserviceReturnType;
-                String microserviceName = microserviceCall.microserviceName;
-                String basePath = microserviceCall.basePath;
-                boolean convertJsonToMap = microserviceCall.convertResponseToMap;
-                boolean mergePayloadToObject = microserviceCall.mergePayloadToObject;
-                boolean https = microserviceCall.https;
-                String returnExpression = microserviceCall.returnExpression;
+        CachedMicroserviceCall microserviceCall = MicroserviceCachedParsedAnnotationInterface.processMicroserviceSignature(method, interfaceToExtend);
 
-                // java 8 default interface method
-                boolean haveDefaultValue = method.isDefault();
+        // this method will be executed on every interface method call
+        return (MethodInterceptor) (o, m, objects, methodProxy) -> invoke(microserviceCall, interfaceToExtend, method, objects);
+    }
 
-                Object payload = null;
-                List<Parameter> parameters = Arrays.asList(method.getParameters());
+    private static String getMethodSignature(Method method) {
+        return method.getName() + Arrays.toString(method.getParameterTypes());
+    }
 
-                // number of params in interface for bound to URL
-                int paramsForMappingUrl = 0;
+    /**
+     * Execute request by precompiled {@link CachedMicroserviceCall} plan.
+     * No reflection and annotation lookup here - all was resolved when plan was created
+     *
+     * @param microserviceCall  precompiled method invocation plan
+     * @param interfaceToExtend implemented interface
+     * @param method            invoked interface method
+     * @param objects           method arguments
+     * @return result of microservice request
+     * @throws Exception if can not bind arguments to request
+     */
+    static Object invoke(CachedMicroserviceCall microserviceCall, Class<?> interfaceToExtend, Method method, Object[] objects) throws Exception {
+        String annotatedPath = microserviceCall.pathTemplate.expand(objects);
+        HttpHeaders httpHeaders = new HttpHeaders();
+
+        // bind arguments to headers
+        ArgumentBinding[] headerBindings = microserviceCall.headerBindings;
+        for (int i = 0; i < headerBindings.length; i++) {
+            httpHeaders.add(headerBindings[i].name, (String) objects[headerBindings[i].argumentIndex]);
+        }
 
-                if (!StringUtils.isEmpty(basePath)) {
-                    annotatedPath = basePath + annotatedPath;
-                }
+        Object payload = null;
 
-                HttpHeaders httpHeaders = new HttpHeaders();
-
-                // replace {} in annotated URL
-                for (Parameter parameter : parameters) {
-                    MicroHeader paramHeader = AnnotationUtils.findAnnotation(parameter, MicroHeader.class);
-                    if (paramHeader != null) {
-                        if (!(parameter.getType().equals(String.class))) {
-                            continue;
-                        }
-                        String headerName = paramHeader.value();
-                        if (!StringUtils.isEmpty(headerName)) {
-                            String headerValue = (String) objects[parameters.indexOf(parameter)];
-                            httpHeaders.add(headerName, headerValue);
-                            paramsForMappingUrl++;
-                        }
-                    }
+        // create(merge) json payload from many method arguments
+        if (microserviceCall.mergePayloadToObject) {
+            payload = jsonObjectFromParametersService.createJsonRequestObjectFromParameters(objects, microserviceCall.payloadArgumentIndexes, microserviceCall.payloadJsonPaths);
+        } else if (microserviceCall.payloadArgumentIndex >= 0) {
+            payload = objects[microserviceCall.payloadArgumentIndex];
+        }
 
-                    MicroPathVar param = AnnotationUtils.findAnnotation(parameter, MicroPathVar.class);
-                    if (param == null || StringUtils.isEmpty(param.param())) {
-                        continue;
-                    }
+        MicroserviceCallContext callContext = HttpClientsHelpers.createCallContext(microserviceCall.tryToReconnect, microserviceCall.tryToReconnectTimes,
+                microserviceCall.sleepTimeBetweenTrying, microserviceCall.microserviceName, annotatedPath, microserviceCall.httpMethod, microserviceCall.https);
+        if (microserviceCall.responseBodyType != null) {
+            callContext.setResponseBodyType(microserviceCall.responseBodyType, microserviceCall.responseBodyKind);
+        }
+        if (microserviceCall.http2) {
+            callContext.setHttp2(true);
+        }
+        if (microserviceCall.requestCompression != RequestCompression.DEFAULT || microserviceCall.requestCompressionThreshold >= 0) {
+            callContext.setRequestCompression(microserviceCall.requestCompression, microserviceCall.requestCompressionThreshold);
+        }
+        if (microserviceCall.connectTimeout >= 0 || microserviceCall.responseTimeout >= 0) {
+            callContext.setTimeouts(microserviceCall.connectTimeout, microserviceCall.responseTimeout);
+        }
+        if (microserviceCall.deadline >= 0) {
+            callContext.setDeadline(microserviceCall.deadline);
+        }
+        if (microserviceCall.loadBalancing != LoadBalancing.DEFAULT) {
+            callContext.setLoadBalancing(microserviceCall.loadBalancing);
+        }
+        if (microserviceCall.hedgingPolicy != null) {
+            callContext.setHedgingPolicy(microserviceCall.hedgingPolicy);
+        }
 
-                    // process PathVar
-                    if (!(parameter.getType().equals(String.class))) {
-                        continue;
-                    }
+        Map<String, Object> param = null;
 
-                    if (!StringUtils.isEmpty(param.param())) {
-                        String paramValue = (String) objects[parameters.indexOf(parameter)];
+        if (microserviceCall.convertResponseToMap) {
+            param = new HashMap<>();
+            param.put("convertResponseToMap", true);
+        }
 
-                        if (param.encode()){
-                            paramValue = URLEncoder.encode(paramValue, "UTF-8");
-                        }
+        if (microserviceCall.haveDefaultValue) {
+            if (param == null) {
+                param = new HashMap<>();
+            }
 
-                        annotatedPath = annotatedPath.replace("{" + param.param() + "}", paramValue);
-                        paramsForMappingUrl++;
-                    }
-                }
+            param.put("HAVE_DEFAULT_VALUE", true);
+            param.put(MicroserviceRequestMaker.DEFAULT_INTERFACE_PROXY_METHOD, method);
+            param.put(MicroserviceRequestMaker.INTERFACE_IMPLEMENTED, interfaceToExtend);
+            param.put(MicroserviceRequestMaker.METHOD_PARAMS, objects);
+        }
 
-                // create(merge) json payload from many method arguments
-                if (mergePayloadToObject) {
-                    payload = jsonObjectFromParametersService.createJsonRequestObjectFromParameters(objects, parameters);
-                }
+        if (microserviceCall.returnExpression != null) {
+            if (param == null) {
+                param = new HashMap<>();
+            }
 
-                // only POST and PUT can have payload
-                if ((httpMethod.equals(HttpMethod.POST) || httpMethod.equals(HttpMethod.PUT)) && payload == null) {
-                    if (objects.length >= 1) {
-                        // +1 - this is payload param
-                        if ((paramsForMappingUrl + 1) != objects.length) {
-                            throw new InvalidStateException("You must pass EXACTLY ONE payload to POST or PUT method");
-                        }
-                    } else {
-                        // zero params
-                        throw new InvalidStateException("You must pass EXACTLY ONE payload to POST or PUT method, have 0");
-                    }
-                    payload = objects[0];
-                }
+            param.put("RETURN_EXPRESSION", microserviceCall.returnExpression);
+        }
 
-                MicroserviceRestTemplate restTemplate = HttpClientsHelpers.getRestTemplate(microserviceCall.tryToReconnect, microserviceCall.tryToReconnectTimes,
-                        microserviceCall.sleepTimeBetweenTrying, microserviceName, annotatedPath, httpMethod, https);
-                Map<String, Object> param = null;
+        MicroserviceRequestMaker.beforeProcessRequest(callContext, httpHeaders);
 
-                if (convertJsonToMap) {
-                    param = new HashMap<>();
-                    param.put("convertResponseToMap", true);
-                }
+        Class<?> microserviceReturnType = microserviceCall.microserviceReturnType;
+        Class[] returnGenericType = microserviceCall.returnGenericType;
 
-                if (haveDefaultValue) {
-                    if (param == null) {
-                        param = new HashMap<>();
-                    }
+        if (microserviceCall.completableFuture) {
+            return MicroserviceRequestMaker.makeAsyncRequestToMicroservice(payload, microserviceReturnType, callContext, returnGenericType, param, httpHeaders);
+        } else if (microserviceCall.reactive) {
+            return MicroserviceRequestMaker.makeReactiveRequestToMicroservice(payload, microserviceReturnType, callContext, returnGenericType, param, httpHeaders);
+        } else {
+            return MicroserviceRequestMaker.makeRequestToMicroservice(payload, microserviceReturnType, callContext, returnGenericType, param, httpHeaders);
+        }
+    }
 
-                    param.put("HAVE_DEFAULT_VALUE", true);
-                    param.put(MicroserviceRequestMaker.DEFAULT_INTERFACE_PROXY_METHOD, method);
-                    param.put(MicroserviceRequestMaker.INTERFACE_IMPLEMENTED, interfaceToExtend);
-                    param.put(MicroserviceRequestMaker.METHOD_PARAMS, objects);
-                }
+    /**
+     * Choose callback index for every implemented method once, when proxy class is generated
+     */
+    private static class MicroserviceCallbackFilter implements CallbackFilter {
 
-                if (!StringUtils.isEmpty(returnExpression)) {
-                    if (param == null) {
-                        param = new HashMap<>();
-                    }
+        private final Class<?> interfaceToExtend;
+        private final Map<String, Integer> callbackIndexes;
 
-                    param.put("RETURN_EXPRESSION", returnExpression);
-                }
+        MicroserviceCallbackFilter(Class<?> interfaceToExtend, Map<String, Integer> callbackIndexes) {
+            this.interfaceToExtend = interfaceToExtend;
+            this.callbackIndexes = callbackIndexes;
+        }
 
-                MicroserviceRequestMaker.beforeProcessRequest(restTemplate, httpHeaders);
-
-                if (microserviceReturnType.equals(CompletableFuture.class)) {
-                    Object finalPayload = payload;
-                    Map<String, Object> finalParam = param;
-                    return CompletableFuture
-                            .supplyAsync(() -> {
-                                return MicroserviceRequestMaker.makeRequestToMicroservice(finalPayload, microserviceReturnType, restTemplate, returnGenericType, finalParam, httpHeaders);
-                            });
-                } else {
-                    return MicroserviceRequestMaker.makeRequestToMicroservice(payload, microserviceReturnType, restTemplate, returnGenericType, param, httpHeaders);
-                }
+        @Override
+        public int accept(Method method) {
+            Integer index = callbackIndexes.get(getMethodSignature(method));
+            return index == null ? 0 : index;
+        }
 
-            });
-        } else {
-            logger.error("Interface expected {}", interfaceToExtend.getName());
+        // callback indexes depend only on interface, so generated proxy class can be reused
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof MicroserviceCallbackFilter && ((MicroserviceCallbackFilter) o).interfaceToExtend.equals(interfaceToExtend);
+        }
+
+        @Override
+        public int hashCode() {
+            return interfaceToExtend.hashCode();
         }
-        return null;
     }
 
+    /**
+     * Execute java 8 default interface method body
+     */
+    private static class DefaultMethodInterceptor implements MethodInterceptor {
+
+        private final Method method;
+        private volatile MethodHandle methodHandle;
+
+        DefaultMethodInterceptor(Method method) {
+            this.method = method;
+        }
+
+        @Override
+        public Object intercept(Object o, Method m, Object[] objects, MethodProxy methodProxy) throws Throwable {
+            MethodHandle handle = methodHandle;
+            if (handle == null) {
+                handle = DefaultReturnValueService.getDefaultMethodHandle(method);
+                methodHandle = handle;
+            }
+            return handle.bindTo(o).invokeWithArguments(objects);
+        }
+    }
+
+    /**
+     * Invocation plan of interface method.
+     * Created once per method by {@link MicroserviceCachedParsedAnnotationInterface} and not modified after that
+     */
     static class CachedMicroserviceCall {
         Class<?> microserviceReturnType = null;
         Class[] returnGenericType = null;
         HttpMethod httpMethod = null;
+
+        // basePath + annotated path
         String annotatedPath = null;
+        MicroservicePathTemplate pathTemplate = null;
         String microserviceName = null;
         String basePath = null;
+
+        // null if not set
         String returnExpression = null;
 
         boolean convertResponseToMap = false;
         boolean mergePayloadToObject = false;
         boolean https = false;
+        boolean http2 = false;
         boolean tryToReconnect;
         int tryToReconnectTimes;
         int sleepTimeBetweenTrying;
+
+        // java 8 default interface method
+        boolean haveDefaultValue = false;
+        boolean completableFuture = false;
+        // Reactor Mono or Flux
+        boolean reactive = false;
+
+        // type to which response is decoded from stream; null if response is buffered
+        JavaType responseBodyType = null;
+        ResponseBodyKind responseBodyKind = ResponseBodyKind.VALUE;
+
+        // DEFAULT and -1 to use properties
+        RequestCompression requestCompression = RequestCompression.DEFAULT;
+        int requestCompressionThreshold = -1;
+
+        // millis; -1 to use properties
+        int connectTimeout = -1;
+        int responseTimeout = -1;
+        long deadline = -1;
+        // DEFAULT to use properties
+        LoadBalancing loadBalancing = LoadBalancing.DEFAULT;
+        // null if requests of method are not hedged
+        HedgingPolicy hedgingPolicy = null;
+
+        ArgumentBinding[] headerBindings = new ArgumentBinding[0];
+
+        // index of argument which is payload for POST and PUT; -1 if no payload
+        int payloadArgumentIndex = -1;
+
+        // arguments merged to json payload, see {@link MicroPayloadVar}
+        int[] payloadArgumentIndexes = new int[0];
+        String[][] payloadJsonPaths = new String[0][];
+    }
+
+    /**
+     * Bind method argument to HTTP request
+     */
+    static class ArgumentBinding {
+        final ArgumentBindingKind kind;
+        final int argumentIndex;
+
+        // header name or path variable name
+        final String name;
+        final boolean encode;
+
+        ArgumentBinding(ArgumentBindingKind kind, int argumentIndex, String name, boolean encode) {
+            this.kind = kind;
+            this.argumentIndex = argumentIndex;
+            this.name = name;
+            this.encode = encode;
+        }
+    }
+
+    enum ArgumentBindingKind {
+        HEADER,
+        PATH_VAR
     }
 
 }
@@ -4,10 +4,14 @@
 
 package com.biqasoft.microservice.communicator.interfaceimpl;
 
+import com.biqasoft.microservice.communicator.exceptions.InvalidStateException;
 import com.biqasoft.microservice.communicator.interfaceimpl.annotation.EnableMicroserviceCommunicator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanInstantiationException;
+import org.springframework.beans.BeanUtils;
 import org.springframework.beans.BeansException;
+import org.springframework.beans.FatalBeanException;
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
 import org.springframework.beans.factory.support.BeanDefinitionRegistry;
@@ -18,6 +22,7 @@ import org.springframework.context.annotation.ConditionContext;
 import org.springframework.core.annotation.AnnotationUtils;
 import org.springframework.core.type.AnnotatedTypeMetadata;
 import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
 
 import java.lang.annotation.Annotation;
 import java.util.*;
@@ -45,9 +50,15 @@ public class MicroserviceInterfaceImplBeanDefinition implements BeanDefinitionRe
             String interfaceClassName = component.getBeanClassName();
             try {
                 Class<?> interfaceClass = Class.forName(interfaceClassName);
-                Object beanSignature = MicroserviceInterface.create(interfaceClass);
+                Object beanSignature = createGeneratedImplementation(interfaceClass);
+                if (beanSignature == null) {
+                    beanSignature = MicroserviceInterface.create(interfaceClass);
+                }
                 objectMap.put(  interfaceClass.getName() , beanSignature);
                 logger.debug("Find microservice interface {}", interfaceClassName);
+            } catch (InvalidStateException | BeanInstantiationException e) {
+                // invalid interface mapping - fail on startup, not on first request
+                throw new FatalBeanException("Invalid microservice interface " + interfaceClassName, e);
             } catch (Exception e) {
                 logger.error("Error init dynamic microservice {}", interfaceClassName, e);
             }
@@ -55,6 +66,23 @@ public class MicroserviceInterfaceImplBeanDefinition implements BeanDefinitionRe
 
     }
 
+    /**
+     * Use implementation generated by annotation processor at build time if it exists
+     *
+     * @param interfaceClass microservice interface
+     * @return instance of generated class or null if class was not generated
+     */
+    private Object createGeneratedImplementation(Class<?> interfaceClass) {
+        String generatedClassName = GeneratedMicroserviceClient.getGeneratedClassName(interfaceClass);
+        if (!ClassUtils.isPresent(generatedClassName, interfaceClass.getClassLoader())) {
+            return null;
+        }
+
+        Class<?> generatedClass = ClassUtils.resolveClassName(generatedClassName, interfaceClass.getClassLoader());
+        logger.debug("Use generated microservice implementation {}", generatedClassName);
+        return BeanUtils.instantiateClass(generatedClass);
+    }
+
     private String[] tryToExtractComponentScanAnnotationFromConfigurationClasses(List<Class> classes) {
         for (Class aClass : classes) {
             Annotation annotation = AnnotationUtils.getAnnotation(aClass, ComponentScan.class);
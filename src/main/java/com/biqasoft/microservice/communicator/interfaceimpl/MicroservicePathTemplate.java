@@ -0,0 +1,316 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.interfaceimpl;
+
+import com.biqasoft.microservice.communicator.exceptions.InvalidStateException;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.MicroPathVar;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Compiled {@link com.biqasoft.microservice.communicator.interfaceimpl.annotation.MicroMapping} path
+ * with {@link MicroPathVar} variables.
+ * <p>
+ * Path is split to literal and variable segments once, when interface is created.
+ * On every call variables are formatted and encoded straight into one builder: variables before {@code ?}
+ * as path segment, variables after it as query parameter, so value can not add path segments or query parameters
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+class MicroservicePathTemplate {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    // RFC 3986 pchar without pct-encoded: unreserved / sub-delims / ":" / "@"
+    private static final boolean[] PATH_SEGMENT_ALLOWED = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            PATH_SEGMENT_ALLOWED[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            PATH_SEGMENT_ALLOWED[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            PATH_SEGMENT_ALLOWED[c] = true;
+        }
+        for (char c : "-._~!$&'()*+,;=:@".toCharArray()) {
+            PATH_SEGMENT_ALLOWED[c] = true;
+        }
+    }
+
+    // RFC 3986 query without pct-encoded, excluding "&", "=" and "+" which separate parameters or mean space in query parameter
+    private static final boolean[] QUERY_PARAM_ALLOWED = new boolean[128];
+
+    static {
+        System.arraycopy(PATH_SEGMENT_ALLOWED, 0, QUERY_PARAM_ALLOWED, 0, PATH_SEGMENT_ALLOWED.length);
+        QUERY_PARAM_ALLOWED['/'] = true;
+        QUERY_PARAM_ALLOWED['?'] = true;
+        QUERY_PARAM_ALLOWED['&'] = false;
+        QUERY_PARAM_ALLOWED['='] = false;
+        QUERY_PARAM_ALLOWED['+'] = false;
+    }
+
+    // literal segment; null if segment is variable
+    private final String[] literals;
+    private final PathVariable[] variables;
+    private final int estimatedLength;
+
+    private MicroservicePathTemplate(String[] literals, PathVariable[] variables, int estimatedLength) {
+        this.literals = literals;
+        this.variables = variables;
+        this.estimatedLength = estimatedLength;
+    }
+
+    /**
+     * @param path          full path - base path with annotated path
+     * @param pathVariables method arguments bound to path
+     * @param parameterTypes method parameter types
+     * @return compiled path
+     * @throws InvalidStateException if path is not valid URI part
+     */
+    static MicroservicePathTemplate compile(String path, List<MicroserviceInterface.ArgumentBinding> pathVariables, Class<?>[] parameterTypes) {
+        List<String> literals = new ArrayList<>();
+        List<PathVariable> variables = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        StringBuilder literalsOnly = new StringBuilder();
+        int variablesCount = 0;
+        // variables after it are in query
+        int queryStart = path.indexOf('?');
+
+        int i = 0;
+        while (i < path.length()) {
+            int start = path.indexOf('{', i);
+            int end = start < 0 ? -1 : path.indexOf('}', start);
+            if (end < 0) {
+                literal.append(path, i, path.length());
+                break;
+            }
+
+            literal.append(path, i, start);
+            String name = path.substring(start + 1, end);
+            MicroserviceInterface.ArgumentBinding binding = findBinding(pathVariables, name);
+
+            if (binding == null) {
+                // not bound {} - leave as is
+                literal.append(path, start, end + 1);
+            } else {
+                literals.add(literal.toString());
+                variables.add(null);
+                literalsOnly.append(literal);
+                literal.setLength(0);
+
+                literals.add(null);
+                variablesCount++;
+                variables.add(new PathVariable(binding.argumentIndex, binding.name, binding.encode, queryStart >= 0 && start > queryStart,
+                        PathVariableType.of(parameterTypes[binding.argumentIndex])));
+            }
+            i = end + 1;
+        }
+
+        if (literal.length() > 0) {
+            literals.add(literal.toString());
+            variables.add(null);
+            literalsOnly.append(literal);
+        }
+
+        validate(path, literalsOnly.toString());
+        return new MicroservicePathTemplate(literals.toArray(new String[literals.size()]), variables.toArray(new PathVariable[variables.size()]),
+                literalsOnly.length() + 16 * variablesCount);
+    }
+
+    private static MicroserviceInterface.ArgumentBinding findBinding(List<MicroserviceInterface.ArgumentBinding> pathVariables, String name) {
+        for (MicroserviceInterface.ArgumentBinding pathVariable : pathVariables) {
+            if (pathVariable.name.equals(name)) {
+                return pathVariable;
+            }
+        }
+        return null;
+    }
+
+    private static void validate(String path, String literalsOnly) {
+        try {
+            // path can be a full URL or path relative to microservice base URL
+            if (literalsOnly.startsWith("http://") || literalsOnly.startsWith("https://")) {
+                URI.create(literalsOnly);
+            } else {
+                URI.create("http://localhost/" + literalsOnly);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new InvalidStateException("Invalid microservice path " + path, e);
+        }
+    }
+
+    /**
+     * @param objects method arguments
+     * @return expanded path with encoded variables
+     */
+    String expand(Object[] objects) {
+        StringBuilder builder = new StringBuilder(estimatedLength);
+
+        for (int i = 0; i < literals.length; i++) {
+            String literal = literals[i];
+            if (literal != null) {
+                builder.append(literal);
+            } else {
+                variables[i].append(builder, objects[variables[i].argumentIndex]);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Percent-encode string as RFC 3986 path segment with UTF-8
+     *
+     * @param value   string to encode
+     * @param builder to which append encoded value
+     */
+    static void encodePathSegment(CharSequence value, StringBuilder builder) {
+        encode(value, builder, PATH_SEGMENT_ALLOWED);
+    }
+
+    /**
+     * Percent-encode string as RFC 3986 query parameter name or value with UTF-8;
+     * {@code &}, {@code =} and {@code +} are encoded
+     *
+     * @param value   string to encode
+     * @param builder to which append encoded value
+     */
+    static void encodeQueryParam(CharSequence value, StringBuilder builder) {
+        encode(value, builder, QUERY_PARAM_ALLOWED);
+    }
+
+    private static void encode(CharSequence value, StringBuilder builder, boolean[] allowed) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+
+            if (c < 128) {
+                if (allowed[c]) {
+                    builder.append(c);
+                } else {
+                    appendEncodedByte(builder, c);
+                }
+                continue;
+            }
+
+            int codePoint = c;
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                codePoint = Character.toCodePoint(c, value.charAt(++i));
+            }
+
+            if (codePoint < 0x800) {
+                appendEncodedByte(builder, 0xC0 | (codePoint >> 6));
+                appendEncodedByte(builder, 0x80 | (codePoint & 0x3F));
+            } else if (codePoint < 0x10000) {
+                appendEncodedByte(builder, 0xE0 | (codePoint >> 12));
+                appendEncodedByte(builder, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendEncodedByte(builder, 0x80 | (codePoint & 0x3F));
+            } else {
+                appendEncodedByte(builder, 0xF0 | (codePoint >> 18));
+                appendEncodedByte(builder, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendEncodedByte(builder, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendEncodedByte(builder, 0x80 | (codePoint & 0x3F));
+            }
+        }
+    }
+
+    private static void appendEncodedByte(StringBuilder builder, int b) {
+        builder.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+
+    /**
+     * Java type of {@link MicroPathVar} argument; resolved once, so there is no type check on every call
+     */
+    enum PathVariableType {
+        STRING,
+        // integer numbers - never need encoding
+        NUMBER,
+        BOOLEAN,
+        UUID,
+        ENUM,
+        OTHER;
+
+        static PathVariableType of(Class<?> type) {
+            if (type.equals(String.class)) {
+                return STRING;
+            }
+            if (type.equals(long.class) || type.equals(Long.class) || type.equals(int.class) || type.equals(Integer.class)
+                    || type.equals(short.class) || type.equals(Short.class) || type.equals(byte.class) || type.equals(Byte.class)) {
+                return NUMBER;
+            }
+            if (type.equals(boolean.class) || type.equals(Boolean.class)) {
+                return BOOLEAN;
+            }
+            if (type.equals(java.util.UUID.class)) {
+                return UUID;
+            }
+            if (type.isEnum()) {
+                return ENUM;
+            }
+            return OTHER;
+        }
+    }
+
+    private static class PathVariable {
+        final int argumentIndex;
+        final String name;
+        final boolean encode;
+        // variable is in query, not in path
+        final boolean query;
+        final PathVariableType type;
+
+        PathVariable(int argumentIndex, String name, boolean encode, boolean query, PathVariableType type) {
+            this.argumentIndex = argumentIndex;
+            this.name = name;
+            this.encode = encode;
+            this.query = query;
+            this.type = type;
+        }
+
+        void append(StringBuilder builder, Object value) {
+            if (value == null) {
+                throw new InvalidStateException("Path variable " + name + " is null");
+            }
+
+            switch (type) {
+                case NUMBER:
+                    // digits and minus are allowed in path; append without creating string
+                    builder.append(((Number) value).longValue());
+                    return;
+                case BOOLEAN:
+                    builder.append(((Boolean) value).booleanValue());
+                    return;
+                case UUID:
+                    // hex digits and minus
+                    builder.append(((UUID) value).toString());
+                    return;
+                case STRING:
+                    appendString(builder, (String) value);
+                    return;
+                case ENUM:
+                    appendString(builder, ((Enum<?>) value).name());
+                    return;
+                default:
+                    appendString(builder, value.toString());
+            }
+        }
+
+        private void appendString(StringBuilder builder, String value) {
+            if (!encode) {
+                builder.append(value);
+            } else if (query) {
+                encodeQueryParam(value, builder);
+            } else {
+                encodePathSegment(value, builder);
+            }
+        }
+    }
+
+}
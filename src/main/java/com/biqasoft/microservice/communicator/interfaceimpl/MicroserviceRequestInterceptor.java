@@ -4,6 +4,7 @@
 
 package com.biqasoft.microservice.communicator.interfaceimpl;
 
+import com.biqasoft.microservice.communicator.http.MicroserviceCallContext;
 import com.biqasoft.microservice.communicator.http.MicroserviceRestTemplate;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
@@ -14,6 +15,9 @@ import java.util.Map;
 
 /**
  * Implement spring bean to intercept all microservice requests
+ * <p>
+ * Library calls methods with {@link MicroserviceCallContext} - state of current request.
+ * By default they delegate to methods with shared {@link MicroserviceRestTemplate}, so override any of them
  *
  * @author Nikita Bakaev, ya@nbakaev.ru
  *         Date: 7/26/2016
@@ -48,4 +52,42 @@ public interface MicroserviceRequestInterceptor {
    default Object onBeforeReturnResult(Object modifiedObject, Object originalObject, Object payload, Class returnType,
                                        MicroserviceRestTemplate restTemplate, Class[] returnGenericType, Map<String, Object> params){return modifiedObject;}
 
+   /**
+    * If every interceptor returns false, response JSON of plain object, collection and {@link java.util.Optional}
+    * return types is decoded straight from response stream: {@link #afterRequest} gets response entity without body
+    * and {@link #onBeforeReturnResult} gets decoded object as original object.
+    * Return true if interceptor needs response body as byte[]; interceptor which only processes decoded object,
+    * such as return type adapter, returns false
+    *
+    * @return true if response body must be buffered as byte[]
+    */
+   default boolean requiresRawResponseBody(){return true;}
+
+   // same methods with state of current request
+
+   default void beforeCreateHttpEntity(MicroserviceCallContext context, Class returnType, Class[] returnGenericType, HttpHeaders httpHeaders){
+      beforeCreateHttpEntity(context.getRestTemplate(), returnType, returnGenericType, httpHeaders);
+   }
+
+   default void beforeRequest(MicroserviceCallContext context, URI uri){
+      beforeRequest(context.getRestTemplate(), uri);
+   }
+
+   default void afterRequest(MicroserviceCallContext context, HttpEntity<Object> request, ResponseEntity<byte[]> responseEntity, Class returnType, Class[] returnGenericType){
+      afterRequest(context.getRestTemplate(), request, responseEntity, returnType, returnGenericType);
+   }
+
+   default void beforeProcessRequest(MicroserviceCallContext context, HttpHeaders httpHeaders){
+      beforeProcessRequest(context.getRestTemplate(), httpHeaders);
+   }
+
+   default void onException(MicroserviceCallContext context, URI uri, Exception e){
+      onException(context.getRestTemplate(), uri, e);
+   }
+
+   default Object onBeforeReturnResult(Object modifiedObject, Object originalObject, Object payload, Class returnType,
+                                       MicroserviceCallContext context, Class[] returnGenericType, Map<String, Object> params){
+      return onBeforeReturnResult(modifiedObject, originalObject, payload, returnType, context.getRestTemplate(), returnGenericType, params);
+   }
+
 }
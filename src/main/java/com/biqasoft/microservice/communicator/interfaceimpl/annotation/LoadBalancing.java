@@ -0,0 +1,25 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.interfaceimpl.annotation;
+
+/**
+ * How instance of microservice is chosen from snapshot of service discovery, see {@link Microservice#loadBalancing()}.
+ * Both strategies compare two random instances (power of two choices)
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+public enum LoadBalancing {
+
+    // use setting of application properties
+    DEFAULT,
+
+    // instance with less requests in flight
+    LEAST_OUTSTANDING,
+
+    // instance with less peak EWMA of latency multiplied by requests in flight, so slow instances get less requests
+    PEAK_EWMA
+
+}
@@ -35,21 +35,21 @@ public @interface MicroMapping {
     HttpMethod method() default HttpMethod.GET;
 
     /**
-     * see {@link com.biqasoft.microservice.communicator.http.HttpClientsHelpers#getRestTemplate(boolean, int, int, String, String, HttpMethod, boolean)}
+     * see {@link com.biqasoft.microservice.communicator.http.HttpClientsHelpers#createCallContext(boolean, int, int, String, String, HttpMethod, boolean)}
      *
      * @return true if try to reconnect to service on error
      */
     boolean tryToReconnect() default true;
 
     /**
-     * see {@link com.biqasoft.microservice.communicator.http.HttpClientsHelpers#getRestTemplate(boolean, int, int, String, String, HttpMethod, boolean)}
+     * see {@link com.biqasoft.microservice.communicator.http.HttpClientsHelpers#createCallContext(boolean, int, int, String, String, HttpMethod, boolean)}
      *
      * @return number of tries to reconnect
      */
     int tryToReconnectTimes() default 2;
 
     /**
-     * see {@link com.biqasoft.microservice.communicator.http.HttpClientsHelpers#getRestTemplate(boolean, int, int, String, String, HttpMethod, boolean)}
+     * see {@link com.biqasoft.microservice.communicator.http.HttpClientsHelpers#createCallContext(boolean, int, int, String, String, HttpMethod, boolean)}
      * @return millisecond between trying
      */
     int sleepTimeBetweenTrying() default 1100;
@@ -62,6 +62,45 @@ public @interface MicroMapping {
      */
     String returnExpression() default "";
 
+    /**
+     * @return content coding of request body; {@link RequestCompression#DEFAULT} to use setting of {@link Microservice}
+     */
+    RequestCompression requestCompression() default RequestCompression.DEFAULT;
+
+    /**
+     * @return minimal request body size in bytes to compress; -1 to use setting of {@link Microservice}
+     */
+    int requestCompressionThreshold() default -1;
+
+    /**
+     * @return millis to establish connection in every attempt; -1 to use setting of {@link Microservice}
+     */
+    int connectTimeout() default -1;
+
+    /**
+     * @return millis to wait for response data in every attempt; -1 to use setting of {@link Microservice}
+     */
+    int responseTimeout() default -1;
+
+    /**
+     * @return max millis of call including all retries; 0 for no deadline, -1 to use setting of {@link Microservice}
+     */
+    long deadline() default -1;
+
+    /**
+     * Send the same GET request to other instance if response is not received within {@link #hedgeDelay()};
+     * first successful response is returned, other request is aborted. Number of hedged requests is limited by
+     * {@code biqa.microservice.communicator.hedge.budget} percent of requests
+     *
+     * @return true to hedge requests of this method
+     */
+    boolean hedge() default false;
+
+    /**
+     * @return millis to wait for response before hedged request is sent; -1 for observed 95th percentile of response time of this method
+     */
+    int hedgeDelay() default -1;
+
 
 //    MediaType contentType() default MediaType.APPLICATION_JSON;
 //    String[] produces() default {};
@@ -10,7 +10,9 @@ import org.springframework.stereotype.Component;
 import java.lang.annotation.*;
 
 /**
- * Add to annotation to interface
+ * Add to annotation to interface method argument to replace {name} in {@link MicroMapping} path.
+ * Argument can be {@link String}, integer number, {@link Boolean}, {@link java.util.UUID}, enum (name is used)
+ * or any object ({@link Object#toString()} is used)
  *
  * @author Nikita Bakaev, ya@nbakaev.ru
  *         Date: 7/15/2016
@@ -28,6 +30,9 @@ public @interface MicroPathVar {
     @AliasFor("value")
     String param() default "";
 
+    /**
+     * @return true if value should be percent-encoded as RFC 3986 path segment
+     */
     boolean encode() default true;
 
 }
@@ -30,6 +30,45 @@ public @interface Microservice {
 
     boolean https() default false;
 
+    /**
+     * @return true to send requests over HTTP/2: h2c with prior knowledge if {@link #https()} is false, h2 otherwise.
+     * Many concurrent requests share few connections to every instance. Requires okhttp in classpath
+     */
+    boolean http2() default false;
+
     String basePath() default "";
 
+    /**
+     * @return content coding of request body for all methods of interface;
+     * {@link RequestCompression#DEFAULT} to use {@code biqa.microservice.communicator.compression.*} properties
+     */
+    RequestCompression requestCompression() default RequestCompression.DEFAULT;
+
+    /**
+     * @return minimal request body size in bytes to compress; -1 to use properties
+     */
+    int requestCompressionThreshold() default -1;
+
+    /**
+     * @return millis to establish connection in every attempt; -1 to use {@code biqa.microservice.communicator.pool.connect-timeout}
+     */
+    int connectTimeout() default -1;
+
+    /**
+     * @return millis to wait for response data in every attempt; -1 to use {@code biqa.microservice.communicator.pool.socket-timeout}
+     */
+    int responseTimeout() default -1;
+
+    /**
+     * @return max millis of call including all retries; 0 for no deadline,
+     * -1 to use {@code biqa.microservice.communicator.timeout.deadline}
+     */
+    long deadline() default -1;
+
+    /**
+     * @return how instance is chosen for every attempt;
+     * {@link LoadBalancing#DEFAULT} to use {@code biqa.microservice.communicator.load-balancing.strategy}
+     */
+    LoadBalancing loadBalancing() default LoadBalancing.DEFAULT;
+
 }
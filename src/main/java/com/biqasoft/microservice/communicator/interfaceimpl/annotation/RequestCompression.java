@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.interfaceimpl.annotation;
+
+/**
+ * Content coding of request body, see {@link Microservice#requestCompression()} and {@link MicroMapping#requestCompression()}
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+public enum RequestCompression {
+
+    // use setting of interface or application properties
+    DEFAULT(null),
+
+    NONE(null),
+    GZIP("gzip"),
+    DEFLATE("deflate");
+
+    private final String contentEncoding;
+
+    RequestCompression(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * @return value of Content-Encoding header; null if body is not compressed
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+}
@@ -5,6 +5,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
@@ -42,14 +43,23 @@ public class DefaultReturnValueService {
 
         try {
             Method defaultJava8Method = interfaceToExtend.getMethod(method.getName(), method.getParameterTypes());
-            Field field = MethodHandles.Lookup.class.getDeclaredField("IMPL_LOOKUP");
-            field.setAccessible(true);
-            MethodHandles.Lookup lookup = (MethodHandles.Lookup) field.get(null);
-            return lookup.unreflectSpecial(defaultJava8Method, defaultJava8Method.getDeclaringClass()).bindTo(defaultInterfaceProxy).invokeWithArguments(methodParams);
+            return getDefaultMethodHandle(defaultJava8Method).bindTo(defaultInterfaceProxy).invokeWithArguments(methodParams);
         } catch (Throwable throwable) {
             logger.error("Can not execute java 8 default interface method", throwable);
             throw new InternalSeverErrorProcessingRequestException("Internal error processing. Retry later");
         }
     }
 
+    /**
+     * @param defaultJava8Method java 8 default interface method
+     * @return method handle which invokes default method body, not overridden implementation
+     * @throws ReflectiveOperationException if can not access default method
+     */
+    public static MethodHandle getDefaultMethodHandle(Method defaultJava8Method) throws ReflectiveOperationException {
+        Field field = MethodHandles.Lookup.class.getDeclaredField("IMPL_LOOKUP");
+        field.setAccessible(true);
+        MethodHandles.Lookup lookup = (MethodHandles.Lookup) field.get(null);
+        return lookup.unreflectSpecial(defaultJava8Method, defaultJava8Method.getDeclaringClass());
+    }
+
 }
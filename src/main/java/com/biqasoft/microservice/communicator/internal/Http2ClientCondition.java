@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.internal;
+
+import org.springframework.context.annotation.Condition;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.core.type.AnnotatedTypeMetadata;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Match if okhttp is in classpath, so microservice can be called with HTTP/2
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+public class Http2ClientCondition implements Condition {
+
+    private static final String OK_HTTP_CLIENT_CLASS = "okhttp3.OkHttpClient";
+
+    @Override
+    public boolean matches(ConditionContext context, AnnotatedTypeMetadata metadata) {
+        return isHttp2ClientPresent(context.getClassLoader());
+    }
+
+    /**
+     * @param classLoader class loader to check; null for default
+     * @return true if HTTP/2 client classes can be loaded
+     */
+    public static boolean isHttp2ClientPresent(ClassLoader classLoader) {
+        return ClassUtils.isPresent(OK_HTTP_CLIENT_CLASS, classLoader);
+    }
+
+}
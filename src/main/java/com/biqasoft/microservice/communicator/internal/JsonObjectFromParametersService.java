@@ -13,6 +13,7 @@ import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
 import java.lang.reflect.Parameter;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -35,55 +36,69 @@ public class JsonObjectFromParametersService {
      * @return json object(payload)
      */
     public Object createJsonRequestObjectFromParameters(Object[] objects, List<Parameter> parameters) {
-        Object payload;
-        ObjectNode rootNode = factory.objectNode();
-        payload = rootNode;
+        List<Integer> argumentIndexes = new ArrayList<>();
+        List<String[]> jsonPaths = new ArrayList<>();
 
-        for (Parameter parameter : parameters) {
-            MicroPayloadVar param = AnnotationUtils.findAnnotation(parameter, MicroPayloadVar.class);
+        for (int i = 0; i < parameters.size(); i++) {
+            MicroPayloadVar param = AnnotationUtils.findAnnotation(parameters.get(i), MicroPayloadVar.class);
             if (param == null) {
                 continue;
             }
+            argumentIndexes.add(i);
+            jsonPaths.add(resolveJsonPath(parameters.get(i), param));
+        }
 
-            String jsonName;
-            String delimiter = ".";
+        return createJsonRequestObjectFromParameters(objects, argumentIndexes.stream().mapToInt(Integer::intValue).toArray(),
+                jsonPaths.toArray(new String[jsonPaths.size()][]));
+    }
 
-            if (!StringUtils.isEmpty(param.path())) {
-                jsonName = param.path();
-            } else {
-                // java 8 param reflection
-                if (!parameter.isNamePresent()) {
-                    throw new InvalidStateException("You try to use java 8 param name extract via reflection, but looks like, not compile javac with -parameters");
-                }
-                jsonName = parameter.getName();
-                delimiter = "_";
-            }
+    /**
+     * @param objects         passed objects to interface method
+     * @param argumentIndexes indexes of arguments annotated with {@link MicroPayloadVar}
+     * @param jsonPaths       json path for every argument from argumentIndexes, see {@link #resolveJsonPath(Parameter, MicroPayloadVar)}
+     * @return json object(payload)
+     */
+    public Object createJsonRequestObjectFromParameters(Object[] objects, int[] argumentIndexes, String[][] jsonPaths) {
+        ObjectNode rootNode = factory.objectNode();
 
+        for (int i = 0; i < argumentIndexes.length; i++) {
+            String[] jsonPath = jsonPaths[i];
             ObjectNode latestNode = rootNode;
-            if (jsonName.contains(delimiter)) {
-                String[] split = jsonName.split(delimiter.equals(".") ? "\\." : "_");
-                int i = 0;
-                for (String s : split) {
-                    if ((i + 1) == split.length) {
-                        break;
-                    }
 
-                    if (latestNode.path(s).isObject()) {
-                        latestNode = (ObjectNode) latestNode.path(s);
-                    } else {
-                        ObjectNode newNode = factory.objectNode();
-                        latestNode.set(s, newNode);
-                        latestNode = newNode;
-                    }
-                    i++;
+            for (int j = 0; j < jsonPath.length - 1; j++) {
+                String s = jsonPath[j];
+                if (latestNode.path(s).isObject()) {
+                    latestNode = (ObjectNode) latestNode.path(s);
+                } else {
+                    ObjectNode newNode = factory.objectNode();
+                    latestNode.set(s, newNode);
+                    latestNode = newNode;
                 }
-                jsonName = split[split.length - 1];
             }
 
-            JsonNode node = objectMapper.convertValue(objects[parameters.indexOf(parameter)], JsonNode.class);
-            latestNode.set(jsonName, node);
+            JsonNode node = objectMapper.convertValue(objects[argumentIndexes[i]], JsonNode.class);
+            latestNode.set(jsonPath[jsonPath.length - 1], node);
+        }
+        return rootNode;
+    }
+
+    /**
+     * Get json node path of method argument
+     *
+     * @param parameter interface method parameter
+     * @param param     parameter annotation
+     * @return json node names, from root to leaf
+     */
+    public static String[] resolveJsonPath(Parameter parameter, MicroPayloadVar param) {
+        if (!StringUtils.isEmpty(param.path())) {
+            return param.path().split("\\.");
+        }
+
+        // java 8 param reflection
+        if (!parameter.isNamePresent()) {
+            throw new InvalidStateException("You try to use java 8 param name extract via reflection, but looks like, not compile javac with -parameters");
         }
-        return payload;
+        return parameter.getName().split("_");
     }
 
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.internal;
+
+import org.springframework.context.annotation.Condition;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.core.type.AnnotatedTypeMetadata;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Match if spring-webflux and reactor-netty are in classpath, so interface methods can return Mono and Flux
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+public class ReactiveClientCondition implements Condition {
+
+    public static final String MONO_CLASS = "reactor.core.publisher.Mono";
+    public static final String FLUX_CLASS = "reactor.core.publisher.Flux";
+
+    private static final String WEB_CLIENT_CLASS = "org.springframework.web.reactive.function.client.WebClient";
+    private static final String REACTOR_NETTY_CLASS = "reactor.ipc.netty.http.client.HttpClient";
+
+    @Override
+    public boolean matches(ConditionContext context, AnnotatedTypeMetadata metadata) {
+        return isReactiveClientPresent(context.getClassLoader());
+    }
+
+    /**
+     * @param classLoader class loader to check; null for default
+     * @return true if reactive client classes can be loaded
+     */
+    public static boolean isReactiveClientPresent(ClassLoader classLoader) {
+        return ClassUtils.isPresent(WEB_CLIENT_CLASS, classLoader) && ClassUtils.isPresent(REACTOR_NETTY_CLASS, classLoader);
+    }
+
+    /**
+     * @param type interface method return type
+     * @return true if type is Reactor Mono or Flux; checked by name, so reactor is not required in classpath
+     */
+    public static boolean isReactiveType(Class<?> type) {
+        return MONO_CLASS.equals(type.getName()) || FLUX_CLASS.equals(type.getName());
+    }
+
+}
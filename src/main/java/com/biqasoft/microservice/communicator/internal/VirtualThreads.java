@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.internal;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads of JDK 21+. Library is compiled for java 8, so JDK version is checked and JDK API is called with reflection
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+public final class VirtualThreads {
+
+    // JDK 19 and 20 have virtual threads only as preview feature
+    private static final Method OF_VIRTUAL = getFeatureVersion() >= 21 ? findMethod(Thread.class, "ofVirtual") : null;
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if JDK can start virtual threads
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @param namePrefix prefix of thread name, thread number is appended
+     * @return executor which starts new virtual thread for every task; null if virtual threads are not supported
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix) {
+        if (OF_VIRTUAL == null) {
+            return null;
+        }
+
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return feature release of running JDK, e.g. 21; 8 for JDK 8 which has no {@code Runtime.version()}
+     */
+    static int getFeatureVersion() {
+        try {
+            Object version = Runtime.class.getMethod("version").invoke(null);
+            Method feature = findMethod(version.getClass(), "feature");
+            // JDK 9 has only major()
+            return (Integer) (feature != null ? feature : version.getClass().getMethod("major")).invoke(version);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return 8;
+        }
+    }
+
+    private static Method findMethod(Class<?> clazz, String name) {
+        try {
+            return clazz.getMethod(name);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.servicediscovery;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published when {@link MicroserviceOutlierDetection} ejects instance of microservice from load balancing.
+ * Listen with {@link org.springframework.context.event.EventListener}; listener is executed by single thread of outlier detection,
+ * not by thread which made failed request
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@SuppressWarnings("serial")
+public class InstanceEjectedEvent extends ApplicationEvent {
+
+    private final String microserviceName;
+    private final MicroserviceInstance instance;
+    private final int consecutiveFailures;
+    private final int ejections;
+    private final long ejectionTime;
+
+    /**
+     * @param source              outlier detection
+     * @param microserviceName    registered service name
+     * @param instance            ejected instance
+     * @param consecutiveFailures failed attempts in a row which caused ejection
+     * @param ejections           number of ejections of instance including this one
+     * @param ejectionTime        millis while instance is not chosen
+     */
+    public InstanceEjectedEvent(Object source, String microserviceName, MicroserviceInstance instance, int consecutiveFailures,
+                                int ejections, long ejectionTime) {
+        super(source);
+        this.microserviceName = microserviceName;
+        this.instance = instance;
+        this.consecutiveFailures = consecutiveFailures;
+        this.ejections = ejections;
+        this.ejectionTime = ejectionTime;
+    }
+
+    public String getMicroserviceName() {
+        return microserviceName;
+    }
+
+    public MicroserviceInstance getInstance() {
+        return instance;
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public int getEjections() {
+        return ejections;
+    }
+
+    public long getEjectionTime() {
+        return ejectionTime;
+    }
+
+    @Override
+    public String toString() {
+        return "Ejected " + instance.getKey() + " for " + ejectionTime + "ms after " + consecutiveFailures
+                + " failures in a row, ejections: " + ejections;
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.servicediscovery;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Immutable list of instances of microservice in {@link MicroserviceInstances} with number of instances which are healthy
+ * and not ejected, so {@link MicroserviceLoadBalancer} checks panic threshold without iterating over instances on every choice.
+ * Instances are counted when snapshot is created, when instance of snapshot is ejected or changes health,
+ * and when ejection of some instance is over
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+final class InstancesSnapshot extends AbstractList<MicroserviceInstance> implements RandomAccess {
+
+    private final MicroserviceInstance[] instances;
+
+    // instances which are healthy and not ejected; written under lock of this
+    private volatile int healthy;
+    // System.nanoTime() when the earliest ejection is over and instances are counted again; 0 if no instance is ejected
+    private volatile long ejectionEnd;
+
+    /**
+     * @param instances instances which are not in other snapshot any more; their changes are counted in this snapshot
+     */
+    InstancesSnapshot(List<MicroserviceInstance> instances) {
+        this.instances = instances.toArray(new MicroserviceInstance[0]);
+        for (MicroserviceInstance instance : this.instances) {
+            instance.setSnapshot(this);
+        }
+        // counted after instances are bound to snapshot, so change of instance in between is not lost
+        count(System.nanoTime());
+    }
+
+    @Override
+    public MicroserviceInstance get(int index) {
+        return instances[index];
+    }
+
+    @Override
+    public int size() {
+        return instances.length;
+    }
+
+    /**
+     * @param now {@link System#nanoTime()} at which instances are checked
+     * @return number of instances which are healthy and not ejected
+     */
+    int getHealthy(long now) {
+        long end = ejectionEnd;
+        if (end != 0 && now - end >= 0) {
+            count(now);
+        }
+        return healthy;
+    }
+
+    /**
+     * Called when instance of snapshot is ejected or changes health
+     */
+    void onInstanceChange() {
+        count(System.nanoTime());
+    }
+
+    private synchronized void count(long now) {
+        int healthy = 0;
+        long ejectionEnd = 0;
+        for (MicroserviceInstance instance : instances) {
+            if (instance.isEjected(now)) {
+                long until = instance.getEjectedUntil();
+                if (ejectionEnd == 0 || until - ejectionEnd < 0) {
+                    ejectionEnd = until;
+                }
+            } else if (instance.isHealthy()) {
+                healthy++;
+            }
+        }
+        this.healthy = healthy;
+        this.ejectionEnd = ejectionEnd;
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.servicediscovery;
+
+import com.biqasoft.microservice.communicator.http.MicroserviceConnectionPools;
+import com.biqasoft.microservice.communicator.interfaceimpl.MicroserviceInterface;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional active health checks. Every {@code biqa.microservice.communicator.health-check.interval} millis GET request to health path
+ * is sent to every instance in snapshot of {@link MicroserviceInstances} of every {@link com.biqasoft.microservice.communicator.interfaceimpl.annotation.Microservice}
+ * interface and other called microservice. Instance which has no response or responds with 5xx {@code unhealthy-threshold} times
+ * in a row is not chosen by {@link MicroserviceLoadBalancer} until next successful check, so dead instance is removed
+ * before service discovery notices it and before requests fail.
+ * <p>
+ * Checks are sent with own non-blocking client with single I/O thread and new connection for every check, no more than
+ * {@code max-concurrent-checks} at the same time, so they do not take connections of microservice pools and slow checks do not delay requests. Checks use https if
+ * some {@link com.biqasoft.microservice.communicator.interfaceimpl.annotation.Microservice} interface of microservice is https,
+ * otherwise scheme of service discovery instance. Health path can be set or checks disabled per microservice with
+ * {@code biqa.microservice.communicator.services.<microservice name>.health-check.*}
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Component
+public class MicroserviceHealthChecks {
+
+    private static final Logger logger = LoggerFactory.getLogger(MicroserviceHealthChecks.class);
+
+    private final MicroserviceInstances microserviceInstances;
+    private final Environment environment;
+    private final String path;
+    private final int timeout;
+    private final int unhealthyThreshold;
+    private final Semaphore concurrentChecks;
+
+    private final ConcurrentMap<String, Settings> settings = new ConcurrentHashMap<>();
+    // instances which check is not finished
+    private final Set<MicroserviceInstance> checkedInstances = ConcurrentHashMap.newKeySet();
+    // null if health checks are disabled
+    private final ScheduledExecutorService scheduler;
+    private final CloseableHttpAsyncClient httpClient;
+
+    @Autowired
+    public MicroserviceHealthChecks(MicroserviceInstances microserviceInstances, Environment environment,
+                                    @Value("${biqa.microservice.communicator.health-check.enabled:false}") boolean enabled,
+                                    @Value("${biqa.microservice.communicator.health-check.path:/internal/health}") String path,
+                                    @Value("${biqa.microservice.communicator.health-check.interval:2000}") long interval,
+                                    @Value("${biqa.microservice.communicator.health-check.timeout:1000}") int timeout,
+                                    @Value("${biqa.microservice.communicator.health-check.unhealthy-threshold:2}") int unhealthyThreshold,
+                                    @Value("${biqa.microservice.communicator.health-check.max-concurrent-checks:16}") int maxConcurrentChecks) {
+        this.microserviceInstances = microserviceInstances;
+        this.environment = environment;
+        this.path = path;
+        this.timeout = timeout;
+        this.unhealthyThreshold = Math.max(1, unhealthyThreshold);
+        this.concurrentChecks = new Semaphore(Math.max(1, maxConcurrentChecks));
+
+        if (enabled) {
+            IOReactorConfig reactorConfig = IOReactorConfig.custom()
+                    .setIoThreadCount(1)
+                    .setConnectTimeout(timeout)
+                    // socket timeouts are checked once per select interval
+                    .setSelectInterval(100)
+                    .build();
+            this.httpClient = HttpAsyncClients.custom()
+                    .setDefaultIOReactorConfig(reactorConfig)
+                    .setMaxConnTotal(Math.max(1, maxConcurrentChecks))
+                    .setMaxConnPerRoute(Math.max(1, maxConcurrentChecks))
+                    // every check opens new connection, so connection closed by idle instance does not fail check
+                    .setConnectionReuseStrategy(NoConnectionReuseStrategy.INSTANCE)
+                    .setThreadFactory(r -> {
+                        Thread thread = new Thread(r, "microservice-health-check-io");
+                        thread.setDaemon(true);
+                        return thread;
+                    })
+                    .build();
+            httpClient.start();
+
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "microservice-health-check");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::checkInstances, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.httpClient = null;
+            this.scheduler = null;
+        }
+    }
+
+    private void checkInstances() {
+        // load snapshots of interfaces which are not called yet
+        for (String microserviceName : MicroserviceInterface.getMicroserviceNames()) {
+            if (getSettings(microserviceName).enabled) {
+                microserviceInstances.getInstances(microserviceName);
+            }
+        }
+
+        for (Map.Entry<String, List<MicroserviceInstance>> snapshot : microserviceInstances.getSnapshots().entrySet()) {
+            Settings serviceSettings = getSettings(snapshot.getKey());
+            if (!serviceSettings.enabled) {
+                continue;
+            }
+            Boolean https = MicroserviceInterface.isHttps(snapshot.getKey());
+
+            for (MicroserviceInstance instance : snapshot.getValue()) {
+                // previous check of instance is not finished
+                if (!checkedInstances.add(instance)) {
+                    continue;
+                }
+                try {
+                    concurrentChecks.acquire();
+                } catch (InterruptedException e) {
+                    checkedInstances.remove(instance);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                check(instance, https == null ? instance.isSecure() : https, serviceSettings.path);
+            }
+        }
+    }
+
+    private void check(MicroserviceInstance instance, boolean https, String healthPath) {
+        CompletableFuture<Integer> future;
+        try {
+            future = probe(URI.create(instance.getBaseUri(https).concat(healthPath)));
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+
+        future.whenComplete((statusCode, e) -> {
+            checkedInstances.remove(instance);
+            concurrentChecks.release();
+
+            if (e == null && statusCode < 500) {
+                if (instance.onHealthCheckSuccess()) {
+                    logger.info("Instance {} is healthy", instance.getKey());
+                }
+            } else if (instance.onHealthCheckFailure(unhealthyThreshold)) {
+                logger.warn("Instance {} is unhealthy: {}", instance.getKey(), e == null ? "status code " + statusCode : e.toString());
+            }
+        });
+    }
+
+    /**
+     * @return future of response status code; completed exceptionally on connect or I/O error and timeout
+     */
+    private CompletableFuture<Integer> probe(URI uri) {
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(timeout)
+                .setConnectionRequestTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .build();
+
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        httpClient.execute(RequestBuilder.get(uri).setConfig(requestConfig).build(), new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse httpResponse) {
+                future.complete(httpResponse.getStatusLine().getStatusCode());
+            }
+
+            @Override
+            public void failed(Exception e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                future.completeExceptionally(new CancellationException("Health check is cancelled"));
+            }
+        });
+        return future;
+    }
+
+    private Settings getSettings(String microserviceName) {
+        Settings serviceSettings = settings.get(microserviceName);
+        if (serviceSettings != null) {
+            return serviceSettings;
+        }
+        return settings.computeIfAbsent(microserviceName, name -> {
+            String prefix = MicroserviceConnectionPools.SERVICE_PREFIX + name + ".health-check.";
+            return new Settings(environment.getProperty(prefix + "enabled", Boolean.class, true),
+                    environment.getProperty(prefix + "path", path));
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                logger.warn("Can not close health check http client", e);
+            }
+        }
+    }
+
+    private static final class Settings {
+
+        private final boolean enabled;
+        private final String path;
+
+        private Settings(boolean enabled, String path) {
+            this.enabled = enabled;
+            this.path = path;
+        }
+
+    }
+
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.servicediscovery;
+
+import org.springframework.cloud.client.ServiceInstance;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Instance of microservice in snapshot of {@link MicroserviceInstances} with precomputed base URI, number of requests in flight,
+ * peak EWMA of latency, ejection by {@link MicroserviceOutlierDetection} and result of {@link MicroserviceHealthChecks}.
+ * The same object is kept while instance is registered in service discovery
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+public final class MicroserviceInstance implements ServiceInstance {
+
+    // load of instance which has requests in flight but no latency yet, it is greater than load of any measured instance
+    private static final double UNKNOWN_LATENCY_PENALTY = TimeUnit.MINUTES.toNanos(1);
+
+    private final ServiceInstance serviceInstance;
+    private final String key;
+    private final String httpUri;
+    private final String httpsUri;
+    // base URIs parsed on first request to instance
+    private volatile URI httpBaseURI;
+    private volatile URI httpsBaseURI;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // nanos in which weight of latency decreases e times
+    private final double decayTime;
+    // least latency in nanos recorded for failed attempt
+    private final long failurePenalty;
+    // peak EWMA of latency in nanos, 0 until first response; guarded by this
+    private double latency;
+    // System.nanoTime() of last latency update
+    private long latencyTime;
+
+    // failed attempts in a row
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    // System.nanoTime() until which instance is not chosen; 0 if instance was never ejected
+    private volatile long ejectedUntil;
+    // number of ejections which makes ejection period longer; guarded by MicroserviceOutlierDetection
+    private int ejections;
+
+    // false if instance failed health checks
+    private volatile boolean healthy = true;
+    private final AtomicInteger failedHealthChecks = new AtomicInteger();
+
+    // snapshot which counts healthy instances; null if instance is not in snapshot
+    private volatile InstancesSnapshot snapshot;
+
+    /**
+     * @param decayTime      millis in which weight of observed latency decreases e times
+     * @param failurePenalty least latency in millis recorded for failed attempt
+     */
+    MicroserviceInstance(String microserviceName, ServiceInstance serviceInstance, long decayTime, long failurePenalty) {
+        this.serviceInstance = serviceInstance;
+        this.decayTime = Math.max(1, TimeUnit.MILLISECONDS.toNanos(decayTime));
+        this.failurePenalty = TimeUnit.MILLISECONDS.toNanos(failurePenalty);
+        String address = serviceInstance.getHost() + ":" + serviceInstance.getPort();
+        this.key = microserviceName + " " + address;
+        this.httpUri = "http://" + address;
+        this.httpsUri = "https://" + address;
+    }
+
+    /**
+     * @return microservice name with host and port of instance
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @param https use http or https
+     * @return URI without path, such as http://host:port
+     */
+    public String getBaseUri(boolean https) {
+        return https ? httpsUri : httpUri;
+    }
+
+    /**
+     * @param https use http or https
+     * @return parsed {@link #getBaseUri(boolean)}
+     */
+    URI getBaseURI(boolean https) {
+        URI uri = https ? httpsBaseURI : httpBaseURI;
+        if (uri == null) {
+            uri = URI.create(getBaseUri(https));
+            if (https) {
+                httpsBaseURI = uri;
+            } else {
+                httpBaseURI = uri;
+            }
+        }
+        return uri;
+    }
+
+    /**
+     * @return number of requests sent to instance which response is not received yet
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public void onRequestStart() {
+        inFlight.incrementAndGet();
+    }
+
+    public void onRequestEnd() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Latency higher than current estimate replaces it at once, lower latency is averaged with weight
+     * which decays exponentially with time since previous update
+     *
+     * @param latency nanos from sending request to receiving response or failure
+     * @param failure true if response is not received or it is 5xx; latency of failure is at least failure penalty,
+     *                so instance which fails fast does not look fast
+     */
+    public void onLatency(long latency, boolean failure) {
+        onLatency(latency, failure, System.nanoTime());
+    }
+
+    synchronized void onLatency(long latency, boolean failure, long now) {
+        double weight = Math.exp(-Math.max(0, now - latencyTime) / decayTime);
+        latencyTime = now;
+
+        if (failure) {
+            latency = Math.max(latency, failurePenalty);
+        }
+        if (latency > this.latency) {
+            this.latency = latency;
+        } else {
+            this.latency = this.latency * weight + latency * (1 - weight);
+        }
+    }
+
+    /**
+     * @return peak EWMA of latency in nanos, decayed to current time; 0 if no response is received yet
+     */
+    public double getLatency() {
+        return getLatency(System.nanoTime());
+    }
+
+    synchronized double getLatency(long now) {
+        // estimate decays towards 0 while instance gets no requests, so slow instance is tried again after a while
+        return latency * Math.exp(-Math.max(0, now - latencyTime) / decayTime);
+    }
+
+    /**
+     * @return peak EWMA of latency multiplied by requests in flight and one more, the less the better
+     */
+    public double getLoad() {
+        return getLoad(System.nanoTime());
+    }
+
+    double getLoad(long now) {
+        double estimate = getLatency(now);
+        int requests = inFlight.get();
+        if (estimate == 0 && requests != 0) {
+            return UNKNOWN_LATENCY_PENALTY + requests;
+        }
+        return estimate * (requests + 1);
+    }
+
+    /**
+     * @return true if instance is ejected by outlier detection and is not chosen by load balancer
+     */
+    public boolean isEjected() {
+        return isEjected(System.nanoTime());
+    }
+
+    boolean isEjected(long now) {
+        long until = ejectedUntil;
+        return until != 0 && now - until < 0;
+    }
+
+    /**
+     * @return number of failed attempts in a row
+     */
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    int onAttemptFailure() {
+        return consecutiveFailures.incrementAndGet();
+    }
+
+    void onAttemptSuccess() {
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+    }
+
+    long getEjectedUntil() {
+        return ejectedUntil;
+    }
+
+    int getEjections() {
+        return ejections;
+    }
+
+    /**
+     * @param until     {@link System#nanoTime()} until which instance is not chosen
+     * @param ejections number of ejections of instance including this one
+     */
+    void eject(long until, int ejections) {
+        this.ejections = ejections;
+        this.ejectedUntil = until;
+        consecutiveFailures.set(0);
+        onChange();
+    }
+
+    /**
+     * @return false if instance failed health checks and is not chosen by load balancer; true if it is not checked
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * @param unhealthyThreshold number of failed checks in a row after which instance is unhealthy
+     * @return true if instance became unhealthy
+     */
+    boolean onHealthCheckFailure(int unhealthyThreshold) {
+        if (failedHealthChecks.incrementAndGet() >= unhealthyThreshold && healthy) {
+            healthy = false;
+            onChange();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if instance became healthy
+     */
+    boolean onHealthCheckSuccess() {
+        failedHealthChecks.set(0);
+        if (!healthy) {
+            healthy = true;
+            onChange();
+            return true;
+        }
+        return false;
+    }
+
+    void setSnapshot(InstancesSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    private void onChange() {
+        InstancesSnapshot x = snapshot;
+        if (x != null) {
+            x.onInstanceChange();
+        }
+    }
+
+    /**
+     * @return instance returned by discovery client
+     */
+    public ServiceInstance getServiceInstance() {
+        return serviceInstance;
+    }
+
+    @Override
+    public String getServiceId() {
+        return serviceInstance.getServiceId();
+    }
+
+    @Override
+    public String getHost() {
+        return serviceInstance.getHost();
+    }
+
+    @Override
+    public int getPort() {
+        return serviceInstance.getPort();
+    }
+
+    @Override
+    public boolean isSecure() {
+        return serviceInstance.isSecure();
+    }
+
+    @Override
+    public URI getUri() {
+        return serviceInstance.getUri();
+    }
+
+    @Override
+    public Map<String, String> getMetadata() {
+        return serviceInstance.getMetadata();
+    }
+
+    @Override
+    public String toString() {
+        return key + " [in flight: " + inFlight.get() + "; latency: " + TimeUnit.NANOSECONDS.toMillis((long) getLatency()) + "ms"
+                + (isEjected() ? "; ejected" : "") + (healthy ? "" : "; unhealthy") + "]";
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.servicediscovery;
+
+import com.biqasoft.microservice.communicator.http.MicroserviceCircuitBreakers;
+import com.biqasoft.microservice.communicator.http.MicroserviceConnectionPools;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.LoadBalancing;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.Microservice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immutable snapshot of instances of every called microservice. Snapshot is loaded from {@link DiscoveryClient} on first call
+ * to microservice and then refreshed in background every {@code biqa.microservice.communicator.instances.refresh-interval} millis,
+ * so service discovery is not asked on every request. Instance which is still registered keeps its {@link MicroserviceInstance}
+ * and number of requests in flight.
+ * <p>
+ * Snapshots are used only with {@code biqa.microservice.communicator.instances.enabled=true}, false by default. If they are
+ * disabled or application has no discovery client, snapshots are empty and {@link MicroserviceLoadBalancer} uses load balancer client.
+ * <p>
+ * Instance is chosen from snapshot with {@code biqa.microservice.communicator.load-balancing.strategy}, or per microservice with
+ * {@code biqa.microservice.communicator.services.<microservice name>.load-balancing.strategy}, unless interface sets
+ * {@link Microservice#loadBalancing()}
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Component
+public class MicroserviceInstances {
+
+    private static final Logger logger = LoggerFactory.getLogger(MicroserviceInstances.class);
+
+    private final DiscoveryClient discoveryClient;
+    private final Environment environment;
+    private final LoadBalancing loadBalancing;
+    private final long decayTime;
+    private final long failurePenalty;
+    private final int panicThreshold;
+    private final ConcurrentMap<String, LoadBalancing> serviceLoadBalancing = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<MicroserviceInstance>> snapshots = new ConcurrentHashMap<>();
+    // null if there is no discovery client
+    private final ScheduledExecutorService scheduler;
+
+    @Autowired
+    public MicroserviceInstances(ObjectProvider<DiscoveryClient> discoveryClient, Environment environment,
+                                 @Value("${biqa.microservice.communicator.instances.enabled:false}") boolean enabled,
+                                 @Value("${biqa.microservice.communicator.instances.refresh-interval:5000}") long refreshInterval,
+                                 @Value("${biqa.microservice.communicator.load-balancing.strategy:LEAST_OUTSTANDING}") LoadBalancing loadBalancing,
+                                 @Value("${biqa.microservice.communicator.load-balancing.decay-time:10000}") long decayTime,
+                                 @Value("${biqa.microservice.communicator.load-balancing.failure-penalty:1000}") long failurePenalty,
+                                 @Value("${biqa.microservice.communicator.load-balancing.panic-threshold:50}") int panicThreshold) {
+        this.discoveryClient = enabled ? discoveryClient.getIfAvailable() : null;
+        this.environment = environment;
+        this.loadBalancing = loadBalancing == LoadBalancing.DEFAULT ? LoadBalancing.LEAST_OUTSTANDING : loadBalancing;
+        this.decayTime = decayTime;
+        this.failurePenalty = failurePenalty;
+        this.panicThreshold = panicThreshold;
+
+        if (this.discoveryClient != null) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "microservice-instances-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::refresh, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+        } else {
+            this.scheduler = null;
+        }
+    }
+
+    /**
+     * @param microserviceName registered service name. For example gateway
+     * @return instances of microservice; empty if there is no discovery client or microservice has no instances
+     */
+    public List<MicroserviceInstance> getInstances(String microserviceName) {
+        List<MicroserviceInstance> instances = snapshots.get(microserviceName);
+        if (instances != null) {
+            return instances;
+        }
+        if (discoveryClient == null) {
+            return Collections.emptyList();
+        }
+        return snapshots.computeIfAbsent(microserviceName, name -> load(name, Collections.emptyList()));
+    }
+
+    /**
+     * @param microserviceName registered service name. For example gateway
+     * @return strategy of properties to choose instance of microservice, not {@link LoadBalancing#DEFAULT}
+     */
+    public LoadBalancing getLoadBalancing(String microserviceName) {
+        LoadBalancing strategy = serviceLoadBalancing.get(microserviceName);
+        if (strategy != null) {
+            return strategy;
+        }
+        return serviceLoadBalancing.computeIfAbsent(microserviceName, name -> {
+            LoadBalancing x = environment.getProperty(MicroserviceConnectionPools.SERVICE_PREFIX + name + ".load-balancing.strategy",
+                    LoadBalancing.class, loadBalancing);
+            return x == LoadBalancing.DEFAULT ? loadBalancing : x;
+        });
+    }
+
+    /**
+     * @return percent of healthy and not ejected instances of microservice below which load balancer chooses any instance
+     */
+    public int getPanicThreshold() {
+        return panicThreshold;
+    }
+
+    /**
+     * @return snapshot of every called microservice by microservice name
+     */
+    public Map<String, List<MicroserviceInstance>> getSnapshots() {
+        return Collections.unmodifiableMap(new HashMap<>(snapshots));
+    }
+
+    void refresh() {
+        for (Map.Entry<String, List<MicroserviceInstance>> snapshot : snapshots.entrySet()) {
+            snapshots.put(snapshot.getKey(), load(snapshot.getKey(), snapshot.getValue()));
+        }
+    }
+
+    private List<MicroserviceInstance> load(String microserviceName, List<MicroserviceInstance> previous) {
+        List<ServiceInstance> serviceInstances;
+        try {
+            serviceInstances = discoveryClient.getInstances(microserviceName);
+        } catch (RuntimeException e) {
+            // keep previous snapshot until service discovery is available
+            logger.warn("Can not get instances of microservice {}: {}", microserviceName, e.getMessage());
+            return previous;
+        }
+        if (serviceInstances == null || serviceInstances.isEmpty()) {
+            if (!previous.isEmpty()) {
+                onInstancesRemoved(microserviceName, Collections.emptyList());
+            }
+            return Collections.emptyList();
+        }
+
+        List<MicroserviceInstance> instances = new ArrayList<>(serviceInstances.size());
+        int retained = 0;
+        for (ServiceInstance serviceInstance : serviceInstances) {
+            MicroserviceInstance instance = null;
+            for (MicroserviceInstance x : previous) {
+                if (MicroserviceLoadBalancer.isSameInstance(x, serviceInstance)) {
+                    instance = x;
+                    break;
+                }
+            }
+            if (instance != null) {
+                retained++;
+            }
+            instances.add(instance != null ? instance : new MicroserviceInstance(microserviceName, serviceInstance, decayTime, failurePenalty));
+        }
+        if (retained < previous.size()) {
+            onInstancesRemoved(microserviceName, instances);
+        }
+        return new InstancesSnapshot(instances);
+    }
+
+    /**
+     * Forget state of instances which left service discovery
+     *
+     * @param instances instances which are registered now
+     */
+    private static void onInstancesRemoved(String microserviceName, List<MicroserviceInstance> instances) {
+        MicroserviceCircuitBreakers circuitBreakers = MicroserviceCircuitBreakers.getCircuitBreakersStaticInternal();
+        if (circuitBreakers != null) {
+            circuitBreakers.retainInstances(microserviceName, instances);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+}
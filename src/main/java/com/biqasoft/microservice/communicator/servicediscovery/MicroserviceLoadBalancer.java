@@ -5,6 +5,10 @@
 package com.biqasoft.microservice.communicator.servicediscovery;
 
 import com.biqasoft.microservice.communicator.exceptions.CannotResolveHostException;
+import com.biqasoft.microservice.communicator.exceptions.CircuitBreakerOpenException;
+import com.biqasoft.microservice.communicator.exceptions.DeadlineExceededException;
+import com.biqasoft.microservice.communicator.http.MicroserviceCircuitBreakers;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.LoadBalancing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -13,6 +17,12 @@ import org.springframework.cloud.client.loadbalancer.LoadBalancerClient;
 import org.springframework.stereotype.Service;
 
 import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Nikita Bakaev, ya@nbakaev.ru on 5/12/2016.
@@ -24,10 +34,19 @@ public class MicroserviceLoadBalancer {
     @Autowired
     private LoadBalancerClient loadBalancerClient;
 
+    // snapshot of instances from discovery client; if it is empty load balancer client is used
+    @Autowired(required = false)
+    private MicroserviceInstances microserviceInstances;
+
+    // instances which circuit breaker is open are not chosen
+    @Autowired(required = false)
+    private MicroserviceCircuitBreakers circuitBreakers;
+
     private static final Logger logger = LoggerFactory.getLogger(MicroserviceLoadBalancer.class);
 
     private final int FAIL_AFTER_UNSUCCESS_TIMES = 4;
     private final int DEFAULT_SLEEP_TIME_BETWEEN_TRYING = 1200;
+    private final int CHOOSE_OTHER_INSTANCE_TIMES = 3;
 
     /**
      * @param microserviceName  registered service name. For example gateway
@@ -39,6 +58,63 @@ public class MicroserviceLoadBalancer {
      * @throws CannotResolveHostException if can not get microservice name for microserviceName in service discovery
      */
     public URI getLoadBalancedURIByMicroservice(String microserviceName, String pathToApiResource, Integer sleepMilliseconds, boolean tryToReconnect, boolean https) {
+        return getURI(chooseInstance(microserviceName, sleepMilliseconds, tryToReconnect), pathToApiResource, https);
+    }
+
+    /**
+     * @param microserviceName  registered service name. For example gateway
+     * @param sleepMilliseconds sleep time if we can not resolve hostname of microservice
+     * @param tryToReconnect    if we can not get hostname of microservice - fail immediately or sleep and try to get
+     * @return instance to which make request
+     * @throws CannotResolveHostException if can not get microservice name for microserviceName in service discovery
+     */
+    public ServiceInstance chooseInstance(String microserviceName, Integer sleepMilliseconds, boolean tryToReconnect) {
+        return chooseInstance(microserviceName, sleepMilliseconds, tryToReconnect, 0);
+    }
+
+    /**
+     * @param microserviceName  registered service name. For example gateway
+     * @param sleepMilliseconds sleep time if we can not resolve hostname of microservice
+     * @param tryToReconnect    if we can not get hostname of microservice - fail immediately or sleep and try to get
+     * @param deadlineTime      {@link System#nanoTime()} after which waiting for instance is stopped; 0 for no deadline
+     * @return instance to which make request
+     * @throws CannotResolveHostException if can not get microservice name for microserviceName in service discovery
+     * @throws DeadlineExceededException  if deadline is passed while waiting for instance
+     */
+    public ServiceInstance chooseInstance(String microserviceName, Integer sleepMilliseconds, boolean tryToReconnect, long deadlineTime) {
+        return chooseInstance(microserviceName, sleepMilliseconds, tryToReconnect, deadlineTime, Collections.emptyList());
+    }
+
+    /**
+     * @param microserviceName  registered service name. For example gateway
+     * @param sleepMilliseconds sleep time if we can not resolve hostname of microservice
+     * @param tryToReconnect    if we can not get hostname of microservice - fail immediately or sleep and try to get
+     * @param deadlineTime      {@link System#nanoTime()} after which waiting for instance is stopped; 0 for no deadline
+     * @param triedInstances    instances to which request was already sent; one of them is chosen only if there is no other instance
+     * @return instance to which make request
+     * @throws CannotResolveHostException  if can not get microservice name for microserviceName in service discovery
+     * @throws DeadlineExceededException   if deadline is passed while waiting for instance
+     * @throws CircuitBreakerOpenException if circuit breakers of all instances are open
+     */
+    public ServiceInstance chooseInstance(String microserviceName, Integer sleepMilliseconds, boolean tryToReconnect, long deadlineTime,
+                                          Collection<ServiceInstance> triedInstances) {
+        return chooseInstance(microserviceName, sleepMilliseconds, tryToReconnect, deadlineTime, triedInstances, LoadBalancing.DEFAULT);
+    }
+
+    /**
+     * @param microserviceName  registered service name. For example gateway
+     * @param sleepMilliseconds sleep time if we can not resolve hostname of microservice
+     * @param tryToReconnect    if we can not get hostname of microservice - fail immediately or sleep and try to get
+     * @param deadlineTime      {@link System#nanoTime()} after which waiting for instance is stopped; 0 for no deadline
+     * @param triedInstances    instances to which request was already sent; one of them is chosen only if there is no other instance
+     * @param loadBalancing     how instance is chosen from snapshot of service discovery; {@link LoadBalancing#DEFAULT} to use properties
+     * @return instance to which make request
+     * @throws CannotResolveHostException  if can not get microservice name for microserviceName in service discovery
+     * @throws DeadlineExceededException   if deadline is passed while waiting for instance
+     * @throws CircuitBreakerOpenException if circuit breakers of all instances are open
+     */
+    public ServiceInstance chooseInstance(String microserviceName, Integer sleepMilliseconds, boolean tryToReconnect, long deadlineTime,
+                                          Collection<ServiceInstance> triedInstances, LoadBalancing loadBalancing) {
         ServiceInstance instance = null;
 
         boolean exitLoop = false;
@@ -46,24 +122,29 @@ public class MicroserviceLoadBalancer {
         int sleepTimeBetweenTrying = sleepMilliseconds == null ? DEFAULT_SLEEP_TIME_BETWEEN_TRYING : sleepMilliseconds;
 
         while (!exitLoop) {
-            instance = loadBalancerClient.choose(microserviceName);
+            instance = choose(microserviceName, triedInstances, loadBalancing);
 
             if (instance != null) {
                 exitLoop = true;
             } else {
 
-                if (!tryToReconnect) {
-                    exitLoop = true;
-                }
-
-                if (triedTimes > FAIL_AFTER_UNSUCCESS_TIMES) {
+                if (!tryToReconnect || triedTimes > FAIL_AFTER_UNSUCCESS_TIMES) {
                     throw new CannotResolveHostException("Can not resolve hostname for microservice name: " + microserviceName);
                 }
 
                 triedTimes++;
 
+                long sleepTime = sleepTimeBetweenTrying;
+                if (deadlineTime != 0) {
+                    long remainingTime = TimeUnit.NANOSECONDS.toMillis(deadlineTime - System.nanoTime());
+                    if (remainingTime <= 0) {
+                        throw new DeadlineExceededException("Deadline exceeded while resolving hostname for microservice name: " + microserviceName);
+                    }
+                    sleepTime = Math.min(sleepTime, remainingTime);
+                }
+
                 try {
-                    Thread.sleep(sleepTimeBetweenTrying);
+                    Thread.sleep(sleepTime);
                     logger.info("Can not resolve hostname for microservice name: " + microserviceName + " and times: " + triedTimes);
 
                 } catch (InterruptedException e) {
@@ -75,14 +156,242 @@ public class MicroserviceLoadBalancer {
 
         }
 
-        String prefix;
-        if (https){
-            prefix = "https://%s:%s";
-        }else{
-            prefix = "http://%s:%s";
+        if (instance == null) {
+            throw new CannotResolveHostException("Can not resolve hostname for microservice name: " + microserviceName);
+        }
+        return instance;
+    }
+
+    private ServiceInstance choose(String microserviceName, Collection<ServiceInstance> triedInstances, LoadBalancing loadBalancing) {
+        List<MicroserviceInstance> instances = getInstances(microserviceName);
+        if (!instances.isEmpty()) {
+            LoadBalancing strategy = getLoadBalancing(microserviceName, loadBalancing);
+            int panicThreshold = microserviceInstances.getPanicThreshold();
+            long now = System.nanoTime();
+            ServiceInstance instance = chooseInstance(microserviceName, instances, triedInstances, strategy, panicThreshold, ThreadLocalRandom.current(), now);
+            if (instance == null && !triedInstances.isEmpty()) {
+                // all available instances were tried - repeat request to one of them
+                instance = chooseInstance(microserviceName, instances, Collections.emptyList(), strategy, panicThreshold, ThreadLocalRandom.current(), now);
+            }
+            if (instance == null) {
+                throw new CircuitBreakerOpenException("Circuit breakers of all instances of microservice " + microserviceName
+                        + " are open or instances are unhealthy or ejected");
+            }
+            return instance;
+        }
+
+        ServiceInstance instance = loadBalancerClient.choose(microserviceName);
+        if (instance == null || (!contains(triedInstances, instance) && isAvailable(microserviceName, instance))) {
+            return instance;
+        }
+
+        ServiceInstance other = chooseOtherInstance(microserviceName, triedInstances, loadBalancing);
+        if (other != null) {
+            return other;
+        }
+
+        // all available instances were tried - repeat request to one of them
+        if (isAvailable(microserviceName, instance)) {
+            return instance;
+        }
+        other = triedInstances.isEmpty() ? null : chooseOtherInstance(microserviceName, Collections.emptyList(), loadBalancing);
+        if (other != null) {
+            return other;
+        }
+        throw new CircuitBreakerOpenException("Circuit breakers of all instances of microservice " + microserviceName + " are open");
+    }
+
+    /**
+     * @param microserviceName registered service name. For example gateway
+     * @param other            instance which must not be chosen
+     * @return other instance of microservice; null if load balancer does not return other instance
+     */
+    public ServiceInstance chooseOtherInstance(String microserviceName, ServiceInstance other) {
+        return chooseOtherInstance(microserviceName, Collections.singletonList(other));
+    }
+
+    /**
+     * Instance from snapshot of service discovery which is healthy, not excluded, not ejected and which circuit breaker is not open.
+     * Without snapshot instance is chosen by load balancer client several times
+     *
+     * @param microserviceName registered service name. For example gateway
+     * @param excluded         instances which must not be chosen
+     * @return other instance of microservice; null if there is no other instance
+     */
+    public ServiceInstance chooseOtherInstance(String microserviceName, Collection<ServiceInstance> excluded) {
+        return chooseOtherInstance(microserviceName, excluded, LoadBalancing.DEFAULT);
+    }
+
+    /**
+     * @param microserviceName registered service name. For example gateway
+     * @param excluded         instances which must not be chosen
+     * @param loadBalancing    how instance is chosen from snapshot of service discovery; {@link LoadBalancing#DEFAULT} to use properties
+     * @return other instance of microservice; null if there is no other instance
+     */
+    public ServiceInstance chooseOtherInstance(String microserviceName, Collection<ServiceInstance> excluded, LoadBalancing loadBalancing) {
+        List<MicroserviceInstance> instances = getInstances(microserviceName);
+        if (!instances.isEmpty()) {
+            return chooseInstance(microserviceName, instances, excluded, getLoadBalancing(microserviceName, loadBalancing),
+                    microserviceInstances.getPanicThreshold(), ThreadLocalRandom.current(), System.nanoTime());
         }
 
-        return URI.create(String.format(prefix, instance.getHost(), instance.getPort()) + pathToApiResource);
+        for (int i = 0; i < CHOOSE_OTHER_INSTANCE_TIMES; i++) {
+            ServiceInstance instance = loadBalancerClient.choose(microserviceName);
+            if (instance == null) {
+                return null;
+            }
+            if (!contains(excluded, instance) && isAvailable(microserviceName, instance)) {
+                return instance;
+            }
+        }
+        return null;
+    }
+
+    private List<MicroserviceInstance> getInstances(String microserviceName) {
+        return microserviceInstances == null ? Collections.emptyList() : microserviceInstances.getInstances(microserviceName);
+    }
+
+    private LoadBalancing getLoadBalancing(String microserviceName, LoadBalancing loadBalancing) {
+        return loadBalancing != LoadBalancing.DEFAULT ? loadBalancing : microserviceInstances.getLoadBalancing(microserviceName);
+    }
+
+    /**
+     * Power of two choices: of two random instances which can be chosen, instance with less requests in flight
+     * or, for {@link LoadBalancing#PEAK_EWMA}, with less {@link MicroserviceInstance#getLoad()}.
+     * If less than {@code panicThreshold} percent of instances are healthy and not ejected, or none of them, health and ejection
+     * are ignored, so load is spread over all instances instead of overloading the rest or failing every call
+     *
+     * @param panicThreshold percent of healthy instances below which all instances can be chosen
+     * @param random         source of random instances
+     * @param now            {@link System#nanoTime()} to which latency of instances is decayed
+     * @return null if all instances are excluded, unhealthy, ejected or their circuit breakers are open
+     */
+    MicroserviceInstance chooseInstance(String microserviceName, List<MicroserviceInstance> instances, Collection<ServiceInstance> excluded,
+                                        LoadBalancing loadBalancing, int panicThreshold, Random random, long now) {
+        int size = instances.size();
+        boolean panic = isPanic(instances, panicThreshold, now);
+        if (panic && logger.isDebugEnabled()) {
+            logger.debug("Less than {}% of instances of microservice {} are healthy, choosing from all {} instances", panicThreshold, microserviceName, size);
+        }
+        int firstIndex = random.nextInt(size);
+        int secondIndex = size == 1 ? firstIndex : (firstIndex + 1 + random.nextInt(size - 1)) % size;
+
+        MicroserviceInstance first = instances.get(firstIndex);
+        if (!canChoose(microserviceName, first, excluded, panic, now)) {
+            first = null;
+        }
+        MicroserviceInstance second = secondIndex == firstIndex ? null : instances.get(secondIndex);
+        if (second != null && !canChoose(microserviceName, second, excluded, panic, now)) {
+            second = null;
+        }
+
+        // some of random instances can not be chosen - take next ones
+        if (first == null) {
+            first = findNext(microserviceName, instances, excluded, firstIndex, second, panic, now);
+        }
+        if (second == null) {
+            second = findNext(microserviceName, instances, excluded, secondIndex, first, panic, now);
+        }
+
+        if (first == null || second == null) {
+            return first == null ? second : first;
+        }
+        if (loadBalancing == LoadBalancing.PEAK_EWMA) {
+            return second.getLoad(now) < first.getLoad(now) ? second : first;
+        }
+        return second.getInFlight() < first.getInFlight() ? second : first;
+    }
+
+    private MicroserviceInstance findNext(String microserviceName, List<MicroserviceInstance> instances, Collection<ServiceInstance> excluded,
+                                          int from, MicroserviceInstance other, boolean panic, long now) {
+        int size = instances.size();
+        for (int i = 1; i < size; i++) {
+            MicroserviceInstance instance = instances.get((from + i) % size);
+            if (instance != other && canChoose(microserviceName, instance, excluded, panic, now)) {
+                return instance;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param panic true to choose instance which is unhealthy or ejected
+     */
+    private boolean canChoose(String microserviceName, MicroserviceInstance instance, Collection<ServiceInstance> excluded, boolean panic, long now) {
+        return (panic || isHealthy(instance, now)) && !contains(excluded, instance) && isAvailable(microserviceName, instance);
+    }
+
+    private static boolean isPanic(List<MicroserviceInstance> instances, int panicThreshold, long now) {
+        int healthy = instances instanceof InstancesSnapshot ? ((InstancesSnapshot) instances).getHealthy(now) : countHealthy(instances, now);
+        return healthy == 0 || healthy * 100 < instances.size() * panicThreshold;
+    }
+
+    private static int countHealthy(List<MicroserviceInstance> instances, long now) {
+        int healthy = 0;
+        for (MicroserviceInstance instance : instances) {
+            if (isHealthy(instance, now)) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    private static boolean isHealthy(MicroserviceInstance instance, long now) {
+        return instance.isHealthy() && !instance.isEjected(now);
+    }
+
+    private boolean isAvailable(String microserviceName, ServiceInstance instance) {
+        return circuitBreakers == null || circuitBreakers.isCallPermitted(microserviceName, instance);
+    }
+
+    /**
+     * @return true if instances have the same host and port
+     */
+    public static boolean isSameInstance(ServiceInstance first, ServiceInstance second) {
+        return first.getPort() == second.getPort() && first.getHost().equals(second.getHost());
+    }
+
+    private static boolean contains(Collection<ServiceInstance> instances, ServiceInstance instance) {
+        for (ServiceInstance x : instances) {
+            if (isSameInstance(x, instance)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param instance          microservice instance
+     * @param pathToApiResource URl path such as /users/all
+     * @param https             use http or https
+     * @return URL to which make request
+     */
+    public URI getURI(ServiceInstance instance, String pathToApiResource, boolean https) {
+        // path is already encoded, so URI is parsed once without any other string formatting
+        if (instance instanceof MicroserviceInstance) {
+            return URI.create(((MicroserviceInstance) instance).getBaseUri(https).concat(pathToApiResource));
+        }
+
+        String host = instance.getHost();
+        StringBuilder uri = new StringBuilder(16 + host.length() + pathToApiResource.length());
+        uri.append(https ? "https://" : "http://").append(host).append(':').append(instance.getPort()).append(pathToApiResource);
+        return URI.create(uri.toString());
+    }
+
+    /**
+     * @param instance          microservice instance
+     * @param pathToApiResource parsed URl path such as /users/all
+     * @param https             use http or https
+     * @return URL to which make request
+     */
+    public URI getURI(ServiceInstance instance, URI pathToApiResource, boolean https) {
+        // absolute path is resolved against parsed base URI of instance without parsing any string
+        String path = pathToApiResource.getRawPath();
+        if (instance instanceof MicroserviceInstance && pathToApiResource.getScheme() == null && pathToApiResource.getRawAuthority() == null
+                && path != null && path.startsWith("/")) {
+            return ((MicroserviceInstance) instance).getBaseURI(https).resolve(pathToApiResource);
+        }
+        return getURI(instance, pathToApiResource.toString(), https);
     }
 
 }
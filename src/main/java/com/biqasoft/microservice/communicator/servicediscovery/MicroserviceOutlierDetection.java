@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016 the original author or authors.
+ */
+
+package com.biqasoft.microservice.communicator.servicediscovery;
+
+import com.biqasoft.microservice.communicator.http.MicroserviceConnectionPools;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Passive outlier detection: instance of microservice snapshot which has {@code consecutive-failures} failed attempts in a row
+ * (connect and I/O errors, timeouts, 5xx responses) is not chosen by {@link MicroserviceLoadBalancer} for ejection period.
+ * Period is {@code base-ejection-time} multiplied by number of ejections of instance, up to {@code max-ejection-time};
+ * number of ejections is reset when instance is not ejected during {@code max-ejection-time}. No more than
+ * {@code max-ejection-percent} of instances of microservice are ejected at the same time, so single instance is never ejected.
+ * <p>
+ * Every ejection is published as {@link InstanceEjectedEvent} by separate thread, so listeners do not delay failed request.
+ * Disabled by default, enable with {@code biqa.microservice.communicator.outlier-detection.enabled=true}.
+ * Set with {@code biqa.microservice.communicator.outlier-detection.*} or per microservice with
+ * {@code biqa.microservice.communicator.services.<microservice name>.outlier-detection.*}
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Component
+public class MicroserviceOutlierDetection {
+
+    private static final Logger logger = LoggerFactory.getLogger(MicroserviceOutlierDetection.class);
+
+    private static MicroserviceOutlierDetection instance;
+
+    private final MicroserviceInstances microserviceInstances;
+    private final ApplicationEventPublisher eventPublisher;
+    private final Environment environment;
+    private final boolean enabled;
+    private final int consecutiveFailures;
+    private final long baseEjectionTime;
+    private final long maxEjectionTime;
+    private final int maxEjectionPercent;
+
+    private final ConcurrentMap<String, Settings> settings = new ConcurrentHashMap<>();
+    private final AtomicLong ejections = new AtomicLong();
+    private final AtomicLong skippedEjections = new AtomicLong();
+    // thread is started on first ejection
+    private final ExecutorService eventExecutor;
+
+    @Autowired
+    public MicroserviceOutlierDetection(MicroserviceInstances microserviceInstances, ApplicationEventPublisher eventPublisher, Environment environment,
+                                        @Value("${biqa.microservice.communicator.outlier-detection.enabled:false}") boolean enabled,
+                                        @Value("${biqa.microservice.communicator.outlier-detection.consecutive-failures:5}") int consecutiveFailures,
+                                        @Value("${biqa.microservice.communicator.outlier-detection.base-ejection-time:30000}") long baseEjectionTime,
+                                        @Value("${biqa.microservice.communicator.outlier-detection.max-ejection-time:300000}") long maxEjectionTime,
+                                        @Value("${biqa.microservice.communicator.outlier-detection.max-ejection-percent:50}") int maxEjectionPercent) {
+        this.microserviceInstances = microserviceInstances;
+        this.eventPublisher = eventPublisher;
+        this.environment = environment;
+        this.enabled = enabled;
+        this.consecutiveFailures = consecutiveFailures;
+        this.baseEjectionTime = baseEjectionTime;
+        this.maxEjectionTime = maxEjectionTime;
+        this.maxEjectionPercent = maxEjectionPercent;
+        this.eventExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "microservice-outlier-detection-events");
+            thread.setDaemon(true);
+            return thread;
+        });
+        MicroserviceOutlierDetection.instance = this;
+    }
+
+    /**
+     * @return outlier detection; null if Spring context is not initialized
+     */
+    public static MicroserviceOutlierDetection getOutlierDetectionStaticInternal() {
+        return instance;
+    }
+
+    /**
+     * Record outcome of attempt to instance
+     *
+     * @param microserviceName registered service name
+     * @param instance         instance of attempt
+     * @param failure          true if attempt failed: response is not received or it is 5xx
+     */
+    public void onAttemptResult(String microserviceName, MicroserviceInstance instance, boolean failure) {
+        if (!failure) {
+            instance.onAttemptSuccess();
+            return;
+        }
+
+        Settings serviceSettings = getSettings(microserviceName);
+        if (!serviceSettings.enabled) {
+            return;
+        }
+        int failures = instance.onAttemptFailure();
+        if (failures < serviceSettings.consecutiveFailures) {
+            return;
+        }
+
+        long ejectionTime;
+        int instanceEjections;
+        synchronized (this) {
+            long now = System.nanoTime();
+            // attempts which were started before ejection
+            if (instance.isEjected(now)) {
+                return;
+            }
+
+            int ejected = 0;
+            List<MicroserviceInstance> instances = microserviceInstances.getInstances(microserviceName);
+            for (MicroserviceInstance x : instances) {
+                if (x != instance && x.isEjected(now)) {
+                    ejected++;
+                }
+            }
+            if ((ejected + 1) * 100 > instances.size() * serviceSettings.maxEjectionPercent) {
+                skippedEjections.incrementAndGet();
+                logger.debug("Instance {} is not ejected after {} failures in a row, {} instances are already ejected",
+                        instance.getKey(), failures, ejected);
+                return;
+            }
+
+            instanceEjections = instance.getEjections();
+            if (instanceEjections > 0 && now - instance.getEjectedUntil() > TimeUnit.MILLISECONDS.toNanos(serviceSettings.maxEjectionTime)) {
+                instanceEjections = 0;
+            }
+            instanceEjections++;
+            ejectionTime = Math.min(serviceSettings.baseEjectionTime * instanceEjections,
+                    Math.max(serviceSettings.baseEjectionTime, serviceSettings.maxEjectionTime));
+            instance.eject(now + TimeUnit.MILLISECONDS.toNanos(ejectionTime), instanceEjections);
+        }
+
+        ejections.incrementAndGet();
+        InstanceEjectedEvent event = new InstanceEjectedEvent(this, microserviceName, instance, failures, instanceEjections, ejectionTime);
+        logger.warn("{}", event);
+        try {
+            eventExecutor.execute(() -> eventPublisher.publishEvent(event));
+        } catch (RejectedExecutionException e) {
+            // context is closed
+            logger.debug("Event is not published: {}", event);
+        }
+    }
+
+    private Settings getSettings(String microserviceName) {
+        Settings serviceSettings = settings.get(microserviceName);
+        if (serviceSettings != null) {
+            return serviceSettings;
+        }
+        return settings.computeIfAbsent(microserviceName, this::createSettings);
+    }
+
+    private Settings createSettings(String microserviceName) {
+        String prefix = MicroserviceConnectionPools.SERVICE_PREFIX + microserviceName + ".outlier-detection.";
+        return new Settings(environment.getProperty(prefix + "enabled", Boolean.class, enabled),
+                environment.getProperty(prefix + "consecutive-failures", Integer.class, consecutiveFailures),
+                environment.getProperty(prefix + "base-ejection-time", Long.class, baseEjectionTime),
+                environment.getProperty(prefix + "max-ejection-time", Long.class, maxEjectionTime),
+                environment.getProperty(prefix + "max-ejection-percent", Integer.class, maxEjectionPercent));
+    }
+
+    /**
+     * @return instances which are ejected now
+     */
+    public List<MicroserviceInstance> getEjectedInstances() {
+        long now = System.nanoTime();
+        List<MicroserviceInstance> ejected = new ArrayList<>();
+        for (List<MicroserviceInstance> instances : microserviceInstances.getSnapshots().values()) {
+            for (MicroserviceInstance x : instances) {
+                if (x.isEjected(now)) {
+                    ejected.add(x);
+                }
+            }
+        }
+        return ejected;
+    }
+
+    /**
+     * @return number of ejections
+     */
+    public long getEjections() {
+        return ejections.get();
+    }
+
+    /**
+     * @return number of ejections which were not made because max percent of instances were ejected
+     */
+    public long getSkippedEjections() {
+        return skippedEjections.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        eventExecutor.shutdown();
+        if (instance == this) {
+            instance = null;
+        }
+    }
+
+    private static final class Settings {
+
+        private final boolean enabled;
+        private final int consecutiveFailures;
+        private final long baseEjectionTime;
+        private final long maxEjectionTime;
+        private final int maxEjectionPercent;
+
+        private Settings(boolean enabled, int consecutiveFailures, long baseEjectionTime, long maxEjectionTime, int maxEjectionPercent) {
+            this.enabled = enabled;
+            this.consecutiveFailures = Math.max(1, consecutiveFailures);
+            this.baseEjectionTime = baseEjectionTime;
+            this.maxEjectionTime = maxEjectionTime;
+            this.maxEjectionPercent = maxEjectionPercent;
+        }
+
+    }
+
+}
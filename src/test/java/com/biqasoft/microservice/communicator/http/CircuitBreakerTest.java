@@ -0,0 +1,297 @@
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.exceptions.CircuitBreakerOpenException;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.mock.env.MockEnvironment;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State machine of circuit breaker
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class CircuitBreakerTest {
+
+    private static final long WAIT_IN_OPEN_STATE = 100;
+    private static final long SLOW_CALL_DURATION = TimeUnit.MILLISECONDS.toNanos(1000);
+
+    private static CircuitBreaker createCircuitBreaker() {
+        // opens when half of last 10 attempts failed or all of them are slow, 3 trial attempts
+        return new CircuitBreaker("users", 10, 4, 50, 500, 100, WAIT_IN_OPEN_STATE, 3);
+    }
+
+    private static CircuitBreaker open(CircuitBreaker circuitBreaker) {
+        for (int i = 0; i < 4; i++) {
+            circuitBreaker.onResult(true, 0);
+        }
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+        return circuitBreaker;
+    }
+
+    @Test
+    public void testOpensOnFailureRate() throws Exception {
+        CircuitBreaker circuitBreaker = createCircuitBreaker();
+
+        // not opened before minimum number of attempts
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.onResult(true, 0);
+        }
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+        Assert.assertEquals(circuitBreaker.getFailureRate(), -1);
+
+        circuitBreaker = createCircuitBreaker();
+        for (int i = 0; i < 5; i++) {
+            circuitBreaker.onResult(false, 0);
+        }
+        // 3 of 8
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.onResult(true, 0);
+        }
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+        Assert.assertEquals(circuitBreaker.getFailureRate(), 37);
+
+        // 4 of 9, then 5 of 10
+        circuitBreaker.onResult(true, 0);
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+        circuitBreaker.onResult(true, 0);
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+        Assert.assertFalse(circuitBreaker.isCallPermitted());
+        Assert.assertFalse(circuitBreaker.tryAcquirePermission());
+        Assert.assertEquals(circuitBreaker.getRejectedCalls(), 1);
+    }
+
+    @Test
+    public void testFailuresLeaveWindow() throws Exception {
+        CircuitBreaker circuitBreaker = createCircuitBreaker();
+        for (int i = 0; i < 4; i++) {
+            circuitBreaker.onResult(true, 0);
+            circuitBreaker.onResult(false, 0);
+            circuitBreaker.onResult(false, 0);
+            circuitBreaker.onResult(false, 0);
+        }
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+        for (int i = 0; i < 10; i++) {
+            circuitBreaker.onResult(false, 0);
+        }
+        Assert.assertEquals(circuitBreaker.getFailureRate(), 0);
+
+        for (int i = 0; i < 4; i++) {
+            circuitBreaker.onResult(true, 0);
+        }
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+        circuitBreaker.onResult(true, 0);
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void testOpensOnSlowCallRate() throws Exception {
+        CircuitBreaker circuitBreaker = createCircuitBreaker();
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.onResult(false, SLOW_CALL_DURATION);
+        }
+        Assert.assertEquals(circuitBreaker.getSlowCallRate(), -1);
+        circuitBreaker.onResult(false, SLOW_CALL_DURATION);
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+
+        // slow calls are not counted with slow call duration 0
+        circuitBreaker = new CircuitBreaker("users", 10, 4, 50, 0, 100, WAIT_IN_OPEN_STATE, 3);
+        for (int i = 0; i < 10; i++) {
+            circuitBreaker.onResult(false, SLOW_CALL_DURATION);
+        }
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+        Assert.assertEquals(circuitBreaker.getSlowCallRate(), 0);
+    }
+
+    @Test
+    public void testHalfOpenClosesAfterSuccessfulTrialAttempts() throws Exception {
+        CircuitBreaker circuitBreaker = open(createCircuitBreaker());
+        Thread.sleep(WAIT_IN_OPEN_STATE + 10);
+        Assert.assertTrue(circuitBreaker.isCallPermitted());
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+            Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.HALF_OPEN);
+        }
+        // no trial attempt left
+        Assert.assertFalse(circuitBreaker.isCallPermitted());
+        Assert.assertFalse(circuitBreaker.tryAcquirePermission());
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.HALF_OPEN);
+            circuitBreaker.onResult(false, 0);
+        }
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+        Assert.assertEquals(circuitBreaker.getFailureRate(), -1);
+        Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+    }
+
+    @Test
+    public void testHalfOpenOpensOnFailedTrialAttempt() throws Exception {
+        CircuitBreaker circuitBreaker = open(createCircuitBreaker());
+        Thread.sleep(WAIT_IN_OPEN_STATE + 10);
+
+        Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+        Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+        circuitBreaker.onResult(false, 0);
+        circuitBreaker.onResult(true, 0);
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.HALF_OPEN);
+        // 2 of 3 trial attempts failed
+        Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+        circuitBreaker.onResult(true, 0);
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+        Assert.assertFalse(circuitBreaker.tryAcquirePermission());
+
+        // trial attempts which never finished do not keep breaker half-open
+        Thread.sleep(WAIT_IN_OPEN_STATE + 10);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+        }
+        Assert.assertFalse(circuitBreaker.tryAcquirePermission());
+        Thread.sleep(WAIT_IN_OPEN_STATE + 10);
+        Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+        Assert.assertEquals(circuitBreaker.getState(), CircuitBreaker.State.HALF_OPEN);
+    }
+
+    @Test
+    public void testConcurrentAttemptsTakeOnlyTrialAttempts() throws Exception {
+        CircuitBreaker circuitBreaker = open(createCircuitBreaker());
+        Thread.sleep(WAIT_IN_OPEN_STATE + 10);
+
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(threads);
+        AtomicInteger permitted = new AtomicInteger();
+        try {
+            for (int i = 0; i < threads; i++) {
+                executor.execute(() -> {
+                    try {
+                        start.await();
+                        // instance is chosen by load balancer, then attempt is started
+                        if (circuitBreaker.isCallPermitted() && circuitBreaker.tryAcquirePermission()) {
+                            permitted.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        finished.countDown();
+                    }
+                });
+            }
+            start.countDown();
+            Assert.assertTrue(finished.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(permitted.get(), 3);
+    }
+
+    /**
+     * @param other instance which is chosen if breaker of chosen instance does not permit attempt; null if there is no other instance
+     */
+    private static MicroserviceRestTemplate createRestTemplate(ServiceInstance other) {
+        return new MicroserviceRestTemplate("users") {
+            @Override
+            ServiceInstance chooseOtherInstance(MicroserviceCallContext context, Collection<ServiceInstance> rejected) {
+                return other == null || rejected.contains(other) ? null : other;
+            }
+
+            @Override
+            URI getURI(MicroserviceCallContext context, ServiceInstance instance) {
+                return URI.create("http://" + instance.getHost() + ":" + instance.getPort() + context.getPathToApiResource());
+            }
+        };
+    }
+
+    @Test
+    public void testInstanceAttemptIsRejectedWithoutTrialAttempt() throws Exception {
+        MicroserviceCircuitBreakers circuitBreakers = new MicroserviceCircuitBreakers(new MockEnvironment(), true, 10, 4, 50, 500, 100, WAIT_IN_OPEN_STATE, 1);
+        try {
+            ServiceInstance serviceInstance = new DefaultServiceInstance("users", "10.0.0.1", 8080, false);
+            open(circuitBreakers.getCircuitBreaker("users", serviceInstance));
+            Thread.sleep(WAIT_IN_OPEN_STATE + 10);
+
+            MicroserviceRestTemplate restTemplate = createRestTemplate(null);
+            MicroserviceCallContext first = new MicroserviceCallContext(restTemplate, true, 2, 10, "users", "/users", null, false);
+            first.onAttemptStart(URI.create("http://10.0.0.1:8080/users"), serviceInstance);
+            Assert.assertEquals(first.getAttempts(), 1);
+
+            // there is no other instance
+            MicroserviceCallContext second = new MicroserviceCallContext(restTemplate, true, 2, 10, "users", "/users", null, false);
+            try {
+                second.onAttemptStart(URI.create("http://10.0.0.1:8080/users"), serviceInstance);
+                Assert.fail("trial attempt is taken by first call");
+            } catch (CircuitBreakerOpenException e) {
+                // expected
+            }
+            Assert.assertEquals(second.getAttempts(), 0);
+            Assert.assertEquals(second.getTriedInstances(), Collections.emptyList());
+        } finally {
+            circuitBreakers.shutdown();
+        }
+    }
+
+    @Test
+    public void testOtherInstanceIsChosenIfTrialAttemptIsTaken() throws Exception {
+        MicroserviceCircuitBreakers circuitBreakers = new MicroserviceCircuitBreakers(new MockEnvironment(), true, 10, 4, 50, 500, 100, WAIT_IN_OPEN_STATE, 1);
+        ServiceInstance halfOpen = new DefaultServiceInstance("users", "10.0.0.1", 8080, false);
+        ServiceInstance healthy = new DefaultServiceInstance("users", "10.0.0.2", 8080, false);
+        MicroserviceRestTemplate restTemplate = createRestTemplate(healthy);
+
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(threads);
+        AtomicInteger halfOpenAttempts = new AtomicInteger();
+        AtomicInteger healthyAttempts = new AtomicInteger();
+        AtomicInteger failedCalls = new AtomicInteger();
+        try {
+            open(circuitBreakers.getCircuitBreaker("users", halfOpen));
+            Thread.sleep(WAIT_IN_OPEN_STATE + 10);
+
+            for (int i = 0; i < threads; i++) {
+                executor.execute(() -> {
+                    try {
+                        start.await();
+                        // every thread saw that breaker permits call and load balancer chose the same instance
+                        MicroserviceCallContext context = new MicroserviceCallContext(restTemplate, true, 2, 10, "users", "/users", null, false);
+                        context.onAttemptStart(URI.create("http://10.0.0.1:8080/users"), halfOpen);
+                        if (context.getServiceInstance() == halfOpen) {
+                            halfOpenAttempts.incrementAndGet();
+                        } else if (context.getServiceInstance() == healthy && context.getLastURI().equals(URI.create("http://10.0.0.2:8080/users"))) {
+                            healthyAttempts.incrementAndGet();
+                        }
+                    } catch (CircuitBreakerOpenException e) {
+                        failedCalls.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        finished.countDown();
+                    }
+                });
+            }
+            start.countDown();
+            Assert.assertTrue(finished.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+            circuitBreakers.shutdown();
+        }
+        Assert.assertEquals(failedCalls.get(), 0);
+        Assert.assertEquals(halfOpenAttempts.get(), 1);
+        Assert.assertEquals(healthyAttempts.get(), threads - 1);
+    }
+
+}
@@ -0,0 +1,215 @@
+package com.biqasoft.microservice.communicator.http;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.util.StreamUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Round trip of pooled gzip and deflate coding and interop with java.util.zip streams
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class ContentCompressionTest {
+
+    private static final int THRESHOLD = 2048;
+
+    private static byte[] createBody(int size) {
+        // half of text compresses well, half of random bytes does not
+        byte[] body = new byte[size];
+        byte[] text = "{\"id\":\"1\",\"name\":\"account\"},".getBytes(StandardCharsets.UTF_8);
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++) {
+            body[i] = i < size / 2 ? text[i % text.length] : (byte) random.nextInt();
+        }
+        return body;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (String encoding : Arrays.asList(ContentCompression.GZIP, ContentCompression.DEFLATE)) {
+            for (int size : new int[]{0, 1, 100, 8192, 8193, 200000}) {
+                byte[] body = createBody(size);
+                byte[] compressed = ContentCompression.compress(encoding, body);
+                Assert.assertEquals(ContentCompression.decompress(encoding, compressed), body, encoding + " " + size);
+                // pooled deflater and inflater are reused
+                Assert.assertEquals(ContentCompression.decompress(encoding, ContentCompression.compress(encoding, body)), body);
+            }
+        }
+    }
+
+    @Test
+    public void testGzipInterop() throws Exception {
+        byte[] body = createBody(50000);
+
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(ContentCompression.compress(ContentCompression.GZIP, body)))) {
+            Assert.assertEquals(StreamUtils.copyToByteArray(in), body);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(body);
+        }
+        Assert.assertEquals(ContentCompression.decompress(" GZIP ", out.toByteArray()), body);
+    }
+
+    @Test
+    public void testDeflateInterop() throws Exception {
+        byte[] body = createBody(50000);
+
+        try (InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(ContentCompression.compress(ContentCompression.DEFLATE, body)))) {
+            Assert.assertEquals(StreamUtils.copyToByteArray(in), body);
+        }
+
+        // zlib wrapped deflate
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflate = new DeflaterOutputStream(out)) {
+            deflate.write(body);
+        }
+        Assert.assertEquals(ContentCompression.decompress(ContentCompression.DEFLATE, out.toByteArray()), body);
+
+        // raw deflate which some servers send
+        out = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (DeflaterOutputStream deflate = new DeflaterOutputStream(out, deflater)) {
+            deflate.write(body);
+        } finally {
+            deflater.end();
+        }
+        Assert.assertEquals(ContentCompression.decompress(ContentCompression.DEFLATE, out.toByteArray()), body);
+    }
+
+    @Test
+    public void testTruncatedBody() throws Exception {
+        for (String encoding : Arrays.asList(ContentCompression.GZIP, ContentCompression.DEFLATE)) {
+            byte[] compressed = ContentCompression.compress(encoding, createBody(50000));
+            for (int length : new int[]{2, compressed.length / 2, compressed.length - 1}) {
+                try {
+                    ContentCompression.decompress(encoding, Arrays.copyOf(compressed, length));
+                    Assert.fail(encoding + " body of " + length + " bytes is truncated");
+                } catch (EOFException e) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBadGzipTrailer() throws Exception {
+        byte[] compressed = ContentCompression.compress(ContentCompression.GZIP, createBody(50000));
+
+        byte[] badCrc = compressed.clone();
+        badCrc[badCrc.length - 8] ^= 1;
+        try {
+            ContentCompression.decompress(ContentCompression.GZIP, badCrc);
+            Assert.fail("CRC is not valid");
+        } catch (ZipException e) {
+            // expected
+        }
+
+        byte[] badSize = compressed.clone();
+        badSize[badSize.length - 4] ^= 1;
+        try {
+            ContentCompression.decompress(ContentCompression.GZIP, badSize);
+            Assert.fail("size is not valid");
+        } catch (ZipException e) {
+            // expected
+        }
+
+        try {
+            ContentCompression.decompress(ContentCompression.GZIP, createBody(100));
+            Assert.fail("not gzip");
+        } catch (ZipException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEmptyCompressedResponse() throws Exception {
+        Assert.assertEquals(ContentCompression.decompress(ContentCompression.GZIP, new byte[0]).length, 0);
+        Assert.assertEquals(ContentCompression.decompress(ContentCompression.DEFLATE, new byte[0]).length, 0);
+    }
+
+    private static MockClientHttpRequest createRequest() {
+        MockClientHttpRequest mockRequest = new MockClientHttpRequest(HttpMethod.POST, URI.create("http://localhost/accounts"));
+        mockRequest.setResponse(new MockClientHttpResponse(new byte[0], HttpStatus.OK));
+        return mockRequest;
+    }
+
+    private static MockClientHttpRequest writeBody(byte[] body, int chunk) throws IOException {
+        MockClientHttpRequest mockRequest = createRequest();
+        mockRequest.getHeaders().setContentLength(body.length);
+        ContentCodingClientHttpRequest request = new ContentCodingClientHttpRequest(mockRequest, ContentCompression.GZIP, THRESHOLD, false);
+
+        OutputStream out = request.getBody();
+        for (int i = 0; i < body.length; i += chunk) {
+            out.write(body, i, Math.min(chunk, body.length - i));
+        }
+        request.execute();
+        return mockRequest;
+    }
+
+    @Test
+    public void testBodyBelowThresholdIsNotCompressed() throws Exception {
+        for (int chunk : new int[]{1, 100, THRESHOLD}) {
+            byte[] body = createBody(THRESHOLD - 1);
+            MockClientHttpRequest request = writeBody(body, chunk);
+            Assert.assertNull(request.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+            Assert.assertEquals(request.getHeaders().getContentLength(), THRESHOLD - 1);
+            Assert.assertEquals(request.getBodyAsBytes(), body);
+        }
+    }
+
+    @Test
+    public void testBodyOfThresholdIsCompressed() throws Exception {
+        for (int size : new int[]{THRESHOLD, THRESHOLD + 1}) {
+            for (int chunk : new int[]{1, 100, size}) {
+                byte[] body = createBody(size);
+                MockClientHttpRequest request = writeBody(body, chunk);
+                Assert.assertEquals(request.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING), ContentCompression.GZIP);
+                Assert.assertEquals(request.getHeaders().getContentLength(), -1);
+                try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(request.getBodyAsBytes()))) {
+                    Assert.assertEquals(StreamUtils.copyToByteArray(in), body, size + " bytes by " + chunk);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDiscardedBodyIsNotFinished() throws Exception {
+        MockClientHttpRequest mockRequest = createRequest();
+        ContentCodingClientHttpRequest request = new ContentCodingClientHttpRequest(mockRequest, ContentCompression.GZIP, THRESHOLD, false);
+        request.getBody().write(createBody(THRESHOLD * 2));
+
+        // e.g. serialization failed
+        request.discardBody();
+        request.discardBody();
+        int written = mockRequest.getBodyAsBytes().length;
+
+        request.execute();
+        Assert.assertEquals(mockRequest.getBodyAsBytes().length, written);
+    }
+
+}
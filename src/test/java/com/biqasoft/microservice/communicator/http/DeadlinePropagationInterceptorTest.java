@@ -0,0 +1,121 @@
+package com.biqasoft.microservice.communicator.http;
+
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class DeadlinePropagationInterceptorTest {
+
+    private static final long RESPONSE_DELAY = 100;
+
+    private DeadlinePropagationInterceptor interceptor;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        interceptor = new DeadlinePropagationInterceptor(true, MicroserviceDeadline.DEFAULT_HEADER);
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        interceptor.shutdown();
+    }
+
+    /**
+     * @param headers header of every attempt
+     * @return template which responds with 503 to all attempts except last one
+     */
+    private static MicroserviceRestTemplate createRestTemplate(List<String> headers, int failedAttempts) {
+        ClientHttpRequestFactory requestFactory = (uri, httpMethod) -> new MockClientHttpRequest(httpMethod, uri) {
+            @Override
+            protected MockClientHttpResponse executeInternal() {
+                headers.add(getHeaders().getFirst(MicroserviceDeadline.DEFAULT_HEADER));
+                try {
+                    Thread.sleep(RESPONSE_DELAY);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new MockClientHttpResponse("{}".getBytes(), headers.size() > failedAttempts ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE);
+            }
+        };
+
+        return new MicroserviceRestTemplate("") {
+            @Override
+            public ClientHttpRequestFactory getRequestFactory() {
+                return requestFactory;
+            }
+        };
+    }
+
+    private static MicroserviceCallContext createCallContext(MicroserviceRestTemplate restTemplate) {
+        return new MicroserviceCallContext(restTemplate, true, 3, 10, "", "http://users:8080/users", HttpMethod.GET, false);
+    }
+
+    @Test
+    public void testHeaderIsSentWithTimeLeftForEveryAttempt() throws Exception {
+        List<String> headers = new ArrayList<>();
+        MicroserviceRestTemplate restTemplate = createRestTemplate(headers, 2);
+        MicroserviceCallContext context = createCallContext(restTemplate);
+        context.setDeadline(5000);
+
+        HttpHeaders httpHeaders = new HttpHeaders();
+        interceptor.beforeCreateHttpEntity(context, byte[].class, null, httpHeaders);
+        Assert.assertNull(httpHeaders.getFirst(MicroserviceDeadline.DEFAULT_HEADER), "header is set per attempt");
+
+        restTemplate.exchange(context, new HttpEntity<>(httpHeaders), byte[].class);
+        Assert.assertEquals(headers.size(), 3);
+        long previous = Long.MAX_VALUE;
+        for (String header : headers) {
+            long remaining = Long.parseLong(header);
+            Assert.assertTrue(remaining <= 5000 && remaining < previous - RESPONSE_DELAY / 2, "remaining " + headers);
+            previous = remaining;
+        }
+    }
+
+    @Test
+    public void testDeadlineOfCurrentRequestIsInherited() throws Exception {
+        List<String> headers = new ArrayList<>();
+        MicroserviceRestTemplate restTemplate = createRestTemplate(headers, 0);
+        MicroserviceCallContext context = createCallContext(restTemplate);
+        context.setDeadline(5000);
+
+        long previous = MicroserviceDeadline.setRemainingTime(1000);
+        try {
+            interceptor.beforeCreateHttpEntity(context, byte[].class, null, new HttpHeaders());
+        } finally {
+            MicroserviceDeadline.setDeadlineTime(previous);
+        }
+        Assert.assertTrue(context.getRemainingTime() <= 1000);
+
+        restTemplate.exchange(context, HttpEntity.EMPTY, byte[].class);
+        Assert.assertTrue(Long.parseLong(headers.get(0)) <= 1000, "remaining " + headers);
+    }
+
+    @Test
+    public void testNoHeaderWithoutDeadline() throws Exception {
+        List<String> headers = new ArrayList<>();
+        MicroserviceRestTemplate restTemplate = createRestTemplate(headers, 0);
+        MicroserviceCallContext context = createCallContext(restTemplate);
+
+        interceptor.beforeCreateHttpEntity(context, byte[].class, null, new HttpHeaders());
+        restTemplate.exchange(context, HttpEntity.EMPTY, byte[].class);
+        Assert.assertEquals(headers.size(), 1);
+        Assert.assertNull(headers.get(0));
+    }
+
+}
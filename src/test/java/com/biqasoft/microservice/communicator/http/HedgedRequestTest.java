@@ -0,0 +1,204 @@
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.LoadBalancing;
+import com.biqasoft.microservice.communicator.servicediscovery.MicroserviceLoadBalancer;
+import com.sun.net.httpserver.HttpServer;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.util.StreamUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hedged GET request to slow and fast instance, with local HTTP servers
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class HedgedRequestTest {
+
+    private static final long SLOW_RESPONSE_DELAY = 2000;
+    private static final int HEDGE_DELAY = 100;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger slowRequests = new AtomicInteger();
+    private final AtomicInteger fastRequests = new AtomicInteger();
+    private HttpServer slowServer;
+    private HttpServer fastServer;
+    private ServiceInstance slowInstance;
+    private ServiceInstance fastInstance;
+    private MicroserviceLoadBalancer previousLoadBalancer;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        slowServer = createServer("slow", SLOW_RESPONSE_DELAY, slowRequests);
+        fastServer = createServer("fast", 10, fastRequests);
+        slowInstance = new DefaultServiceInstance("users", "127.0.0.1", slowServer.getAddress().getPort(), false);
+        fastInstance = new DefaultServiceInstance("users", "127.0.0.1", fastServer.getAddress().getPort(), false);
+
+        // hedged request is sent to instance other than primary one
+        previousLoadBalancer = SpringContextAware.getMicroserviceLoadBalancer();
+        new SpringContextAware().setMicroserviceHelper(new MicroserviceLoadBalancer() {
+            @Override
+            public ServiceInstance chooseOtherInstance(String microserviceName, Collection<ServiceInstance> excluded, LoadBalancing loadBalancing) {
+                return excluded.contains(slowInstance) ? fastInstance : slowInstance;
+            }
+        });
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        new SpringContextAware().setMicroserviceHelper(previousLoadBalancer);
+        slowServer.stop(0);
+        fastServer.stop(0);
+        executor.shutdownNow();
+    }
+
+    private HttpServer createServer(String name, long delay, AtomicInteger requests) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/users", exchange -> {
+            requests.incrementAndGet();
+            try {
+                Thread.sleep(delay);
+                byte[] body = name.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream outputStream = exchange.getResponseBody()) {
+                    outputStream.write(body);
+                }
+            } catch (Exception e) {
+                exchange.close();
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        return server;
+    }
+
+    /**
+     * @return instance of primary request
+     */
+    private static MicroserviceRestTemplate createRestTemplate(ServiceInstance primaryInstance) {
+        return new MicroserviceRestTemplate("") {
+            @Override
+            ServiceInstance chooseInstance(MicroserviceCallContext context, boolean waitForInstance) {
+                return primaryInstance;
+            }
+        };
+    }
+
+    private String execute(ServiceInstance primaryInstance, MicroserviceHedging hedging, HedgingPolicy hedgingPolicy) {
+        MicroserviceRestTemplate restTemplate = createRestTemplate(primaryInstance);
+        MicroserviceCallContext context = new MicroserviceCallContext(restTemplate, false, 0, 10, "", "/users", HttpMethod.GET, false);
+        context.setHedgingPolicy(hedgingPolicy);
+
+        return new HedgedRequest<>(restTemplate, context, null,
+                response -> StreamUtils.copyToString(response.getBody(), StandardCharsets.UTF_8), hedging).execute();
+    }
+
+    private static MicroserviceHedging createHedging(int budget) {
+        return new MicroserviceHedging(new MockEnvironment(), budget);
+    }
+
+    @Test
+    public void testHedgedRequestIsSentAfterDelay() throws Exception {
+        MicroserviceHedging hedging = createHedging(100);
+        try {
+            HedgingPolicy hedgingPolicy = new HedgingPolicy(HEDGE_DELAY);
+            slowRequests.set(0);
+            fastRequests.set(0);
+
+            long start = System.nanoTime();
+            Assert.assertEquals(execute(slowInstance, hedging, hedgingPolicy), "fast");
+            long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            // caller returns only after primary request is finished, so its connection is aborted
+            Assert.assertTrue(duration >= HEDGE_DELAY && duration < SLOW_RESPONSE_DELAY / 2, "duration " + duration);
+            Assert.assertEquals(slowRequests.get(), 1);
+            Assert.assertEquals(fastRequests.get(), 1);
+
+            // fast primary request does not wait for hedge delay
+            Assert.assertEquals(execute(fastInstance, hedging, hedgingPolicy), "fast");
+            Thread.sleep(HEDGE_DELAY * 2);
+            Assert.assertEquals(slowRequests.get(), 1);
+            Assert.assertEquals(fastRequests.get(), 2);
+        } finally {
+            hedging.shutdown();
+        }
+    }
+
+    @Test
+    public void testHedgedRequestIsNotQueuedBehindCaller() throws Exception {
+        MicroserviceHedging hedging = createHedging(100);
+        // every thread of fan-out pool is busy with call of hedged method
+        ExecutorService fanOut = Executors.newFixedThreadPool(1);
+        try {
+            HedgingPolicy hedgingPolicy = new HedgingPolicy(HEDGE_DELAY);
+            long start = System.nanoTime();
+            Future<String> result = fanOut.submit(() -> execute(slowInstance, hedging, hedgingPolicy));
+            Assert.assertEquals(result.get(SLOW_RESPONSE_DELAY * 2, TimeUnit.MILLISECONDS), "fast");
+            long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Assert.assertTrue(duration < SLOW_RESPONSE_DELAY / 2, "duration " + duration);
+        } finally {
+            fanOut.shutdownNow();
+            hedging.shutdown();
+        }
+    }
+
+    @Test
+    public void testHedgedRequestIsLimitedByBudget() throws Exception {
+        MicroserviceHedging hedging = createHedging(50);
+        try {
+            HedgingPolicy hedgingPolicy = new HedgingPolicy(HEDGE_DELAY);
+            fastRequests.set(0);
+
+            // first call saves half of hedged request
+            long start = System.nanoTime();
+            Assert.assertEquals(execute(slowInstance, hedging, hedgingPolicy), "slow");
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= SLOW_RESPONSE_DELAY);
+            Assert.assertEquals(fastRequests.get(), 0);
+
+            Assert.assertEquals(execute(slowInstance, hedging, hedgingPolicy), "fast");
+            Assert.assertEquals(fastRequests.get(), 1);
+            Assert.assertFalse(hedging.tryAcquire(""));
+        } finally {
+            hedging.shutdown();
+        }
+    }
+
+    @Test
+    public void testPrimaryRequestWhichLostIsRecorded() throws Exception {
+        MicroserviceHedging hedging = createHedging(100);
+        try {
+            // percentile is known after 32 responses and recomputed after every 16
+            HedgingPolicy hedgingPolicy = new HedgingPolicy(-1);
+            for (int i = 0; i < 32; i++) {
+                hedgingPolicy.recordLatency(TimeUnit.MILLISECONDS.toNanos(HEDGE_DELAY));
+            }
+            Assert.assertEquals(hedgingPolicy.getDelay(), HEDGE_DELAY);
+
+            for (int i = 0; i < 16; i++) {
+                Assert.assertEquals(execute(slowInstance, hedging, hedgingPolicy), "fast");
+            }
+            // primary requests waited longer than delay; only fast hedged responses would keep it
+            Assert.assertTrue(hedgingPolicy.getDelay() > HEDGE_DELAY, "delay " + hedgingPolicy.getDelay());
+        } finally {
+            hedging.shutdown();
+        }
+    }
+
+}
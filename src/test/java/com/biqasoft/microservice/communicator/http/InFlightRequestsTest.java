@@ -0,0 +1,265 @@
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.MicroserviceRequestMaker;
+import com.biqasoft.microservice.communicator.interfaceimpl.MicroserviceRequestInterceptor;
+import com.biqasoft.microservice.communicator.servicediscovery.MicroserviceInstance;
+import com.biqasoft.microservice.communicator.servicediscovery.MicroserviceInstancesTest;
+import com.biqasoft.microservice.communicator.servicediscovery.MicroserviceLoadBalancer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import reactor.core.Disposable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Requests in flight of instance are ended when attempt fails with any exception or is cancelled,
+ * duration of attempt is measured from sending request
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class InFlightRequestsTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private HttpServer server;
+    private MicroserviceInstance instance;
+    private MicroserviceLoadBalancer previousLoadBalancer;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/slow", exchange -> {
+            try {
+                Thread.sleep(2000);
+                exchange.sendResponseHeaders(200, -1);
+            } catch (Exception e) {
+                // connection is closed
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+
+        instance = MicroserviceInstancesTest.createInstance(new DefaultServiceInstance("users", "127.0.0.1", server.getAddress().getPort(), false));
+
+        previousLoadBalancer = SpringContextAware.getMicroserviceLoadBalancer();
+        new SpringContextAware().setMicroserviceHelper(new MicroserviceLoadBalancer());
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        new SpringContextAware().setMicroserviceHelper(previousLoadBalancer);
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @param requestFactory factory of requests to {@link #instance}
+     */
+    private MicroserviceRestTemplate createRestTemplate(ClientHttpRequestFactory requestFactory) {
+        return new MicroserviceRestTemplate("") {
+            @Override
+            public ClientHttpRequestFactory getRequestFactory() {
+                return requestFactory;
+            }
+
+            @Override
+            ServiceInstance chooseInstance(MicroserviceCallContext context, boolean waitForInstance) {
+                return instance;
+            }
+        };
+    }
+
+    private static MicroserviceCallContext createCallContext(MicroserviceRestTemplate restTemplate, String path) {
+        return new MicroserviceCallContext(restTemplate, true, 2, 10, "", path, HttpMethod.GET, false);
+    }
+
+    private static ClientHttpRequestFactory createRequestFactory(HttpStatus status, AtomicInteger requests) {
+        return (uri, httpMethod) -> {
+            requests.incrementAndGet();
+            MockClientHttpRequest request = new MockClientHttpRequest(httpMethod, uri);
+            request.setResponse(new MockClientHttpResponse(new byte[0], status));
+            return request;
+        };
+    }
+
+    @Test
+    public void testRequestIsEndedAfterResponse() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        MicroserviceRestTemplate restTemplate = createRestTemplate(createRequestFactory(HttpStatus.OK, requests));
+        restTemplate.exchange(createCallContext(restTemplate, "/users"), HttpEntity.EMPTY, byte[].class);
+        Assert.assertEquals(instance.getInFlight(), 0);
+
+        // every retry is ended
+        restTemplate = createRestTemplate(createRequestFactory(HttpStatus.SERVICE_UNAVAILABLE, requests));
+        requests.set(0);
+        try {
+            restTemplate.exchange(createCallContext(restTemplate, "/users"), HttpEntity.EMPTY, byte[].class);
+            Assert.fail("response is 503");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        Assert.assertEquals(requests.get(), 3);
+        Assert.assertEquals(instance.getInFlight(), 0);
+    }
+
+    @Test
+    public void testRequestIsEndedIfInterceptorFails() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        MicroserviceRestTemplate restTemplate = createRestTemplate(createRequestFactory(HttpStatus.OK, requests));
+        MicroserviceRequestInterceptor interceptor = new MicroserviceRequestInterceptor() {
+            @Override
+            public void beforeRequest(MicroserviceCallContext context, URI uri) {
+                throw new IllegalStateException("interceptor failed");
+            }
+        };
+
+        MicroserviceRequestMaker.getMicroserviceRequestInterceptorsStaticInternal().add(interceptor);
+        try {
+            restTemplate.exchange(createCallContext(restTemplate, "/users"), HttpEntity.EMPTY, byte[].class);
+            Assert.fail("interceptor failed");
+        } catch (IllegalStateException e) {
+            // expected
+        } finally {
+            MicroserviceRequestMaker.getMicroserviceRequestInterceptorsStaticInternal().remove(interceptor);
+        }
+        Assert.assertEquals(requests.get(), 0);
+        Assert.assertEquals(instance.getInFlight(), 0);
+    }
+
+    @Test
+    public void testRequestIsEndedIfRequestIsNotSent() throws Exception {
+        // request body can not be written
+        AtomicInteger requests = new AtomicInteger();
+        MicroserviceRestTemplate restTemplate = createRestTemplate(createRequestFactory(HttpStatus.OK, requests));
+        try {
+            restTemplate.doExecute(createCallContext(restTemplate, "/users"), request -> {
+                throw new HttpMessageNotWritableException("body can not be written");
+            }, null);
+            Assert.fail("body can not be written");
+        } catch (HttpMessageNotWritableException e) {
+            // expected
+        }
+        Assert.assertEquals(requests.get(), 1);
+        Assert.assertEquals(instance.getInFlight(), 0);
+
+        // request can not be created
+        restTemplate = createRestTemplate((uri, httpMethod) -> {
+            throw new IllegalArgumentException("invalid URI");
+        });
+        try {
+            restTemplate.exchange(createCallContext(restTemplate, "/users"), HttpEntity.EMPTY, byte[].class);
+            Assert.fail("invalid URI");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertEquals(instance.getInFlight(), 0);
+
+        // client fails with runtime exception
+        restTemplate = createRestTemplate((uri, httpMethod) -> new MockClientHttpRequest(httpMethod, uri) {
+            @Override
+            protected org.springframework.http.client.ClientHttpResponse executeInternal() throws IOException {
+                throw new IllegalStateException("connection pool is shut down");
+            }
+        });
+        try {
+            restTemplate.exchange(createCallContext(restTemplate, "/users"), HttpEntity.EMPTY, byte[].class);
+            Assert.fail("connection pool is shut down");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertEquals(instance.getInFlight(), 0);
+    }
+
+    @Test
+    public void testAttemptWithoutResponseIsFailure() throws Exception {
+        MicroserviceInstance[] instances = new MicroserviceInstance[3];
+        for (int i = 0; i < instances.length; i++) {
+            instances[i] = MicroserviceInstancesTest.createInstance(new DefaultServiceInstance("users", "10.0.0." + i, 8080, false));
+        }
+        // 503, 404 and then connection can not be opened
+        AtomicInteger requests = new AtomicInteger();
+        ClientHttpRequestFactory requestFactory = (uri, httpMethod) -> {
+            int request = requests.incrementAndGet();
+            if (request == 3) {
+                throw new IOException("Connection refused");
+            }
+            MockClientHttpRequest clientHttpRequest = new MockClientHttpRequest(httpMethod, uri);
+            clientHttpRequest.setResponse(new MockClientHttpResponse(new byte[0], request == 1 ? HttpStatus.SERVICE_UNAVAILABLE : HttpStatus.NOT_FOUND));
+            return clientHttpRequest;
+        };
+        MicroserviceRestTemplate restTemplate = new MicroserviceRestTemplate("") {
+            @Override
+            public ClientHttpRequestFactory getRequestFactory() {
+                return requestFactory;
+            }
+
+            @Override
+            ServiceInstance chooseInstance(MicroserviceCallContext context, boolean waitForInstance) {
+                return instances[context.getAttempts()];
+            }
+        };
+
+        MicroserviceCallContext context = createCallContext(restTemplate, "/users");
+        try {
+            restTemplate.exchange(context, HttpEntity.EMPTY, byte[].class);
+            Assert.fail("connection refused");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        Assert.assertEquals(context.getAttempts(), 3);
+        // status of previous attempt is not recorded as response of last instance
+        Assert.assertTrue(instances[2].getLatency() >= TimeUnit.MILLISECONDS.toNanos(1000) * 0.99, "latency " + instances[2].getLatency());
+        Assert.assertTrue(instances[1].getLatency() < TimeUnit.MILLISECONDS.toNanos(1000), "latency " + instances[1].getLatency());
+    }
+
+    @Test
+    public void testDurationDoesNotIncludeRequestBodyWriting() throws Exception {
+        MicroserviceRestTemplate restTemplate = createRestTemplate(createRequestFactory(HttpStatus.OK, new AtomicInteger()));
+        MicroserviceCallContext context = createCallContext(restTemplate, "/users");
+
+        restTemplate.doExecute(context, request -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, null);
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(context.getLastAttemptDuration()) < 100,
+                "duration " + TimeUnit.NANOSECONDS.toMillis(context.getLastAttemptDuration()));
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(context.getElapsedTime()) >= 200);
+    }
+
+    @Test
+    public void testRequestIsEndedIfMonoIsCancelled() throws Exception {
+        MicroserviceReactiveRequestExecutor reactiveExecutor = new MicroserviceReactiveRequestExecutor(new ObjectMapper(), 1000, false);
+        MicroserviceRestTemplate restTemplate = createRestTemplate(null);
+
+        Disposable subscription = reactiveExecutor.exchange(createCallContext(restTemplate, "/slow"), HttpEntity.EMPTY).subscribe();
+        Assert.assertEquals(instance.getInFlight(), 1);
+        subscription.dispose();
+        Assert.assertEquals(instance.getInFlight(), 0);
+    }
+
+}
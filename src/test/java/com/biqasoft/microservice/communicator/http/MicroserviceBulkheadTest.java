@@ -0,0 +1,133 @@
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.exceptions.BulkheadFullException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class MicroserviceBulkheadTest {
+
+    @Test
+    public void testLimitAndQueue() throws Exception {
+        MicroserviceBulkhead bulkhead = new MicroserviceBulkhead("users", 2, 2);
+        List<Integer> started = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            int request = i;
+            bulkhead.execute(() -> started.add(request));
+        }
+        Assert.assertEquals(started.size(), 2);
+        Assert.assertEquals(bulkhead.getActiveCount(), 2);
+        Assert.assertEquals(bulkhead.getQueuedCount(), 2);
+
+        // queued requests are started in order by thread which finished request
+        bulkhead.release();
+        Assert.assertEquals(started.size(), 3);
+        Assert.assertEquals(started.get(2).intValue(), 2);
+        Assert.assertEquals(bulkhead.getActiveCount(), 2);
+
+        bulkhead.release();
+        bulkhead.release();
+        bulkhead.release();
+        Assert.assertEquals(started.size(), 4);
+        Assert.assertEquals(bulkhead.getActiveCount(), 0);
+        Assert.assertEquals(bulkhead.getQueuedCount(), 0);
+
+        bulkhead.execute(() -> started.add(4));
+        Assert.assertEquals(started.size(), 5);
+        Assert.assertEquals(bulkhead.getActiveCount(), 1);
+    }
+
+    @Test
+    public void testRejectWhenQueueIsFull() throws Exception {
+        MicroserviceBulkhead bulkhead = new MicroserviceBulkhead("users", 1, 1);
+        bulkhead.execute(() -> {
+        });
+        bulkhead.execute(() -> {
+        });
+
+        try {
+            bulkhead.execute(() -> Assert.fail("request over limit is started"));
+            Assert.fail("queue is full");
+        } catch (BulkheadFullException e) {
+            // expected
+        }
+        Assert.assertEquals(bulkhead.getRejectedCount(), 1);
+        Assert.assertEquals(bulkhead.getQueuedCount(), 1);
+
+        bulkhead.release();
+        bulkhead.release();
+        Assert.assertEquals(bulkhead.getActiveCount(), 0);
+    }
+
+    @Test
+    public void testQueuedRequestsWhichFinishImmediatelyAreNotStartedRecursively() throws Exception {
+        int requests = 100000;
+        MicroserviceBulkhead bulkhead = new MicroserviceBulkhead("users", 1, requests);
+        AtomicInteger started = new AtomicInteger();
+
+        bulkhead.execute(started::incrementAndGet);
+        for (int i = 1; i < requests; i++) {
+            // e.g. request which is cancelled while it is queued
+            bulkhead.execute(() -> {
+                started.incrementAndGet();
+                bulkhead.release();
+            });
+        }
+        Assert.assertEquals(bulkhead.getQueuedCount(), requests - 1);
+
+        bulkhead.release();
+        Assert.assertEquals(started.get(), requests);
+        Assert.assertEquals(bulkhead.getActiveCount(), 0);
+        Assert.assertEquals(bulkhead.getQueuedCount(), 0);
+    }
+
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        int maxConcurrent = 4;
+        int requests = 10000;
+        MicroserviceBulkhead bulkhead = new MicroserviceBulkhead("users", maxConcurrent, requests);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        CountDownLatch finished = new CountDownLatch(requests);
+
+        try {
+            for (int i = 0; i < requests; i++) {
+                executor.execute(() -> bulkhead.execute(() -> {
+                    maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                    // response is received by other thread
+                    executor.execute(() -> {
+                        active.decrementAndGet();
+                        bulkhead.release();
+                        finished.countDown();
+                    });
+                }));
+            }
+            Assert.assertTrue(finished.await(30, TimeUnit.SECONDS));
+            // thread which starts queued requests can still pass slots of finished ones
+            executor.shutdown();
+            Assert.assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertTrue(maxActive.get() <= maxConcurrent, "max active " + maxActive.get());
+        Assert.assertEquals(bulkhead.getActiveCount(), 0);
+        Assert.assertEquals(bulkhead.getQueuedCount(), 0);
+        Assert.assertEquals(bulkhead.getRejectedCount(), 0);
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.biqasoft.microservice.communicator.http;
+
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.mock.env.MockEnvironment;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+/**
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class MicroserviceCircuitBreakersTest {
+
+    private static MicroserviceCircuitBreakers createCircuitBreakers(MockEnvironment environment, boolean enabled) {
+        return new MicroserviceCircuitBreakers(environment, enabled, 50, 20, 50, 5000, 100, 10000, 5);
+    }
+
+    private static ServiceInstance createInstance(String host) {
+        return new DefaultServiceInstance("users", host, 8080, false);
+    }
+
+    @Test
+    public void testEnabledPerMicroservice() throws Exception {
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty(MicroserviceConnectionPools.SERVICE_PREFIX + "users.circuit-breaker.enabled", "true");
+        MicroserviceCircuitBreakers circuitBreakers = createCircuitBreakers(environment, false);
+        try {
+            Assert.assertNull(circuitBreakers.getCircuitBreaker("accounts"));
+            Assert.assertNull(circuitBreakers.getCircuitBreaker("accounts", createInstance("10.0.0.1")));
+            Assert.assertTrue(circuitBreakers.isCallPermitted("accounts", createInstance("10.0.0.1")));
+
+            Assert.assertNotNull(circuitBreakers.getCircuitBreaker("users"));
+            Assert.assertSame(circuitBreakers.getCircuitBreaker("users", createInstance("10.0.0.1")),
+                    circuitBreakers.getCircuitBreaker("users", createInstance("10.0.0.1")));
+        } finally {
+            circuitBreakers.shutdown();
+        }
+    }
+
+    @Test
+    public void testBreakersOfRemovedInstancesAreEvicted() throws Exception {
+        MicroserviceCircuitBreakers circuitBreakers = createCircuitBreakers(new MockEnvironment(), true);
+        try {
+            CircuitBreaker first = circuitBreakers.getCircuitBreaker("users", createInstance("10.0.0.1"));
+            circuitBreakers.getCircuitBreaker("users", createInstance("10.0.0.2"));
+            circuitBreakers.getCircuitBreaker("users");
+            circuitBreakers.getCircuitBreaker("users-api", createInstance("10.0.0.2"));
+            Assert.assertEquals(circuitBreakers.getCircuitBreakers().size(), 4);
+
+            circuitBreakers.retainInstances("users", Arrays.asList(createInstance("10.0.0.1"), createInstance("10.0.0.3")));
+            Assert.assertEquals(circuitBreakers.getCircuitBreakers().keySet(),
+                    new HashSet<>(Arrays.asList("users", "users 10.0.0.1:8080", "users-api 10.0.0.2:8080")));
+            Assert.assertSame(circuitBreakers.getCircuitBreaker("users", createInstance("10.0.0.1")), first);
+
+            circuitBreakers.retainInstances("users", Collections.emptyList());
+            Assert.assertEquals(circuitBreakers.getCircuitBreakers().keySet(),
+                    new HashSet<>(Arrays.asList("users", "users-api 10.0.0.2:8080")));
+        } finally {
+            circuitBreakers.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.servicediscovery.MicroserviceLoadBalancer;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.pool.PoolStats;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.mock.env.MockEnvironment;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connections of failed attempts are returned to pool of microservice
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class MicroserviceConnectionPoolsTest {
+
+    private static final int MAX_PER_ROUTE = 2;
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private HttpServer server;
+    private MicroserviceConnectionPools connectionPools;
+    private MicroserviceLoadBalancer previousLoadBalancer;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // every first attempt fails with response which body is not read, retry succeeds
+        server.createContext("/users", exchange -> {
+            byte[] body = "{\"id\":\"user\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(requests.getAndIncrement() % 2 == 0 ? 404 : 200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        server.start();
+
+        connectionPools = new MicroserviceConnectionPools(new MockEnvironment(), 10, MAX_PER_ROUTE, 30000, 2000, 60000,
+                1000, 1000, 5000, 5000, false);
+
+        previousLoadBalancer = SpringContextAware.getMicroserviceLoadBalancer();
+        new SpringContextAware().setMicroserviceHelper(new MicroserviceLoadBalancer());
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        new SpringContextAware().setMicroserviceHelper(previousLoadBalancer);
+        connectionPools.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    public void testConnectionOfFailedAttemptIsReleased() throws Exception {
+        ClientHttpRequestFactory requestFactory = connectionPools.getRequestFactory("users");
+        ServiceInstance instance = new DefaultServiceInstance("users", "127.0.0.1", server.getAddress().getPort(), false);
+        MicroserviceRestTemplate restTemplate = new MicroserviceRestTemplate("") {
+            @Override
+            public ClientHttpRequestFactory getRequestFactory() {
+                return requestFactory;
+            }
+
+            @Override
+            ServiceInstance chooseInstance(MicroserviceCallContext context, boolean waitForInstance) {
+                return instance;
+            }
+        };
+
+        // more calls than connections to instance
+        for (int i = 0; i < MAX_PER_ROUTE * 2; i++) {
+            MicroserviceCallContext context = new MicroserviceCallContext(restTemplate, true, 2, 10, "", "/users", HttpMethod.GET, false);
+            ResponseEntity<byte[]> response = restTemplate.exchange(context, HttpEntity.EMPTY, byte[].class);
+            Assert.assertEquals(response.getStatusCodeValue(), 200);
+            Assert.assertEquals(context.getAttempts(), 2);
+
+            PoolStats stats = connectionPools.getPoolStats("users");
+            Assert.assertEquals(stats.getLeased(), 0);
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.biqasoft.microservice.communicator.http;
+
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class MicroserviceDeadlineFilterTest {
+
+    /**
+     * @return millis left to deadline of thread while request is processed; -1 if request is not processed
+     */
+    private static long filter(MicroserviceDeadlineFilter filter, String header, MockHttpServletResponse response) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/users");
+        if (header != null) {
+            request.addHeader(MicroserviceDeadline.DEFAULT_HEADER, header);
+        }
+
+        AtomicLong remaining = new AtomicLong(-1);
+        filter.doFilter(request, response, new MockFilterChain(new HttpServlet() {
+            @Override
+            protected void service(HttpServletRequest req, HttpServletResponse resp) {
+                remaining.set(MicroserviceDeadline.getRemainingTime());
+            }
+        }));
+
+        Assert.assertEquals(MicroserviceDeadline.getDeadlineTime(), 0, "deadline of thread is restored");
+        return remaining.get();
+    }
+
+    @Test
+    public void testDeadlineOfCaller() throws Exception {
+        MicroserviceDeadlineFilter filter = new MicroserviceDeadlineFilter(true, MicroserviceDeadline.DEFAULT_HEADER, true);
+
+        long remaining = filter(filter, "3000", new MockHttpServletResponse());
+        Assert.assertTrue(remaining <= 3000 && remaining > 2000, "remaining " + remaining);
+
+        Assert.assertEquals(filter(filter, null, new MockHttpServletResponse()), Long.MAX_VALUE);
+        Assert.assertEquals(filter(filter, "not a number", new MockHttpServletResponse()), Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testExpiredRequestIsRejected() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        Assert.assertEquals(filter(new MicroserviceDeadlineFilter(true, MicroserviceDeadline.DEFAULT_HEADER, true), "-5", response), -1);
+        Assert.assertEquals(response.getStatus(), 504);
+
+        response = new MockHttpServletResponse();
+        long remaining = filter(new MicroserviceDeadlineFilter(true, MicroserviceDeadline.DEFAULT_HEADER, false), "0", response);
+        Assert.assertTrue(remaining <= 0, "remaining " + remaining);
+        Assert.assertEquals(response.getStatus(), 200);
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        MicroserviceDeadlineFilter filter = new MicroserviceDeadlineFilter(false, MicroserviceDeadline.DEFAULT_HEADER, true);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        Assert.assertEquals(filter(filter, "0", response), Long.MAX_VALUE);
+        Assert.assertEquals(response.getStatus(), 200);
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.adaptors.ReactiveAdapter;
+import com.biqasoft.microservice.communicator.exceptions.InternalSeverErrorProcessingRequestException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interface methods which return Mono or Flux, with local HTTP server
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class MicroserviceReactiveRequestExecutorTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private final AtomicInteger failedRequests = new AtomicInteger();
+    private HttpServer server;
+    private MicroserviceReactiveRequestExecutor executor;
+    private ReactiveAdapter reactiveAdapter;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/account", exchange -> respond(exchange, 200, "{\"id\":\"1\",\"name\":\"first\"}"));
+        server.createContext("/accounts", exchange -> respond(exchange, 200, "[{\"id\":\"1\"},{\"id\":\"2\"},{\"id\":\"3\"}]"));
+        server.createContext("/fail", exchange -> {
+            failedRequests.incrementAndGet();
+            respond(exchange, 503, "{}");
+        });
+        server.start();
+
+        executor = new MicroserviceReactiveRequestExecutor(new ObjectMapper(), 1000, false);
+        reactiveAdapter = new ReactiveAdapter(null);
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        server.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+
+    private MicroserviceCallContext createCallContext(String path) {
+        return HttpClientsHelpers.createCallContext(true, 1, 10, "",
+                "http://127.0.0.1:" + server.getAddress().getPort() + path, HttpMethod.GET, false);
+    }
+
+    private Object adapt(Mono<ClientResponse> response, Class returnType, MicroserviceCallContext context, Class... returnGenericType) {
+        return reactiveAdapter.onBeforeReturnResult(response, response, null, returnType, context, returnGenericType, null);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMono() throws Exception {
+        MicroserviceCallContext context = createCallContext("/account");
+        Mono<Map> mono = (Mono<Map>) adapt(executor.exchange(context, HttpEntity.EMPTY), Mono.class, context, Map.class);
+
+        Map account = mono.block(TIMEOUT);
+        Assert.assertEquals(account.get("name"), "first");
+        Assert.assertEquals(context.getAttempts(), 1);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFlux() throws Exception {
+        MicroserviceCallContext context = createCallContext("/accounts");
+        Flux<Map> flux = (Flux<Map>) adapt(executor.exchange(context, HttpEntity.EMPTY), Flux.class, context, Map.class);
+
+        List<Map> accounts = flux.collectList().block(TIMEOUT);
+        Assert.assertEquals(accounts.size(), 3);
+        Assert.assertEquals(accounts.get(2).get("id"), "3");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testResubscribeStartsNewCall() throws Exception {
+        MicroserviceCallContext context = createCallContext("/fail");
+        Mono<Map> mono = (Mono<Map>) adapt(executor.exchange(context, HttpEntity.EMPTY), Mono.class, context, Map.class);
+        failedRequests.set(0);
+
+        try {
+            mono.retry(1).block(TIMEOUT);
+            Assert.fail("response is 503");
+        } catch (InternalSeverErrorProcessingRequestException e) {
+            // every subscription makes request and one retry
+        }
+        Assert.assertEquals(failedRequests.get(), 4);
+        Assert.assertEquals(context.getAttempts(), 2);
+
+        failedRequests.set(0);
+        try {
+            mono.block(TIMEOUT);
+            Assert.fail("response is 503");
+        } catch (InternalSeverErrorProcessingRequestException e) {
+            // expected
+        }
+        Assert.assertEquals(failedRequests.get(), 2);
+    }
+
+}
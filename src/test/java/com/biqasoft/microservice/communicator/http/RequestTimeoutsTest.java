@@ -0,0 +1,142 @@
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.exceptions.DeadlineExceededException;
+import com.biqasoft.microservice.communicator.exceptions.InternalSeverErrorProcessingRequestException;
+import com.sun.net.httpserver.HttpServer;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per method timeouts and deadline of call
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class RequestTimeoutsTest {
+
+    private static final long RESPONSE_DELAY = 1000;
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private HttpServer server;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/slow", exchange -> {
+            requests.incrementAndGet();
+            try {
+                Thread.sleep(RESPONSE_DELAY);
+                exchange.sendResponseHeaders(200, 2);
+                try (OutputStream outputStream = exchange.getResponseBody()) {
+                    outputStream.write("{}".getBytes());
+                }
+            } catch (Exception e) {
+                exchange.close();
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private MicroserviceCallContext createCallContext(boolean tryToReconnect, int tryToReconnectTimes) {
+        return new MicroserviceCallContext(new MicroserviceRestTemplate(""), tryToReconnect, tryToReconnectTimes, 10, "",
+                "http://127.0.0.1:" + server.getAddress().getPort() + "/slow", HttpMethod.GET, false);
+    }
+
+    @Test
+    public void testFactoryTimeoutsAreUsedIfNotSet() throws Exception {
+        MicroserviceCallContext context = createCallContext(false, 0);
+        Assert.assertNull(RequestTimeouts.of(context));
+
+        context.setTimeouts(-1, 2000);
+        RequestTimeouts timeouts = RequestTimeouts.of(context);
+        Assert.assertEquals(timeouts.getConnectTimeout(5000), 5000);
+        Assert.assertEquals(timeouts.getResponseTimeout(60000), 2000);
+        Assert.assertEquals(timeouts.getWaitTimeout(5000), 5000);
+    }
+
+    @Test
+    public void testTimeoutsAreLimitedByDeadline() throws Exception {
+        MicroserviceCallContext context = createCallContext(false, 0);
+        context.setTimeouts(500, 2000);
+        context.setDeadline(1000);
+
+        RequestTimeouts timeouts = RequestTimeouts.of(context);
+        Assert.assertEquals(timeouts.getConnectTimeout(5000), 500);
+        Assert.assertTrue(timeouts.getResponseTimeout(60000) <= 1000);
+        Assert.assertTrue(timeouts.getResponseTimeout(60000) > 900);
+        // infinite timeout of factory
+        Assert.assertTrue(timeouts.getWaitTimeout(0) <= 1000);
+    }
+
+    @Test
+    public void testResponseTimeoutOfMethod() throws Exception {
+        MicroserviceCallContext context = createCallContext(false, 0);
+        context.setTimeouts(-1, 200);
+        requests.set(0);
+
+        long start = System.nanoTime();
+        try {
+            context.getRestTemplate().exchange(context, HttpEntity.EMPTY, byte[].class);
+            Assert.fail("response is slower than timeout");
+        } catch (InternalSeverErrorProcessingRequestException e) {
+            // expected
+        }
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < RESPONSE_DELAY);
+        Assert.assertEquals(requests.get(), context.getAttempts());
+    }
+
+    @Test
+    public void testDeadlineLimitsRetries() throws Exception {
+        MicroserviceCallContext context = createCallContext(true, 10);
+        context.setDeadline(500);
+        requests.set(0);
+
+        long start = System.nanoTime();
+        try {
+            context.getRestTemplate().exchange(context, HttpEntity.EMPTY, byte[].class);
+            Assert.fail("response is slower than deadline");
+        } catch (DeadlineExceededException e) {
+            // expected
+        }
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < RESPONSE_DELAY);
+        Assert.assertEquals(context.getAttempts(), requests.get());
+    }
+
+    @Test
+    public void testExceededDeadlineDoesNotStartAttempt() throws Exception {
+        MicroserviceCallContext context = createCallContext(true, 2);
+        context.setDeadline(1);
+        Thread.sleep(5);
+        requests.set(0);
+
+        try {
+            context.getRestTemplate().exchange(context, HttpEntity.EMPTY, byte[].class);
+            Assert.fail("deadline is exceeded");
+        } catch (DeadlineExceededException e) {
+            // expected
+        }
+        Assert.assertEquals(context.getAttempts(), 0);
+        Assert.assertEquals(requests.get(), 0);
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.biqasoft.microservice.communicator.http;
+
+import org.springframework.mock.env.MockEnvironment;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class RetryPolicyTest {
+
+    private static final int SLEEP_TIME_BETWEEN_TRYING = 1100;
+
+    @Test
+    public void testFixedPauseWithoutBudgetByDefault() throws Exception {
+        MicroserviceRetries retries = new MicroserviceRetries(new MockEnvironment(), 1, 10000, false, 0, 10);
+        RetryPolicy retryPolicy = retries.getRetryPolicy("users");
+
+        for (int pause = 1; pause < 10; pause++) {
+            Assert.assertEquals(retryPolicy.getBackoff(SLEEP_TIME_BETWEEN_TRYING, pause), SLEEP_TIME_BETWEEN_TRYING);
+        }
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(retryPolicy.tryRetry());
+        }
+        Assert.assertEquals(retryPolicy.getAvailableRetries(), Long.MAX_VALUE);
+        Assert.assertEquals(retryPolicy.getRejectedRetries(), 0);
+    }
+
+    @Test
+    public void testPerMicroserviceSettings() throws Exception {
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty(MicroserviceConnectionPools.SERVICE_PREFIX + "users.retry.multiplier", "3")
+                .withProperty(MicroserviceConnectionPools.SERVICE_PREFIX + "users.retry.budget", "50");
+        MicroserviceRetries retries = new MicroserviceRetries(environment, 1, 10000, false, 0, 10);
+
+        Assert.assertEquals(retries.getRetryPolicy("users").getBackoff(100, 3), 900);
+        Assert.assertEquals(retries.getRetryPolicy("users").getAvailableRetries(), 10);
+        Assert.assertEquals(retries.getRetryPolicy("accounts").getBackoff(100, 3), 100);
+        Assert.assertSame(retries.getRetryPolicy("users"), retries.getRetryPolicy("users"));
+    }
+
+    @Test
+    public void testExponentialBackoffIsLimited() throws Exception {
+        RetryPolicy retryPolicy = new RetryPolicy("users", 2, 1000, false, 0, 0);
+
+        Assert.assertEquals(retryPolicy.getBackoff(100, 1), 100);
+        Assert.assertEquals(retryPolicy.getBackoff(100, 2), 200);
+        Assert.assertEquals(retryPolicy.getBackoff(100, 4), 800);
+        Assert.assertEquals(retryPolicy.getBackoff(100, 5), 1000);
+        Assert.assertEquals(retryPolicy.getBackoff(100, 1000), 1000);
+
+        // no max backoff
+        Assert.assertEquals(new RetryPolicy("users", 2, 0, false, 0, 0).getBackoff(100, 11), 102400);
+        Assert.assertEquals(new RetryPolicy("users", 2, 0, false, 0, 0).getBackoff(100, 10000), Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testJitterIsWithinBackoff() throws Exception {
+        RetryPolicy retryPolicy = new RetryPolicy("users", 2, 1000, true, 0, 0);
+
+        for (int pause = 1; pause <= 6; pause++) {
+            long limit = Math.min(1000, 100L << (pause - 1));
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for (int i = 0; i < 2000; i++) {
+                long backoff = retryPolicy.getBackoff(100, pause);
+                Assert.assertTrue(backoff >= 0 && backoff <= limit, "pause " + pause + " backoff " + backoff);
+                min = Math.min(min, backoff);
+                max = Math.max(max, backoff);
+            }
+            // full jitter spreads pauses over whole range
+            Assert.assertTrue(min < limit / 10 && max > limit * 9 / 10, "pause " + pause + " min " + min + " max " + max);
+        }
+        Assert.assertEquals(retryPolicy.getBackoff(0, 1), 0);
+    }
+
+    @Test
+    public void testBudgetIsExhaustedAndRefilled() throws Exception {
+        RetryPolicy retryPolicy = new RetryPolicy("users", 1, 0, false, 20, 3);
+
+        // bucket is full at start
+        Assert.assertEquals(retryPolicy.getAvailableRetries(), 3);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(retryPolicy.tryRetry());
+        }
+        Assert.assertFalse(retryPolicy.tryRetry());
+        Assert.assertFalse(retryPolicy.tryRetry());
+        Assert.assertTrue(retryPolicy.isExhausted());
+        Assert.assertEquals(retryPolicy.getRejectedRetries(), 2);
+
+        // every call adds 20% of retry
+        for (int i = 0; i < 4; i++) {
+            retryPolicy.onCall();
+        }
+        Assert.assertEquals(retryPolicy.getAvailableRetries(), 0);
+        retryPolicy.onCall();
+        Assert.assertEquals(retryPolicy.getAvailableRetries(), 1);
+        Assert.assertTrue(retryPolicy.tryRetry());
+        Assert.assertFalse(retryPolicy.isExhausted());
+        Assert.assertFalse(retryPolicy.tryRetry());
+
+        // bucket does not grow over max retries
+        for (int i = 0; i < 100; i++) {
+            retryPolicy.onCall();
+        }
+        Assert.assertEquals(retryPolicy.getAvailableRetries(), 3);
+        Assert.assertEquals(retryPolicy.getRejectedRetries(), 3);
+    }
+
+}
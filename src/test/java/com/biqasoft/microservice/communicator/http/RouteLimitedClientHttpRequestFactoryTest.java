@@ -0,0 +1,106 @@
+package com.biqasoft.microservice.communicator.http;
+
+import com.biqasoft.microservice.communicator.exceptions.InvalidRequestException;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.util.StreamUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class RouteLimitedClientHttpRequestFactoryTest {
+
+    private static final String AUTHORITY = "users:8080";
+
+    /**
+     * @param statuses status of response to every attempt; last one is repeated
+     */
+    private static MicroserviceRestTemplate createRestTemplate(RouteLimitedClientHttpRequestFactory.RouteLimiter routeLimiter, HttpStatus... statuses) {
+        AtomicInteger requests = new AtomicInteger();
+        ClientHttpRequestFactory mockRequestFactory = (uri, httpMethod) -> {
+            HttpStatus status = statuses[Math.min(requests.getAndIncrement(), statuses.length - 1)];
+            MockClientHttpRequest request = new MockClientHttpRequest(httpMethod, uri);
+            request.setResponse(new MockClientHttpResponse("{\"error\":\"invalid\"}".getBytes(StandardCharsets.UTF_8), status));
+            return request;
+        };
+        ClientHttpRequestFactory requestFactory = new RouteLimitedClientHttpRequestFactory(mockRequestFactory, routeLimiter);
+
+        return new MicroserviceRestTemplate("") {
+            @Override
+            public ClientHttpRequestFactory getRequestFactory() {
+                return requestFactory;
+            }
+        };
+    }
+
+    private static MicroserviceCallContext createCallContext(MicroserviceRestTemplate restTemplate) {
+        return new MicroserviceCallContext(restTemplate, true, 2, 10, "", "http://" + AUTHORITY + "/users", HttpMethod.GET, false);
+    }
+
+    @Test
+    public void testPermitIsReleased() throws Exception {
+        RouteLimitedClientHttpRequestFactory.RouteLimiter routeLimiter = new RouteLimitedClientHttpRequestFactory.RouteLimiter("connection", 1, 1, 100);
+        MicroserviceRestTemplate restTemplate = createRestTemplate(routeLimiter, HttpStatus.OK);
+
+        for (int i = 0; i < 3; i++) {
+            ResponseEntity<byte[]> response = restTemplate.exchange(createCallContext(restTemplate), HttpEntity.EMPTY, byte[].class);
+            Assert.assertEquals(response.getStatusCodeValue(), 200);
+            Assert.assertEquals(routeLimiter.getAvailablePermits(AUTHORITY), 1);
+        }
+    }
+
+    @Test
+    public void testPermitIsReleasedOnInvalidRequest() throws Exception {
+        RouteLimitedClientHttpRequestFactory.RouteLimiter routeLimiter = new RouteLimitedClientHttpRequestFactory.RouteLimiter("connection", 1, 1, 100);
+        MicroserviceRestTemplate restTemplate = createRestTemplate(routeLimiter, HttpStatus.UNPROCESSABLE_ENTITY);
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                restTemplate.exchange(createCallContext(restTemplate), HttpEntity.EMPTY, byte[].class);
+                Assert.fail("response is 422");
+            } catch (InvalidRequestException e) {
+                // error response is buffered and can be read after connection is released
+                Assert.assertEquals(e.getClientHttpResponse().getRawStatusCode(), 422);
+                Assert.assertEquals(StreamUtils.copyToString(e.getClientHttpResponse().getBody(), StandardCharsets.UTF_8), "{\"error\":\"invalid\"}");
+            }
+            Assert.assertEquals(routeLimiter.getAvailablePermits(AUTHORITY), 1);
+        }
+    }
+
+    @Test
+    public void testPermitIsReleasedOnRetry() throws Exception {
+        for (HttpStatus status : new HttpStatus[]{HttpStatus.SERVICE_UNAVAILABLE, HttpStatus.NOT_FOUND}) {
+            RouteLimitedClientHttpRequestFactory.RouteLimiter routeLimiter = new RouteLimitedClientHttpRequestFactory.RouteLimiter("connection", 4, 4, 100);
+            MicroserviceRestTemplate restTemplate = createRestTemplate(routeLimiter, status, HttpStatus.OK);
+
+            // failed attempt, then successful retry
+            ResponseEntity<byte[]> response = restTemplate.exchange(createCallContext(restTemplate), HttpEntity.EMPTY, byte[].class);
+            Assert.assertEquals(response.getStatusCodeValue(), 200);
+            Assert.assertEquals(routeLimiter.getAvailablePermits(AUTHORITY), 4, "after " + status);
+        }
+
+        // every attempt failed
+        RouteLimitedClientHttpRequestFactory.RouteLimiter routeLimiter = new RouteLimitedClientHttpRequestFactory.RouteLimiter("connection", 4, 4, 100);
+        MicroserviceRestTemplate restTemplate = createRestTemplate(routeLimiter, HttpStatus.SERVICE_UNAVAILABLE);
+        try {
+            restTemplate.exchange(createCallContext(restTemplate), HttpEntity.EMPTY, byte[].class);
+            Assert.fail("response is 503");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        Assert.assertEquals(routeLimiter.getAvailablePermits(AUTHORITY), 4);
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.biqasoft.microservice.communicator.interfaceimpl;
+
+import com.biqasoft.microservice.communicator.exceptions.InvalidStateException;
+import org.springframework.http.HttpMethod;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+/**
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class MicroservicePathTemplateTest {
+
+    private static MicroserviceInterface.ArgumentBinding pathVar(int index, String name, boolean encode) {
+        return new MicroserviceInterface.ArgumentBinding(MicroserviceInterface.ArgumentBindingKind.PATH_VAR, index, name, encode);
+    }
+
+    @Test
+    public void testExpandEncodesPathSegment() throws Exception {
+        MicroservicePathTemplate template = MicroservicePathTemplate.compile("/domain/{s1}/{s2}/one",
+                Arrays.asList(pathVar(0, "s1", true), pathVar(1, "s2", true)), new Class[]{String.class, String.class});
+
+        Assert.assertEquals(template.expand(new Object[]{"users", "mock"}), "/domain/users/mock/one");
+        Assert.assertEquals(template.expand(new Object[]{"a b/c?", "я"}), "/domain/a%20b%2Fc%3F/%D1%8F/one");
+    }
+
+    @Test
+    public void testExpandNotStringTypes() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        MicroservicePathTemplate template = MicroservicePathTemplate.compile("/{id}/{uuid}/{method}/{flag}",
+                Arrays.asList(pathVar(0, "id", true), pathVar(1, "uuid", true), pathVar(2, "method", true), pathVar(3, "flag", true)),
+                new Class[]{long.class, UUID.class, HttpMethod.class, Boolean.class});
+
+        Assert.assertEquals(template.expand(new Object[]{-42L, uuid, HttpMethod.GET, true}), "/-42/" + uuid + "/GET/true");
+    }
+
+    @Test
+    public void testNotEncodedAndNotBoundVariables() throws Exception {
+        MicroservicePathTemplate template = MicroservicePathTemplate.compile("users/{user}/repos?q={user}",
+                Collections.singletonList(pathVar(0, "user", false)), new Class[]{String.class});
+
+        Assert.assertEquals(template.expand(new Object[]{"a/b"}), "users/a/b/repos?q=a/b");
+    }
+
+    @Test
+    public void testExpandEncodesQueryParam() throws Exception {
+        MicroservicePathTemplate template = MicroservicePathTemplate.compile("users/{user}/repos?q={user}&sort={sort}",
+                Arrays.asList(pathVar(0, "user", true), pathVar(1, "sort", true)), new Class[]{String.class, String.class});
+
+        // value can not add query parameters or fragment
+        Assert.assertEquals(template.expand(new Object[]{"a&admin=true", "b+c#d"}),
+                "users/a&admin=true/repos?q=a%26admin%3Dtrue&sort=b%2Bc%23d");
+        Assert.assertEquals(template.expand(new Object[]{"a/b?c d", "=&"}), "users/a%2Fb%3Fc%20d/repos?q=a/b?c%20d&sort=%3D%26");
+    }
+
+    @Test
+    public void testExpandQueryParamInsideLiteral() throws Exception {
+        // variable is part of encoded query value, as in YahooCurrencyExchange
+        MicroservicePathTemplate template = MicroservicePathTemplate.compile("yql?q=quotes%3Fs%3D{from}{to}%253DX&format=json",
+                Arrays.asList(pathVar(0, "from", true), pathVar(1, "to", true)), new Class[]{String.class, String.class});
+
+        Assert.assertEquals(template.expand(new Object[]{"USD", "RUB"}), "yql?q=quotes%3Fs%3DUSDRUB%253DX&format=json");
+        Assert.assertEquals(template.expand(new Object[]{"USD&format=xml", "+"}), "yql?q=quotes%3Fs%3DUSD%26format%3Dxml%2B%253DX&format=json");
+    }
+
+    @Test(expectedExceptions = InvalidStateException.class)
+    public void testInvalidPathFailsOnCompile() throws Exception {
+        MicroservicePathTemplate.compile("/domain/{notBound}/one", Collections.emptyList(), new Class[0]);
+    }
+
+}
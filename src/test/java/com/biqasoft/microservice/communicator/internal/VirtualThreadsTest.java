@@ -0,0 +1,30 @@
+package com.biqasoft.microservice.communicator.internal;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class VirtualThreadsTest {
+
+    @Test
+    public void testSupportedOnlySinceJdk21() throws Exception {
+        String specificationVersion = System.getProperty("java.specification.version");
+        int featureVersion = specificationVersion.startsWith("1.") ? Integer.parseInt(specificationVersion.substring(2)) : Integer.parseInt(specificationVersion);
+        Assert.assertEquals(VirtualThreads.getFeatureVersion(), featureVersion);
+
+        Assert.assertEquals(VirtualThreads.isSupported(), featureVersion >= 21);
+        ExecutorService executor = VirtualThreads.newVirtualThreadPerTaskExecutor("test-virtual-");
+        Assert.assertEquals(executor != null, featureVersion >= 21);
+        if (executor != null) {
+            Assert.assertEquals((boolean) executor.submit(() -> Thread.currentThread().getName().startsWith("test-virtual-")).get(), true);
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package com.biqasoft.microservice.communicator.servicediscovery;
+
+import com.biqasoft.microservice.communicator.interfaceimpl.MicroserviceInterface;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.LoadBalancing;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.Microservice;
+import com.sun.net.httpserver.HttpServer;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.mock.env.MockEnvironment;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Active health checks of instances over http or https as set in {@link Microservice} interface
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class MicroserviceHealthChecksTest {
+
+    @Microservice("health-check-http")
+    public interface HttpHealthCheckedMicroservice {
+    }
+
+    @Microservice(value = "health-check-https", https = true)
+    public interface HttpsHealthCheckedMicroservice {
+    }
+
+    private final AtomicInteger statusCode = new AtomicInteger(200);
+    // https checks of plain http server wait for timeout and do not block other checks
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private HttpServer server;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/internal/health", exchange -> {
+            exchange.sendResponseHeaders(statusCode.get(), -1);
+            exchange.close();
+        });
+        server.setExecutor(executor);
+        server.start();
+
+        MicroserviceInterface.create(HttpHealthCheckedMicroservice.class);
+        MicroserviceInterface.create(HttpsHealthCheckedMicroservice.class);
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @param secure scheme of instance in service discovery
+     * @return instance of plain http server
+     */
+    private MicroserviceInstance createInstance(String microserviceName, boolean secure) {
+        return new MicroserviceInstance(microserviceName, new DefaultServiceInstance(microserviceName, "127.0.0.1",
+                server.getAddress().getPort(), secure), 10000, 1000);
+    }
+
+    private static MicroserviceHealthChecks createHealthChecks(Map<String, List<MicroserviceInstance>> snapshots) {
+        // snapshots are disabled, so discovery client is not used
+        MicroserviceInstances microserviceInstances = new MicroserviceInstances(null, new MockEnvironment(), false, 5000, LoadBalancing.DEFAULT, 10000, 1000, 50) {
+            @Override
+            public List<MicroserviceInstance> getInstances(String microserviceName) {
+                return snapshots.getOrDefault(microserviceName, Collections.emptyList());
+            }
+
+            @Override
+            public Map<String, List<MicroserviceInstance>> getSnapshots() {
+                return snapshots;
+            }
+        };
+        return new MicroserviceHealthChecks(microserviceInstances, new MockEnvironment(), true, "/internal/health", 50, 500, 2, 4);
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long until = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue(System.currentTimeMillis() < until, "condition is not met in 5 seconds");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testInstanceIsUnhealthyAfterFailedChecks() throws Exception {
+        // interface is http, so https of service discovery is not used
+        MicroserviceInstance instance = createInstance("health-check-http", true);
+        MicroserviceHealthChecks healthChecks = createHealthChecks(Collections.singletonMap("health-check-http", Collections.singletonList(instance)));
+        try {
+            statusCode.set(503);
+            waitUntil(() -> !instance.isHealthy());
+
+            statusCode.set(404);
+            waitUntil(instance::isHealthy);
+        } finally {
+            healthChecks.shutdown();
+            statusCode.set(200);
+        }
+    }
+
+    @Test
+    public void testSchemeOfInterfaceIsUsed() throws Exception {
+        MicroserviceInstance http = createInstance("health-check-http", true);
+        // https check of plain http server fails
+        MicroserviceInstance https = createInstance("health-check-https", false);
+        // no interface - scheme of service discovery instance
+        MicroserviceInstance secure = createInstance("health-check-secure", true);
+        MicroserviceInstance plain = createInstance("health-check-plain", false);
+
+        Map<String, List<MicroserviceInstance>> snapshots = new HashMap<>();
+        snapshots.put("health-check-http", Collections.singletonList(http));
+        snapshots.put("health-check-https", Collections.singletonList(https));
+        snapshots.put("health-check-secure", Collections.singletonList(secure));
+        snapshots.put("health-check-plain", Collections.singletonList(plain));
+        MicroserviceHealthChecks healthChecks = createHealthChecks(snapshots);
+        try {
+            waitUntil(() -> !https.isHealthy() && !secure.isHealthy());
+            Assert.assertTrue(http.isHealthy());
+            Assert.assertTrue(plain.isHealthy());
+        } finally {
+            healthChecks.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+package com.biqasoft.microservice.communicator.servicediscovery;
+
+import com.biqasoft.microservice.communicator.http.MicroserviceCircuitBreakers;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.LoadBalancing;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.mock.env.MockEnvironment;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Snapshot of instances loaded from service discovery
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class MicroserviceInstancesTest {
+
+    private static final long REFRESH_INTERVAL = 60000;
+
+    /**
+     * Discovery client which returns registered instances or fails if they are null
+     */
+    private static class TestDiscoveryClient implements DiscoveryClient {
+
+        private final AtomicInteger requests = new AtomicInteger();
+        private volatile List<ServiceInstance> instances = new ArrayList<>();
+
+        @Override
+        public String description() {
+            return "test";
+        }
+
+        @Override
+        public List<ServiceInstance> getInstances(String serviceId) {
+            requests.incrementAndGet();
+            if (instances == null) {
+                throw new IllegalStateException("service discovery is not available");
+            }
+            return instances;
+        }
+
+        @Override
+        public List<String> getServices() {
+            return Collections.singletonList("users");
+        }
+    }
+
+    private static ObjectProvider<DiscoveryClient> provide(DiscoveryClient discoveryClient) {
+        return new ObjectProvider<DiscoveryClient>() {
+            @Override
+            public DiscoveryClient getObject(Object... args) {
+                return discoveryClient;
+            }
+
+            @Override
+            public DiscoveryClient getIfAvailable() {
+                return discoveryClient;
+            }
+
+            @Override
+            public DiscoveryClient getIfUnique() {
+                return discoveryClient;
+            }
+
+            @Override
+            public DiscoveryClient getObject() {
+                return discoveryClient;
+            }
+        };
+    }
+
+    private static MicroserviceInstances createInstances(DiscoveryClient discoveryClient, boolean enabled) {
+        return new MicroserviceInstances(provide(discoveryClient), new MockEnvironment(), enabled, REFRESH_INTERVAL, LoadBalancing.DEFAULT, 10000, 1000, 50);
+    }
+
+    /**
+     * @return instance from snapshot of microservice which has only this instance
+     */
+    public static MicroserviceInstance createInstance(ServiceInstance serviceInstance) {
+        TestDiscoveryClient discoveryClient = new TestDiscoveryClient();
+        discoveryClient.instances = Collections.singletonList(serviceInstance);
+        MicroserviceInstances instances = createInstances(discoveryClient, true);
+        try {
+            return instances.getInstances(serviceInstance.getServiceId()).get(0);
+        } finally {
+            instances.shutdown();
+        }
+    }
+
+    private static ServiceInstance createServiceInstance(String host) {
+        return new DefaultServiceInstance("users", host, 8080, false);
+    }
+
+    @Test
+    public void testSnapshotsAreDisabled() throws Exception {
+        TestDiscoveryClient discoveryClient = new TestDiscoveryClient();
+        discoveryClient.instances = Collections.singletonList(createServiceInstance("10.0.0.1"));
+        MicroserviceInstances instances = createInstances(discoveryClient, false);
+        try {
+            Assert.assertEquals(instances.getInstances("users"), Collections.emptyList());
+            Assert.assertEquals(discoveryClient.requests.get(), 0);
+        } finally {
+            instances.shutdown();
+        }
+    }
+
+    @Test
+    public void testSnapshotIsLoadedOnce() throws Exception {
+        TestDiscoveryClient discoveryClient = new TestDiscoveryClient();
+        discoveryClient.instances = Arrays.asList(createServiceInstance("10.0.0.1"), createServiceInstance("10.0.0.2"));
+        MicroserviceInstances instances = createInstances(discoveryClient, true);
+        try {
+            List<MicroserviceInstance> snapshot = instances.getInstances("users");
+            Assert.assertEquals(snapshot.size(), 2);
+            Assert.assertSame(instances.getInstances("users"), snapshot);
+            Assert.assertEquals(discoveryClient.requests.get(), 1);
+            Assert.assertEquals(instances.getSnapshots().keySet(), Collections.singleton("users"));
+        } finally {
+            instances.shutdown();
+        }
+    }
+
+    @Test
+    public void testRefreshKeepsRegisteredInstances() throws Exception {
+        MicroserviceCircuitBreakers circuitBreakers = new MicroserviceCircuitBreakers(new MockEnvironment(), true, 50, 20, 50, 5000, 100, 10000, 5);
+        TestDiscoveryClient discoveryClient = new TestDiscoveryClient();
+        discoveryClient.instances = Arrays.asList(createServiceInstance("10.0.0.1"), createServiceInstance("10.0.0.2"));
+        MicroserviceInstances instances = createInstances(discoveryClient, true);
+        try {
+            List<MicroserviceInstance> snapshot = instances.getInstances("users");
+            MicroserviceInstance first = snapshot.get(0);
+            first.onRequestStart();
+            for (MicroserviceInstance instance : snapshot) {
+                circuitBreakers.getCircuitBreaker("users", instance);
+            }
+
+            // second instance left service discovery, third one is registered
+            discoveryClient.instances = Arrays.asList(createServiceInstance("10.0.0.3"), createServiceInstance("10.0.0.1"));
+            instances.refresh();
+            List<MicroserviceInstance> refreshed = instances.getInstances("users");
+            Assert.assertNotSame(refreshed, snapshot);
+            Assert.assertEquals(refreshed.size(), 2);
+            Assert.assertEquals(refreshed.get(0).getHost(), "10.0.0.3");
+            Assert.assertEquals(refreshed.get(0).getInFlight(), 0);
+            Assert.assertSame(refreshed.get(1), first);
+            Assert.assertEquals(refreshed.get(1).getInFlight(), 1);
+            Assert.assertEquals(circuitBreakers.getCircuitBreakers().keySet(), new HashSet<>(Collections.singletonList("users 10.0.0.1:8080")));
+
+            // previous snapshot is kept while service discovery is not available
+            discoveryClient.instances = null;
+            instances.refresh();
+            Assert.assertSame(instances.getInstances("users"), refreshed);
+
+            discoveryClient.instances = Collections.emptyList();
+            instances.refresh();
+            Assert.assertEquals(instances.getInstances("users"), Collections.emptyList());
+            Assert.assertEquals(circuitBreakers.getCircuitBreakers().size(), 0);
+        } finally {
+            instances.shutdown();
+            circuitBreakers.shutdown();
+        }
+    }
+
+}
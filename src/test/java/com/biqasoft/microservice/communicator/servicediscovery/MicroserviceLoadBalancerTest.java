@@ -0,0 +1,163 @@
+package com.biqasoft.microservice.communicator.servicediscovery;
+
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.LoadBalancing;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unhealthy and ejected instances are not chosen until less than panic threshold of instances are healthy
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class MicroserviceLoadBalancerTest {
+
+    private static final int PANIC_THRESHOLD = 50;
+
+    private final MicroserviceLoadBalancer loadBalancer = new MicroserviceLoadBalancer();
+
+    private static List<MicroserviceInstance> createInstances(int size) {
+        List<MicroserviceInstance> instances = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            instances.add(new MicroserviceInstance("users", new DefaultServiceInstance("users", "10.0.0." + i, 8080, false), 10000, 1000));
+        }
+        return new InstancesSnapshot(instances);
+    }
+
+    /**
+     * @return instances chosen in many attempts
+     */
+    private Set<MicroserviceInstance> choose(List<MicroserviceInstance> instances, Collection<ServiceInstance> excluded, int panicThreshold, long now) {
+        Random random = new Random(7);
+        Set<MicroserviceInstance> chosen = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            MicroserviceInstance instance = loadBalancer.chooseInstance("users", instances, excluded, LoadBalancing.LEAST_OUTSTANDING,
+                    panicThreshold, random, now);
+            if (instance != null) {
+                chosen.add(instance);
+            }
+        }
+        return chosen;
+    }
+
+    @Test
+    public void testUnhealthyInstancesAreNotChosen() throws Exception {
+        List<MicroserviceInstance> instances = createInstances(4);
+        instances.get(0).onHealthCheckFailure(1);
+        instances.get(1).onHealthCheckFailure(1);
+
+        // 2 of 4 instances are healthy
+        Assert.assertEquals(choose(instances, Collections.emptyList(), PANIC_THRESHOLD, System.nanoTime()),
+                new HashSet<>(instances.subList(2, 4)));
+
+        instances.get(1).onHealthCheckSuccess();
+        Assert.assertEquals(choose(instances, Collections.emptyList(), PANIC_THRESHOLD, System.nanoTime()),
+                new HashSet<>(instances.subList(1, 4)));
+    }
+
+    @Test
+    public void testAllInstancesAreChosenBelowPanicThreshold() throws Exception {
+        List<MicroserviceInstance> instances = createInstances(4);
+        for (int i = 0; i < 3; i++) {
+            instances.get(i).onHealthCheckFailure(1);
+        }
+
+        // 1 of 4 instances is healthy
+        Assert.assertEquals(choose(instances, Collections.emptyList(), PANIC_THRESHOLD, System.nanoTime()), new HashSet<>(instances));
+        Assert.assertEquals(choose(instances, Collections.emptyList(), 0, System.nanoTime()), Collections.singleton(instances.get(3)));
+
+        // excluded instances are not chosen in panic
+        Assert.assertEquals(choose(instances, Collections.singletonList(instances.get(0)), PANIC_THRESHOLD, System.nanoTime()),
+                new HashSet<>(instances.subList(1, 4)));
+    }
+
+    @Test
+    public void testAllInstancesAreChosenIfNoneIsHealthy() throws Exception {
+        List<MicroserviceInstance> instances = createInstances(3);
+        for (MicroserviceInstance instance : instances) {
+            instance.onHealthCheckFailure(1);
+        }
+        Assert.assertEquals(choose(instances, Collections.emptyList(), 0, System.nanoTime()), new HashSet<>(instances));
+
+        // single unhealthy instance
+        List<MicroserviceInstance> single = createInstances(1);
+        single.get(0).onHealthCheckFailure(1);
+        Assert.assertEquals(choose(single, Collections.emptyList(), PANIC_THRESHOLD, System.nanoTime()), Collections.singleton(single.get(0)));
+    }
+
+    @Test
+    public void testEjectedInstancesAreUnhealthy() throws Exception {
+        List<MicroserviceInstance> instances = createInstances(4);
+        long now = System.nanoTime();
+        instances.get(0).eject(now + TimeUnit.SECONDS.toNanos(10), 1);
+        instances.get(1).onHealthCheckFailure(1);
+
+        Assert.assertEquals(choose(instances, Collections.emptyList(), PANIC_THRESHOLD, now), new HashSet<>(instances.subList(2, 4)));
+
+        instances.get(2).eject(now + TimeUnit.SECONDS.toNanos(10), 1);
+        Assert.assertEquals(choose(instances, Collections.emptyList(), PANIC_THRESHOLD, now), new HashSet<>(instances));
+
+        // ejections are over, unhealthy instance is still not chosen
+        long later = now + TimeUnit.SECONDS.toNanos(11);
+        Set<MicroserviceInstance> healthy = new HashSet<>(instances);
+        healthy.remove(instances.get(1));
+        Assert.assertEquals(choose(instances, Collections.emptyList(), PANIC_THRESHOLD, later), healthy);
+    }
+
+    @Test
+    public void testHealthyInstancesAreCounted() throws Exception {
+        List<MicroserviceInstance> instances = createInstances(4);
+        InstancesSnapshot snapshot = (InstancesSnapshot) instances;
+        long now = System.nanoTime();
+        Assert.assertEquals(snapshot.getHealthy(now), 4);
+
+        instances.get(0).onHealthCheckFailure(1);
+        instances.get(1).eject(now + TimeUnit.SECONDS.toNanos(10), 1);
+        instances.get(2).eject(now + TimeUnit.SECONDS.toNanos(20), 1);
+        Assert.assertEquals(snapshot.getHealthy(now), 1);
+
+        // ejected instance which is unhealthy is counted once
+        instances.get(0).eject(now + TimeUnit.SECONDS.toNanos(5), 1);
+        Assert.assertEquals(snapshot.getHealthy(now), 1);
+
+        // ejections are over one by one
+        Assert.assertEquals(snapshot.getHealthy(now + TimeUnit.SECONDS.toNanos(6)), 1);
+        Assert.assertEquals(snapshot.getHealthy(now + TimeUnit.SECONDS.toNanos(11)), 2);
+        Assert.assertEquals(snapshot.getHealthy(now + TimeUnit.SECONDS.toNanos(21)), 3);
+
+        instances.get(0).onHealthCheckSuccess();
+        Assert.assertEquals(snapshot.getHealthy(now + TimeUnit.SECONDS.toNanos(21)), 4);
+
+        // instances retained by next snapshot are counted there
+        List<MicroserviceInstance> retained = createInstances(2);
+        InstancesSnapshot next = new InstancesSnapshot(retained);
+        retained.get(1).onHealthCheckFailure(1);
+        Assert.assertEquals(next.getHealthy(System.nanoTime()), 1);
+    }
+
+    @Test
+    public void testPathIsResolvedAgainstInstance() throws Exception {
+        MicroserviceInstance instance = createInstances(1).get(0);
+        for (String path : new String[]{"/users/a%2Fb%20c?name=x%26y&all", "/", "/users//all", "//users/all", "/users/../all"}) {
+            for (boolean https : new boolean[]{false, true}) {
+                URI uri = loadBalancer.getURI(instance, URI.create(path), https);
+                Assert.assertEquals(uri, loadBalancer.getURI(instance, path, https));
+                Assert.assertEquals(uri.toString(), (https ? "https" : "http") + "://10.0.0.0:8080" + path);
+            }
+        }
+    }
+
+}
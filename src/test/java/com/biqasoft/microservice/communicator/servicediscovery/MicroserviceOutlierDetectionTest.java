@@ -0,0 +1,205 @@
+package com.biqasoft.microservice.communicator.servicediscovery;
+
+import com.biqasoft.microservice.communicator.http.MicroserviceConnectionPools;
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.LoadBalancing;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.mock.env.MockEnvironment;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ejection of instances which failed several attempts in a row
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class MicroserviceOutlierDetectionTest {
+
+    private static final long BASE_EJECTION_TIME = 100;
+    private static final long MAX_EJECTION_TIME = 300;
+
+    private final List<Thread> listenerThreads = Collections.synchronizedList(new ArrayList<>());
+
+    private static List<MicroserviceInstance> createInstances(int size) {
+        List<MicroserviceInstance> instances = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            instances.add(new MicroserviceInstance("users", new DefaultServiceInstance("users", "10.0.0." + i, 8080, false), 10000, 1000));
+        }
+        return instances;
+    }
+
+    /**
+     * @param instances snapshot of users microservice
+     * @param events    published events
+     */
+    private MicroserviceOutlierDetection createOutlierDetection(List<MicroserviceInstance> instances, MockEnvironment environment, boolean enabled,
+                                                                BlockingQueue<InstanceEjectedEvent> events) {
+        // snapshots are disabled, so discovery client is not used
+        MicroserviceInstances microserviceInstances = new MicroserviceInstances(null, environment, false, 5000, LoadBalancing.DEFAULT, 10000, 1000, 50) {
+            @Override
+            public List<MicroserviceInstance> getInstances(String microserviceName) {
+                return instances;
+            }
+
+            @Override
+            public Map<String, List<MicroserviceInstance>> getSnapshots() {
+                return Collections.singletonMap("users", instances);
+            }
+        };
+        ApplicationEventPublisher eventPublisher = new ApplicationEventPublisher() {
+            @Override
+            public void publishEvent(ApplicationEvent event) {
+                publishEvent((Object) event);
+            }
+
+            @Override
+            public void publishEvent(Object event) {
+                listenerThreads.add(Thread.currentThread());
+                events.add((InstanceEjectedEvent) event);
+            }
+        };
+        return new MicroserviceOutlierDetection(microserviceInstances, eventPublisher, environment, enabled, 3,
+                BASE_EJECTION_TIME, MAX_EJECTION_TIME, 50);
+    }
+
+    private static void fail(MicroserviceOutlierDetection outlierDetection, MicroserviceInstance instance, int times) {
+        for (int i = 0; i < times; i++) {
+            outlierDetection.onAttemptResult("users", instance, true);
+        }
+    }
+
+    private static void waitUntilReturned(MicroserviceInstance instance) throws InterruptedException {
+        while (instance.isEjected()) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testInstanceIsEjectedAfterConsecutiveFailures() throws Exception {
+        BlockingQueue<InstanceEjectedEvent> events = new LinkedBlockingQueue<>();
+        List<MicroserviceInstance> instances = createInstances(4);
+        MicroserviceInstance instance = instances.get(0);
+        MicroserviceOutlierDetection outlierDetection = createOutlierDetection(instances, new MockEnvironment(), true, events);
+        try {
+            // success resets failures in a row
+            fail(outlierDetection, instance, 2);
+            outlierDetection.onAttemptResult("users", instance, false);
+            fail(outlierDetection, instance, 2);
+            Assert.assertFalse(instance.isEjected());
+
+            fail(outlierDetection, instance, 1);
+            Assert.assertTrue(instance.isEjected());
+            Assert.assertEquals(outlierDetection.getEjectedInstances(), Collections.singletonList(instance));
+            Assert.assertEquals(outlierDetection.getEjections(), 1);
+
+            // event is published by other thread
+            InstanceEjectedEvent event = events.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(event);
+            Assert.assertSame(event.getInstance(), instance);
+            Assert.assertEquals(event.getConsecutiveFailures(), 3);
+            Assert.assertEquals(event.getEjectionTime(), BASE_EJECTION_TIME);
+            Assert.assertNotSame(listenerThreads.get(0), Thread.currentThread());
+
+            // attempts which were started before ejection do not eject it again
+            fail(outlierDetection, instance, 3);
+            Assert.assertEquals(outlierDetection.getEjections(), 1);
+
+            Thread.sleep(BASE_EJECTION_TIME + 20);
+            Assert.assertFalse(instance.isEjected());
+            Assert.assertEquals(outlierDetection.getEjectedInstances(), Collections.emptyList());
+        } finally {
+            outlierDetection.shutdown();
+        }
+    }
+
+    @Test
+    public void testEjectionPeriodGrows() throws Exception {
+        BlockingQueue<InstanceEjectedEvent> events = new LinkedBlockingQueue<>();
+        List<MicroserviceInstance> instances = createInstances(4);
+        MicroserviceInstance instance = instances.get(0);
+        MicroserviceOutlierDetection outlierDetection = createOutlierDetection(instances, new MockEnvironment(), true, events);
+        try {
+            long[] ejectionTimes = {BASE_EJECTION_TIME, BASE_EJECTION_TIME * 2, MAX_EJECTION_TIME, MAX_EJECTION_TIME};
+            for (int i = 0; i < ejectionTimes.length; i++) {
+                fail(outlierDetection, instance, 3);
+                InstanceEjectedEvent event = events.poll(5, TimeUnit.SECONDS);
+                Assert.assertNotNull(event);
+                Assert.assertEquals(event.getEjections(), i + 1);
+                Assert.assertEquals(event.getEjectionTime(), ejectionTimes[i]);
+                waitUntilReturned(instance);
+            }
+
+            // instance was not ejected during max ejection time
+            Thread.sleep(MAX_EJECTION_TIME + 20);
+            fail(outlierDetection, instance, 3);
+            InstanceEjectedEvent event = events.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(event);
+            Assert.assertEquals(event.getEjections(), 1);
+            Assert.assertEquals(event.getEjectionTime(), BASE_EJECTION_TIME);
+        } finally {
+            outlierDetection.shutdown();
+        }
+    }
+
+    @Test
+    public void testEjectedInstancesAreLimitedByMaxPercent() throws Exception {
+        BlockingQueue<InstanceEjectedEvent> events = new LinkedBlockingQueue<>();
+        List<MicroserviceInstance> instances = createInstances(4);
+        MicroserviceOutlierDetection outlierDetection = createOutlierDetection(instances, new MockEnvironment(), true, events);
+        try {
+            for (MicroserviceInstance instance : instances) {
+                fail(outlierDetection, instance, 3);
+            }
+            // 2 of 4 instances
+            Assert.assertEquals(outlierDetection.getEjectedInstances(), instances.subList(0, 2));
+            Assert.assertEquals(outlierDetection.getEjections(), 2);
+            Assert.assertEquals(outlierDetection.getSkippedEjections(), 2);
+            Assert.assertSame(events.poll(5, TimeUnit.SECONDS).getInstance(), instances.get(0));
+            Assert.assertSame(events.poll(5, TimeUnit.SECONDS).getInstance(), instances.get(1));
+        } finally {
+            outlierDetection.shutdown();
+        }
+
+        // single instance is never ejected
+        List<MicroserviceInstance> single = createInstances(1);
+        outlierDetection = createOutlierDetection(single, new MockEnvironment(), true, new LinkedBlockingQueue<>());
+        try {
+            fail(outlierDetection, single.get(0), 10);
+            Assert.assertFalse(single.get(0).isEjected());
+            Assert.assertEquals(outlierDetection.getEjections(), 0);
+        } finally {
+            outlierDetection.shutdown();
+        }
+    }
+
+    @Test
+    public void testEnabledPerMicroservice() throws Exception {
+        List<MicroserviceInstance> instances = createInstances(4);
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty(MicroserviceConnectionPools.SERVICE_PREFIX + "accounts.outlier-detection.enabled", "true");
+        MicroserviceOutlierDetection outlierDetection = createOutlierDetection(instances, environment, false, new LinkedBlockingQueue<>());
+        try {
+            fail(outlierDetection, instances.get(0), 10);
+            Assert.assertFalse(instances.get(0).isEjected());
+
+            for (int i = 0; i < 3; i++) {
+                outlierDetection.onAttemptResult("accounts", instances.get(1), true);
+            }
+            Assert.assertTrue(instances.get(1).isEjected());
+        } finally {
+            outlierDetection.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package com.biqasoft.microservice.communicator.servicediscovery;
+
+import com.biqasoft.microservice.communicator.interfaceimpl.annotation.LoadBalancing;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulated fleet with virtual time: four fast instances of different types and two slow ones (noisy neighbours)
+ *
+ * @author Nikita Bakaev, ya@nbakaev.ru
+ *         All Rights Reserved
+ */
+@Test(suiteName = "microserviceCommunicationInterface")
+public class PeakEwmaLoadBalancingTest {
+
+    private static final long[] LATENCY_MILLIS = {8, 10, 12, 15, 60, 120};
+    private static final int REQUESTS = 20000;
+    private static final long REQUEST_INTERVAL = TimeUnit.MILLISECONDS.toNanos(2);
+    private static final long FAILURE_PENALTY = 1000;
+    private static final int PANIC_THRESHOLD = 50;
+
+    private static List<MicroserviceInstance> createFleet() {
+        List<MicroserviceInstance> instances = new ArrayList<>();
+        for (int i = 0; i < LATENCY_MILLIS.length; i++) {
+            instances.add(new MicroserviceInstance("fleet", new DefaultServiceInstance("fleet", "10.0.0." + i, 8080, false), 10000, FAILURE_PENALTY));
+        }
+        return instances;
+    }
+
+    /**
+     * @return mean latency in millis; requests[i] is number of requests sent to instance i
+     */
+    private static double simulate(LoadBalancing loadBalancing, List<MicroserviceInstance> instances, int[] requests) {
+        MicroserviceLoadBalancer loadBalancer = new MicroserviceLoadBalancer();
+        Random random = new Random(42);
+        Random chooser = new Random(7);
+        // time of response and index of instance
+        PriorityQueue<long[]> responses = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+
+        long totalLatency = 0;
+        long now = TimeUnit.SECONDS.toNanos(1);
+        for (int i = 0; i < REQUESTS; i++) {
+            now += REQUEST_INTERVAL;
+            while (!responses.isEmpty() && responses.peek()[0] <= now) {
+                long[] response = responses.poll();
+                MicroserviceInstance instance = instances.get((int) response[1]);
+                instance.onRequestEnd();
+                instance.onLatency(response[2], false, response[0]);
+            }
+
+            MicroserviceInstance instance = loadBalancer.chooseInstance("fleet", instances, Collections.emptyList(), loadBalancing, PANIC_THRESHOLD, chooser, now);
+            int index = instances.indexOf(instance);
+            // latency of every instance varies by 20%
+            long latency = (long) (TimeUnit.MILLISECONDS.toNanos(LATENCY_MILLIS[index]) * (0.8 + 0.4 * random.nextDouble()));
+
+            instance.onRequestStart();
+            responses.add(new long[]{now + latency, index, latency});
+            requests[index]++;
+            totalLatency += latency;
+        }
+        return (double) TimeUnit.NANOSECONDS.toMillis(totalLatency) / REQUESTS;
+    }
+
+    private static double slowShare(int[] requests) {
+        return (double) (requests[4] + requests[5]) / REQUESTS;
+    }
+
+    @Test
+    public void testPeakEwmaAvoidsSlowInstances() throws Exception {
+        int[] leastOutstanding = new int[LATENCY_MILLIS.length];
+        double leastOutstandingLatency = simulate(LoadBalancing.LEAST_OUTSTANDING, createFleet(), leastOutstanding);
+
+        int[] peakEwma = new int[LATENCY_MILLIS.length];
+        double peakEwmaLatency = simulate(LoadBalancing.PEAK_EWMA, createFleet(), peakEwma);
+
+        // round robin sends a third of requests to slow instances, mean latency is 37.5ms;
+        // power of two choices sends to slow instance when both random instances are slow, 1 of 15 pairs
+        Assert.assertTrue(slowShare(peakEwma) < 0.09, "share of slow instances " + slowShare(peakEwma));
+        Assert.assertTrue(slowShare(peakEwma) < slowShare(leastOutstanding),
+                "peak EWMA " + slowShare(peakEwma) + ", least outstanding " + slowShare(leastOutstanding));
+        Assert.assertTrue(peakEwmaLatency < 17, "mean latency " + peakEwmaLatency);
+        Assert.assertTrue(peakEwmaLatency < leastOutstandingLatency,
+                "peak EWMA " + peakEwmaLatency + "ms, least outstanding " + leastOutstandingLatency + "ms");
+    }
+
+    @Test
+    public void testNewInstanceIsTriedAndSlowInstanceIsRetriedAfterDecay() throws Exception {
+        List<MicroserviceInstance> instances = createFleet().subList(0, 2);
+        MicroserviceInstance fast = instances.get(0);
+        MicroserviceInstance slow = instances.get(1);
+        MicroserviceLoadBalancer loadBalancer = new MicroserviceLoadBalancer();
+        Random random = new Random(7);
+
+        long now = TimeUnit.SECONDS.toNanos(1);
+        fast.onLatency(TimeUnit.MILLISECONDS.toNanos(10), false, now);
+        // instance without latency is chosen to measure it
+        Assert.assertSame(loadBalancer.chooseInstance("fleet", instances, Collections.emptyList(), LoadBalancing.PEAK_EWMA, PANIC_THRESHOLD, random, now), slow);
+
+        slow.onLatency(TimeUnit.MILLISECONDS.toNanos(500), false, now);
+        Assert.assertSame(loadBalancer.chooseInstance("fleet", instances, Collections.emptyList(), LoadBalancing.PEAK_EWMA, PANIC_THRESHOLD, random, now), fast);
+
+        // fast instance is busy, slow one is idle and its latency decays
+        for (int i = 0; i < 3; i++) {
+            fast.onRequestStart();
+        }
+        long later = now + TimeUnit.SECONDS.toNanos(30);
+        fast.onLatency(TimeUnit.MILLISECONDS.toNanos(10), false, later);
+        Assert.assertTrue(slow.getLatency(later) < TimeUnit.MILLISECONDS.toNanos(30));
+        Assert.assertSame(loadBalancer.chooseInstance("fleet", instances, Collections.emptyList(), LoadBalancing.PEAK_EWMA, PANIC_THRESHOLD, random, later), slow);
+    }
+
+    @Test
+    public void testFastFailureRaisesLatency() throws Exception {
+        List<MicroserviceInstance> instances = createFleet().subList(0, 2);
+        MicroserviceInstance failing = instances.get(0);
+        MicroserviceInstance healthy = instances.get(1);
+        MicroserviceLoadBalancer loadBalancer = new MicroserviceLoadBalancer();
+        Random random = new Random(7);
+
+        long now = TimeUnit.SECONDS.toNanos(1);
+        failing.onLatency(TimeUnit.MILLISECONDS.toNanos(10), false, now);
+        healthy.onLatency(TimeUnit.MILLISECONDS.toNanos(20), false, now);
+        Assert.assertSame(loadBalancer.chooseInstance("fleet", instances, Collections.emptyList(), LoadBalancing.PEAK_EWMA, PANIC_THRESHOLD, random, now), failing);
+
+        // instance refuses connections or responds 503 at once
+        failing.onLatency(TimeUnit.MILLISECONDS.toNanos(1), true, now);
+        Assert.assertEquals(failing.getLatency(now), (double) TimeUnit.MILLISECONDS.toNanos(FAILURE_PENALTY), 1);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertSame(loadBalancer.chooseInstance("fleet", instances, Collections.emptyList(), LoadBalancing.PEAK_EWMA, PANIC_THRESHOLD, random, now), healthy);
+        }
+
+        // timeout longer than penalty replaces estimate
+        failing.onLatency(TimeUnit.MILLISECONDS.toNanos(3000), true, now);
+        Assert.assertEquals(failing.getLatency(now), (double) TimeUnit.MILLISECONDS.toNanos(3000), 1);
+
+        // without penalty fast failure is averaged as response
+        MicroserviceInstance instance = new MicroserviceInstance("fleet", new DefaultServiceInstance("fleet", "10.0.0.9", 8080, false), 10000, 0);
+        instance.onLatency(TimeUnit.MILLISECONDS.toNanos(10), false, now);
+        instance.onLatency(TimeUnit.MILLISECONDS.toNanos(1), true, now + TimeUnit.SECONDS.toNanos(10));
+        Assert.assertTrue(instance.getLatency(now + TimeUnit.SECONDS.toNanos(10)) < TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+}